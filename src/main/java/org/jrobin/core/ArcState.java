@@ -24,38 +24,41 @@ import java.io.IOException;
 /**
  * Class to represent internal RRD archive state for a single datasource. Objects of this
  * class are never manipulated directly, it's up to JRobin framework to manage
- * internal arcihve states.<p>
+ * internal arcihve states. ArcState objects are lightweight views of the parent archive,
+ * created on demand.<p>
  *
  * @author <a href="mailto:saxon@jrobin.org">Sasa Markovic</a>
  */
 public class ArcState implements RrdUpdater {
 	private Archive parentArc;
 
-	private RrdDouble accumValue;
-	private RrdLong nanSteps;
+	// indexes of the state primitives in the archive
+	private int accumValue;
+	private int nanSteps;
 
-	ArcState(Archive parentArc, boolean shouldInitialize) throws IOException {
+	ArcState(Archive parentArc, int dsIndex) {
 		this.parentArc = parentArc;
-		accumValue = new RrdDouble(this);
-		nanSteps = new RrdLong(this);
-		if (shouldInitialize) {
-			Header header = parentArc.getParentDb().getHeader();
-			long step = header.getStep();
-			long lastUpdateTime = header.getLastUpdateTime();
-			long arcStep = parentArc.getArcStep();
-			long initNanSteps = (Util.normalize(lastUpdateTime, step) -
-					Util.normalize(lastUpdateTime, arcStep)) / step;
-			accumValue.set(Double.NaN);
-			nanSteps.set(initNanSteps);
-		}
+		accumValue = parentArc.getIndex(dsIndex, Archive.ACCUM_VALUE);
+		nanSteps = parentArc.getIndex(dsIndex, Archive.NAN_STEPS);
+	}
+
+	void initialize() throws IOException {
+		Header header = parentArc.getParentDb().getHeader();
+		long step = header.getStep();
+		long lastUpdateTime = header.getLastUpdateTime();
+		long arcStep = parentArc.getArcStep();
+		long initNanSteps = (Util.normalize(lastUpdateTime, step) -
+				Util.normalize(lastUpdateTime, arcStep)) / step;
+		parentArc.setDouble(accumValue, Double.NaN);
+		parentArc.setLong(nanSteps, initNanSteps);
 	}
 
 	String dump() throws IOException {
-		return "accumValue:" + accumValue.get() + " nanSteps:" + nanSteps.get() + "\n";
+		return "accumValue:" + parentArc.getDouble(accumValue) + " nanSteps:" + parentArc.getLong(nanSteps) + "\n";
 	}
 
 	void setNanSteps(long value) throws IOException {
-		nanSteps.set(value);
+		parentArc.setLong(nanSteps, value);
 	}
 
 	/**
@@ -65,11 +68,11 @@ public class ArcState implements RrdUpdater {
 	 * @throws IOException Thrown in case of I/O error
 	 */
 	public long getNanSteps() throws IOException {
-		return nanSteps.get();
+		return parentArc.getLong(nanSteps);
 	}
 
 	void setAccumValue(double value) throws IOException {
-		accumValue.set(value);
+		parentArc.setDouble(accumValue, value);
 	}
 
 	/**
@@ -79,7 +82,7 @@ public class ArcState implements RrdUpdater {
 	 * @throws IOException Thrown in case of I/O error
 	 */
 	public double getAccumValue() throws IOException {
-		return accumValue.get();
+		return parentArc.getDouble(accumValue);
 	}
 
 	/**
@@ -93,8 +96,8 @@ public class ArcState implements RrdUpdater {
 
 	void appendXml(XmlWriter writer) throws IOException {
 		writer.startTag("ds");
-		writer.writeTag("value", accumValue.get());
-		writer.writeTag("unknown_datapoints", nanSteps.get());
+		writer.writeTag("value", parentArc.getDouble(accumValue));
+		writer.writeTag("unknown_datapoints", parentArc.getLong(nanSteps));
 		writer.closeTag(); // ds
 	}
 
@@ -111,8 +114,8 @@ public class ArcState implements RrdUpdater {
 					"Cannot copy ArcState object to " + other.getClass().getName());
 		}
 		ArcState arcState = (ArcState) other;
-		arcState.accumValue.set(accumValue.get());
-		arcState.nanSteps.set(nanSteps.get());
+		arcState.setAccumValue(getAccumValue());
+		arcState.setNanSteps(getNanSteps());
 	}
 
 	/**
@@ -135,6 +138,6 @@ public class ArcState implements RrdUpdater {
 	}
 
     public String toString() {
-        return "ArcState@" + Integer.toHexString(hashCode()) + "[parentArc=" + parentArc + ",accumValue=" + accumValue + ",nanSteps=" + nanSteps + "]";
+        return "ArcState@" + Integer.toHexString(hashCode()) + "[parentArc=" + parentArc + "]";
     }
 }
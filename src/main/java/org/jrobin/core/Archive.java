@@ -20,6 +20,7 @@
 package org.jrobin.core;
 
 import java.io.IOException;
+import java.util.Arrays;
 
 /**
  * Class to represent single RRD archive in a RRD with its internal state.
@@ -32,52 +33,78 @@ import java.io.IOException;
  *
  * @author <a href="mailto:saxon@jrobin.org">Sasa Markovic</a>
  */
-public class Archive implements RrdUpdater, ConsolFuns {
+public class Archive extends RrdBlock implements RrdUpdater, ConsolFuns {
+	// upper bound for the number of rows written with a single backend call in batch updates
+	private static final int MAX_RUN_LENGTH = 1024;
+
+	// primitives of the definition in the order they are stored
+	private static final int CONSOL_FUN = 0, XFF = 1, STEPS = 2, ROWS = 3;
+	static final int[] DEFINITION_TYPES = {RrdLayout.RRD_STRING, RrdLayout.RRD_DOUBLE, RrdLayout.RRD_INT, RrdLayout.RRD_INT};
+	static final int[] DEFINITION_CONSTANTS = {CONSOL_FUN, STEPS, ROWS};
+	private static final RrdLayout DEFINITION_LAYOUT = new RrdLayout(DEFINITION_TYPES, DEFINITION_CONSTANTS);
+	// the definition is followed by the state and the robin of each datasource: accumulated value,
+	// NaN steps and robin pointer, then the robin values
+	static final int ACCUM_VALUE = 0, NAN_STEPS = 1, ROBIN_POINTER = 2;
+	static final int[] DATASOURCE_TYPES = {RrdLayout.RRD_DOUBLE, RrdLayout.RRD_LONG, RrdLayout.RRD_INT};
+
 	private RrdDb parentDb;
-	// definition
-	private RrdString consolFun;
-	private RrdDouble xff;
-	private RrdInt steps, rows;
-	// state
-	private Robin[] robins;
-	private ArcState[] states;
+	private int dsCount;
+	private int numRows;
+	private ConsolFun consolFunction;
 
 	Archive(final RrdDb parentDb, final ArcDef arcDef) throws IOException {
+		this(parentDb, arcDef, parentDb.getHeader().getDsCount(), arcDef != null ? arcDef.getRows() : readRows(parentDb));
+	}
+
+	private Archive(final RrdDb parentDb, final ArcDef arcDef, final int dsCount, final int numRows) throws IOException {
+		super(parentDb, RrdLayout.getArchiveLayout(dsCount, numRows));
 	    final boolean shouldInitialize = arcDef != null;
 		this.parentDb = parentDb;
-		consolFun = new RrdString(this, true);  // constant, may be cached
-		xff = new RrdDouble(this);
-		steps = new RrdInt(this, true);			// constant, may be cached
-		rows = new RrdInt(this, true);			// constant, may be cached
+		this.dsCount = dsCount;
+		this.numRows = numRows;
 		if (shouldInitialize) {
-			consolFun.set(arcDef.getConsolFun());
-			xff.set(arcDef.getXff());
-			steps.set(arcDef.getSteps());
-			rows.set(arcDef.getRows());
-		}
-		final int dsCount = parentDb.getHeader().getDsCount();
-		states = new ArcState[dsCount];
-		robins = new Robin[dsCount];
-		final int numRows = rows.get();
-		for (int i = 0; i < dsCount; i++) {
-			states[i] = new ArcState(this, shouldInitialize);
-			robins[i] = new Robin(this, numRows, shouldInitialize);
+			setString(CONSOL_FUN, arcDef.getConsolFun());
+			setDouble(XFF, arcDef.getXff());
+			setInt(STEPS, arcDef.getSteps());
+			setInt(ROWS, arcDef.getRows());
+			for (int i = 0; i < dsCount; i++) {
+				getArcState(i).initialize();
+				getRobin(i).initialize();
+			}
 		}
 	}
 
+	/**
+	 * Reads the number of rows of the archive stored at the current allocator position, which
+	 * decides the layout of the archive.
+	 */
+	private static int readRows(final RrdDb parentDb) throws IOException {
+		final RrdAllocator allocator = parentDb.getRrdAllocator();
+		final long offset = allocator.getPointer() + DEFINITION_LAYOUT.getOffset(ROWS);
+		final byte[] b = allocator.getImage(offset, RrdLayout.RRD_PRIM_SIZES[RrdLayout.RRD_INT]);
+		return b != null ? RrdBackend.decodeInt(b, 0) : parentDb.getRrdBackend().readInt(offset);
+	}
+
+	/**
+	 * Returns the index of a primitive of the state or the robin of a datasource.
+	 */
+	final int getIndex(final int dsIndex, final int primitive) {
+		return DEFINITION_TYPES.length + dsIndex * DATASOURCE_TYPES.length + primitive;
+	}
+
 	// read from XML
 	Archive(final RrdDb parentDb, final DataImporter reader, final int arcIndex) throws IOException, RrdException,RrdException {
 		this(parentDb, new ArcDef(
 				reader.getConsolFun(arcIndex), reader.getXff(arcIndex),
 				reader.getSteps(arcIndex), reader.getRows(arcIndex)));
-		final int dsCount = parentDb.getHeader().getDsCount();
 		for (int i = 0; i < dsCount; i++) {
 			// restore state
-			states[i].setAccumValue(reader.getStateAccumValue(arcIndex, i));
-			states[i].setNanSteps(reader.getStateNanSteps(arcIndex, i));
+			final ArcState state = getArcState(i);
+			state.setAccumValue(reader.getStateAccumValue(arcIndex, i));
+			state.setNanSteps(reader.getStateNanSteps(arcIndex, i));
 			// restore robins
 			double[] values = reader.getValues(arcIndex, i);
-			robins[i].update(values);
+			getRobin(i).update(values);
 		}
 	}
 
@@ -90,17 +117,17 @@ public class Archive implements RrdUpdater, ConsolFuns {
 	 */
 	public long getArcStep() throws IOException {
 	    final long step = parentDb.getHeader().getStep();
-		return step * steps.get();
+		return step * getInt(STEPS);
 	}
 
 	String dump() throws IOException {
 	    final StringBuffer buffer = new StringBuffer("== ARCHIVE ==\n");
-		buffer.append("RRA:").append(consolFun.get()).append(":").append(xff.get()).append(":").append(steps.get()).
-				append(":").append(rows.get()).append("\n");
+		buffer.append("RRA:").append(getString(CONSOL_FUN)).append(":").append(getDouble(XFF)).append(":").append(getInt(STEPS)).
+				append(":").append(getInt(ROWS)).append("\n");
 		buffer.append("interval [").append(getStartTime()).append(", ").append(getEndTime()).append("]" + "\n");
-		for (int i = 0; i < robins.length; i++) {
-			buffer.append(states[i].dump());
-			buffer.append(robins[i].dump());
+		for (int i = 0; i < dsCount; i++) {
+			buffer.append(getArcState(i).dump());
+			buffer.append(getRobin(i).dump());
 		}
 		return buffer.toString();
 	}
@@ -110,24 +137,32 @@ public class Archive implements RrdUpdater, ConsolFuns {
 	}
 
 	public void archive(final int dsIndex, final double value, final long numStepUpdates) throws IOException {
-	    final Robin robin = robins[dsIndex];
-		final ArcState state = states[dsIndex];
-		final long step = parentDb.getHeader().getStep();
-		final long lastUpdateTime = parentDb.getHeader().getLastUpdateTime();
+		final Header header = parentDb.getHeader();
+		archive(dsIndex, value, numStepUpdates, header.getStep(), header.getLastUpdateTime());
+	}
+
+	/**
+	 * Archives a consolidated primary data point, with the RRD step and last update time
+	 * read once per update by the caller instead of once per archive.
+	 */
+	void archive(final int dsIndex, final double value, final long numStepUpdates, final long step,
+			final long lastUpdateTime) throws IOException {
+		// state of the datasource, accessed by index so that no view objects are created
+		final int accumIndex = getIndex(dsIndex, ACCUM_VALUE);
+		final int nanStepsIndex = getIndex(dsIndex, NAN_STEPS);
 		long updateTime = Util.normalize(lastUpdateTime, step) + step;
-		final long arcStep = getArcStep();
-        final String consolFunString = consolFun.get();
-        final int numSteps = steps.get();
-        final int numRows = rows.get();
-        final double xffValue = xff.get();
+		final int numSteps = getInt(STEPS);
+		final long arcStep = step * numSteps;
+		final ConsolFun consolFunction = getConsolFunction();
+		final double xffValue = getDouble(XFF);
 
-        // finish current step
+		// finish current step
 		long numUpdates = numStepUpdates;
 		while (numUpdates > 0) {
-			accumulate(state, value, consolFunString);
+			accumulate(accumIndex, nanStepsIndex, value, consolFunction);
 			numUpdates--;
 			if (updateTime % arcStep == 0) {
-                finalizeStep(state, robin, consolFunString, numSteps, xffValue);
+				finalizeStep(dsIndex, accumIndex, nanStepsIndex, consolFunction, numSteps, xffValue);
 				break;
 			}
 			else {
@@ -136,55 +171,124 @@ public class Archive implements RrdUpdater, ConsolFuns {
 		}
 		// update robin in bulk
 		final int bulkUpdateCount = (int) Math.min(numUpdates / numSteps, (long) numRows);
-		robin.bulkStore(value, bulkUpdateCount);
+		if (bulkUpdateCount > 0) {
+			getRobin(dsIndex).bulkStore(value, bulkUpdateCount);
+		}
 		// update remaining steps
 		final long remainingUpdates = numUpdates % numSteps;
 		for (long i = 0; i < remainingUpdates; i++) {
-			accumulate(state, value, consolFunString);
+			accumulate(accumIndex, nanStepsIndex, value, consolFunction);
 		}
 	}
 
-	private void accumulate(final ArcState state, final double value, String consolFunString) throws IOException {
-		if (Double.isNaN(value)) {
-			state.setNanSteps(state.getNanSteps() + 1);
-		}
-		else {
-            final double accumValue = state.getAccumValue();
-            if (consolFunString.equals(CF_MIN)) {
-				final double minValue = Util.min(accumValue, value);
-				if (minValue != accumValue) {
-				    state.setAccumValue(minValue);
+	/**
+	 * Batch counterpart of {@link #archive(int, double, long)}. Consumes the events produced by
+	 * {@link Datasource#process(long, long[], double[][], int, long[], double[], long[])} with
+	 * the archive state and robin pointer held in local variables. Consolidated rows are
+	 * collected into contiguous runs which are written with a single backend call each.
+	 */
+	void archive(final int dsIndex, final long[] eventTimes, final double[] eventValues, final long[] eventSteps,
+			final int eventCount) throws IOException {
+		final Robin robin = getRobin(dsIndex);
+		final ArcState state = getArcState(dsIndex);
+		final long step = parentDb.getHeader().getStep();
+		final int numSteps = getInt(STEPS);
+		final long arcStep = step * numSteps;
+		final ConsolFun consolFunction = getConsolFunction();
+		final double xffValue = getDouble(XFF);
+
+		double accum = state.getAccumValue();
+		long nanSteps = state.getNanSteps();
+		int pointer = robin.getPointer();
+		int runStart = pointer;
+		int runLength = 0;
+		double[] run = null;
+		for (int i = 0; i < eventCount; i++) {
+			final double value = eventValues[i];
+			long updateTime = Util.normalize(eventTimes[i], step) + step;
+			long numUpdates = eventSteps[i];
+			// finish current step
+			int rowCount = 0;
+			double rowValue = Double.NaN;
+			while (numUpdates > 0) {
+				if (Double.isNaN(value)) {
+					nanSteps++;
+				}
+				else {
+					accum = consolFunction.accumulate(accum, value);
+				}
+				numUpdates--;
+				if (updateTime % arcStep == 0) {
+					rowValue = nanSteps <= xffValue * numSteps && !Double.isNaN(accum) ?
+							consolFunction.consolidate(accum, numSteps - nanSteps) :
+							Double.NaN;
+					rowCount = 1;
+					accum = Double.NaN;
+					nanSteps = 0;
+					break;
+				}
+				else {
+					updateTime += step;
 				}
 			}
-			else if (consolFunString.equals(CF_MAX)) {
-				final double maxValue = Util.max(accumValue, value);
-				if (maxValue != accumValue) {
-				    state.setAccumValue(maxValue);
+			// rows to store: the finalized step followed by the bulk update
+			final int bulkUpdateCount = (int) Math.min(numUpdates / numSteps, (long) numRows);
+			for (int k = 0; k < rowCount + bulkUpdateCount; k++) {
+				if (run == null) {
+					run = new double[Math.min(numRows, MAX_RUN_LENGTH)];
+				}
+				run[runLength++] = k < rowCount ? rowValue : value;
+				pointer = (pointer + 1) % numRows;
+				if (pointer == 0 || runLength == run.length) {
+					robin.storeRun(runStart, runLength == run.length ? run : Arrays.copyOf(run, runLength));
+					runStart = pointer;
+					runLength = 0;
 				}
 			}
-			else if (consolFunString.equals(CF_LAST)) {
-				state.setAccumValue(value);
+			// update remaining steps
+			final long remainingUpdates = numUpdates % numSteps;
+			for (long k = 0; k < remainingUpdates; k++) {
+				if (Double.isNaN(value)) {
+					nanSteps++;
+				}
+				else {
+					accum = consolFunction.accumulate(accum, value);
+				}
 			}
-			else if (consolFunString.equals(CF_AVERAGE)) {
-				state.setAccumValue(Util.sum(accumValue, value));
+		}
+		if (runLength > 0) {
+			robin.storeRun(runStart, Arrays.copyOf(run, runLength));
+		}
+		robin.setPointer(pointer);
+		state.setAccumValue(accum);
+		state.setNanSteps(nanSteps);
+	}
+
+	private void accumulate(final int accumIndex, final int nanStepsIndex, final double value,
+			final ConsolFun consolFunction) throws IOException {
+		if (Double.isNaN(value)) {
+			setLong(nanStepsIndex, getLong(nanStepsIndex) + 1);
+		}
+		else {
+			final double accumValue = getDouble(accumIndex);
+			final double newAccumValue = consolFunction.accumulate(accumValue, value);
+			if (newAccumValue != accumValue) {
+				setDouble(accumIndex, newAccumValue);
 			}
 		}
 	}
 
-	private void finalizeStep(final ArcState state, final Robin robin, final String consolFunString, final long numSteps, final double xffValue) throws IOException {
-	    final long nanSteps = state.getNanSteps();
-		//double nanPct = (double) nanSteps / (double) arcSteps;
-		double accumValue = state.getAccumValue();
+	private void finalizeStep(final int dsIndex, final int accumIndex, final int nanStepsIndex,
+			final ConsolFun consolFunction, final long numSteps, final double xffValue) throws IOException {
+		final long nanSteps = getLong(nanStepsIndex);
+		final double accumValue = getDouble(accumIndex);
 		if (nanSteps <= xffValue * numSteps && !Double.isNaN(accumValue)) {
-			if (consolFunString.equals(CF_AVERAGE)) {
-				accumValue /= (numSteps - nanSteps);
-			}
-			robin.store(accumValue);
+			getRobin(dsIndex).store(consolFunction.consolidate(accumValue, numSteps - nanSteps));
 		} else {
-		    robin.store(Double.NaN);
+			getRobin(dsIndex).store(Double.NaN);
 		}
-		state.setAccumValue(Double.NaN);
-		state.setNanSteps(0);
+		setDouble(accumIndex, Double.NaN);
+		setLong(nanStepsIndex, 0);
 	}
 
 	/**
@@ -194,7 +298,17 @@ public class Archive implements RrdUpdater, ConsolFuns {
 	 * @throws IOException Thrown in case of I/O error.
 	 */
 	public String getConsolFun() throws IOException {
-		return consolFun.get();
+		return getString(CONSOL_FUN);
+	}
+
+	/**
+	 * Returns the strategy of the consolidation function, resolved once.
+	 */
+	private ConsolFun getConsolFunction() throws IOException {
+		if (consolFunction == null) {
+			consolFunction = ConsolFun.getConsolFun(getString(CONSOL_FUN));
+		}
+		return consolFunction;
 	}
 
 	/**
@@ -204,7 +318,7 @@ public class Archive implements RrdUpdater, ConsolFuns {
 	 * @throws IOException Thrown in case of I/O error.
 	 */
 	public double getXff() throws IOException {
-		return xff.get();
+		return getDouble(XFF);
 	}
 
 	/**
@@ -214,7 +328,7 @@ public class Archive implements RrdUpdater, ConsolFuns {
 	 * @throws IOException Thrown in case of I/O error.
 	 */
 	public int getSteps() throws IOException {
-		return steps.get();
+		return getInt(STEPS);
 	}
 
 	/**
@@ -224,7 +338,7 @@ public class Archive implements RrdUpdater, ConsolFuns {
 	 * @throws IOException Thrown in case of I/O error.
 	 */
 	public int getRows() throws IOException {
-		return rows.get();
+		return getInt(ROWS);
 	}
 
 	/**
@@ -236,7 +350,7 @@ public class Archive implements RrdUpdater, ConsolFuns {
 	public long getStartTime() throws IOException {
 	    final long endTime = getEndTime();
 		final long arcStep = getArcStep();
-		final long numRows = rows.get();
+		final long numRows = getInt(ROWS);
 		return endTime - (numRows - 1) * arcStep;
 	}
 
@@ -261,7 +375,7 @@ public class Archive implements RrdUpdater, ConsolFuns {
 	 * @return Underlying archive state object
 	 */
 	public ArcState getArcState(final int dsIndex) {
-		return states[dsIndex];
+		return new ArcState(this, dsIndex);
 	}
 
 	/**
@@ -272,7 +386,7 @@ public class Archive implements RrdUpdater, ConsolFuns {
 	 * @return Underlying round robin archive for the given datasource.
 	 */
 	public Robin getRobin(final int dsIndex) {
-		return robins[dsIndex];
+		return new Robin(this, dsIndex, numRows);
 	}
 
 	FetchData fetchData(final FetchRequest request) throws IOException, RrdException {
@@ -302,7 +416,7 @@ public class Archive implements RrdUpdater, ConsolFuns {
 			robinValues = new double[dsCount][];
 			for (int i = 0; i < dsCount; i++) {
 			    final int dsIndex = parentDb.getDsIndex(dsToFetch[i]);
-				robinValues[i] = robins[dsIndex].getValues(matchStartIndex, matchCount);
+				robinValues[i] = getRobin(dsIndex).getValues(matchStartIndex, matchCount);
 			}
 		}
 		for (int ptIndex = 0; ptIndex < ptsCount; ptIndex++) {
@@ -327,18 +441,22 @@ public class Archive implements RrdUpdater, ConsolFuns {
 
 	void appendXml(final XmlWriter writer) throws IOException {
 		writer.startTag("rra");
-		writer.writeTag("cf", consolFun.get());
+		writer.writeTag("cf", getString(CONSOL_FUN));
 		writer.writeComment(getArcStep() + " seconds");
-		writer.writeTag("pdp_per_row", steps.get());
-		writer.writeTag("xff", xff.get());
+		writer.writeTag("pdp_per_row", getInt(STEPS));
+		writer.writeTag("xff", getDouble(XFF));
 		writer.startTag("cdp_prep");
-		for (final ArcState state : states) {
-			state.appendXml(writer);
+		for (int i = 0; i < dsCount; i++) {
+			getArcState(i).appendXml(writer);
 		}
 		writer.closeTag(); // cdp_prep
 		writer.startTag("database");
 		final long startTime = getStartTime();
-		for (int i = 0; i < rows.get(); i++) {
+		final Robin[] robins = new Robin[dsCount];
+		for (int i = 0; i < dsCount; i++) {
+			robins[i] = getRobin(i);
+		}
+		for (int i = 0; i < numRows; i++) {
 			final long time = startTime + i * getArcStep();
 			writer.writeComment(Util.getDate(time) + " / " + time);
 			writer.startTag("row");
@@ -363,18 +481,18 @@ public class Archive implements RrdUpdater, ConsolFuns {
 			throw new RrdException("Cannot copy Archive object to " + other.getClass().getName());
 		}
 		final Archive arc = (Archive) other;
-		if (!arc.consolFun.get().equals(consolFun.get())) {
+		if (!arc.getString(CONSOL_FUN).equals(getString(CONSOL_FUN))) {
 			throw new RrdException("Incompatible consolidation functions");
 		}
-		if (arc.steps.get() != steps.get()) {
+		if (arc.getInt(STEPS) != getInt(STEPS)) {
 			throw new RrdException("Incompatible number of steps");
 		}
 		final int count = parentDb.getHeader().getDsCount();
 		for (int i = 0; i < count; i++) {
 		    final int j = Util.getMatchingDatasourceIndex(parentDb, i, arc.parentDb);
 			if (j >= 0) {
-				states[i].copyStateTo(arc.states[j]);
-				robins[i].copyStateTo(arc.robins[j]);
+				getArcState(i).copyStateTo(arc.getArcState(j));
+				getRobin(i).copyStateTo(arc.getRobin(j));
 			}
 		}
 	}
@@ -390,7 +508,7 @@ public class Archive implements RrdUpdater, ConsolFuns {
 		if (xff < 0D || xff >= 1D) {
 			throw new RrdException("Invalid xff supplied (" + xff + "), must be >= 0 and < 1");
 		}
-		this.xff.set(xff);
+		setDouble(XFF, xff);
 	}
 
 	/**
@@ -413,6 +531,6 @@ public class Archive implements RrdUpdater, ConsolFuns {
 	}
 
     public String toString() {
-        return "Archive@" + Integer.toHexString(hashCode()) + "[parentDb=" + parentDb + ",consolFun=" + consolFun + ",xff=" + xff + ",steps=" + steps + ",rows=" + rows + ",robins=" + robins + ",states=" + states + "]";
+        return "Archive@" + Integer.toHexString(hashCode()) + "[parentDb=" + parentDb + ",rows=" + numRows + "]";
     }
 }
@@ -0,0 +1,89 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The OpenNMS Group, Inc.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *******************************************************************************/
+package org.jrobin.core;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Map with a maximum size which may be read and updated by many threads without a common
+ * lock. When the maximum size is exceeded, the entries added first are removed first.
+ */
+final class BoundedCache<K, V> {
+	private final ConcurrentMap<K, V> map = new ConcurrentHashMap<K, V>();
+	// keys in the order they were added, possibly including keys removed since
+	private final Queue<K> order = new ConcurrentLinkedQueue<K>();
+	private final AtomicInteger orderSize = new AtomicInteger();
+	private volatile int maxSize;
+
+	BoundedCache(final int maxSize) {
+		this.maxSize = Math.max(0, maxSize);
+	}
+
+	V get(final K key) {
+		return map.get(key);
+	}
+
+	void put(final K key, final V value) {
+		if (maxSize == 0) {
+			return;
+		}
+		if (map.put(key, value) == null) {
+			order.add(key);
+			orderSize.incrementAndGet();
+			evict();
+		}
+	}
+
+	void remove(final K key) {
+		map.remove(key);
+	}
+
+	void clear() {
+		map.clear();
+		order.clear();
+		orderSize.set(0);
+	}
+
+	int size() {
+		return map.size();
+	}
+
+	int getMaxSize() {
+		return maxSize;
+	}
+
+	void setMaxSize(final int maxSize) {
+		this.maxSize = Math.max(0, maxSize);
+		evict();
+	}
+
+	private void evict() {
+		while (orderSize.get() > maxSize) {
+			final K key = order.poll();
+			if (key == null) {
+				return;
+			}
+			orderSize.decrementAndGet();
+			map.remove(key);
+		}
+	}
+}
@@ -0,0 +1,93 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The OpenNMS Group, Inc.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *******************************************************************************/
+package org.jrobin.core;
+
+/**
+ * Consolidation functions of archives as strategies, so that archiving is dispatched
+ * without comparing function names.
+ */
+enum ConsolFun implements ConsolFuns {
+	AVERAGE {
+		double accumulate(double accumValue, double value) {
+			return Util.sum(accumValue, value);
+		}
+
+		double consolidate(double accumValue, long knownSteps) {
+			return accumValue / knownSteps;
+		}
+	},
+	MIN {
+		double accumulate(double accumValue, double value) {
+			return Util.min(accumValue, value);
+		}
+	},
+	MAX {
+		double accumulate(double accumValue, double value) {
+			return Util.max(accumValue, value);
+		}
+	},
+	LAST {
+		double accumulate(double accumValue, double value) {
+			return value;
+		}
+	},
+	/**
+	 * Any function not known to this version, never accumulates anything.
+	 */
+	UNKNOWN {
+		double accumulate(double accumValue, double value) {
+			return accumValue;
+		}
+	};
+
+	/**
+	 * Adds a known primary data point to the value accumulated so far.
+	 *
+	 * @param accumValue Value accumulated so far, NaN if nothing was accumulated
+	 * @param value      Known value of the primary data point
+	 * @return New accumulated value
+	 */
+	abstract double accumulate(double accumValue, double value);
+
+	/**
+	 * Turns the accumulated value into the value of an archive row.
+	 *
+	 * @param accumValue Accumulated value, not NaN
+	 * @param knownSteps Number of known primary data points accumulated
+	 * @return Value to store
+	 */
+	double consolidate(double accumValue, long knownSteps) {
+		return accumValue;
+	}
+
+	static ConsolFun getConsolFun(final String consolFun) {
+		if (CF_AVERAGE.equals(consolFun)) {
+			return AVERAGE;
+		}
+		else if (CF_MIN.equals(consolFun)) {
+			return MIN;
+		}
+		else if (CF_MAX.equals(consolFun)) {
+			return MAX;
+		}
+		else if (CF_LAST.equals(consolFun)) {
+			return LAST;
+		}
+		return UNKNOWN;
+	}
+}
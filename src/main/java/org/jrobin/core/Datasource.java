@@ -32,72 +32,62 @@ import java.io.IOException;
  * @author <a href="mailto:saxon@jrobin.org">Sasa Markovic</a>
  */
 
-public class Datasource implements RrdUpdater, DsTypes {
-	private static final double MAX_32_BIT = Math.pow(2, 32);
-	private static final double MAX_64_BIT = Math.pow(2, 64);
+public class Datasource extends RrdBlock implements RrdUpdater, DsTypes {
+	// primitives in the order they are stored: definition followed by state variables
+	private static final int DS_NAME = 0, DS_TYPE = 1, HEARTBEAT = 2, MIN_VALUE = 3, MAX_VALUE = 4;
+	private static final int LAST_VALUE = 5, ACCUM_VALUE = 6, NAN_SECONDS = 7;
+	private static final RrdLayout LAYOUT = new RrdLayout(new int[] {
+			RrdLayout.RRD_STRING, RrdLayout.RRD_STRING, RrdLayout.RRD_LONG, RrdLayout.RRD_DOUBLE, RrdLayout.RRD_DOUBLE,
+			RrdLayout.RRD_DOUBLE, RrdLayout.RRD_DOUBLE, RrdLayout.RRD_LONG
+	});
 
 	private RrdDb parentDb;
-	// definition
-	private RrdString dsName, dsType;
-	private RrdLong heartbeat;
-	private RrdDouble minValue, maxValue;
 
 	// cache
 	private String m_primitiveDsName = null;
 	private String m_primitiveDsType = null;
-
-	// state variables
-	private RrdDouble lastValue;
-	private RrdLong nanSeconds;
-	private RrdDouble accumValue;
+	private DsType m_type = null;
 
 	Datasource(final RrdDb parentDb, final DsDef dsDef) throws IOException {
+		super(parentDb, LAYOUT);
 		boolean shouldInitialize = dsDef != null;
 		this.parentDb = parentDb;
-		dsName = new RrdString(this);
-		dsType = new RrdString(this);
-		heartbeat = new RrdLong(this);
-		minValue = new RrdDouble(this);
-		maxValue = new RrdDouble(this);
-		lastValue = new RrdDouble(this);
-		accumValue = new RrdDouble(this);
-		nanSeconds = new RrdLong(this);
 		if (shouldInitialize) {
-		    dsName.set(dsDef.getDsName());
+		    setString(DS_NAME, dsDef.getDsName());
             m_primitiveDsName = null;
-			dsType.set(dsDef.getDsType());
+			setString(DS_TYPE, dsDef.getDsType());
 			m_primitiveDsType = null;
-			heartbeat.set(dsDef.getHeartbeat());
-			minValue.set(dsDef.getMinValue());
-			maxValue.set(dsDef.getMaxValue());
-			lastValue.set(Double.NaN);
-			accumValue.set(0.0);
+			setLong(HEARTBEAT, dsDef.getHeartbeat());
+			setDouble(MIN_VALUE, dsDef.getMinValue());
+			setDouble(MAX_VALUE, dsDef.getMaxValue());
+			setDouble(LAST_VALUE, Double.NaN);
+			setDouble(ACCUM_VALUE, 0.0);
 			final Header header = parentDb.getHeader();
-			nanSeconds.set(header.getLastUpdateTime() % header.getStep());
+			setLong(NAN_SECONDS, header.getLastUpdateTime() % header.getStep());
 		}
 	}
 
 	Datasource(final RrdDb parentDb, final DataImporter reader, final int dsIndex) throws IOException, RrdException {
 		this(parentDb, null);
-		dsName.set(reader.getDsName(dsIndex));
+		setString(DS_NAME, reader.getDsName(dsIndex));
 		m_primitiveDsName = null;
-		dsType.set(reader.getDsType(dsIndex));
+		setString(DS_TYPE, reader.getDsType(dsIndex));
 		m_primitiveDsType = null;
-		heartbeat.set(reader.getHeartbeat(dsIndex));
-		minValue.set(reader.getMinValue(dsIndex));
-		maxValue.set(reader.getMaxValue(dsIndex));
-		lastValue.set(reader.getLastValue(dsIndex));
-		accumValue.set(reader.getAccumValue(dsIndex));
-		nanSeconds.set(reader.getNanSeconds(dsIndex));
+		setLong(HEARTBEAT, reader.getHeartbeat(dsIndex));
+		setDouble(MIN_VALUE, reader.getMinValue(dsIndex));
+		setDouble(MAX_VALUE, reader.getMaxValue(dsIndex));
+		setDouble(LAST_VALUE, reader.getLastValue(dsIndex));
+		setDouble(ACCUM_VALUE, reader.getAccumValue(dsIndex));
+		setLong(NAN_SECONDS, reader.getNanSeconds(dsIndex));
 	}
 
 	String dump() throws IOException {
 		return "== DATASOURCE ==\n" +
-				"DS:" + dsName.get() + ":" + dsType.get() + ":" +
-				heartbeat.get() + ":" + minValue.get() + ":" +
-				maxValue.get() + "\nlastValue:" + lastValue.get() +
-				" nanSeconds:" + nanSeconds.get() +
-				" accumValue:" + accumValue.get() + "\n";
+				"DS:" + getString(DS_NAME) + ":" + getString(DS_TYPE) + ":" +
+				getLong(HEARTBEAT) + ":" + getDouble(MIN_VALUE) + ":" +
+				getDouble(MAX_VALUE) + "\nlastValue:" + getDouble(LAST_VALUE) +
+				" nanSeconds:" + getLong(NAN_SECONDS) +
+				" accumValue:" + getDouble(ACCUM_VALUE) + "\n";
 	}
 
 	/**
@@ -108,7 +98,7 @@ public class Datasource implements RrdUpdater, DsTypes {
 	 */
 	public String getDsName() throws IOException {
 	    if (m_primitiveDsName == null) {
-	        m_primitiveDsName = dsName.get();
+	        m_primitiveDsName = getString(DS_NAME);
 	    }
 	    return m_primitiveDsName;
 	}
@@ -121,7 +111,7 @@ public class Datasource implements RrdUpdater, DsTypes {
 	 */
 	public String getDsType() throws IOException {
 	    if (m_primitiveDsType == null) {
-	        m_primitiveDsType = dsType.get();
+	        m_primitiveDsType = getString(DS_TYPE);
 	    }
 	    return m_primitiveDsType;
 	}
@@ -134,7 +124,7 @@ public class Datasource implements RrdUpdater, DsTypes {
 	 */
 
 	public long getHeartbeat() throws IOException {
-		return heartbeat.get();
+		return getLong(HEARTBEAT);
 	}
 
 	/**
@@ -144,7 +134,7 @@ public class Datasource implements RrdUpdater, DsTypes {
 	 * @throws IOException Thrown in case of I/O error
 	 */
 	public double getMinValue() throws IOException {
-		return minValue.get();
+		return getDouble(MIN_VALUE);
 	}
 
 	/**
@@ -154,7 +144,7 @@ public class Datasource implements RrdUpdater, DsTypes {
 	 * @throws IOException Thrown in case of I/O error
 	 */
 	public double getMaxValue() throws IOException {
-		return maxValue.get();
+		return getDouble(MAX_VALUE);
 	}
 
 	/**
@@ -164,7 +154,7 @@ public class Datasource implements RrdUpdater, DsTypes {
 	 * @throws IOException Thrown in case of I/O error
 	 */
 	public double getLastValue() throws IOException {
-		return lastValue.get();
+		return getDouble(LAST_VALUE);
 	}
 
 	/**
@@ -174,7 +164,7 @@ public class Datasource implements RrdUpdater, DsTypes {
 	 * @throws IOException Thrown in case of I/O error
 	 */
 	public double getAccumValue() throws IOException {
-		return accumValue.get();
+		return getDouble(ACCUM_VALUE);
 	}
 
 	/**
@@ -184,16 +174,31 @@ public class Datasource implements RrdUpdater, DsTypes {
 	 * @throws IOException Thrown in case of I/O error
 	 */
 	public long getNanSeconds() throws IOException {
-		return nanSeconds.get();
+		return getLong(NAN_SECONDS);
+	}
+
+	/**
+	 * Keeps the state variables in memory until the block is flushed, if enabled.
+	 */
+	boolean deferState(final boolean enabled) throws IOException {
+		return setDeferred(enabled, LAST_VALUE, ACCUM_VALUE, NAN_SECONDS);
+	}
+
+	/**
+	 * Returns the strategy of the datasource type, resolved once.
+	 */
+	private DsType getType() throws IOException {
+		if (m_type == null) {
+			m_type = DsType.getDsType(getDsType());
+		}
+		return m_type;
 	}
 
-	void process(final long newTime, final double newValue) throws IOException, RrdException {
-	    final Header header = parentDb.getHeader();
-	    final long step = header.getStep();
-		final long oldTime = header.getLastUpdateTime();
+	void process(final int dsIndex, final long step, final long oldTime, final long newTime, final double newValue)
+			throws IOException, RrdException {
 		final long startTime = Util.normalize(oldTime, step);
 		final long endTime = startTime + step;
-		final double oldValue = lastValue.get();
+		final double oldValue = getDouble(LAST_VALUE);
 		final double updateValue = calculateUpdateValue(oldTime, oldValue, newTime, newValue);
 		if (newTime < endTime) {
 			accumulate(oldTime, newTime, updateValue);
@@ -206,48 +211,85 @@ public class Datasource implements RrdUpdater, DsTypes {
 			// how many updates?
 			final long numSteps = (boundaryTime - endTime) / step + 1L;
 			// ACTION!
-			parentDb.archive(this, value, numSteps);
+			parentDb.archive(dsIndex, value, numSteps, step, oldTime);
 			// cleanup
-			nanSeconds.set(0);
-			accumValue.set(0.0);
+			setLong(NAN_SECONDS, 0);
+			setDouble(ACCUM_VALUE, 0.0);
 			accumulate(boundaryTime, newTime, updateValue);
 		}
 	}
 
-	private double calculateUpdateValue(final long oldTime, final double oldValue, final long newTime, final double newValue) throws IOException {
-		double updateValue = Double.NaN;
-		if (newTime - oldTime <= heartbeat.get()) {
-		    final String type = dsType.get();
-			if (type.equals(DT_GAUGE)) {
-				updateValue = newValue;
+	/**
+	 * Batch counterpart of {@link #process(long, double)}. Runs the primary data point state
+	 * machine of this datasource over all samples of a batch with the state held in local
+	 * variables, and writes the state back once. Every completed step is reported as an event
+	 * (the update time preceding the sample, the consolidated value and the number of steps)
+	 * so that the archives can consume all events of this datasource in one pass.
+	 *
+	 * @return Number of events produced
+	 */
+	int process(final long lastUpdateTime, final long[] times, final double[][] values, final int dsIndex,
+			final long[] eventTimes, final double[] eventValues, final long[] eventSteps) throws IOException {
+		final long step = parentDb.getHeader().getStep();
+		final DsType type = getType();
+		final long heartbeatValue = getLong(HEARTBEAT);
+		final double minVal = getDouble(MIN_VALUE);
+		final double maxVal = getDouble(MAX_VALUE);
+		final boolean forceZeros = getDsName().endsWith(DsDef.FORCE_ZEROS_FOR_NANS_SUFFIX);
+		double last = getDouble(LAST_VALUE);
+		double accum = getDouble(ACCUM_VALUE);
+		long nanSecs = getLong(NAN_SECONDS);
+		long oldTime = lastUpdateTime;
+		int eventCount = 0;
+		for (int i = 0; i < times.length; i++) {
+			final long newTime = times[i];
+			final double newValue = values[i][dsIndex];
+			final long startTime = Util.normalize(oldTime, step);
+			final long endTime = startTime + step;
+			final double updateValue = calculateUpdateValue(type, heartbeatValue, minVal, maxVal, oldTime, last, newTime, newValue);
+			last = newValue;
+			final long boundaryTime = newTime < endTime ? newTime : Util.normalize(newTime, step);
+			if (Double.isNaN(updateValue)) {
+				nanSecs += boundaryTime - oldTime;
 			}
-			else if (type.equals(DT_ABSOLUTE)) {
-				if (!Double.isNaN(newValue)) {
-					updateValue = newValue / (newTime - oldTime);
-				}
+			else {
+				accum += updateValue * (boundaryTime - oldTime);
 			}
-			else if (type.equals(DT_DERIVE)) {
-				if (!Double.isNaN(newValue) && !Double.isNaN(oldValue)) {
-					updateValue = (newValue - oldValue) / (newTime - oldTime);
+			if (newTime >= endTime) {
+				eventTimes[eventCount] = oldTime;
+				eventValues[eventCount] = calculateTotal(heartbeatValue, forceZeros, accum, nanSecs, startTime, boundaryTime);
+				eventSteps[eventCount] = (boundaryTime - endTime) / step + 1L;
+				eventCount++;
+				nanSecs = 0;
+				accum = 0.0;
+				if (Double.isNaN(updateValue)) {
+					nanSecs += newTime - boundaryTime;
 				}
-			}
-			else if (type.equals(DT_COUNTER)) {
-				if (!Double.isNaN(newValue) && !Double.isNaN(oldValue)) {
-				    double diff = newValue - oldValue;
-					if (diff < 0) {
-						diff += MAX_32_BIT;
-					}
-					if (diff < 0) {
-						diff += MAX_64_BIT - MAX_32_BIT;
-					}
-					if (diff >= 0) {
-						updateValue = diff / (newTime - oldTime);
-					}
+				else {
+					accum += updateValue * (newTime - boundaryTime);
 				}
 			}
+			oldTime = newTime;
+		}
+		setDouble(LAST_VALUE, last);
+		setDouble(ACCUM_VALUE, accum);
+		setLong(NAN_SECONDS, nanSecs);
+		return eventCount;
+	}
+
+	private double calculateUpdateValue(final long oldTime, final double oldValue, final long newTime, final double newValue) throws IOException {
+		final double updateValue = calculateUpdateValue(getType(), getLong(HEARTBEAT), getDouble(MIN_VALUE), getDouble(MAX_VALUE),
+				oldTime, oldValue, newTime, newValue);
+		setDouble(LAST_VALUE, newValue);
+		return updateValue;
+	}
+
+	private static double calculateUpdateValue(final DsType type, final long heartbeat, final double minVal, final double maxVal,
+			final long oldTime, final double oldValue, final long newTime, final double newValue) {
+		double updateValue = Double.NaN;
+		if (newTime - oldTime <= heartbeat) {
+			updateValue = type.calculateUpdateValue(oldValue, newValue, newTime - oldTime);
 			if (!Double.isNaN(updateValue)) {
-			    final double minVal = minValue.get();
-				final double maxVal = maxValue.get();
 				if (!Double.isNaN(minVal) && updateValue < minVal) {
 					updateValue = Double.NaN;
 				}
@@ -256,29 +298,34 @@ public class Datasource implements RrdUpdater, DsTypes {
 				}
 			}
 		}
-		lastValue.set(newValue);
 		return updateValue;
 	}
 
 	private void accumulate(final long oldTime, final long newTime, final double updateValue) throws IOException {
 		if (Double.isNaN(updateValue)) {
-			nanSeconds.set(nanSeconds.get() + (newTime - oldTime));
+			setLong(NAN_SECONDS, getLong(NAN_SECONDS) + (newTime - oldTime));
 		}
 		else {
-			accumValue.set(accumValue.get() + updateValue * (newTime - oldTime));
+			setDouble(ACCUM_VALUE, getDouble(ACCUM_VALUE) + updateValue * (newTime - oldTime));
 		}
 	}
 
 	private double calculateTotal(final long startTime, final long boundaryTime) throws IOException {
+		return calculateTotal(getLong(HEARTBEAT), getDsName().endsWith(DsDef.FORCE_ZEROS_FOR_NANS_SUFFIX),
+				getDouble(ACCUM_VALUE), getLong(NAN_SECONDS), startTime, boundaryTime);
+	}
+
+	private static double calculateTotal(final long heartbeat, final boolean forceZeros, final double accum, final long nanSecs,
+			final long startTime, final long boundaryTime) {
 		double totalValue = Double.NaN;
-		final long validSeconds = boundaryTime - startTime - nanSeconds.get();
-		if (nanSeconds.get() <= heartbeat.get() && validSeconds > 0) {
-			totalValue = accumValue.get() / validSeconds;
+		final long validSeconds = boundaryTime - startTime - nanSecs;
+		if (nanSecs <= heartbeat && validSeconds > 0) {
+			totalValue = accum / validSeconds;
 		}
 		// IMPORTANT:
 		// if datasource name ends with "!", we'll send zeros instead of NaNs
 		// this might be handy from time to time
-		if (Double.isNaN(totalValue) && dsName.get().endsWith(DsDef.FORCE_ZEROS_FOR_NANS_SUFFIX)) {
+		if (Double.isNaN(totalValue) && forceZeros) {
 			totalValue = 0D;
 		}
 		return totalValue;
@@ -286,15 +333,15 @@ public class Datasource implements RrdUpdater, DsTypes {
 
 	void appendXml(final XmlWriter writer) throws IOException {
 		writer.startTag("ds");
-		writer.writeTag("name", dsName.get());
-		writer.writeTag("type", dsType.get());
-		writer.writeTag("minimal_heartbeat", heartbeat.get());
-		writer.writeTag("min", minValue.get());
-		writer.writeTag("max", maxValue.get());
+		writer.writeTag("name", getString(DS_NAME));
+		writer.writeTag("type", getString(DS_TYPE));
+		writer.writeTag("minimal_heartbeat", getLong(HEARTBEAT));
+		writer.writeTag("min", getDouble(MIN_VALUE));
+		writer.writeTag("max", getDouble(MAX_VALUE));
 		writer.writeComment("PDP Status");
-		writer.writeTag("last_ds", lastValue.get(), "UNKN");
-		writer.writeTag("value", accumValue.get());
-		writer.writeTag("unknown_sec", nanSeconds.get());
+		writer.writeTag("last_ds", getDouble(LAST_VALUE), "UNKN");
+		writer.writeTag("value", getDouble(ACCUM_VALUE));
+		writer.writeTag("unknown_sec", getLong(NAN_SECONDS));
 		writer.closeTag();  // ds
 	}
 
@@ -310,15 +357,15 @@ public class Datasource implements RrdUpdater, DsTypes {
 			throw new RrdException("Cannot copy Datasource object to " + other.getClass().getName());
 		}
 		final Datasource datasource = (Datasource) other;
-		if (!datasource.dsName.get().equals(dsName.get())) {
+		if (!datasource.getString(DS_NAME).equals(getString(DS_NAME))) {
 			throw new RrdException("Incomaptible datasource names");
 		}
-		if (!datasource.dsType.get().equals(dsType.get())) {
+		if (!datasource.getString(DS_TYPE).equals(getString(DS_TYPE))) {
 			throw new RrdException("Incomaptible datasource types");
 		}
-		datasource.lastValue.set(lastValue.get());
-		datasource.nanSeconds.set(nanSeconds.get());
-		datasource.accumValue.set(accumValue.get());
+		datasource.setDouble(LAST_VALUE, getDouble(LAST_VALUE));
+		datasource.setLong(NAN_SECONDS, getLong(NAN_SECONDS));
+		datasource.setDouble(ACCUM_VALUE, getDouble(ACCUM_VALUE));
 	}
 
 	/**
@@ -329,7 +376,7 @@ public class Datasource implements RrdUpdater, DsTypes {
 	 */
 	public int getDsIndex() throws IOException {
 		try {
-			return parentDb.getDsIndex(dsName.get());
+			return parentDb.getDsIndex(getString(DS_NAME));
 		}
 		catch (final RrdException e) {
 			return -1;
@@ -347,7 +394,7 @@ public class Datasource implements RrdUpdater, DsTypes {
 		if (heartbeat < 1L) {
 			throw new RrdException("Invalid heartbeat specified: " + heartbeat);
 		}
-		this.heartbeat.set(heartbeat);
+		setLong(HEARTBEAT, heartbeat);
 	}
 
 	/**
@@ -359,13 +406,13 @@ public class Datasource implements RrdUpdater, DsTypes {
 	 * @throws IOException  Thrown in case of I/O error
 	 */
 	public void setDsName(final String newDsName) throws RrdException, IOException {
-		if (newDsName.length() > RrdString.STRING_LENGTH) {
+		if (newDsName.length() > RrdLayout.STRING_LENGTH) {
 			throw new RrdException("Invalid datasource name specified: " + newDsName);
 		}
 		if (parentDb.containsDs(newDsName)) {
 			throw new RrdException("Datasource already defined in this RRD: " + newDsName);
 		}
-		dsName.set(newDsName);
+		setString(DS_NAME, newDsName);
 		m_primitiveDsName = null;
 	}
 
@@ -374,13 +421,14 @@ public class Datasource implements RrdUpdater, DsTypes {
 			throw new RrdException("Invalid datasource type: " + newDsType);
 		}
 		// set datasource type
-		this.dsType.set(newDsType);
+		setString(DS_TYPE, newDsType);
 		m_primitiveDsType = null;
+		m_type = null;
 		// reset datasource status
-		lastValue.set(Double.NaN);
-		accumValue.set(0.0);
+		setDouble(LAST_VALUE, Double.NaN);
+		setDouble(ACCUM_VALUE, 0.0);
 		// reset archive status
-		final int dsIndex = parentDb.getDsIndex(dsName.get());
+		final int dsIndex = parentDb.getDsIndex(getString(DS_NAME));
 		final Archive[] archives = parentDb.getArchives();
 		for (final Archive archive : archives) {
 			archive.getArcState(dsIndex).setAccumValue(Double.NaN);
@@ -400,11 +448,11 @@ public class Datasource implements RrdUpdater, DsTypes {
 	 * @throws RrdException Thrown if invalid minValue was supplied (not less then maxValue)
 	 */
 	public void setMinValue(final double minValue, final boolean filterArchivedValues) throws IOException, RrdException {
-	    final double maxValue = this.maxValue.get();
+	    final double maxValue = getDouble(MAX_VALUE);
 		if (!Double.isNaN(minValue) && !Double.isNaN(maxValue) && minValue >= maxValue) {
 			throw new RrdException("Invalid min/max values: " + minValue + "/" + maxValue);
 		}
-		this.minValue.set(minValue);
+		setDouble(MIN_VALUE, minValue);
 		if (!Double.isNaN(minValue) && filterArchivedValues) {
 			final int dsIndex = getDsIndex();
 			final Archive[] archives = parentDb.getArchives();
@@ -427,11 +475,11 @@ public class Datasource implements RrdUpdater, DsTypes {
 	 * @throws RrdException Thrown if invalid maxValue was supplied (not greater then minValue)
 	 */
 	public void setMaxValue(final double maxValue, final boolean filterArchivedValues) throws IOException, RrdException {
-	    final double minValue = this.minValue.get();
+	    final double minValue = getDouble(MIN_VALUE);
 		if (!Double.isNaN(minValue) && !Double.isNaN(maxValue) && minValue >= maxValue) {
 			throw new RrdException("Invalid min/max values: " + minValue + "/" + maxValue);
 		}
-		this.maxValue.set(maxValue);
+		setDouble(MAX_VALUE, maxValue);
 		if (!Double.isNaN(maxValue) && filterArchivedValues) {
 			final int dsIndex = getDsIndex();
 			final Archive[] archives = parentDb.getArchives();
@@ -459,8 +507,8 @@ public class Datasource implements RrdUpdater, DsTypes {
 		if (!Double.isNaN(minValue) && !Double.isNaN(maxValue) && minValue >= maxValue) {
 			throw new RrdException("Invalid min/max values: " + minValue + "/" + maxValue);
 		}
-		this.minValue.set(minValue);
-		this.maxValue.set(maxValue);
+		setDouble(MIN_VALUE, minValue);
+		setDouble(MAX_VALUE, maxValue);
 		if (!(Double.isNaN(minValue) && Double.isNaN(maxValue)) && filterArchivedValues) {
 		    final int dsIndex = getDsIndex();
 			final Archive[] archives = parentDb.getArchives();
@@ -491,7 +539,6 @@ public class Datasource implements RrdUpdater, DsTypes {
 
 	public String toString() {
 	    return getClass().getName() + "@" + Integer.toHexString(hashCode()) + "[parentDb=" + parentDb
-	        + ",dsName=" + dsName + ",dsType=" + dsType + ",heartbeat=" + heartbeat
-	        + ",minValue=" + minValue + ",maxValue=" + maxValue + "]";
+	        + ",dsName=" + m_primitiveDsName + ",dsType=" + m_primitiveDsType + "]";
 	}
 }
@@ -129,9 +129,9 @@ public class DsDef implements DsTypes {
 		if (dsName.length() == 0) {
 			throw new RrdException("Datasource name length equal to zero");
 		}
-		if (dsName.length() > RrdPrimitive.STRING_LENGTH) {
+		if (dsName.length() > RrdLayout.STRING_LENGTH) {
 			throw new RrdException("Datasource name [" + dsName + "] to long (" +
-					dsName.length() + " chars found, only " + RrdPrimitive.STRING_LENGTH + " allowed");
+					dsName.length() + " chars found, only " + RrdLayout.STRING_LENGTH + " allowed");
 		}
 		if (!isValidDsType(dsType)) {
 			throw new RrdException("Invalid datasource type specified: " + dsType);
@@ -0,0 +1,96 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The OpenNMS Group, Inc.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *******************************************************************************/
+package org.jrobin.core;
+
+/**
+ * Datasource types as update strategies, so that updates are dispatched without
+ * comparing type names. Each type converts a raw sample to the rate stored in the
+ * primary data point.
+ */
+enum DsType implements DsTypes {
+	GAUGE {
+		double calculateUpdateValue(double oldValue, double newValue, long seconds) {
+			return newValue;
+		}
+	},
+	COUNTER {
+		double calculateUpdateValue(double oldValue, double newValue, long seconds) {
+			if (Double.isNaN(newValue) || Double.isNaN(oldValue)) {
+				return Double.NaN;
+			}
+			double diff = newValue - oldValue;
+			if (diff < 0) {
+				diff += MAX_32_BIT;
+			}
+			if (diff < 0) {
+				diff += MAX_64_BIT - MAX_32_BIT;
+			}
+			return diff >= 0 ? diff / seconds : Double.NaN;
+		}
+	},
+	DERIVE {
+		double calculateUpdateValue(double oldValue, double newValue, long seconds) {
+			if (Double.isNaN(newValue) || Double.isNaN(oldValue)) {
+				return Double.NaN;
+			}
+			return (newValue - oldValue) / seconds;
+		}
+	},
+	ABSOLUTE {
+		double calculateUpdateValue(double oldValue, double newValue, long seconds) {
+			return Double.isNaN(newValue) ? Double.NaN : newValue / seconds;
+		}
+	},
+	/**
+	 * Any type not known to this version, never produces a value.
+	 */
+	UNKNOWN {
+		double calculateUpdateValue(double oldValue, double newValue, long seconds) {
+			return Double.NaN;
+		}
+	};
+
+	private static final double MAX_32_BIT = Math.pow(2, 32);
+	private static final double MAX_64_BIT = Math.pow(2, 64);
+
+	/**
+	 * Calculates the rate between two samples, not yet checked against the datasource limits.
+	 *
+	 * @param oldValue Previous sample
+	 * @param newValue New sample
+	 * @param seconds  Seconds elapsed since the previous sample, always positive
+	 * @return Update value, NaN if unknown
+	 */
+	abstract double calculateUpdateValue(double oldValue, double newValue, long seconds);
+
+	static DsType getDsType(final String dsType) {
+		if (DT_GAUGE.equals(dsType)) {
+			return GAUGE;
+		}
+		else if (DT_COUNTER.equals(dsType)) {
+			return COUNTER;
+		}
+		else if (DT_DERIVE.equals(dsType)) {
+			return DERIVE;
+		}
+		else if (DT_ABSOLUTE.equals(dsType)) {
+			return ABSOLUTE;
+		}
+		return UNKNOWN;
+	}
+}
@@ -26,6 +26,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.Arrays;
 
 /**
  * Class used to represent data fetched from the RRD.
@@ -73,6 +74,14 @@ public class FetchData implements ConsolFuns {
 		this.request = request;
 	}
 
+	private FetchData(FetchData template) {
+		this.matchingArchive = template.matchingArchive;
+		this.arcStep = template.arcStep;
+		this.arcEndTime = template.arcEndTime;
+		this.dsNames = template.dsNames;
+		this.request = template.request;
+	}
+
 	void setTimestamps(long[] timestamps) {
 		this.timestamps = timestamps;
 	}
@@ -509,6 +518,46 @@ public class FetchData implements ConsolFuns {
 		return arcEndTime;
 	}
 
+	/**
+	 * Combines this data with data fetched later from the same archive, for a time range
+	 * moved forward. Rows before the given starting timestamp are dropped, rows found in
+	 * both objects are taken from the newer one, and rows found in neither are unknown.
+	 * The archive, request and archive end time of the result are those of the newer data.
+	 *
+	 * @param fetchStart Starting timestamp of the combined data
+	 * @param newer      Data fetched later, with the same step and datasources
+	 * @return Combined data
+	 * @throws RrdException Thrown if the newer data has a different step or different datasources
+	 */
+	public FetchData merge(long fetchStart, FetchData newer) throws RrdException {
+		if (newer.arcStep != arcStep || !Arrays.equals(newer.dsNames, dsNames)) {
+			throw new RrdException("Incompatible data fetched from different archives or datasources");
+		}
+		long start = Util.normalize(fetchStart, arcStep);
+		long newerStart = newer.getFirstTimestamp();
+		int count = (int) ((newer.getLastTimestamp() - start) / arcStep + 1);
+		long[] mergedTimestamps = new long[count];
+		double[][] mergedValues = new double[dsNames.length][count];
+		for (int i = 0; i < count; i++) {
+			long t = start + i * arcStep;
+			mergedTimestamps[i] = t;
+			for (int j = 0; j < dsNames.length; j++) {
+				double value = Double.NaN;
+				if (t >= newerStart) {
+					value = newer.values[j][(int) ((t - newerStart) / arcStep)];
+				}
+				else if (t >= getFirstTimestamp() && t <= getLastTimestamp()) {
+					value = values[j][(int) ((t - getFirstTimestamp()) / arcStep)];
+				}
+				mergedValues[j][i] = value;
+			}
+		}
+		FetchData merged = new FetchData(newer);
+		merged.setTimestamps(mergedTimestamps);
+		merged.setValues(mergedValues);
+		return merged;
+	}
+
 	private DataProcessor createDataProcessor(String rpnExpression) throws RrdException {
 		DataProcessor dataProcessor = new DataProcessor(request.getFetchStart(), request.getFetchEnd());
 		for (String dsName : dsNames) {
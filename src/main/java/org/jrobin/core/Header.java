@@ -31,37 +31,31 @@ import java.io.IOException;
  *
  * @author <a href="mailto:saxon@jrobin.org">Sasa Markovic</a>*
  */
-public class Header implements RrdUpdater {
+public class Header extends RrdBlock implements RrdUpdater {
 	static final int SIGNATURE_LENGTH = 2;
 	static final String SIGNATURE = "JR";
 
 	static final String DEFAULT_SIGNATURE = "JRobin, version 0.1";
 	static final String RRDTOOL_VERSION = "0001";
 
-	private RrdDb parentDb;
+	// primitives in the order they are stored
+	private static final int SIGNATURE_INDEX = 0, STEP = 1, DS_COUNT = 2, ARC_COUNT = 3, LAST_UPDATE_TIME = 4;
+	private static final RrdLayout LAYOUT = new RrdLayout(new int[] {
+			RrdLayout.RRD_STRING, RrdLayout.RRD_LONG, RrdLayout.RRD_INT, RrdLayout.RRD_INT, RrdLayout.RRD_LONG
+	}, STEP, DS_COUNT, ARC_COUNT);
 
-	private RrdString signature;
-	private RrdLong step;
-	private RrdInt dsCount, arcCount;
-	private RrdLong lastUpdateTime;
-	private Long m_primitiveStep = null;
-	private Integer m_primitiveDsCount = null;
-	private Integer m_primitiveArcCount = null;
+	private RrdDb parentDb;
 
 	Header(final RrdDb parentDb, final RrdDef rrdDef) throws IOException {
+		super(parentDb, LAYOUT);
 	    final boolean shouldInitialize = rrdDef != null;
 		this.parentDb = parentDb;
-		signature = new RrdString(this);			 // NOT constant, may NOT be cached
-		step = new RrdLong(this, true);			 // constant, may be cached
-		dsCount = new RrdInt(this, true);			 // constant, may be cached
-		arcCount = new RrdInt(this, true);			 // constant, may be cached
-		lastUpdateTime = new RrdLong(this);
 		if (shouldInitialize) {
-			signature.set(DEFAULT_SIGNATURE);
-			step.set(rrdDef.getStep());
-			dsCount.set(rrdDef.getDsCount());
-			arcCount.set(rrdDef.getArcCount());
-			lastUpdateTime.set(rrdDef.getStartTime());
+			setString(SIGNATURE_INDEX, DEFAULT_SIGNATURE);
+			setLong(STEP, rrdDef.getStep());
+			setInt(DS_COUNT, rrdDef.getDsCount());
+			setInt(ARC_COUNT, rrdDef.getArcCount());
+			setLong(LAST_UPDATE_TIME, rrdDef.getStartTime());
 		}
 	}
 
@@ -72,11 +66,11 @@ public class Header implements RrdUpdater {
 		if (intVersion > 3) {
 			throw new RrdException("Could not unserialize xml version " + version);
 		}
-		signature.set(DEFAULT_SIGNATURE);
-		step.set(reader.getStep());
-		dsCount.set(reader.getDsCount());
-		arcCount.set(reader.getArcCount());
-		lastUpdateTime.set(reader.getLastUpdateTime());
+		setString(SIGNATURE_INDEX, DEFAULT_SIGNATURE);
+		setLong(STEP, reader.getStep());
+		setInt(DS_COUNT, reader.getDsCount());
+		setInt(ARC_COUNT, reader.getArcCount());
+		setLong(LAST_UPDATE_TIME, reader.getLastUpdateTime());
 	}
 
 	/**
@@ -88,7 +82,7 @@ public class Header implements RrdUpdater {
 	 * @throws IOException Thrown in case of I/O error
 	 */
 	public String getSignature() throws IOException {
-		return signature.get();
+		return getString(SIGNATURE_INDEX);
 	}
 
 	public String getInfo() throws IOException {
@@ -97,10 +91,10 @@ public class Header implements RrdUpdater {
 
 	public void setInfo(String info) throws IOException {
 		if (info != null && info.length() > 0) {
-			signature.set(SIGNATURE + info);
+			setString(SIGNATURE_INDEX, SIGNATURE + info);
 		}
 		else {
-			signature.set(SIGNATURE);
+			setString(SIGNATURE_INDEX, SIGNATURE);
 		}
 	}
 
@@ -111,7 +105,7 @@ public class Header implements RrdUpdater {
 	 * @throws IOException Thrown in case of I/O error
 	 */
 	public long getLastUpdateTime() throws IOException {
-		return lastUpdateTime.get();
+		return getLong(LAST_UPDATE_TIME);
 	}
 
 	/**
@@ -121,10 +115,7 @@ public class Header implements RrdUpdater {
 	 * @throws IOException Thrown in case of I/O error
 	 */
 	public long getStep() throws IOException {
-	    if (m_primitiveStep == null) {
-	        m_primitiveStep = step.get();
-	    }
-	    return m_primitiveStep;
+		return getLong(STEP);
 	}
 
 	/**
@@ -134,10 +125,7 @@ public class Header implements RrdUpdater {
 	 * @throws IOException Thrown in case of I/O error
 	 */
 	public int getDsCount() throws IOException {
-	    if (m_primitiveDsCount == null) {
-	        m_primitiveDsCount = dsCount.get();
-	    }
-	    return m_primitiveDsCount;
+		return getInt(DS_COUNT);
 	}
 
 	/**
@@ -147,14 +135,15 @@ public class Header implements RrdUpdater {
 	 * @throws IOException Thrown in case of I/O error
 	 */
 	public int getArcCount() throws IOException {
-	    if (m_primitiveArcCount == null) {
-	        m_primitiveArcCount = arcCount.get();
-	    }
-	    return m_primitiveArcCount;
+		return getInt(ARC_COUNT);
 	}
 
 	public void setLastUpdateTime(final long lastUpdateTime) throws IOException {
-		this.lastUpdateTime.set(lastUpdateTime);
+		setLong(LAST_UPDATE_TIME, lastUpdateTime);
+	}
+
+	boolean deferState(final boolean enabled) throws IOException {
+		return setDeferred(enabled, LAST_UPDATE_TIME);
 	}
 
 	String dump() throws IOException {
@@ -167,12 +156,12 @@ public class Header implements RrdUpdater {
 	}
 
 	void appendXml(XmlWriter writer) throws IOException {
-		writer.writeComment(signature.get());
+		writer.writeComment(getSignature());
 		writer.writeTag("version", RRDTOOL_VERSION);
 		writer.writeComment("Seconds");
-		writer.writeTag("step", step.get());
-		writer.writeComment(Util.getDate(lastUpdateTime.get()));
-		writer.writeTag("lastupdate", lastUpdateTime.get());
+		writer.writeTag("step", getStep());
+		writer.writeComment(Util.getDate(getLastUpdateTime()));
+		writer.writeTag("lastupdate", getLastUpdateTime());
 	}
 
 	/**
@@ -187,8 +176,8 @@ public class Header implements RrdUpdater {
 			throw new RrdException( "Cannot copy Header object to " + other.getClass().getName());
 		}
 		final Header header = (Header) other;
-		header.signature.set(signature.get());
-		header.lastUpdateTime.set(lastUpdateTime.get());
+		header.setString(SIGNATURE_INDEX, getSignature());
+		header.setLong(LAST_UPDATE_TIME, getLastUpdateTime());
 	}
 
 	/**
@@ -202,7 +191,7 @@ public class Header implements RrdUpdater {
 	}
 
 	boolean isJRobinHeader() throws IOException {
-		return signature.get().startsWith(SIGNATURE);
+		return getSignature().startsWith(SIGNATURE);
 	}
 
 	void validateHeader() throws IOException, RrdException {
@@ -29,25 +29,30 @@ import java.io.IOException;
  * filled, new values will replace the oldest ones.
  * <p>
  * Robin object does not hold values in memory - such object could be quite large.
- * Instead of it, Robin reads them from the backend I/O only when necessary.
+ * Instead of it, Robin reads them from the backend I/O only when necessary. Robin objects
+ * are lightweight views of the parent archive, created on demand.
  *
  * @author <a href="mailto:saxon@jrobin.org">Sasa Markovic</a>
  */
 public class Robin implements RrdUpdater {
+	private static final int VALUE_SIZE = RrdLayout.RRD_PRIM_SIZES[RrdLayout.RRD_DOUBLE];
+
 	private Archive parentArc;
-	private RrdInt pointer;
-	private RrdDoubleArray values;
+	// index of the robin pointer in the archive, the values directly follow the pointer
+	private int pointerIndex;
+	private long valuesOffset;
 	private int rows;
 
-	Robin(Archive parentArc, int rows, boolean shouldInitialize) throws IOException {
+	Robin(Archive parentArc, int dsIndex, int rows) {
 		this.parentArc = parentArc;
-		this.pointer = new RrdInt(this);
-		this.values = new RrdDoubleArray(this, rows);
+		this.pointerIndex = parentArc.getIndex(dsIndex, Archive.ROBIN_POINTER);
+		this.valuesOffset = parentArc.getOffset(pointerIndex) + RrdLayout.RRD_PRIM_SIZES[RrdLayout.RRD_INT];
 		this.rows = rows;
-		if (shouldInitialize) {
-			pointer.set(0);
-			values.set(0, Double.NaN, rows);
-		}
+	}
+
+	void initialize() throws IOException {
+		setPointer(0);
+		writeValues(0, Double.NaN, rows);
 	}
 
 	/**
@@ -62,33 +67,46 @@ public class Robin implements RrdUpdater {
 
 	// stores single value
 	void store(double newValue) throws IOException {
-		int position = pointer.get();
-		values.set(position, newValue);
-		pointer.set((position + 1) % rows);
+		int position = getPointer();
+		writeValue(position, newValue);
+		setPointer((position + 1) % rows);
 	}
 
 	// stores the same value several times
 	void bulkStore(double newValue, int bulkCount) throws IOException {
 		assert bulkCount <= rows: "Invalid number of bulk updates: " + bulkCount +
 				" rows=" + rows;
-		int position = pointer.get();
+		int position = getPointer();
 		// update tail
 		int tailUpdateCount = Math.min(rows - position, bulkCount);
-		values.set(position, newValue, tailUpdateCount);
-		pointer.set((position + tailUpdateCount) % rows);
+		writeValues(position, newValue, tailUpdateCount);
+		setPointer((position + tailUpdateCount) % rows);
 		// do we need to update from the start?
 		int headUpdateCount = bulkCount - tailUpdateCount;
 		if (headUpdateCount > 0) {
-			values.set(0, newValue, headUpdateCount);
-			pointer.set(headUpdateCount);
+			writeValues(0, newValue, headUpdateCount);
+			setPointer(headUpdateCount);
 		}
 	}
 
+	int getPointer() throws IOException {
+		return parentArc.getInt(pointerIndex);
+	}
+
+	void setPointer(int position) throws IOException {
+		parentArc.setInt(pointerIndex, position);
+	}
+
+	// stores a contiguous run of values, the run must not wrap around the end of the array
+	void storeRun(int position, double[] newValues) throws IOException {
+		writeValues(position, newValues);
+	}
+
 	void update(double[] newValues) throws IOException {
 		assert rows == newValues.length: "Invalid number of robin values supplied (" + newValues.length +
 				"), exactly " + rows + " needed";
-		pointer.set(0);
-		values.writeDouble(0, newValues);
+		setPointer(0);
+		writeValues(0, newValues);
 	}
 
 	/**
@@ -122,7 +140,7 @@ public class Robin implements RrdUpdater {
 	}
 
 	String dump() throws IOException {
-		StringBuffer buffer = new StringBuffer("Robin " + pointer.get() + "/" + rows + ": ");
+		StringBuffer buffer = new StringBuffer("Robin " + getPointer() + "/" + rows + ": ");
 		double[] values = getValues();
 		for (double value : values) {
 			buffer.append(Util.formatDouble(value, true)).append(" ");
@@ -139,8 +157,8 @@ public class Robin implements RrdUpdater {
 	 * @throws IOException Thrown in case of I/O specific error.
 	 */
 	public double getValue(int index) throws IOException {
-		int arrayIndex = (pointer.get() + index) % rows;
-		return values.get(arrayIndex);
+		int arrayIndex = (getPointer() + index) % rows;
+		return readValue(arrayIndex);
 	}
 
 	/**
@@ -151,18 +169,18 @@ public class Robin implements RrdUpdater {
 	 * @throws IOException Thrown in case of I/O specific error.
 	 */
 	public void setValue(int index, double value) throws IOException {
-		int arrayIndex = (pointer.get() + index) % rows;
-		values.set(arrayIndex, value);
+		int arrayIndex = (getPointer() + index) % rows;
+		writeValue(arrayIndex, value);
 	}
 
 	double[] getValues(int index, int count) throws IOException {
 		assert count <= rows: "Too many values requested: " + count + " rows=" + rows;
-		int startIndex = (pointer.get() + index) % rows;
+		int startIndex = (getPointer() + index) % rows;
 		int tailReadCount = Math.min(rows - startIndex, count);
-		double[] tailValues = values.get(startIndex, tailReadCount);
+		double[] tailValues = readValues(startIndex, tailReadCount);
 		if (tailReadCount < count) {
 			int headReadCount = count - tailReadCount;
-			double[] headValues = values.get(0, headReadCount);
+			double[] headValues = readValues(0, headReadCount);
 			double[] values = new double[count];
 			int k = 0;
 			for (double tailValue : tailValues) {
@@ -212,8 +230,10 @@ public class Robin implements RrdUpdater {
 		int rowsDiff = rows - robin.rows;
 		if (rowsDiff == 0) {
 			// Identical dimensions. Do copy in BULK to speed things up
-			robin.pointer.set(pointer.get());
-			robin.values.writeBytes(values.readBytes());
+			robin.setPointer(getPointer());
+			byte[] b = new byte[rows * VALUE_SIZE];
+			getRrdBackend().read(valuesOffset, b);
+			robin.getRrdBackend().write(robin.valuesOffset, b);
 		}
 		else {
 			// different sizes
@@ -235,16 +255,42 @@ public class Robin implements RrdUpdater {
 	 */
 	public void filterValues(double minValue, double maxValue) throws IOException {
 		for (int i = 0; i < rows; i++) {
-			double value = values.get(i);
+			double value = readValue(i);
 			if (!Double.isNaN(minValue) && !Double.isNaN(value) && minValue > value) {
-				values.set(i, Double.NaN);
+				writeValue(i, Double.NaN);
 			}
 			if (!Double.isNaN(maxValue) && !Double.isNaN(value) && maxValue < value) {
-				values.set(i, Double.NaN);
+				writeValue(i, Double.NaN);
 			}
 		}
 	}
 
+	private double readValue(int index) throws IOException {
+		assert index < rows: "Invalid index supplied: " + index + ", length=" + rows;
+		return getRrdBackend().readDouble(valuesOffset + (long) index * VALUE_SIZE);
+	}
+
+	private double[] readValues(int index, int count) throws IOException {
+		assert index + count <= rows: "Invalid index/count supplied: " + index + "/" + count + " (length=" + rows + ")";
+		return getRrdBackend().readDouble(valuesOffset + (long) index * VALUE_SIZE, count);
+	}
+
+	private void writeValue(int index, double value) throws IOException {
+		writeValues(index, value, 1);
+	}
+
+	private void writeValues(int index, double value, int count) throws IOException {
+		// rollovers not allowed!
+		assert index + count <= rows: "Invalid robin index supplied: index=" + index + ", count=" + count + ", length=" + rows;
+		getRrdBackend().writeDouble(valuesOffset + (long) index * VALUE_SIZE, value, count);
+	}
+
+	private void writeValues(int index, double[] values) throws IOException {
+		// rollovers not allowed!
+		assert index + values.length <= rows: "Invalid robin index supplied: index=" + index + ", count=" + values.length + ", length=" + rows;
+		getRrdBackend().writeDouble(valuesOffset + (long) index * VALUE_SIZE, values);
+	}
+
 	/**
 	 * Returns the underlying storage (backend) object which actually performs all
 	 * I/O operations.
@@ -23,10 +23,35 @@ import java.io.IOException;
 
 class RrdAllocator {
 	private long allocationPointer = 0L;
+	// bytes read at once while an RRD is opened, constants are taken from here
+	private byte[] image;
+	private long imageOffset;
 
 	long allocate(long byteCount) throws IOException {
 		long pointer = allocationPointer;
 		allocationPointer += byteCount;
 		return pointer;
 	}
+
+	long getPointer() {
+		return allocationPointer;
+	}
+
+	void setImage(long offset, byte[] image) {
+		this.imageOffset = offset;
+		this.image = image;
+	}
+
+	boolean hasImage() {
+		return image != null;
+	}
+
+	byte[] getImage(long pointer, int byteCount) {
+		if (image == null || pointer < imageOffset || pointer + byteCount > imageOffset + image.length) {
+			return null;
+		}
+		byte[] b = new byte[byteCount];
+		System.arraycopy(image, (int) (pointer - imageOffset), b, 0, byteCount);
+		return b;
+	}
 }
\ No newline at end of file
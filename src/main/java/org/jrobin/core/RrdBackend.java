@@ -61,6 +61,13 @@ import java.io.IOException;
  * factory available to JRobin framework. See javadoc for {@link RrdBackendFactory} to
  * find out how to do this
  * </ul>
+ * <p>
+ * All RRD values are stored as big-endian primitives. Frontend classes access them through
+ * the primitive accessors ({@link #getDouble(long)}, {@link #putDouble(long, double)} and
+ * friends). Their default implementations fall back to {@link #read(long, byte[])} and
+ * {@link #write(long, byte[])}, so a custom backend only has to implement the abstract methods,
+ * but backends with direct access to their storage (a ByteBuffer, for example) should override
+ * the accessors to avoid a temporary byte array on every access.
  */
 public abstract class RrdBackend {
 	private static boolean s_instanceCreated = false;
@@ -159,6 +166,18 @@ public abstract class RrdBackend {
 		return true;
 	}
 
+	/**
+	 * Returns true if the read methods of this backend may be called by several threads at once.
+	 * Fetches and other reads of an RrdDb run in parallel only if its backend allows it, updates
+	 * are never run in parallel with anything else.
+	 *
+	 * @return <code>true</code> if reads are thread safe. By default, the method returns
+	 *         <code>false</code>, so that custom backends do not have to be thread safe.
+	 */
+	protected boolean isConcurrentReadAllowed() {
+		return false;
+	}
+
 	/**
 	 * Reads all RRD bytes from the underlying storage
 	 *
@@ -171,166 +190,235 @@ public abstract class RrdBackend {
 		return b;
 	}
 
-	final void writeInt(final long offset, final int value) throws IOException {
-		write(offset, getIntBytes(value));
+	/**
+	 * Writes a single int value to the underlying storage. The default implementation encodes
+	 * the value into a byte array and calls {@link #write(long, byte[])}. Backends with direct
+	 * access to their storage should override this method to avoid the temporary array.
+	 *
+	 * @param offset Storage offset.
+	 * @param value  Value to be written
+	 * @throws IOException Thrown in case of I/O error
+	 */
+	protected void putInt(final long offset, final int value) throws IOException {
+		final byte[] b = new byte[4];
+		encodeInt(b, 0, value);
+		write(offset, b);
 	}
 
-	final void writeLong(final long offset, final long value) throws IOException {
-		write(offset, getLongBytes(value));
+	/**
+	 * Writes a single long value to the underlying storage. The default implementation encodes
+	 * the value into a byte array and calls {@link #write(long, byte[])}.
+	 *
+	 * @param offset Storage offset.
+	 * @param value  Value to be written
+	 * @throws IOException Thrown in case of I/O error
+	 */
+	protected void putLong(final long offset, final long value) throws IOException {
+		final byte[] b = new byte[8];
+		encodeLong(b, 0, value);
+		write(offset, b);
 	}
 
-	final void writeDouble(final long offset, final double value) throws IOException {
-		write(offset, getDoubleBytes(value));
+	/**
+	 * Writes a single double value to the underlying storage. The default implementation encodes
+	 * the value into a byte array and calls {@link #write(long, byte[])}.
+	 *
+	 * @param offset Storage offset.
+	 * @param value  Value to be written
+	 * @throws IOException Thrown in case of I/O error
+	 */
+	protected void putDouble(final long offset, final double value) throws IOException {
+		final byte[] b = new byte[8];
+		encodeLong(b, 0, Double.doubleToLongBits(value));
+		write(offset, b);
 	}
 
-	final void writeDouble(final long offset, final double value, final int count) throws IOException {
-	    final byte[] b = getDoubleBytes(value);
+	/**
+	 * Writes the same double value <code>count</code> times to consecutive storage positions,
+	 * starting from the given offset. The default implementation builds a single byte image
+	 * and calls {@link #write(long, byte[])} once.
+	 *
+	 * @param offset Storage offset.
+	 * @param value  Value to be written
+	 * @param count  Number of consecutive copies to write
+	 * @throws IOException Thrown in case of I/O error
+	 */
+	protected void putDouble(final long offset, final double value, final int count) throws IOException {
 		final byte[] image = new byte[8 * count];
-		for (int i = 0, k = 0; i < count; i++) {
-			image[k++] = b[0];
-			image[k++] = b[1];
-			image[k++] = b[2];
-			image[k++] = b[3];
-			image[k++] = b[4];
-			image[k++] = b[5];
-			image[k++] = b[6];
-			image[k++] = b[7];
+		final long bits = Double.doubleToLongBits(value);
+		for (int i = 0, k = 0; i < count; i++, k += 8) {
+			encodeLong(image, k, bits);
 		}
 		write(offset, image);
 	}
 
-	final void writeDouble(final long offset, final double[] values) throws IOException {
+	/**
+	 * Writes an array of double values to consecutive storage positions, starting from the
+	 * given offset. The default implementation builds a single byte image and calls
+	 * {@link #write(long, byte[])} once.
+	 *
+	 * @param offset Storage offset.
+	 * @param values Values to be written
+	 * @throws IOException Thrown in case of I/O error
+	 */
+	protected void putDouble(final long offset, final double[] values) throws IOException {
 		final int count = values.length;
 		final byte[] image = new byte[8 * count];
-		for (int i = 0, k = 0; i < count; i++) {
-			final byte[] b = getDoubleBytes(values[i]);
-			image[k++] = b[0];
-			image[k++] = b[1];
-			image[k++] = b[2];
-			image[k++] = b[3];
-			image[k++] = b[4];
-			image[k++] = b[5];
-			image[k++] = b[6];
-			image[k++] = b[7];
+		for (int i = 0, k = 0; i < count; i++, k += 8) {
+			encodeLong(image, k, Double.doubleToLongBits(values[i]));
 		}
 		write(offset, image);
 	}
 
+	/**
+	 * Reads a single int value from the underlying storage. The default implementation calls
+	 * {@link #read(long, byte[])} with a temporary array. Backends with direct access to their
+	 * storage should override this method to avoid the temporary array.
+	 *
+	 * @param offset Storage offset.
+	 * @return Value read from the storage
+	 * @throws IOException Thrown in case of I/O error
+	 */
+	protected int getInt(final long offset) throws IOException {
+		final byte[] b = new byte[4];
+		read(offset, b);
+		return decodeInt(b, 0);
+	}
+
+	/**
+	 * Reads a single long value from the underlying storage. The default implementation calls
+	 * {@link #read(long, byte[])} with a temporary array.
+	 *
+	 * @param offset Storage offset.
+	 * @return Value read from the storage
+	 * @throws IOException Thrown in case of I/O error
+	 */
+	protected long getLong(final long offset) throws IOException {
+		final byte[] b = new byte[8];
+		read(offset, b);
+		return decodeLong(b, 0);
+	}
+
+	/**
+	 * Reads a single double value from the underlying storage. The default implementation calls
+	 * {@link #read(long, byte[])} with a temporary array.
+	 *
+	 * @param offset Storage offset.
+	 * @return Value read from the storage
+	 * @throws IOException Thrown in case of I/O error
+	 */
+	protected double getDouble(final long offset) throws IOException {
+		final byte[] b = new byte[8];
+		read(offset, b);
+		return Double.longBitsToDouble(decodeLong(b, 0));
+	}
+
+	/**
+	 * Fills the given array with double values read from consecutive storage positions,
+	 * starting from the given offset. The default implementation reads a single byte image
+	 * with {@link #read(long, byte[])} and decodes it.
+	 *
+	 * @param offset Storage offset.
+	 * @param values Array which receives values read from the storage
+	 * @throws IOException Thrown in case of I/O error
+	 */
+	protected void getDouble(final long offset, final double[] values) throws IOException {
+		final int count = values.length;
+		final byte[] image = new byte[8 * count];
+		read(offset, image);
+		for (int i = 0, k = 0; i < count; i++, k += 8) {
+			values[i] = Double.longBitsToDouble(decodeLong(image, k));
+		}
+	}
+
+	final void writeInt(final long offset, final int value) throws IOException {
+		putInt(offset, value);
+	}
+
+	final void writeLong(final long offset, final long value) throws IOException {
+		putLong(offset, value);
+	}
+
+	final void writeDouble(final long offset, final double value) throws IOException {
+		putDouble(offset, value);
+	}
+
+	final void writeDouble(final long offset, final double value, final int count) throws IOException {
+		putDouble(offset, value, count);
+	}
+
+	final void writeDouble(final long offset, final double[] values) throws IOException {
+		putDouble(offset, values);
+	}
+
 	final void writeString(final long offset, final String rawValue) throws IOException {
 	    final String value = rawValue.trim();
-	    final byte[] b = new byte[RrdPrimitive.STRING_LENGTH * 2];
-		for (int i = 0, k = 0; i < RrdPrimitive.STRING_LENGTH; i++) {
+	    final byte[] b = new byte[RrdLayout.STRING_LENGTH * 2];
+		for (int i = 0, k = 0; i < RrdLayout.STRING_LENGTH; i++) {
 			final char c = (i < value.length()) ? value.charAt(i) : ' ';
-			final byte[] cb = getCharBytes(c);
-			b[k++] = cb[0];
-			b[k++] = cb[1];
+			b[k++] = (byte) ((c >>> 8) & 0xFF);
+			b[k++] = (byte) ((c) & 0xFF);
 		}
 		write(offset, b);
 	}
 
 	final int readInt(final long offset) throws IOException {
-	    final byte[] b = new byte[4];
-		read(offset, b);
-		return getInt(b);
+		return getInt(offset);
 	}
 
 	final long readLong(final long offset) throws IOException {
-	    final byte[] b = new byte[8];
-		read(offset, b);
-		return getLong(b);
+		return getLong(offset);
 	}
 
 	final double readDouble(final long offset) throws IOException {
-	    final byte[] b = new byte[8];
-		read(offset, b);
-		return getDouble(b);
+		return getDouble(offset);
 	}
 
 	final double[] readDouble(final long offset, final int count) throws IOException {
-	    final int byteCount = 8 * count;
-		final byte[] image = new byte[byteCount];
-		read(offset, image);
 		final double[] values = new double[count];
-		for (int i = 0, k = -1; i < count; i++) {
-			final byte[] b = new byte[] {
-					image[++k], image[++k], image[++k], image[++k],
-					image[++k], image[++k], image[++k], image[++k]
-			};
-			values[i] = getDouble(b);
-		}
+		getDouble(offset, values);
 		return values;
 	}
 
 	final String readString(final long offset) throws IOException {
-	    final byte[] b = new byte[RrdPrimitive.STRING_LENGTH * 2];
-		final char[] c = new char[RrdPrimitive.STRING_LENGTH];
+	    final byte[] b = new byte[RrdLayout.STRING_LENGTH * 2];
 		read(offset, b);
-		for (int i = 0, k = -1; i < RrdPrimitive.STRING_LENGTH; i++) {
-			final byte[] cb = new byte[] {b[++k], b[++k]};
-			c[i] = getChar(cb);
-		}
-		return new String(c).trim();
+		return decodeString(b);
 	}
 
 	// static helper methods
 
-	private static byte[] getIntBytes(final int value) {
-	    final byte[] b = new byte[4];
-		b[0] = (byte) ((value >>> 24) & 0xFF);
-		b[1] = (byte) ((value >>> 16) & 0xFF);
-		b[2] = (byte) ((value >>> 8) & 0xFF);
-		b[3] = (byte) ((value) & 0xFF);
-		return b;
+	private static void encodeInt(final byte[] b, final int pos, final int value) {
+		b[pos] = (byte) ((value >>> 24) & 0xFF);
+		b[pos + 1] = (byte) ((value >>> 16) & 0xFF);
+		b[pos + 2] = (byte) ((value >>> 8) & 0xFF);
+		b[pos + 3] = (byte) ((value) & 0xFF);
 	}
 
-	private static byte[] getLongBytes(final long value) {
-	    final byte[] b = new byte[8];
-		b[0] = (byte) ((int) (value >>> 56) & 0xFF);
-		b[1] = (byte) ((int) (value >>> 48) & 0xFF);
-		b[2] = (byte) ((int) (value >>> 40) & 0xFF);
-		b[3] = (byte) ((int) (value >>> 32) & 0xFF);
-		b[4] = (byte) ((int) (value >>> 24) & 0xFF);
-		b[5] = (byte) ((int) (value >>> 16) & 0xFF);
-		b[6] = (byte) ((int) (value >>> 8) & 0xFF);
-		b[7] = (byte) ((int) (value) & 0xFF);
-		return b;
-	}
-
-	private static byte[] getCharBytes(final char value) {
-	    final byte[] b = new byte[2];
-		b[0] = (byte) ((value >>> 8) & 0xFF);
-		b[1] = (byte) ((value) & 0xFF);
-		return b;
+	private static void encodeLong(final byte[] b, final int pos, final long value) {
+		encodeInt(b, pos, (int) (value >>> 32));
+		encodeInt(b, pos + 4, (int) value);
 	}
 
-	private static byte[] getDoubleBytes(final double value) {
-		return getLongBytes(Double.doubleToLongBits(value));
+	static String decodeString(final byte[] b) {
+		final char[] c = new char[RrdLayout.STRING_LENGTH];
+		for (int i = 0, k = 0; i < RrdLayout.STRING_LENGTH; i++, k += 2) {
+			c[i] = (char) (((b[k] << 8) & 0x0000FF00) + (b[k + 1] & 0x000000FF));
+		}
+		return new String(c).trim();
 	}
 
-	private static int getInt(final byte[] b) {
-		assert b.length == 4: "Invalid number of bytes for integer conversion";
-		return ((b[0] << 24) & 0xFF000000) + ((b[1] << 16) & 0x00FF0000) +
-				((b[2] << 8) & 0x0000FF00) + (b[3] & 0x000000FF);
+	static int decodeInt(final byte[] b, final int pos) {
+		return ((b[pos] << 24) & 0xFF000000) + ((b[pos + 1] << 16) & 0x00FF0000) +
+				((b[pos + 2] << 8) & 0x0000FF00) + (b[pos + 3] & 0x000000FF);
 	}
 
-	private static long getLong(final byte[] b) {
-		assert b.length == 8: "Invalid number of bytes for long conversion";
-		int high = getInt(new byte[] {b[0], b[1], b[2], b[3]});
-		int low = getInt(new byte[] {b[4], b[5], b[6], b[7]});
+	static long decodeLong(final byte[] b, final int pos) {
+		final int high = decodeInt(b, pos);
+		final int low = decodeInt(b, pos + 4);
 		return ((long) (high) << 32) + (low & 0xFFFFFFFFL);
 	}
 
-	private static char getChar(final byte[] b) {
-		assert b.length == 2: "Invalid number of bytes for char conversion";
-		return (char) (((b[0] << 8) & 0x0000FF00)
-				+ (b[1] & 0x000000FF));
-	}
-
-	private static double getDouble(final byte[] b) {
-		assert b.length == 8: "Invalid number of bytes for double conversion";
-		return Double.longBitsToDouble(getLong(b));
-	}
-
 	private static void setInstanceCreated() {
 		s_instanceCreated = true;
 	}
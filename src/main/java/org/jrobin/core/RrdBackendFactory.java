@@ -79,6 +79,8 @@ public abstract class RrdBackendFactory {
 			registerFactory(safeFactory);
 			RrdNioByteBufferBackendFactory nioByteBufferFactory = new RrdNioByteBufferBackendFactory();
 			registerFactory(nioByteBufferFactory);
+			RrdWriteBehindFileBackendFactory writeBehindFactory = new RrdWriteBehindFileBackendFactory();
+			registerFactory(writeBehindFactory);
 			selectDefaultFactory();
 		}
 		catch (RrdException e) {
@@ -103,6 +105,9 @@ public abstract class RrdBackendFactory {
 	 *             several JVM's.
 	 *             <li><b>NIO</b>: Factory which creates backends based on the
 	 *             java.nio.* package. RRD data is stored in files on the disk
+	 *             <li><b>WRITEBEHIND</b>: Factory which creates backends based on the
+	 *             java.io.* package. RRD data is stored in files on the disk, writes are buffered
+	 *             in memory and flushed periodically.
 	 *             <li><b>MEMORY</b>: Factory which creates memory-oriented backends.
 	 *             RRD data is stored in memory, it gets lost as soon as JVM exits.
 	 *             </ul>
@@ -188,6 +193,19 @@ public abstract class RrdBackendFactory {
 		return RrdBackend.isInstanceCreated();
 	}
 
+	/**
+	 * Returns the canonical form of the given storage path. Two paths with the same canonical form
+	 * denote the same storage ({@link RrdDbPool} uses this to share open RRDs). By default the path
+	 * is returned unchanged; file based factories resolve it to the canonical file path.
+	 *
+	 * @param path Storage path
+	 * @return Canonical storage path
+	 * @throws IOException Thrown in case of I/O error.
+	 */
+	protected String getCanonicalPath(final String path) throws IOException {
+		return path;
+	}
+
 	/**
 	 * Creates RrdBackend object for the given storage path.
 	 *
@@ -0,0 +1,248 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The OpenNMS Group, Inc.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *******************************************************************************/
+package org.jrobin.core;
+
+import java.io.IOException;
+
+/**
+ * Base class of the parts of an RRD which hold primitives: the header, datasources and
+ * archives. The primitives of a part are stored in one contiguous block described by a
+ * shared {@link RrdLayout}, and their cached values are kept in a single array instead of
+ * one object per primitive.
+ * <p>
+ * Constants are cached when they are set or when the RRD is opened, other values are cached
+ * when they are set, and only if the backend allows it. Reads never modify a block, so they
+ * may run in parallel.
+ * <p>
+ * Writes of selected numeric primitives can be deferred: their new values are only cached
+ * until {@link #flush()} writes them to the backend.
+ */
+abstract class RrdBlock {
+	private final RrdLayout layout;
+	private final RrdBackend backend;
+	private final long pointer;
+	private final boolean cachingAllowed;
+
+	// raw bits of cached numbers, cached strings and which primitives are cached
+	private final long[] cache;
+	private final String[] stringCache;
+	private final long[] cached;
+
+	// primitives whose writes are deferred and which of them are not written yet, null if none
+	private long[] deferred;
+	private long[] dirty;
+
+	RrdBlock(final RrdUpdater parent, final RrdLayout layout) throws IOException {
+		this.layout = layout;
+		this.backend = parent.getRrdBackend();
+		this.cachingAllowed = backend.isCachingAllowed();
+		this.pointer = parent.getRrdAllocator().allocate(layout.getLength());
+		final int count = layout.getCount();
+		this.cache = new long[count];
+		this.stringCache = layout.getStringCount() > 0 ? new String[layout.getStringCount()] : null;
+		this.cached = new long[(count + 63) >> 6];
+		prefillConstants(parent.getRrdAllocator());
+	}
+
+	/**
+	 * Caches the constants of an RRD being opened, from the bytes read in advance if possible.
+	 * Constants are never cached later on, so that reads do not modify the block and may
+	 * run in parallel.
+	 */
+	private void prefillConstants(final RrdAllocator allocator) throws IOException {
+		if (!allocator.hasImage()) {
+			// a new RRD, constants are cached when they are set
+			return;
+		}
+		for (int i = 0; i < layout.getCount(); i++) {
+			if (!layout.isConstant(i)) {
+				continue;
+			}
+			final int type = layout.getType(i);
+			final byte[] b = allocator.getImage(getOffset(i), RrdLayout.RRD_PRIM_SIZES[type]);
+			switch (type) {
+				case RrdLayout.RRD_INT:
+					cache(i, b != null ? RrdBackend.decodeInt(b, 0) : backend.readInt(getOffset(i)));
+					break;
+				case RrdLayout.RRD_STRING:
+					stringCache[layout.getStringSlot(i)] = b != null ? RrdBackend.decodeString(b) : backend.readString(getOffset(i));
+					break;
+				default:
+					cache(i, b != null ? RrdBackend.decodeLong(b, 0) : backend.readLong(getOffset(i)));
+			}
+		}
+	}
+
+	/**
+	 * Returns the position of a primitive in the backend.
+	 */
+	final long getOffset(final int index) {
+		return pointer + layout.getOffset(index);
+	}
+
+	private boolean isCachingAllowed(final int index) {
+		return cachingAllowed || layout.isConstant(index);
+	}
+
+	private boolean isCached(final int index) {
+		return (cached[index >> 6] & (1L << index)) != 0;
+	}
+
+	private void cache(final int index, final long bits) {
+		cache[index] = bits;
+		cached[index >> 6] |= 1L << index;
+	}
+
+	/**
+	 * Defers writes of the given primitives until {@link #flush()}, or writes pending values
+	 * and stops deferring if <code>enabled</code> is false. Writes are only deferred if the
+	 * backend allows caching.
+	 *
+	 * @return true if writes are deferred
+	 */
+	final boolean setDeferred(final boolean enabled, final int... indexes) throws IOException {
+		flush();
+		if (!enabled || !cachingAllowed) {
+			deferred = null;
+			dirty = null;
+			return false;
+		}
+		deferred = new long[cached.length];
+		dirty = new long[cached.length];
+		for (final int index : indexes) {
+			deferred[index >> 6] |= 1L << index;
+		}
+		return true;
+	}
+
+	/**
+	 * Caches a value instead of writing it, if writes of the primitive are deferred.
+	 */
+	private boolean defer(final int index, final long bits) {
+		if (deferred == null || (deferred[index >> 6] & (1L << index)) == 0) {
+			return false;
+		}
+		cache(index, bits);
+		dirty[index >> 6] |= 1L << index;
+		return true;
+	}
+
+	/**
+	 * Writes values of deferred primitives which changed since the last flush.
+	 */
+	final void flush() throws IOException {
+		if (dirty == null) {
+			return;
+		}
+		for (int word = 0; word < dirty.length; word++) {
+			for (long bits = dirty[word]; bits != 0; bits &= bits - 1) {
+				final int index = (word << 6) + Long.numberOfTrailingZeros(bits);
+				switch (layout.getType(index)) {
+					case RrdLayout.RRD_INT:
+						backend.writeInt(getOffset(index), (int) cache[index]);
+						break;
+					case RrdLayout.RRD_LONG:
+						backend.writeLong(getOffset(index), cache[index]);
+						break;
+					default:
+						backend.writeDouble(getOffset(index), Double.longBitsToDouble(cache[index]));
+				}
+			}
+			dirty[word] = 0;
+		}
+	}
+
+	final int getInt(final int index) throws IOException {
+		if (isCached(index)) {
+			return (int) cache[index];
+		}
+		return backend.readInt(getOffset(index));
+	}
+
+	final void setInt(final int index, final int value) throws IOException {
+		if (defer(index, value)) {
+			return;
+		}
+		if (!isCachingAllowed(index)) {
+			backend.writeInt(getOffset(index), value);
+		}
+		else if (!isCached(index) || (int) cache[index] != value) {
+			backend.writeInt(getOffset(index), value);
+			cache(index, value);
+		}
+	}
+
+	final long getLong(final int index) throws IOException {
+		if (isCached(index)) {
+			return cache[index];
+		}
+		return backend.readLong(getOffset(index));
+	}
+
+	final void setLong(final int index, final long value) throws IOException {
+		if (defer(index, value)) {
+			return;
+		}
+		if (!isCachingAllowed(index)) {
+			backend.writeLong(getOffset(index), value);
+		}
+		else if (!isCached(index) || cache[index] != value) {
+			backend.writeLong(getOffset(index), value);
+			cache(index, value);
+		}
+	}
+
+	final double getDouble(final int index) throws IOException {
+		if (isCached(index)) {
+			return Double.longBitsToDouble(cache[index]);
+		}
+		return backend.readDouble(getOffset(index));
+	}
+
+	final void setDouble(final int index, final double value) throws IOException {
+		if (defer(index, Double.doubleToRawLongBits(value))) {
+			return;
+		}
+		if (!isCachingAllowed(index)) {
+			backend.writeDouble(getOffset(index), value);
+		}
+		else if (!isCached(index) || !Util.equal(Double.longBitsToDouble(cache[index]), value)) {
+			backend.writeDouble(getOffset(index), value);
+			cache(index, Double.doubleToRawLongBits(value));
+		}
+	}
+
+	final String getString(final int index) throws IOException {
+		final int slot = layout.getStringSlot(index);
+		if (stringCache[slot] != null) {
+			return stringCache[slot];
+		}
+		return backend.readString(getOffset(index));
+	}
+
+	final void setString(final int index, final String value) throws IOException {
+		final int slot = layout.getStringSlot(index);
+		if (!isCachingAllowed(index)) {
+			backend.writeString(getOffset(index), value);
+		}
+		else if (stringCache[slot] == null || !stringCache[slot].equals(value)) {
+			backend.writeString(getOffset(index), value);
+			stringCache[slot] = value;
+		}
+	}
+}
@@ -26,6 +26,8 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.Date;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * Main class used to create and manipulate round robin databases (RRDs). Use this class to perform
@@ -57,6 +59,10 @@ import java.util.Date;
  * there is an excellent
  * <a href="http://people.ee.ethz.ch/~oetiker/webtools/rrdtool/tutorial/cdeftutorial.html" target="man">CDEF tutorial</a>.
  * <p>
+ * RrdDb objects are thread safe. Updates exclude all other operations on the same RRD, while
+ * fetches, dumps and other reads run in parallel if the backend supports concurrent reads
+ * (see {@link RrdBackend#isConcurrentReadAllowed()}).
+ * <p>
  *
  * @see RrdBackend
  * @see RrdBackendFactory
@@ -73,6 +79,10 @@ public class RrdDb implements RrdUpdater {
 
 	// static final String RRDTOOL = "rrdtool";
 	static final int XML_INITIAL_BUFFER_CAPACITY = 100000; // bytes
+	// bytes read at once when an RRD is opened: the header, datasources and usually the first archive
+	static final int OPEN_IMAGE_LENGTH = 4096;
+	// consolidation function, xff, steps and rows of an archive
+	static final int ARCHIVE_DEFINITION_LENGTH = 2 * RrdLayout.STRING_LENGTH + 16;
 
 	private RrdBackend backend;
 	private RrdAllocator allocator = new RrdAllocator();
@@ -82,6 +92,12 @@ public class RrdDb implements RrdUpdater {
 	private Archive[] archives;
 
 	private boolean closed = false;
+	// state of datasources and the last update time is only written at step boundaries
+	private volatile boolean m_deferredState = false;
+
+	// updates take the write lock, fetches and other reads share the read lock
+	private final ReentrantReadWriteLock m_readWriteLock = new ReentrantReadWriteLock();
+	private final Lock m_writeLock = m_readWriteLock.writeLock();
 
 	/**
 	 * Constructor used to create new RRD object from the definition. This RRD object will be backed
@@ -226,6 +242,9 @@ public class RrdDb implements RrdUpdater {
 		}
 		backend = factory.open(path, readOnly);
 		try {
+			// constant values are taken from blocks read at once instead of one read per value
+			long length = backend.getLength();
+			allocator.setImage(0, readImage(0, length));
 			// restore header
 			header = new Header(this, (RrdDef) null);
 			header.validateHeader();
@@ -239,8 +258,13 @@ public class RrdDb implements RrdUpdater {
 			int arcCount = header.getArcCount();
 			archives = new Archive[arcCount];
 			for (int i = 0; i < arcCount; i++) {
+				long pointer = allocator.getPointer();
+				if (allocator.getImage(pointer, ARCHIVE_DEFINITION_LENGTH) == null) {
+					allocator.setImage(pointer, readImage(pointer, Math.min(ARCHIVE_DEFINITION_LENGTH, length - pointer)));
+				}
 				archives[i] = new Archive(this, null);
 			}
+			allocator.setImage(0, null);
 		}
 		catch (RrdException e) {
 			backend.close();
@@ -252,6 +276,12 @@ public class RrdDb implements RrdUpdater {
 		}
 	}
 
+	private byte[] readImage(long offset, long length) throws IOException {
+		byte[] image = new byte[(int) Math.max(0, Math.min(length, OPEN_IMAGE_LENGTH))];
+		backend.read(offset, image);
+		return image;
+	}
+
 	/**
 	 * <p>Constructor used to open already existing RRD in R/W mode, with a default storage
 	 * (backend) type (file on the disk).
@@ -443,13 +473,117 @@ public class RrdDb implements RrdUpdater {
 	 *
 	 * @throws IOException Thrown in case of I/O related error.
 	 */
-	public synchronized void close() throws IOException {
-		if (!closed) {
-			closed = true;
-			backend.close();
+	public void close() throws IOException {
+		m_writeLock.lock();
+		try {
+			if (!closed) {
+				closed = true;
+				try {
+					flushState();
+				} finally {
+					backend.close();
+				}
+			}
+		} finally {
+			m_writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Enables or disables deferred writes of the update state. The update state consists of the
+	 * last update time and the last value, accumulated value and unknown seconds of each
+	 * datasource; it changes with every update, even though archives only change when an
+	 * update crosses a step boundary. With deferred writes enabled, the update state is kept in
+	 * memory and only written when an update crosses a step boundary, on {@link #checkpoint()}
+	 * and on {@link #close()}, which saves most of the I/O when samples are stored more often
+	 * than once per step.
+	 * <p>
+	 * Archived values are still written immediately, and the update state on disk always
+	 * matches the archives. If the process dies before the RRD is closed, at most the updates
+	 * since the last step boundary crossed (or the last checkpoint) are lost: they are missing
+	 * from the primary data point being built, and the lost timestamps can be stored again.
+	 * <p>
+	 * Other processes opening the same RRD only see the update state written so far. Writes are
+	 * never deferred if the backend does not allow caching, see {@link #isDeferredState()}.
+	 * Disabling deferred writes writes the pending state immediately.
+	 *
+	 * @param enabled true to keep the update state in memory between step boundaries
+	 * @throws IOException  Thrown in case of I/O error
+	 * @throws RrdException Thrown if the RRD is closed
+	 */
+	public void setDeferredState(final boolean enabled) throws IOException, RrdException {
+		m_writeLock.lock();
+		try {
+			if (closed) {
+				throw new RrdException("RRD already closed");
+			}
+			boolean deferred = header.deferState(enabled);
+			for (final Datasource datasource : datasources) {
+				deferred &= datasource.deferState(enabled);
+			}
+			m_deferredState = deferred;
+		} finally {
+			m_writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Returns true if the update state is kept in memory between step boundaries.
+	 *
+	 * @return true if writes of the update state are deferred
+	 * @see #setDeferredState(boolean)
+	 */
+	public boolean isDeferredState() {
+		return m_deferredState;
+	}
+
+	/**
+	 * Writes the update state kept in memory since the last step boundary, if writes of the
+	 * update state are deferred. Does nothing otherwise.
+	 *
+	 * @throws IOException  Thrown in case of I/O error
+	 * @throws RrdException Thrown if the RRD is closed
+	 * @see #setDeferredState(boolean)
+	 */
+	public void checkpoint() throws IOException, RrdException {
+		m_writeLock.lock();
+		try {
+			if (closed) {
+				throw new RrdException("RRD already closed");
+			}
+			flushState();
+		} finally {
+			m_writeLock.unlock();
+		}
+	}
+
+	private void flushState() throws IOException {
+		if (m_deferredState) {
+			header.flush();
+			for (final Datasource datasource : datasources) {
+				datasource.flush();
+			}
+		}
+	}
+
+	/**
+	 * Writes the deferred update state if an update from <code>oldTime</code> to
+	 * <code>newTime</code> crossed a step boundary.
+	 */
+	private void flushState(final long step, final long oldTime, final long newTime) throws IOException {
+		if (m_deferredState && Util.normalize(oldTime, step) != Util.normalize(newTime, step)) {
+			flushState();
 		}
 	}
 
+	/**
+	 * Returns the lock taken by methods which only read the RRD: the shared read lock if the
+	 * backend can be read by several threads at once, the write lock otherwise.
+	 */
+	private Lock getReadLock() {
+		return backend.isConcurrentReadAllowed() ? m_readWriteLock.readLock() : m_writeLock;
+	}
+
 	/**
 	 * Returns true if the RRD is closed.
 	 *
@@ -583,30 +717,103 @@ public class RrdDb implements RrdUpdater {
 		return createFetchRequest(consolFun, fetchStart, fetchEnd, 1);
 	}
 
-	synchronized void store(Sample sample) throws IOException, RrdException {
-		if (closed) {
-			throw new RrdException("RRD already closed, cannot store this  sample");
-		}
-		long newTime = sample.getTime();
-		long lastTime = header.getLastUpdateTime();
-		if (lastTime >= newTime) {
-			throw new RrdException("Bad sample timestamp " + newTime +
-					". Last update time was " + lastTime + ", at least one second step is required");
+	void store(Sample sample) throws IOException, RrdException {
+		m_writeLock.lock();
+		try {
+			if (closed) {
+				throw new RrdException("RRD already closed, cannot store this  sample");
+			}
+			long newTime = sample.getTime();
+			long lastTime = header.getLastUpdateTime();
+			if (lastTime >= newTime) {
+				throw new RrdException("Bad sample timestamp " + newTime +
+						". Last update time was " + lastTime + ", at least one second step is required");
+			}
+			double[] newValues = sample.getValues();
+			long step = header.getStep();
+			for (int i = 0; i < datasources.length; i++) {
+				double newValue = newValues[i];
+				datasources[i].process(i, step, lastTime, newTime, newValue);
+			}
+			header.setLastUpdateTime(newTime);
+			flushState(step, lastTime, newTime);
+		} finally {
+			m_writeLock.unlock();
 		}
-		double[] newValues = sample.getValues();
-		for (int i = 0; i < datasources.length; i++) {
-			double newValue = newValues[i];
-			datasources[i].process(newTime, newValue);
+	}
+
+	/**
+	 * Stores several samples at once. This is equivalent to creating, populating and updating
+	 * one {@link Sample} per timestamp, but the RRD is locked only once, the whole batch is
+	 * validated up front and the datasource and archive state is kept in memory for the
+	 * duration of the batch, so that consecutive archive rows are written in contiguous runs.
+	 * <p>
+	 * If any timestamp or value row is invalid, an exception is thrown and nothing is stored.
+	 *
+	 * @param timestamps Sample timestamps (without milliseconds), in strictly increasing order.
+	 * @param values     Sample values, <code>values[i]</code> holds the values of all datasources
+	 *                   (in the order of definition) for the timestamp <code>timestamps[i]</code>.
+	 * @throws IOException  Thrown in case of I/O error.
+	 * @throws RrdException Thrown if the RRD is closed, timestamps are not increasing or
+	 *                      dimensions of the supplied arrays are invalid.
+	 */
+	public void store(final long[] timestamps, final double[][] values) throws IOException, RrdException {
+		m_writeLock.lock();
+		try {
+			if (closed) {
+				throw new RrdException("RRD already closed, cannot store samples");
+			}
+			if (timestamps.length != values.length) {
+				throw new RrdException("Invalid number of value rows supplied (" + values.length +
+						"), exactly " + timestamps.length + " needed");
+			}
+			long lastTime = header.getLastUpdateTime();
+			final long firstTime = lastTime;
+			for (int i = 0; i < timestamps.length; i++) {
+				final long newTime = timestamps[i];
+				if (lastTime >= newTime) {
+					throw new RrdException("Bad sample timestamp " + newTime +
+							". Last update time was " + lastTime + ", at least one second step is required");
+				}
+				if (values[i] == null || values[i].length != datasources.length) {
+					throw new RrdException("Invalid number of values supplied for timestamp " + newTime +
+							", exactly " + datasources.length + " needed");
+				}
+				lastTime = newTime;
+			}
+			if (timestamps.length == 0) {
+				return;
+			}
+			final long[] eventTimes = new long[timestamps.length];
+			final double[] eventValues = new double[timestamps.length];
+			final long[] eventSteps = new long[timestamps.length];
+			for (int i = 0; i < datasources.length; i++) {
+				final int eventCount = datasources[i].process(firstTime, timestamps, values, i, eventTimes, eventValues, eventSteps);
+				if (eventCount > 0) {
+					for (final Archive archive : archives) {
+						archive.archive(i, eventTimes, eventValues, eventSteps, eventCount);
+					}
+				}
+			}
+			header.setLastUpdateTime(lastTime);
+			flushState(header.getStep(), firstTime, lastTime);
+		} finally {
+			m_writeLock.unlock();
 		}
-		header.setLastUpdateTime(newTime);
 	}
 
-	synchronized FetchData fetchData(FetchRequest request) throws IOException, RrdException {
-		if (closed) {
-			throw new RrdException("RRD already closed, cannot fetch data");
+	FetchData fetchData(FetchRequest request) throws IOException, RrdException {
+		final Lock readLock = getReadLock();
+		readLock.lock();
+		try {
+			if (closed) {
+				throw new RrdException("RRD already closed, cannot fetch data");
+			}
+			Archive archive = findMatchingArchive(request);
+			return archive.fetchData(request);
+		} finally {
+			readLock.unlock();
 		}
-		Archive archive = findMatchingArchive(request);
-		return archive.fetchData(request);
 	}
 
 	public Archive findMatchingArchive(FetchRequest request) throws RrdException, IOException {
@@ -707,23 +914,28 @@ public class RrdDb implements RrdUpdater {
 	 * @return String representing internal RRD state.
 	 * @throws IOException Thrown in case of I/O related error.
 	 */
-	public synchronized String dump() throws IOException {
-		StringBuffer buffer = new StringBuffer();
-		buffer.append(header.dump());
-		for (Datasource datasource : datasources) {
-			buffer.append(datasource.dump());
-		}
-		for (Archive archive : archives) {
-			buffer.append(archive.dump());
+	public String dump() throws IOException {
+		final Lock readLock = getReadLock();
+		readLock.lock();
+		try {
+			StringBuffer buffer = new StringBuffer();
+			buffer.append(header.dump());
+			for (Datasource datasource : datasources) {
+				buffer.append(datasource.dump());
+			}
+			for (Archive archive : archives) {
+				buffer.append(archive.dump());
+			}
+			return buffer.toString();
+		} finally {
+			readLock.unlock();
 		}
-		return buffer.toString();
 	}
 
-	void archive(Datasource datasource, double value, long numUpdates)
-			throws IOException, RrdException {
-		int dsIndex = getDsIndex(datasource.getDsName());
+	void archive(int dsIndex, double value, long numUpdates, long step, long lastUpdateTime)
+			throws IOException {
 		for (Archive archive : archives) {
-			archive.archive(dsIndex, value, numUpdates);
+			archive.archive(dsIndex, value, numUpdates, step, lastUpdateTime);
 		}
 	}
 
@@ -778,21 +990,27 @@ public class RrdDb implements RrdUpdater {
 	 * @param destination Output stream to receive XML data
 	 * @throws IOException Thrown in case of I/O related error
 	 */
-	public synchronized void dumpXml(OutputStream destination) throws IOException {
-		XmlWriter writer = new XmlWriter(destination);
-		writer.startTag("rrd");
-		// dump header
-		header.appendXml(writer);
-		// dump datasources
-		for (Datasource datasource : datasources) {
-			datasource.appendXml(writer);
-		}
-		// dump archives
-		for (Archive archive : archives) {
-			archive.appendXml(writer);
+	public void dumpXml(OutputStream destination) throws IOException {
+		final Lock readLock = getReadLock();
+		readLock.lock();
+		try {
+			XmlWriter writer = new XmlWriter(destination);
+			writer.startTag("rrd");
+			// dump header
+			header.appendXml(writer);
+			// dump datasources
+			for (Datasource datasource : datasources) {
+				datasource.appendXml(writer);
+			}
+			// dump archives
+			for (Archive archive : archives) {
+				archive.appendXml(writer);
+			}
+			writer.closeTag();
+			writer.flush();
+		} finally {
+			readLock.unlock();
 		}
-		writer.closeTag();
-		writer.flush();
 	}
 
 	/**
@@ -801,7 +1019,7 @@ public class RrdDb implements RrdUpdater {
 	 * @param destination Output stream to receive XML data
 	 * @throws IOException Thrown in case of I/O related error
 	 */
-	public synchronized void exportXml(OutputStream destination) throws IOException {
+	public void exportXml(OutputStream destination) throws IOException {
 		dumpXml(destination);
 	}
 
@@ -814,7 +1032,7 @@ public class RrdDb implements RrdUpdater {
 	 * @throws IOException  Thrown in case of I/O related error
 	 * @throws RrdException Thrown in case of JRobin specific error
 	 */
-	public synchronized String getXml() throws IOException, RrdException {
+	public String getXml() throws IOException, RrdException {
 		ByteArrayOutputStream destination = new ByteArrayOutputStream(XML_INITIAL_BUFFER_CAPACITY);
 		dumpXml(destination);
 		return destination.toString();
@@ -827,7 +1045,7 @@ public class RrdDb implements RrdUpdater {
 	 * @throws IOException  Thrown in case of I/O related error
 	 * @throws RrdException Thrown in case of JRobin specific error
 	 */
-	public synchronized String exportXml() throws IOException, RrdException {
+	public String exportXml() throws IOException, RrdException {
 		return getXml();
 	}
 
@@ -850,7 +1068,7 @@ public class RrdDb implements RrdUpdater {
 	 * @throws IOException  Thrown in case of I/O related error.
 	 * @throws RrdException Thrown in case of JRobin related error.
 	 */
-	public synchronized void dumpXml(String filename) throws IOException, RrdException {
+	public void dumpXml(String filename) throws IOException, RrdException {
 		OutputStream outputStream = null;
 		try {
 			outputStream = new FileOutputStream(filename, false);
@@ -870,7 +1088,7 @@ public class RrdDb implements RrdUpdater {
 	 * @throws IOException  Thrown in case of I/O related error
 	 * @throws RrdException Thrown in case of JRobin specific error
 	 */
-	public synchronized void exportXml(String filename) throws IOException, RrdException {
+	public void exportXml(String filename) throws IOException, RrdException {
 		dumpXml(filename);
 	}
 
@@ -880,8 +1098,14 @@ public class RrdDb implements RrdUpdater {
 	 * @return Last update time (in seconds).
 	 * @throws IOException  Thrown in case of I/O related error
 	 */
-	public synchronized long getLastUpdateTime() throws IOException {
-		return header.getLastUpdateTime();
+	public long getLastUpdateTime() throws IOException {
+		final Lock readLock = getReadLock();
+		readLock.lock();
+		try {
+			return header.getLastUpdateTime();
+		} finally {
+			readLock.unlock();
+		}
 	}
 
 	/**
@@ -903,26 +1127,32 @@ public class RrdDb implements RrdUpdater {
 	 * @throws IOException  Thrown in case of I/O related error.
 	 * @throws RrdException Thrown in case of JRobin specific error.
 	 */
-	public synchronized RrdDef getRrdDef() throws RrdException, IOException {
-		// set header
-		long startTime = header.getLastUpdateTime();
-		long step = header.getStep();
-		String path = backend.getPath();
-		RrdDef rrdDef = new RrdDef(path, startTime, step);
-		// add datasources
-		for (Datasource datasource : datasources) {
-			DsDef dsDef = new DsDef(datasource.getDsName(),
-					datasource.getDsType(), datasource.getHeartbeat(),
-					datasource.getMinValue(), datasource.getMaxValue());
-			rrdDef.addDatasource(dsDef);
-		}
-		// add archives
-		for (Archive archive : archives) {
-			ArcDef arcDef = new ArcDef(archive.getConsolFun(),
-					archive.getXff(), archive.getSteps(), archive.getRows());
-			rrdDef.addArchive(arcDef);
+	public RrdDef getRrdDef() throws RrdException, IOException {
+		final Lock readLock = getReadLock();
+		readLock.lock();
+		try {
+			// set header
+			long startTime = header.getLastUpdateTime();
+			long step = header.getStep();
+			String path = backend.getPath();
+			RrdDef rrdDef = new RrdDef(path, startTime, step);
+			// add datasources
+			for (Datasource datasource : datasources) {
+				DsDef dsDef = new DsDef(datasource.getDsName(),
+						datasource.getDsType(), datasource.getHeartbeat(),
+						datasource.getMinValue(), datasource.getMaxValue());
+				rrdDef.addDatasource(dsDef);
+			}
+			// add archives
+			for (Archive archive : archives) {
+				ArcDef arcDef = new ArcDef(archive.getConsolFun(),
+						archive.getXff(), archive.getSteps(), archive.getRows());
+				rrdDef.addArchive(arcDef);
+			}
+			return rrdDef;
+		} finally {
+			readLock.unlock();
 		}
-		return rrdDef;
 	}
 
 	protected void finalize() throws Throwable {
@@ -937,23 +1167,29 @@ public class RrdDb implements RrdUpdater {
 	 * @throws IOException  Thrown in case of I/O error
 	 * @throws RrdException Thrown if supplied argument is not a compatible RrdDb object
 	 */
-	public synchronized void copyStateTo(RrdUpdater other) throws IOException, RrdException {
-		if (!(other instanceof RrdDb)) {
-			throw new RrdException("Cannot copy RrdDb object to " + other.getClass().getName());
-		}
-		RrdDb otherRrd = (RrdDb) other;
-		header.copyStateTo(otherRrd.header);
-		for (int i = 0; i < datasources.length; i++) {
-			int j = Util.getMatchingDatasourceIndex(this, i, otherRrd);
-			if (j >= 0) {
-				datasources[i].copyStateTo(otherRrd.datasources[j]);
+	public void copyStateTo(RrdUpdater other) throws IOException, RrdException {
+		final Lock readLock = getReadLock();
+		readLock.lock();
+		try {
+			if (!(other instanceof RrdDb)) {
+				throw new RrdException("Cannot copy RrdDb object to " + other.getClass().getName());
 			}
-		}
-		for (int i = 0; i < archives.length; i++) {
-			int j = Util.getMatchingArchiveIndex(this, i, otherRrd);
-			if (j >= 0) {
-				archives[i].copyStateTo(otherRrd.archives[j]);
+			RrdDb otherRrd = (RrdDb) other;
+			header.copyStateTo(otherRrd.header);
+			for (int i = 0; i < datasources.length; i++) {
+				int j = Util.getMatchingDatasourceIndex(this, i, otherRrd);
+				if (j >= 0) {
+					datasources[i].copyStateTo(otherRrd.datasources[j]);
+				}
+			}
+			for (int i = 0; i < archives.length; i++) {
+				int j = Util.getMatchingArchiveIndex(this, i, otherRrd);
+				if (j >= 0) {
+					archives[i].copyStateTo(otherRrd.archives[j]);
+				}
 			}
+		} finally {
+			readLock.unlock();
 		}
 	}
 
@@ -1063,8 +1299,16 @@ public class RrdDb implements RrdUpdater {
 	 * @return All RRD bytes
 	 * @throws IOException Thrown in case of I/O related error.
 	 */
-	public synchronized byte[] getBytes() throws IOException {
-		return backend.readAll();
+	public byte[] getBytes() throws IOException {
+		// deferred state is written first, which excludes other readers
+		final Lock lock = m_deferredState ? m_writeLock : getReadLock();
+		lock.lock();
+		try {
+			flushState();
+			return backend.readAll();
+		} finally {
+			lock.unlock();
+		}
 	}
 
 	/**
@@ -1086,12 +1330,18 @@ public class RrdDb implements RrdUpdater {
 	 * @return Array of last datasource values
 	 * @throws IOException Thrown in case of I/O error
 	 */
-	public synchronized double[] getLastDatasourceValues() throws IOException {
-		double[] values = new double[datasources.length];
-		for (int i = 0; i < values.length; i++) {
-			values[i] = datasources[i].getLastValue();
+	public double[] getLastDatasourceValues() throws IOException {
+		final Lock readLock = getReadLock();
+		readLock.lock();
+		try {
+			double[] values = new double[datasources.length];
+			for (int i = 0; i < values.length; i++) {
+				values[i] = datasources[i].getLastValue();
+			}
+			return values;
+		} finally {
+			readLock.unlock();
 		}
-		return values;
 	}
 
 	/**
@@ -1102,9 +1352,15 @@ public class RrdDb implements RrdUpdater {
 	 * @throws IOException  Thrown in case of I/O error
 	 * @throws RrdException Thrown if no datasource in this RrdDb matches the given datasource name
 	 */
-	public synchronized double getLastDatasourceValue(String dsName) throws IOException, RrdException {
-		int dsIndex = getDsIndex(dsName);
-		return datasources[dsIndex].getLastValue();
+	public double getLastDatasourceValue(String dsName) throws IOException, RrdException {
+		final Lock readLock = getReadLock();
+		readLock.lock();
+		try {
+			int dsIndex = getDsIndex(dsName);
+			return datasources[dsIndex].getLastValue();
+		} finally {
+			readLock.unlock();
+		}
 	}
 
 	/**
@@ -1141,12 +1397,23 @@ public class RrdDb implements RrdUpdater {
 		return last;
 	}
 
-	public synchronized String getInfo() throws IOException {
-		return header.getInfo();
+	public String getInfo() throws IOException {
+		final Lock readLock = getReadLock();
+		readLock.lock();
+		try {
+			return header.getInfo();
+		} finally {
+			readLock.unlock();
+		}
 	}
 
-	public synchronized void setInfo(String info) throws IOException {
-		header.setInfo(info);
+	public void setInfo(String info) throws IOException {
+		m_writeLock.lock();
+		try {
+			header.setInfo(info);
+		} finally {
+			m_writeLock.unlock();
+		}
 	}
 
 	public static void main(String[] args) {
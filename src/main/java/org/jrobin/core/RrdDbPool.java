@@ -20,7 +20,17 @@
 package org.jrobin.core;
 
 import java.io.IOException;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.jrobin.core.RrdException;
 
@@ -28,6 +38,33 @@ import org.jrobin.core.RrdException;
  * This class should be used to synchronize access to RRD files
  * in a multithreaded environment. This class should be also used to prevent openning of
  * too many RRD files at the same time (thus avoiding operating system limits)
+ * <p>
+ * The pool does not use a single global lock. Open RRD files are kept in a concurrent map
+ * keyed by backend factory and canonical path, each entry carries its own reference count, and threads requesting
+ * a file which is being opened (or closed) by another thread wait only for that particular file.
+ * Files are opened and closed outside of any pool-wide lock, so a slow close of one file
+ * never stalls requests for other files. Threads waiting for a free slot when the pool is
+ * full are served in FIFO order.
+ * <p>
+ * When the usage count of a file drops to zero, the file is not closed immediately. Instead of it,
+ * it is marked as 'eligible for closing' and kept open, so that the next request for the same file
+ * does not have to open it again. Idle files are closed least recently released first, when:
+ * <ul>
+ * <li>the pool is full and another file has to be opened,
+ * <li>the number of idle files exceeds {@link #getMaxIdleCount() the maximum idle count}, or
+ * <li>a file stays idle longer than {@link #getIdleTimeout() the idle timeout}. Expired files are
+ * closed lazily, on the next pool operation.
+ * </ul>
+ * Set the maximum idle count to zero to close files as soon as they are released.
+ * <p>
+ * RRDs backed by any {@link RrdBackendFactory backend factory} may be requested from the pool. The
+ * same path requested with two different factories yields two different RrdDb objects. Several
+ * independent pools, each with its own capacity and idle policy, can be obtained by name with
+ * {@link #getInstance(String)}.
+ * <p>
+ * <b>WARNING:</b> Never use close() method on the reference returned from the pool.
+ * When the reference is no longer needed, return it to the pool with the
+ * {@link #release(RrdDb) release()} method.
  */
 
 public class RrdDbPool {
@@ -36,30 +73,82 @@ public class RrdDbPool {
 	 * never open too many RRD files at the same time.
 	 */
 	public static final int INITIAL_CAPACITY = 200;
-	private static RrdDbPool instance;
 
-	private int capacity = INITIAL_CAPACITY;
-	private HashMap<String, RrdEntry> rrdMap = new HashMap<String, RrdEntry>(INITIAL_CAPACITY);
+	/**
+	 * Default maximum number of idle RRD files kept open by the pool.
+	 */
+	public static final int DEFAULT_MAX_IDLE_COUNT = INITIAL_CAPACITY;
+
+	/**
+	 * Default idle timeout, in milliseconds. Zero means that idle files never expire.
+	 */
+	public static final long DEFAULT_IDLE_TIMEOUT = 0L;
 
 	/**
-	 * Creates a single instance of the class on the first call, or returns already existing one.
+	 * Name of the pool returned from {@link #getInstance()}.
+	 */
+	public static final String DEFAULT_POOL_NAME = "default";
+
+	private static final ConcurrentMap<String, RrdDbPool> pools = new ConcurrentHashMap<String, RrdDbPool>();
+
+	private final String name;
+	private final ConcurrentMap<RrdKey, RrdEntry> rrdMap = new ConcurrentHashMap<RrdKey, RrdEntry>(INITIAL_CAPACITY);
+	private final ConcurrentMap<RrdDb, RrdEntry> openMap = new ConcurrentHashMap<RrdDb, RrdEntry>(INITIAL_CAPACITY);
+	private final CapacitySemaphore permits = new CapacitySemaphore(INITIAL_CAPACITY);
+	private volatile int capacity = INITIAL_CAPACITY;
+	// pool keys of requested paths, as many as files may be open
+	private final BoundedCache<RrdKey, RrdKey> keyCache = new BoundedCache<RrdKey, RrdKey>(INITIAL_CAPACITY);
+
+	// idle entries, least recently released first; guarded by itself
+	private final LinkedHashMap<RrdKey, RrdEntry> idleMap = new LinkedHashMap<RrdKey, RrdEntry>();
+	private volatile int maxIdleCount = DEFAULT_MAX_IDLE_COUNT;
+	private volatile long idleTimeout = DEFAULT_IDLE_TIMEOUT;
+	private final AtomicInteger permitWaiters = new AtomicInteger();
+
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong missCount = new AtomicLong();
+	private final AtomicLong evictionCount = new AtomicLong();
+
+	/**
+	 * Creates the default instance of the class on the first call, or returns already existing one.
 	 *
-	 * @return Single instance of this class
-	 * @throws RrdException Thrown if the default RRD backend is not derived from the {@link RrdFileBackendFactory}
+	 * @return Default instance of this class
+	 * @throws RrdException Never thrown, declared for backward compatibility
 	 */
-	public synchronized static RrdDbPool getInstance() throws RrdException {
-		if (instance == null) {
-			instance = new RrdDbPool();
-		}
-		return instance;
+	public static RrdDbPool getInstance() throws RrdException {
+		return getInstance(DEFAULT_POOL_NAME);
 	}
 
-	private RrdDbPool() throws RrdException {
-		RrdBackendFactory factory = RrdBackendFactory.getDefaultFactory();
-		if (!(factory instanceof RrdFileBackendFactory)) {
-			throw new RrdException("Cannot create instance of " + getClass().getName() + " with " +
-					"a default backend factory not derived from RrdFileBackendFactory");
+	/**
+	 * Creates a named instance of the class on the first call, or returns already existing one.
+	 * Each named pool has its own capacity, idle files and statistics.
+	 *
+	 * @param name Pool name
+	 * @return Pool instance with the given name
+	 */
+	public static RrdDbPool getInstance(String name) {
+		RrdDbPool pool = pools.get(name);
+		if (pool == null) {
+			RrdDbPool newPool = new RrdDbPool(name);
+			pool = pools.putIfAbsent(name, newPool);
+			if (pool == null) {
+				pool = newPool;
+			}
 		}
+		return pool;
+	}
+
+	private RrdDbPool(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Returns the name of this pool.
+	 *
+	 * @return Pool name
+	 */
+	public String getName() {
+		return name;
 	}
 
 	/**
@@ -70,7 +159,8 @@ public class RrdDbPool {
 	 * <li>If the file is not already open and the number of already open RRD files is less than
 	 * {@link #INITIAL_CAPACITY}, the file will be open and a new RrdDb reference will be returned.
 	 * If the file is not already open and the number of already open RRD files is equal to
-	 * {@link #INITIAL_CAPACITY}, the method blocks until some RRD file is closed.
+	 * {@link #INITIAL_CAPACITY}, the least recently released idle file is closed. If there are no
+	 * idle files, the method blocks until some RRD file is released.
 	 * </ul>
 	 *
 	 * @param path Path to existing RRD file
@@ -78,27 +168,42 @@ public class RrdDbPool {
 	 * @throws IOException  Thrown in case of I/O error
 	 * @throws RrdException Thrown in case of JRobin specific error
 	 */
-	public synchronized RrdDb requestRrdDb(String path) throws IOException, RrdException {
-		String canonicalPath = Util.getCanonicalPath(path);
-		while (!rrdMap.containsKey(canonicalPath) && rrdMap.size() >= capacity) {
-			try {
-				wait();
+	public RrdDb requestRrdDb(String path) throws IOException, RrdException {
+		return requestRrdDb(path, RrdBackendFactory.getDefaultFactory());
+	}
+
+	/**
+	 * Requests a RrdDb reference for the given RRD path, backed with a storage (backend) different
+	 * from default. Works as {@link #requestRrdDb(String)} otherwise.
+	 *
+	 * @param path	Path to existing RRD
+	 * @param factory Backend factory used to open the RRD
+	 * @return reference for the give RRD
+	 * @throws IOException  Thrown in case of I/O error
+	 * @throws RrdException Thrown in case of JRobin specific error
+	 */
+	public RrdDb requestRrdDb(String path, RrdBackendFactory factory) throws IOException, RrdException {
+		RrdKey key = getKey(factory, path);
+		evictExpired();
+		for (;;) {
+			RrdEntry entry = rrdMap.get(key);
+			if (entry == null) {
+				RrdEntry newEntry = new RrdEntry(key);
+				entry = rrdMap.putIfAbsent(key, newEntry);
+				if (entry == null) {
+					// not open, open it now
+					missCount.incrementAndGet();
+					return open(newEntry, null, null);
+				}
 			}
-			catch (InterruptedException e) {
-				throw new RrdException(e);
+			// already open (or being opened), just increase usage count
+			RrdDb rrdDb = entry.acquire();
+			if (rrdDb != null) {
+				hitCount.incrementAndGet();
+				return rrdDb;
 			}
-		}
-		if (rrdMap.containsKey(canonicalPath)) {
-			// already open, just increase usage count
-			RrdEntry entry = rrdMap.get(canonicalPath);
-			entry.count++;
-			return entry.rrdDb;
-		}
-		else {
-			// not open, open it now and add to the map
-			RrdDb rrdDb = new RrdDb(canonicalPath);
-			rrdMap.put(canonicalPath, new RrdEntry(rrdDb));
-			return rrdDb;
+			// the entry is being closed, wait until the file is closed and try again
+			entry.awaitClosed();
 		}
 	}
 
@@ -106,7 +211,7 @@ public class RrdDbPool {
 	 * Requests a RrdDb reference for the given RRD file definition object.<p>
 	 * <ul>
 	 * <li>If the file with the path specified in the RrdDef object is already open,
-	 * the method blocks until the file is closed.
+	 * the method blocks until the file is closed. An idle file is closed immediately.
 	 * <li>If the file is not already open and the number of already open RRD files is less than
 	 * {@link #INITIAL_CAPACITY}, a new RRD file will be created and a its RrdDb reference will be returned.
 	 * If the file is not already open and the number of already open RRD files is equal to
@@ -118,19 +223,24 @@ public class RrdDbPool {
 	 * @throws IOException  Thrown in case of I/O error
 	 * @throws RrdException Thrown in case of JRobin specific error
 	 */
-	public synchronized RrdDb requestRrdDb(RrdDef rrdDef) throws IOException, RrdException {
-		String canonicalPath = Util.getCanonicalPath(rrdDef.getPath());
-		while (rrdMap.containsKey(canonicalPath) || rrdMap.size() >= capacity) {
-			try {
-				wait();
-			}
-			catch (InterruptedException e) {
-				throw new RrdException(e);
-			}
-		}
-		RrdDb rrdDb = new RrdDb(rrdDef);
-		rrdMap.put(canonicalPath, new RrdEntry(rrdDb));
-		return rrdDb;
+	public RrdDb requestRrdDb(RrdDef rrdDef) throws IOException, RrdException {
+		return requestRrdDb(rrdDef, RrdBackendFactory.getDefaultFactory());
+	}
+
+	/**
+	 * Requests a RrdDb reference for the given RRD definition object, backed with a storage
+	 * (backend) different from default. Works as {@link #requestRrdDb(RrdDef)} otherwise.
+	 *
+	 * @param rrdDef  Definition of the RRD to be created
+	 * @param factory Backend factory used to create the RRD
+	 * @return Reference to the newly created RRD
+	 * @throws IOException  Thrown in case of I/O error
+	 * @throws RrdException Thrown in case of JRobin specific error
+	 */
+	public RrdDb requestRrdDb(RrdDef rrdDef, RrdBackendFactory factory) throws IOException, RrdException {
+		RrdKey key = getKey(factory, rrdDef.getPath());
+		evictExpired();
+		return open(reserve(key), rrdDef, null);
 	}
 
 	/**
@@ -138,7 +248,7 @@ public class RrdDbPool {
 	 * external data (from XML dump, RRD file or RRDTool's binary RRD file).<p>
 	 * <ul>
 	 * <li>If the file with the path specified is already open,
-	 * the method blocks until the file is closed.
+	 * the method blocks until the file is closed. An idle file is closed immediately.
 	 * <li>If the file is not already open and the number of already open RRD files is less than
 	 * {@link #INITIAL_CAPACITY}, a new RRD file will be created and a its RrdDb reference will be returned.
 	 * If the file is not already open and the number of already open RRD files is equal to
@@ -151,45 +261,64 @@ public class RrdDbPool {
 	 * @throws IOException  Thrown in case of I/O error
 	 * @throws RrdException Thrown in case of JRobin specific error
 	 */
-	public synchronized RrdDb requestRrdDb(String path, String sourcePath)
+	public RrdDb requestRrdDb(String path, String sourcePath)
 			throws IOException, RrdException,RrdException {
-		String canonicalPath = Util.getCanonicalPath(path);
-		while (rrdMap.containsKey(canonicalPath) || rrdMap.size() >= capacity) {
-			try {
-				wait();
-			}
-			catch (InterruptedException e) {
-				throw new RrdException(e);
-			}
-		}
-		RrdDb rrdDb = new RrdDb(canonicalPath, sourcePath);
-		rrdMap.put(canonicalPath, new RrdEntry(rrdDb));
-		return rrdDb;
+		return requestRrdDb(path, sourcePath, RrdBackendFactory.getDefaultFactory());
+	}
+
+	/**
+	 * Requests a RrdDb reference for the given path, backed with a storage (backend) different from
+	 * default. The RRD will be created from external data. Works as
+	 * {@link #requestRrdDb(String, String)} otherwise.
+	 *
+	 * @param path	   Path to RRD which should be created
+	 * @param sourcePath Path to external data which is to be converted to JRobin's native RRD format
+	 * @param factory	Backend factory used to create the RRD
+	 * @return Reference to the newly created RRD
+	 * @throws IOException  Thrown in case of I/O error
+	 * @throws RrdException Thrown in case of JRobin specific error
+	 */
+	public RrdDb requestRrdDb(String path, String sourcePath, RrdBackendFactory factory)
+			throws IOException, RrdException {
+		RrdKey key = getKey(factory, path);
+		evictExpired();
+		return open(reserve(key), null, sourcePath);
 	}
 
 	/**
 	 * Releases RrdDb reference previously obtained from the pool. When a reference is released, its usage
-	 * count is decremented by one. If usage count drops to zero, the underlying RRD file will be closed.
+	 * count is decremented by one. If usage count drops to zero, the underlying RRD file becomes idle
+	 * and will be closed later, or immediately if the maximum idle count is zero.
 	 *
 	 * @param rrdDb RrdDb reference to be returned to the pool
 	 * @throws IOException  Thrown in case of I/O error
 	 * @throws RrdException Thrown in case of JRobin specific error
 	 */
-	public synchronized void release(RrdDb rrdDb) throws IOException, RrdException {
+	public void release(RrdDb rrdDb) throws IOException, RrdException {
 		// null pointer should not kill the thread, just ignore it
 		if (rrdDb == null) {
 			return;
 		}
-		String canonicalPath = Util.getCanonicalPath(rrdDb.getPath());
-		if (!rrdMap.containsKey(canonicalPath)) {
-			throw new RrdException("Could not release [" + canonicalPath + "], the file was never requested");
+		RrdEntry entry = openMap.get(rrdDb);
+		boolean keepIdle = maxIdleCount > 0;
+		int count = (entry == null) ? -1 : entry.release(rrdDb, keepIdle);
+		if (count < 0) {
+			throw new RrdException("Could not release [" + rrdDb.getPath() + "], the file was never requested");
 		}
-		RrdEntry entry = rrdMap.get(canonicalPath);
-		if (--entry.count <= 0) {
-			// no longer used
-			rrdMap.remove(canonicalPath);
-			notifyAll();
-			entry.rrdDb.close();
+		if (count == 0) {
+			if (!keepIdle) {
+				// no longer used, close it outside of any lock
+				close(entry);
+				return;
+			}
+			while (idleCount() > maxIdleCount && evictIdle()) {
+				// keep closing
+			}
+			if (permitWaiters.get() > 0) {
+				// a thread waiting for a free slot should not wait for idle files
+				evictIdle();
+			}
+			evictExpired();
 		}
 	}
 
@@ -198,17 +327,90 @@ public class RrdDbPool {
 	 *
 	 * @return maximum number of simultaneously open RRD files
 	 */
-	public synchronized int getCapacity() {
+	public int getCapacity() {
 		return capacity;
 	}
 
 	/**
-	 * Sets the maximum number of simultaneously open RRD files.
+	 * Sets the maximum number of simultaneously open RRD files. If the capacity is reduced below
+	 * the number of currently open files, no file in use is closed, but new files will not be opened
+	 * until enough files are released. The pool remembers the canonical paths of as many
+	 * requested paths as it may hold open files.
 	 *
 	 * @param capacity Maximum number of simultaneously open RRD files.
 	 */
 	public synchronized void setCapacity(int capacity) {
+		int delta = capacity - this.capacity;
+		if (delta > 0) {
+			permits.release(delta);
+		}
+		else if (delta < 0) {
+			permits.reduce(-delta);
+		}
 		this.capacity = capacity;
+		keyCache.setMaxSize(capacity);
+	}
+
+	/**
+	 * Returns the maximum number of idle RRD files kept open by the pool.
+	 *
+	 * @return Maximum number of idle files
+	 */
+	public int getMaxIdleCount() {
+		return maxIdleCount;
+	}
+
+	/**
+	 * Sets the maximum number of idle RRD files kept open by the pool. If set to zero, files
+	 * are closed as soon as their usage count drops to zero. Idle files above the new limit
+	 * are closed immediately.
+	 *
+	 * @param maxIdleCount Maximum number of idle files
+	 * @throws IOException Thrown in case of I/O error
+	 */
+	public void setMaxIdleCount(int maxIdleCount) throws IOException {
+		this.maxIdleCount = Math.max(0, maxIdleCount);
+		while (idleCount() > this.maxIdleCount && evictIdle()) {
+			// keep closing
+		}
+	}
+
+	/**
+	 * Returns the time after which an idle RRD file gets closed.
+	 *
+	 * @return Idle timeout in milliseconds, zero if idle files never expire
+	 */
+	public long getIdleTimeout() {
+		return idleTimeout;
+	}
+
+	/**
+	 * Sets the time after which an idle RRD file gets closed. Expired files are closed lazily,
+	 * on the next request or release.
+	 *
+	 * @param idleTimeout Idle timeout in milliseconds, zero if idle files should never expire
+	 */
+	public void setIdleTimeout(long idleTimeout) {
+		this.idleTimeout = Math.max(0L, idleTimeout);
+	}
+
+	/**
+	 * Forgets the canonical paths resolved for requested paths. Call it, together with
+	 * {@link Util#clearCanonicalPathCache()}, if the canonical form of a path changes.
+	 */
+	public void clearCanonicalPathCache() {
+		keyCache.clear();
+	}
+
+	/**
+	 * Closes all idle RRD files held in the pool. Files in use are not affected.
+	 *
+	 * @throws IOException Thrown in case of I/O error
+	 */
+	public void closeIdle() throws IOException {
+		while (evictIdle()) {
+			// keep closing
+		}
 	}
 
 	/**
@@ -216,717 +418,389 @@ public class RrdDbPool {
 	 *
 	 * @return Array with canonical paths to open RRD files held in the pool.
 	 */
-	public synchronized String[] getOpenFiles() {
-		return rrdMap.keySet().toArray(new String[0]);
+	public String[] getOpenFiles() {
+		List<String> paths = new ArrayList<String>(rrdMap.size());
+		for (RrdKey key : rrdMap.keySet()) {
+			paths.add(key.path);
+		}
+		return paths.toArray(new String[paths.size()]);
 	}
 
 	/**
 	 * Returns the number of open RRD files.
 	 *
-	 * @return Number of currently open RRD files held in the pool.
+	 * @return Number of currently open RRD files held in the pool, including idle files.
 	 */
-	public synchronized int getOpenFileCount() {
+	public int getOpenFileCount() {
 		return rrdMap.size();
 	}
 
-	private final static class RrdEntry {
-		RrdDb rrdDb;
-		int count;
+	/**
+	 * Returns the number of open RRD files which are not used at the moment.
+	 *
+	 * @return Number of idle files
+	 */
+	public int getIdleFileCount() {
+		return idleCount();
+	}
+
+	/**
+	 * Returns the number of requests served with an already open RRD file.
+	 *
+	 * @return Number of pool hits
+	 */
+	public long getHitCount() {
+		return hitCount.get();
+	}
 
-		RrdEntry(final RrdDb rrdDb) {
+	/**
+	 * Returns the number of requests which had to open (or create) a RRD file.
+	 *
+	 * @return Number of pool misses
+	 */
+	public long getMissCount() {
+		return missCount.get();
+	}
+
+	/**
+	 * Returns the number of idle RRD files closed by the pool because the pool was full, the maximum
+	 * idle count was exceeded, or the idle timeout expired.
+	 *
+	 * @return Number of evictions
+	 */
+	public long getEvictionCount() {
+		return evictionCount.get();
+	}
+
+	/**
+	 * Puts a new, not yet opened entry for the given key in the map. If the key is
+	 * already held in the pool, closes the file as soon as it is idle.
+	 */
+	private RrdEntry reserve(RrdKey key) throws IOException, RrdException {
+		for (;;) {
+			RrdEntry newEntry = new RrdEntry(key);
+			RrdEntry entry = rrdMap.putIfAbsent(key, newEntry);
+			if (entry == null) {
+				return newEntry;
+			}
+			if (!evictIdle(entry)) {
+				entry.awaitIdleOrClosed();
+			}
+		}
+	}
+
+	/**
+	 * Opens (or creates) the RRD file for an entry previously put in the map by the calling thread.
+	 * Blocks until the pool has a free slot.
+	 */
+	private RrdDb open(RrdEntry entry, RrdDef rrdDef, String sourcePath) throws IOException, RrdException {
+		RrdDb rrdDb = null;
+		boolean permitAcquired = false;
+		try {
+			acquirePermit();
+			permitAcquired = true;
+			RrdKey key = entry.key;
+			if (rrdDef != null) {
+				rrdDb = new RrdDb(rrdDef, key.factory);
+			}
+			else if (sourcePath != null) {
+				rrdDb = new RrdDb(key.path, sourcePath, key.factory);
+			}
+			else {
+				rrdDb = new RrdDb(key.path, key.factory);
+			}
+			openMap.put(rrdDb, entry);
+			entry.opened(rrdDb);
+			return rrdDb;
+		}
+		finally {
+			if (rrdDb == null) {
+				rrdMap.remove(entry.key, entry);
+				entry.failed();
+				if (permitAcquired) {
+					permits.release();
+				}
+			}
+		}
+	}
+
+	private void acquirePermit() throws IOException, RrdException {
+		permitWaiters.incrementAndGet();
+		try {
+			// honour the FIFO order of threads already waiting for a free slot
+			while (!permits.tryAcquire(0L, TimeUnit.MILLISECONDS)) {
+				if (!evictIdle()) {
+					// nothing to close, wait for a release
+					permits.acquire();
+					break;
+				}
+			}
+		}
+		catch (InterruptedException e) {
+			throw new RrdException(e);
+		}
+		finally {
+			permitWaiters.decrementAndGet();
+		}
+	}
+
+	private void close(RrdEntry entry) throws IOException {
+		rrdMap.remove(entry.key, entry);
+		openMap.remove(entry.rrdDb);
+		try {
+			entry.rrdDb.close();
+		}
+		finally {
+			entry.closed();
+			permits.release();
+		}
+	}
+
+	private int idleCount() {
+		synchronized (idleMap) {
+			return idleMap.size();
+		}
+	}
+
+	/**
+	 * Closes the least recently released idle file.
+	 *
+	 * @return false if there were no idle files
+	 */
+	private boolean evictIdle() throws IOException {
+		for (;;) {
+			RrdEntry entry;
+			synchronized (idleMap) {
+				Iterator<RrdEntry> it = idleMap.values().iterator();
+				if (!it.hasNext()) {
+					return false;
+				}
+				entry = it.next();
+			}
+			if (evictIdle(entry)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Closes idle files which stayed idle longer than the idle timeout.
+	 */
+	private void evictExpired() throws IOException {
+		long timeout = idleTimeout;
+		if (timeout <= 0) {
+			return;
+		}
+		long oldest = System.currentTimeMillis() - timeout;
+		for (;;) {
+			RrdEntry entry;
+			synchronized (idleMap) {
+				Iterator<RrdEntry> it = idleMap.values().iterator();
+				if (!it.hasNext()) {
+					return;
+				}
+				entry = it.next();
+				if (entry.idleSince > oldest) {
+					return;
+				}
+			}
+			evictIdle(entry);
+		}
+	}
+
+	/**
+	 * Closes the given entry if it is idle.
+	 *
+	 * @return true if the entry was closed
+	 */
+	private boolean evictIdle(RrdEntry entry) throws IOException {
+		if (!entry.evict()) {
+			return false;
+		}
+		evictionCount.incrementAndGet();
+		close(entry);
+		return true;
+	}
+
+	/**
+	 * Returns the pool key of a requested path. Keys of the last requested paths are remembered,
+	 * so that requests for open files do not resolve the canonical path again.
+	 */
+	private RrdKey getKey(RrdBackendFactory factory, String path) throws IOException {
+		RrdKey requested = new RrdKey(factory, path);
+		RrdKey key = keyCache.get(requested);
+		if (key == null) {
+			key = new RrdKey(factory, factory.getCanonicalPath(path));
+			keyCache.put(requested, key);
+		}
+		return key;
+	}
+
+	/**
+	 * Pool key, a backend factory and a path, canonical unless used to look up the key of
+	 * a requested path.
+	 */
+	private final static class RrdKey {
+		private final RrdBackendFactory factory;
+		private final String path;
+
+		RrdKey(final RrdBackendFactory factory, final String path) {
+			this.factory = factory;
+			this.path = path;
+		}
+
+		public boolean equals(final Object obj) {
+			if (!(obj instanceof RrdKey)) {
+				return false;
+			}
+			final RrdKey other = (RrdKey) obj;
+			return factory == other.factory && path.equals(other.path);
+		}
+
+		public int hashCode() {
+			return 31 * System.identityHashCode(factory) + path.hashCode();
+		}
+	}
+
+	private final class RrdEntry {
+		private final RrdKey key;
+		private final CountDownLatch openLatch = new CountDownLatch(1);
+		private final CountDownLatch closeLatch = new CountDownLatch(1);
+		// guarded by this
+		private RrdDb rrdDb;
+		private int count;
+		private boolean closing;
+		private volatile long idleSince;
+
+		RrdEntry(final RrdKey key) {
+			this.key = key;
+		}
+
+		synchronized void opened(final RrdDb rrdDb) {
 			this.rrdDb = rrdDb;
 			this.count = 1;
+			openLatch.countDown();
+		}
+
+		void failed() {
+			synchronized (this) {
+				closing = true;
+				notifyAll();
+			}
+			openLatch.countDown();
+			closeLatch.countDown();
+		}
+
+		synchronized void closed() {
+			closeLatch.countDown();
+			notifyAll();
+		}
+
+		/**
+		 * Waits until the file is open and increments its usage count.
+		 *
+		 * @return Open RrdDb, or null if the file could not be opened or is being closed
+		 */
+		RrdDb acquire() throws RrdException {
+			await(openLatch);
+			synchronized (this) {
+				if (closing) {
+					return null;
+				}
+				if (count++ == 0) {
+					synchronized (idleMap) {
+						idleMap.remove(key);
+					}
+				}
+				return rrdDb;
+			}
+		}
+
+		/**
+		 * Decrements the usage count. When it drops to zero, the entry becomes idle, or
+		 * is marked as closing and the caller becomes responsible for closing the file.
+		 *
+		 * @return Remaining usage count, or -1 if the entry does not hold the given reference
+		 */
+		synchronized int release(final RrdDb rrdDb, final boolean keepIdle) {
+			if (closing || count == 0 || this.rrdDb != rrdDb) {
+				return -1;
+			}
+			if (--count == 0) {
+				if (keepIdle) {
+					idleSince = System.currentTimeMillis();
+					synchronized (idleMap) {
+						idleMap.put(key, this);
+					}
+					// wake up threads waiting to recreate the file
+					notifyAll();
+				}
+				else {
+					closing = true;
+				}
+			}
+			return count;
+		}
+
+		/**
+		 * Marks an idle entry as closing and removes it from the idle map.
+		 *
+		 * @return false if the entry is not idle
+		 */
+		synchronized boolean evict() {
+			synchronized (idleMap) {
+				if (idleMap.get(key) == this) {
+					idleMap.remove(key);
+				}
+			}
+			if (closing || count > 0 || rrdDb == null) {
+				return false;
+			}
+			closing = true;
+			return true;
+		}
+
+		void awaitClosed() throws RrdException {
+			await(closeLatch);
+		}
+
+		/**
+		 * Waits until the file is idle, so that it can be evicted, or closed.
+		 */
+		synchronized void awaitIdleOrClosed() throws RrdException {
+			try {
+				while (closeLatch.getCount() > 0 && (closing || count > 0 || rrdDb == null)) {
+					wait();
+				}
+			}
+			catch (InterruptedException e) {
+				throw new RrdException(e);
+			}
+		}
+
+		private void await(final CountDownLatch latch) throws RrdException {
+			try {
+				latch.await();
+			}
+			catch (InterruptedException e) {
+				throw new RrdException(e);
+			}
 		}
 	}
-}
 
-// OLDER VERSION IS HERE
-
-///* ============================================================
-// * JRobin : Pure java implementation of RRDTool's functionality
-// * ============================================================
-// *
-// * Project Info:  http://www.jrobin.org
-// * Project Lead:  Sasa Markovic (saxon@jrobin.org);
-// *
-// * (C) Copyright 2003-2005, by Sasa Markovic.
-// *
-// * Developers:    Sasa Markovic (saxon@jrobin.org)
-// *
-// *
-// * This library is free software; you can redistribute it and/or modify it under the terms
-// * of the GNU Lesser General Public License as published by the Free Software Foundation;
-// * either version 2.1 of the License, or (at your option) any later version.
-// *
-// * This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
-// * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
-// * See the GNU Lesser General Public License for more details.
-// *
-// * You should have received a copy of the GNU Lesser General Public License along with this
-// * library; if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
-// * Boston, MA 02111-1307, USA.
-// */
-//package org.jrobin.core;
-//
-//import java.io.IOException;
-//import java.util.HashMap;
-//import java.util.Iterator;
-//import java.util.LinkedHashMap;
-//import java.util.Set;
-//
-///**
-// * Class to represent the pool of open RRD files.<p>
-// *
-// * To open already existing RRD file with JRobin, you have to create a
-// * {@link org.jrobin.core.RrdDb RrdDb} object by specifying RRD file path
-// * as constructor argument. This operation can be time consuming
-// * especially with large RRD files with many datasources and
-// * several long archives.<p>
-// *
-// * In a multithreaded environment you might probably need a reference to the
-// * same RRD file from two different threads (RRD file updates are performed in
-// * one thread but data fetching and graphing is performed in another one). To make
-// * the RrdDb construction process more efficient it might be convenient to open all
-// * RRD files in a centralized place. That's the purpose of RrdDbPool class.<p>
-// *
-// * How does it work? The typical usage scenario goes like this:<p>
-// *
-// * <pre>
-// * // obtain instance to RrdDbPool object
-// * RrdDbPool pool = RrdDbPool.getInstance();
-// *
-// * // request a reference to RrdDb object
-// * String path = "some_relative_or_absolute_path_to_any_RRD_file";
-// * RrdDb rrdDb = RrdDbPool.requestRrdDb(path);
-// *
-// * // reference obtained, do whatever you want with it...
-// * ...
-// * ...
-// *
-// * // once you don't need the reference, release it.
-// * // DO NOT CALL rrdDb.close() - files no longer in use are eventually closed by the pool
-// * pool.release(rrdDb);
-// * </pre>
-// *
-// * It's that simple. When the reference is requested for the first time, RrdDbPool will open the RRD file
-// * for you and make some internal note that the RRD file is used only once. When the reference
-// * to the same file (same RRD file path) is requested for the second time, the same RrdDb
-// * reference will be returned, and its usage count will be increased by one. When the
-// * reference is released its usage count will be decremented by one.<p>
-// *
-// * When the reference count drops to zero, RrdDbPool will not close the underlying
-// * RRD file immediatelly. Instead of it, it will be marked as 'eligible for closing'.
-// * If someone request the same RRD file again (before it gets closed), the same
-// * reference will be returned again.<p>
-// *
-// * RrdDbPool has a 'garbage collector' which runs in a separate, low-priority
-// * thread and gets activated only when the number of RRD files kept in the
-// * pool is too big (greater than number returned from {@link #getCapacity getCapacity()}).
-// * Only RRD files with a reference count equal to zero
-// * will be eligible for closing. Unreleased RrdDb references are never invalidated.
-// * RrdDbPool object keeps track of the time when each RRD file
-// * becomes eligible for closing so that the oldest RRD file gets closed first.<p>
-// *
-// * Initial RrdDbPool capacity is set to {@link #INITIAL_CAPACITY}. Use {@link #setCapacity(int)}
-// * method to change it at any time.<p>
-// *
-// * <b>WARNING:</b>Never use close() method on the reference returned from the pool.
-// * When the reference is no longer needed, return it to the pool with the
-// * {@link #release(RrdDb) release()} method.<p>
-// *
-// * However, you are not forced to use RrdDbPool methods to obtain RrdDb references
-// * to RRD files, 'ordinary' RrdDb constructors are still available. But RrdDbPool class
-// * offers serious performance improvement especially in complex applications with many
-// * threads and many simultaneously open RRD files.<p>
-// *
-// * The pool is thread-safe. Not that the {@link RrdDb} objects returned from the pool are
-// * also thread-safe<p>
-// *
-// * You should know that each operating system has its own internal limit on the number
-// * of simultaneously open files. The capacity of your RrdDbPool should be
-// * reasonably smaller than the limit imposed by your operating system.<p>
-// *
-// * <b>WARNING:</b> The pool cannot be used to manipulate RrdDb objects
-// * with {@link RrdBackend backends} different from default.<p>
-// */
-//public class RrdDbPool implements Runnable {
-//	static final String GC_THREAD_NAME = "RrdDbPool GC thread";
-//	static final String CLOSING_THREAD_NAME = "RrdDbPool closing thread";
-//	private static final boolean DEBUG = false;
-//
-//	// singleton pattern
-//	private static RrdDbPool ourInstance;
-//	private boolean closingOnExit = true;
-//
-//	private Thread shutdownHook = new Thread(CLOSING_THREAD_NAME) {
-//		public void run() {
-//			try {
-//				close();
-//			}
-//			catch (IOException e) {
-//				e.printStackTrace();
-//			}
-//		}
-//	};
-//
-//	/**
-//	 * Constant to represent the maximum number of internally open RRD files
-//	 * which still does not force garbage collector (the process which closes RRD files) to run.
-//	 */
-//	public static final int INITIAL_CAPACITY = 500;
-//	private int capacity = INITIAL_CAPACITY, maxUsedCapacity;
-//	private boolean active = true;
-//
-//	/**
-//	 * Constant to represent the internal behaviour of the pool.
-//	 * Defaults to <code>true</code> but can be changed at runtime. See
-//	 * {@link #setLimitedCapacity(boolean)} for more information.
-//	 */
-//	public static final boolean LIMITED_CAPACITY = false;
-//	private boolean limitedCapacity = LIMITED_CAPACITY;
-//
-//	/**
-//	 * Constant to represent the priority of the background thread which closes excessive RRD files
-//	 * which are no longer in use.
-//	 */
-//	public static final int GC_THREAD_PRIORITY = /** Thread.NORM_PRIORITY - */ 1;
-//
-//	private HashMap<String, RrdEntry> rrdMap = new HashMap<String, RrdEntry>(INITIAL_CAPACITY);
-//	private LinkedHashMap<String, RrdEntry> rrdIdleMap = new LinkedHashMap<String, RrdEntry>(INITIAL_CAPACITY);
-//	private RrdBackendFactory factory;
-//	private int poolHitsCount = 0, poolRequestsCount = 0;
-//
-//	/**
-//	 * Returns an instance to RrdDbPool object. Only one such object may exist in each JVM.
-//	 *
-//	 * @return Instance to RrdDbPool object.
-//	 */
-//	public synchronized static RrdDbPool getInstance() {
-//		if (ourInstance == null) {
-//			ourInstance = new RrdDbPool();
-//			ourInstance.startGarbageCollector();
-//		}
-//		return ourInstance;
-//	}
-//
-//	private RrdDbPool() {
-//		setClosingOnExit(closingOnExit);
-//	}
-//
-//	/**
-//	 * Checks the exiting behaviour of RrdDbPool.
-//	 * @return <code>True</code>, if all RRD files are to be closed
-//	 * when application invokes <code>System.exit()</code>.
-//	 * <code>False</code> otherwise. The default behaviour is <code>true</code>
-//	 * (all RRD files will be closed on exit).
-//	 */
-//	public synchronized boolean isClosingOnExit() {
-//		return closingOnExit;
-//	}
-//
-//	/**
-//	 * Sets the exiting behaviour of RrdDbPool.
-//	 * @param closingOnExit <code>True</code>, if all RRD files are to be closed
-//	 * when application invokes <code>System.exit()</code>.
-//	 * <code>False</code> otherwise. The default behaviour is <code>true</code>
-//	 * (all RRD files will be closed on exit).
-//	 */
-//	public synchronized void setClosingOnExit(boolean closingOnExit) {
-//		Runtime runtime = Runtime.getRuntime();
-//		runtime.removeShutdownHook(shutdownHook);
-//		if(closingOnExit) {
-//			runtime.addShutdownHook(shutdownHook);
-//		}
-//		this.closingOnExit = closingOnExit;
-//	}
-//
-//	private void startGarbageCollector() {
-//		Thread gcThread = new Thread(this, GC_THREAD_NAME);
-//		gcThread.setPriority(GC_THREAD_PRIORITY);
-//		gcThread.setDaemon(true);
-//		gcThread.start();
-//	}
-//
-//	/**
-//	 * Returns a reference to an existing RRD file with the specified path.
-//	 * If the file is already open in the pool, existing reference to it will be returned.
-//	 * Otherwise, the file is open and a newly created reference to it is returned.
-//	 *
-//	 * @param path Relative or absolute path to a RRD file.
-//	 * @return Reference to a RrdDb object (RRD file).
-//	 * @throws IOException  Thrown in case of I/O error.
-//	 * @throws RrdException Thrown in case of JRobin specific error.
-//	 */
-//	public synchronized RrdDb requestRrdDb(String path) throws IOException, RrdException {
-//		proveActive();
-//		poolRequestsCount++;
-//		String canonicalPath = getCanonicalPath(path);
-//		for(;;) {
-//			RrdEntry rrdEntry = rrdMap.get(canonicalPath);
-//			if (rrdEntry != null) {
-//				// already open, use it!
-//				reportUsage(canonicalPath, rrdEntry);
-//				poolHitsCount++;
-////				debug("CACHED: " + rrdEntry.dump());
-//				return rrdEntry.getRrdDb();
-//			}
-//			else if(!limitedCapacity || rrdMap.size() < capacity) {
-//				// not found, open it
-//				RrdDb rrdDb = createRrdDb(path, null);
-//				rrdEntry = new RrdEntry(rrdDb);
-//				addRrdEntry(canonicalPath, rrdEntry);
-////				debug("ADDED: " + rrdEntry.dump());
-//				return rrdDb;
-//			}
-//			else {
-//				// we have to wait
-//				try {
-//					wait();
-//				}
-//				catch (InterruptedException e) {
-//					throw new RrdException("Request for file '" + path + "' was interrupted");
-//				}
-//			}
-//		}
-//	}
-//
-//	/**
-//	 * Returns a reference to a new RRD file. The new file will have the specified
-//	 * relative or absolute path, and its contents will be provided from the specified
-//	 * XML file (RRDTool comaptible).
-//	 *
-//	 * @param path    Relative or absolute path to a new RRD file.
-//	 * @param xmlPath Relative or absolute path to an existing XML dump file (RRDTool comaptible)
-//	 * @return Reference to a RrdDb object (RRD file).
-//	 * @throws IOException  Thrown in case of I/O error.
-//	 * @throws RrdException Thrown in case of JRobin specific error.
-//	 */
-//	public synchronized RrdDb requestRrdDb(String path, String xmlPath)
-//			throws IOException, RrdException {
-//		return requestNewRrdDb(path, xmlPath);
-//	}
-//
-//	/**
-//	 * Returns a reference to a new RRD file. The new file will be created based on the
-//	 * definition contained in a RrdDef object.
-//	 *
-//	 * @param rrdDef RRD definition object
-//	 * @return Reference to a RrdDb object (RRD file).
-//	 * @throws IOException  Thrown in case of I/O error.
-//	 * @throws RrdException Thrown in case of JRobin specific error.
-//	 */
-//	public synchronized RrdDb requestRrdDb(RrdDef rrdDef) throws IOException, RrdException {
-//		return requestNewRrdDb(rrdDef.getPath(), rrdDef);
-//	}
-//
-//	private RrdDb requestNewRrdDb(String path, Object creationDef) throws IOException, RrdException {
-//		proveActive();
-//		poolRequestsCount++;
-//		String canonicalPath = getCanonicalPath(path);
-//		for(;;) {
-//			RrdEntry rrdEntry = rrdMap.get(canonicalPath);
-//			if(rrdEntry != null) {
-//				// already open
-//				removeIfIdle(canonicalPath, rrdEntry);
-//			}
-//			else if(!limitedCapacity || rrdMap.size() < capacity) {
-//				RrdDb rrdDb = createRrdDb(path, creationDef);
-//				RrdEntry newRrdEntry = new RrdEntry(rrdDb);
-//				addRrdEntry(canonicalPath, newRrdEntry);
-////				debug("ADDED: " + newRrdEntry.dump());
-//				return rrdDb;
-//			}
-//			else {
-//				 // we have to wait
-//				try {
-//					wait();
-//				}
-//				catch (InterruptedException e) {
-//					throw new RrdException("Request for file '" + path + "' was interrupted");
-//				}
-//			}
-//		}
-//	}
-//
-//	private RrdDb createRrdDb(String path, Object creationDef) throws RrdException, IOException {
-//		if(creationDef == null) {
-//			// existing RRD
-//			return new RrdDb(path, getFactory());
-//		}
-//		else if(creationDef instanceof String) {
-//			// XML input
-//			return new RrdDb(path, (String) creationDef, getFactory());
-//		}
-//		else if(creationDef instanceof RrdDef) {
-//			// RrdDef
-//			return new RrdDb((RrdDef) creationDef, getFactory());
-//		}
-//		else {
-//			throw new RrdException("Unexpected input object type: " +
-//				creationDef.getClass().getName());
-//		}
-//	}
-//
-//	private void reportUsage(String canonicalPath, RrdEntry rrdEntry) {
-//		if (rrdEntry.reportUsage() == 1) {
-//			// must not be garbage collected
-//			rrdIdleMap.remove(canonicalPath);
-//		}
-//	}
-//
-//	private void reportRelease(String canonicalPath, RrdEntry rrdEntry) {
-//		if (rrdEntry.reportRelease() == 0) {
-//			// ready to be garbage collected
-//			rrdIdleMap.put(canonicalPath, rrdEntry);
-//		}
-//	}
-//
-//	private void addRrdEntry(String canonicalPath, RrdEntry newRrdEntry) {
-//		rrdMap.put(canonicalPath, newRrdEntry);
-//		maxUsedCapacity = Math.max(rrdMap.size(), maxUsedCapacity);
-//		// notify waiting threads
-//		notifyAll();
-//	}
-//
-//	private void removeIfIdle(String canonicalPath, RrdEntry rrdEntry)
-//			throws RrdException, IOException {
-//		// already open, check if active (not released)
-//		if (rrdEntry.isInUse()) {
-//			// not released, not allowed here
-//			throw new RrdException("Cannot create new RrdDb file: " +
-//					"File '" + canonicalPath + "' already in use");
-//		} else {
-//			// open but released... safe to close it
-////			debug("WILL BE RECREATED: " + rrdEntry.dump());
-//			removeRrdEntry(canonicalPath, rrdEntry);
-//		}
-//	}
-//
-//	private void removeRrdEntry(String canonicalPath, RrdEntry rrdEntry) throws IOException {
-//		rrdEntry.closeRrdDb();
-//		rrdMap.remove(canonicalPath);
-//		rrdIdleMap.remove(canonicalPath);
-////		debug("REMOVED: " + rrdEntry.dump());
-//	}
-//
-//	/**
-//	 * Method used to report that the reference to a RRD file is no longer needed. File that
-//	 * is no longer needed (all references to it are released) is marked 'eligible for
-//	 * closing'. It will be eventually closed by the pool when the number of open RRD files
-//	 * becomes too big. Most recently released files will be closed last.
-//	 *
-//	 * @param rrdDb Reference to RRD file that is no longer needed.
-//	 * @throws IOException  Thrown in case of I/O error.
-//	 * @throws RrdException Thrown in case of JRobin specific error.
-//	 */
-//	public synchronized void release(RrdDb rrdDb) throws IOException, RrdException {
-//		proveActive();
-//		if (rrdDb == null) {
-//			// we don't want NullPointerException
-//			return;
-//		}
-//		if (rrdDb.isClosed()) {
-//			throw new RrdException("File " + rrdDb.getPath() + " already closed");
-//		}
-//		String canonicalPath = getCanonicalPath(rrdDb.getPath());
-//		if (rrdMap.containsKey(canonicalPath)) {
-//			RrdEntry rrdEntry = rrdMap.get(canonicalPath);
-//			reportRelease(canonicalPath, rrdEntry);
-////			debug("RELEASED: " + rrdEntry.dump());
-//		} else {
-//			throw new RrdException("RRD file " + rrdDb.getPath() + " not in the pool");
-//		}
-//		// notify waiting threads
-//		notifyAll();
-//	}
-//
-//	/**
-//	 * This method runs garbage collector in a separate thread. If the number of
-//	 * open RRD files kept in the pool is too big (greater than number
-//	 * returned from {@link #getCapacity getCapacity()}), garbage collector will try
-//	 * to close and remove RRD files with a reference count equal to zero.
-//	 * Never call this method directly.
-//	 */
-//	public void run() {
-////		debug("GC: started");
-//		while (active) {
-//			synchronized (this) {
-//				if (rrdMap.size() >= capacity && rrdIdleMap.size() > 0) {
-//					try {
-//						String canonicalPath = rrdIdleMap.keySet().iterator().next();
-//						RrdEntry rrdEntry = rrdIdleMap.get(canonicalPath);
-////						debug("GC: closing " + rrdEntry.dump());
-//						removeRrdEntry(canonicalPath, rrdEntry);
-//					} catch (IOException e) {
-//						e.printStackTrace();
-//					}
-//					notifyAll();
-//				}
-//				else {
-//					try {
-////						debug("GC: waiting");
-//						wait();
-////						debug("GC: running");
-//					} catch (InterruptedException e) {
-//						e.printStackTrace();
-//					}
-//				}
-//			}
-//		}
-//	}
-//
-//	protected void finalize() throws IOException {
-//		close();
-//	}
-//
-//	/**
-//	 * Clears the internal state of the pool entirely. All open RRD files are closed.
-//	 *
-//	 * @throws IOException Thrown in case of I/O related error.
-//	 */
-//	public synchronized void reset() throws IOException {
-//		Iterator<RrdEntry> it = rrdMap.values().iterator();
-//		while (it.hasNext()) {
-//			RrdEntry rrdEntry = it.next();
-//			rrdEntry.closeRrdDb();
-//		}
-//		rrdMap.clear();
-//		rrdIdleMap.clear();
-////		debug("Pool cleared");
-//	}
-//
-//	/**
-//	 * Closes the pool and all RRD files currently held in the pool.
-//	 * No further operations on the pool are allowed.
-//	 * @throws IOException Thrown in case of I/O error.
-//	 */
-//	public synchronized void close() throws IOException {
-//		if(active) {
-//			active = false;
-//			reset();
-////			debug("The pool is closed.");
-//		}
-//		else {
-////			debug("The pool is already closed!");
-//		}
-//	}
-//
-//	private static String getCanonicalPath(String path) throws IOException {
-//		return Util.getCanonicalPath(path);
-//	}
-//
-//	static void debug(String msg) {
-//		if (DEBUG) {
-//			System.out.println("POOL: " + msg);
-//		}
-//	}
-//
-//	/**
-//	 * Returns the internal state of the pool. Useful for debugging purposes.
-//	 *
-//	 * @param dumpFiles <code>true</code>, if dumped information should contain paths to open files
-//	 * currently held in the pool, <code>false</code> otherwise
-//	 * @return Internal pool state (with an optional list of open RRD files and
-//	 * the current number of usages for each one).
-//	 * @throws IOException Thrown in case of I/O error.
-//	 */
-//	public synchronized String dump(boolean dumpFiles) throws IOException {
-//		StringBuffer buff = new StringBuffer();
-//		buff.append("==== POOL DUMP ===========================\n");
-//		buff.append("open=" + rrdMap.size() + ", idle=" + rrdIdleMap.size() + "\n");
-//		buff.append("capacity=" + capacity + ", " + "maxUsedCapacity=" + maxUsedCapacity + "\n");
-//		buff.append("hits=" + poolHitsCount + ", " + "requests=" + poolRequestsCount + "\n");
-//		buff.append("efficiency=" + getPoolEfficiency() + "\n");
-//		if(dumpFiles) {
-//			buff.append("---- CACHED FILES ------------------------\n");
-//			Iterator<RrdEntry> it = rrdMap.values().iterator();
-//			while (it.hasNext()) {
-//				RrdEntry rrdEntry = it.next();
-//				buff.append(rrdEntry.dump() + "\n");
-//			}
-//		}
-//		return buff.toString();
-//	}
-//
-//	/**
-//	 * Returns the complete internal state of the pool. Useful for debugging purposes.
-//	 *
-//	 * @return Internal pool state (with a list of open RRD files and the current number of
-//	 * usages for each one).
-//	 * @throws IOException Thrown in case of I/O error.
-//	 */
-//	public synchronized String dump() throws IOException {
-//		return dump(true);
-//	}
-//
-//	/**
-//	 * Returns paths to all open files currently held in the pool.
-//	 * @return An array containing open file paths.
-//	 */
-//	public synchronized String[] getCachedFilePaths() {
-//		Set<String> keySet = rrdMap.keySet();
-//		int n = keySet.size(), i = 0;
-//		String[] files = new String[n];
-//		Iterator<String> it = keySet.iterator();
-//		while(it.hasNext()) {
-//			files[i++] = it.next();
-//		}
-//		return files;
-//	}
-//
-//	/**
-//	 * Returns maximum number of internally open RRD files
-//	 * which still does not force garbage collector to run.
-//	 *
-//	 * @return Desired nuber of open files held in the pool.
-//	 */
-//	public synchronized int getCapacity() {
-//		return capacity;
-//	}
-//
-//	/**
-//	 * Sets maximum number of internally open RRD files
-//	 * which still does not force garbage collector to run.
-//	 *
-//	 * @param capacity Desired number of open files to hold in the pool
-//	 */
-//	public synchronized void setCapacity(int capacity) {
-//		this.capacity = capacity;
-////		debug("Capacity set to: " + capacity);
-//	}
-//
-//	private RrdBackendFactory getFactory() throws RrdException {
-//		if (factory == null) {
-//			factory = RrdBackendFactory.getDefaultFactory();
-//			if (!(factory instanceof RrdFileBackendFactory)) {
-//				factory = null;
-//				throw new RrdException(
-//					"RrdDbPool cannot work with factories not derived from RrdFileBackendFactory");
-//			}
-//		}
-//		return factory;
-//	}
-//
-//	private class RrdEntry {
-//		private RrdDb rrdDb;
-//		private int usageCount = 1;
-//
-//		public RrdEntry(RrdDb rrdDb) {
-//			this.rrdDb = rrdDb;
-//		}
-//
-//		RrdDb getRrdDb() {
-//			return rrdDb;
-//		}
-//
-//		int reportUsage() {
-//			assert usageCount >= 0: "Unexpected reportUsage count: " + usageCount;
-//			return ++usageCount;
-//		}
-//
-//		int reportRelease() {
-//			assert usageCount > 0: "Unexpected reportRelease count: " + usageCount;
-//			return --usageCount;
-//		}
-//
-//		boolean isInUse() {
-//			return usageCount > 0;
-//		}
-//
-//		void closeRrdDb() throws IOException {
-//			rrdDb.close();
-//		}
-//
-//		String dump() throws IOException {
-//			String canonicalPath = getCanonicalPath(rrdDb.getPath());
-//			return canonicalPath + " [" + usageCount + "]";
-//		}
-//	}
-//
-//	/**
-//	 * Calculates pool's efficency ratio. The ratio is obtained by dividing the number of
-//	 * RrdDb requests served from the internal pool of open RRD files
-//	 * with the number of total RrdDb requests.
-//	 *
-//	 * @return Pool's efficiency ratio as a double between 1 (best) and 0 (worst).
-//	 * If no RrdDb reference was ever requested, 1 would be returned.
-//	 */
-//	public synchronized double getPoolEfficiency() {
-//		if (poolRequestsCount == 0) {
-//			return 1.0;
-//		}
-//		double ratio = (double) poolHitsCount / (double) poolRequestsCount;
-//		// round to 3 decimal digits
-//		return Math.round(ratio * 1000.0) / 1000.0;
-//	}
-//
-//	/**
-//	 * Returns the number of RRD requests served from the internal pool of open RRD files
-//	 *
-//	 * @return The number of pool "hits".
-//	 */
-//	public synchronized int getPoolHitsCount() {
-//		return poolHitsCount;
-//	}
-//
-//	/**
-//	 * Returns the total number of RRD requests successfully served by this pool.
-//	 *
-//	 * @return Total number of RRD requests
-//	 */
-//	public synchronized int getPoolRequestsCount() {
-//		return poolRequestsCount;
-//	}
-//
-//	/**
-//	 * Returns the maximum number of open RRD files over the lifetime
-//	 * of the pool.
-//	 * @return maximum number of open RRD files.
-//	 */
-//	public synchronized int getMaxUsedCapacity() {
-//		return maxUsedCapacity;
-//	}
-//
-//	/**
-//	 * Checks the internal behaviour of the pool. See {@link #setLimitedCapacity(boolean)} for
-//	 * more information.
-//	 *
-//	 * @return <code>true</code> if the pool is 'flexible' (by not imposing the strict
-//	 * limit on the number of simultaneously open files), <code>false</code> otherwise.
-//	 */
-//	public synchronized boolean isLimitedCapacity() {
-//		return limitedCapacity;
-//	}
-//
-//	/**
-//	 * Sets the behaviour of the pool. If <code>true</code> is passed as argument, the pool will never
-//	 * open more than {@link #getCapacity()} files at any time. If set to <code>false</code>,
-//	 * the pool might keep more open files, but only for a short period of time. This method might be
-//	 * useful if you want avoid OS limits when it comes to the number of simultaneously open files.<p>
-//	 *
-//	 * By default, the pool behaviour is 'flexible' (<code>limitedCapacity</code> property defaults
-//	 * to false<p>
-//	 *
-//	 * @param limitedCapacity <code>true</code> if the pool should be 'flexible' (not imposing the strict
-//	 * limit on the number of simultaneously open files), <code>false</code> otherwise.
-//	 */
-//	public synchronized void setLimitedCapacity(boolean limitedCapacity) {
-//		this.limitedCapacity = limitedCapacity;
-//	}
-//
-//	private void proveActive() throws IOException {
-//		if(!active) {
-//			throw new IOException("RrdDbPool is already closed");
-//		}
-//	}
-//
-//	/**
-//	 * Checks if the pool is active. You can request RrdDb references only from the active pool. The
-//	 * pool is deactived when the {@link #close()} method is called.
-//	 * @return <code>true</code> if active, <code>false</code> otherwise.
-//	 */
-//	public synchronized boolean isActive() {
-//		return active;
-//	}
-//}
-//
+	/**
+	 * Fair semaphore holding one permit per RRD file which may be opened, with support
+	 * for capacity reduction.
+	 */
+	private final static class CapacitySemaphore extends Semaphore {
+		private static final long serialVersionUID = 1L;
+
+		CapacitySemaphore(final int permits) {
+			super(permits, true);
+		}
+
+		void reduce(final int reduction) {
+			reducePermits(reduction);
+		}
+	}
+}
@@ -585,7 +585,7 @@ public class RrdDef {
 	static long calculateSize(final int dsCount, final int arcCount, final int rowsCount) {
 		return (24L + 48L * dsCount + 16L * arcCount +
 				20L * dsCount * arcCount + 8L * dsCount * rowsCount) +
-				(1L + 2L * dsCount + arcCount) * 2L * RrdPrimitive.STRING_LENGTH;
+				(1L + 2L * dsCount + arcCount) * 2L * RrdLayout.STRING_LENGTH;
 	}
 
 	/**
@@ -21,12 +21,14 @@ package org.jrobin.core;
 
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 
 /**
  * JRobin backend which is used to store RRD data to ordinary files on the disk. This was the
  * default factory before 1.4.0 version.
  * <p>
- * This backend is based on the RandomAccessFile class (java.io.* package).
+ * This backend is based on the RandomAccessFile class (java.io.* package). Reads and writes
+ * are serialized on the backend, as they move the position of the file.
  */
 public class RrdFileBackend extends RrdBackend {
 	/**
@@ -34,6 +36,12 @@ public class RrdFileBackend extends RrdBackend {
 	 */
 	protected RandomAccessFile file;
 
+	/**
+	 * scratch buffers reused by single value reads and writes
+	 */
+	private final ByteBuffer m_intBuffer = ByteBuffer.allocate(4);
+	private final ByteBuffer m_longBuffer = ByteBuffer.allocate(8);
+
 	/**
 	 * Creates RrdFileBackend object for the given file path, backed by RandomAccessFile object.
 	 *
@@ -83,7 +91,7 @@ public class RrdFileBackend extends RrdBackend {
 	 * @param b	  Bytes to be written.
 	 * @throws IOException Thrown in case of I/O error
 	 */
-	protected void write(long offset, byte[] b) throws IOException {
+	protected synchronized void write(long offset, byte[] b) throws IOException {
 		file.seek(offset);
 		file.write(b);
 	}
@@ -95,13 +103,61 @@ public class RrdFileBackend extends RrdBackend {
 	 * @param b	  Buffer which receives bytes read from the file.
 	 * @throws IOException Thrown in case of I/O error.
 	 */
-	protected void read(long offset, byte[] b) throws IOException {
+	protected synchronized void read(long offset, byte[] b) throws IOException {
 		file.seek(offset);
 		if (file.read(b) != b.length) {
 			throw new IOException("Not enough bytes available in file " + getPath());
 		}
 	}
 
+	protected synchronized void putInt(final long offset, final int value) throws IOException {
+		m_intBuffer.putInt(0, value);
+		write(offset, m_intBuffer.array());
+	}
+
+	protected synchronized void putLong(final long offset, final long value) throws IOException {
+		m_longBuffer.putLong(0, value);
+		write(offset, m_longBuffer.array());
+	}
+
+	protected synchronized void putDouble(final long offset, final double value) throws IOException {
+		m_longBuffer.putLong(0, Double.doubleToLongBits(value));
+		write(offset, m_longBuffer.array());
+	}
+
+	protected synchronized int getInt(final long offset) throws IOException {
+		read(offset, m_intBuffer.array());
+		return m_intBuffer.getInt(0);
+	}
+
+	protected synchronized long getLong(final long offset) throws IOException {
+		read(offset, m_longBuffer.array());
+		return m_longBuffer.getLong(0);
+	}
+
+	protected synchronized double getDouble(final long offset) throws IOException {
+		read(offset, m_longBuffer.array());
+		return m_longBuffer.getDouble(0);
+	}
+
+	/**
+	 * Writes data cached in memory but not yet stored in the file to the file. Backends which
+	 * cache data register with a {@link SyncManager} which calls this method periodically.
+	 * This implementation does nothing, all writes go directly to the file.
+	 */
+	protected void sync() {
+	}
+
+	/**
+	 * Each read positions the file and reads while holding the lock of this backend, so several
+	 * threads may read at once.
+	 *
+	 * @return Always returns <code>true</code>
+	 */
+	protected boolean isConcurrentReadAllowed() {
+		return true;
+	}
+
 	/**
 	 * Returns RRD file length.
 	 *
@@ -165,7 +165,7 @@ public class RrdJRobin14FileBackend extends RrdBackend {
 	 * @param b      Bytes to be written.
 	 * @throws IOException Thrown in case of I/O error
 	 */
-	protected void write(final long offset, final byte[] b) throws IOException {
+	protected synchronized void write(final long offset, final byte[] b) throws IOException {
 		m_file.seek(offset);
 		m_file.write(b);
 	}
@@ -177,13 +177,23 @@ public class RrdJRobin14FileBackend extends RrdBackend {
 	 * @param b      Buffer which receives bytes read from the file.
 	 * @throws IOException Thrown in case of I/O error.
 	 */
-	protected void read(final long offset, final byte[] b) throws IOException {
+	protected synchronized void read(final long offset, final byte[] b) throws IOException {
 		m_file.seek(offset);
 		if (m_file.read(b) != b.length) {
 			throw new IOException("Not enough bytes available in file " + getPath());
 		}
 	}
 
+	/**
+	 * Reads position the file and read while holding the lock of this backend, so several
+	 * threads may read at once.
+	 *
+	 * @return Always returns <code>true</code>
+	 */
+	protected boolean isConcurrentReadAllowed() {
+		return true;
+	}
+
 	/**
 	 * Returns RRD file length.
 	 *
@@ -66,6 +66,17 @@ public class RrdJRobin14FileBackendFactory extends RrdBackendFactory {
 		return Util.fileExists(path);
 	}
 
+	/**
+	 * Returns the canonical path to the file on the disk.
+	 *
+	 * @param path File path
+	 * @return Canonical file path
+	 * @throws IOException Thrown in case of I/O error.
+	 */
+	protected String getCanonicalPath(final String path) throws IOException {
+		return Util.getCanonicalPath(path);
+	}
+
 	/**
 	 * Returns the name of this factory.
 	 *
@@ -0,0 +1,130 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The OpenNMS Group, Inc.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *******************************************************************************/
+package org.jrobin.core;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Describes how the primitives of a part of an RRD are stored: their types, their offsets from
+ * the start of the part, and which of them are constants. Parts of the same kind share one
+ * immutable layout, so offsets are calculated once instead of once per open RRD.
+ * <p>
+ * A layout may end with a group of primitives repeated for each datasource, each group followed
+ * by a number of bytes which are not cached, as archive states and robins are.
+ */
+final class RrdLayout {
+	static final int STRING_LENGTH = 20;
+	static final int RRD_INT = 0, RRD_LONG = 1, RRD_DOUBLE = 2, RRD_STRING = 3;
+	static final int[] RRD_PRIM_SIZES = {4, 8, 8, 2 * STRING_LENGTH};
+
+	// archive layouts by datasource count and number of rows
+	private static final int MAX_CACHED_LAYOUTS = 1000;
+	private static final ConcurrentMap<Long, RrdLayout> archiveLayouts = new ConcurrentHashMap<Long, RrdLayout>();
+
+	private final int[] types;
+	private final long[] offsets;
+	private final boolean[] constants;
+	// index of each string primitive in the cache of strings, -1 for other primitives
+	private final int[] stringSlots;
+	private final int stringCount;
+	private final long length;
+
+	RrdLayout(int[] types, int... constantIndexes) {
+		this(types, constantIndexes, new int[0], 0, 0);
+	}
+
+	RrdLayout(int[] types, int[] constantIndexes, int[] groupTypes, long groupPadding, int groupCount) {
+		int count = types.length + groupTypes.length * groupCount;
+		this.types = new int[count];
+		this.offsets = new long[count];
+		this.constants = new boolean[count];
+		this.stringSlots = new int[count];
+		long offset = 0;
+		int strings = 0;
+		for (int i = 0; i < count; i++) {
+			boolean inGroup = i >= types.length;
+			int type = inGroup ? groupTypes[(i - types.length) % groupTypes.length] : types[i];
+			this.types[i] = type;
+			this.offsets[i] = offset;
+			this.stringSlots[i] = type == RRD_STRING ? strings++ : -1;
+			offset += RRD_PRIM_SIZES[type];
+			if (inGroup && (i - types.length) % groupTypes.length == groupTypes.length - 1) {
+				offset += groupPadding;
+			}
+		}
+		for (int i : constantIndexes) {
+			constants[i] = true;
+		}
+		this.stringCount = strings;
+		this.length = offset;
+	}
+
+	/**
+	 * Returns the shared layout of archives with the given number of rows in RRDs with the given
+	 * number of datasources: the archive definition followed by the state and the robin of each
+	 * datasource.
+	 */
+	static RrdLayout getArchiveLayout(int dsCount, int rows) {
+		Long key = ((long) dsCount << 32) | rows;
+		RrdLayout layout = archiveLayouts.get(key);
+		if (layout == null) {
+			if (archiveLayouts.size() >= MAX_CACHED_LAYOUTS) {
+				archiveLayouts.clear();
+			}
+			layout = new RrdLayout(Archive.DEFINITION_TYPES, Archive.DEFINITION_CONSTANTS,
+					Archive.DATASOURCE_TYPES, rows * (long) RRD_PRIM_SIZES[RRD_DOUBLE], dsCount);
+			RrdLayout existing = archiveLayouts.putIfAbsent(key, layout);
+			if (existing != null) {
+				layout = existing;
+			}
+		}
+		return layout;
+	}
+
+	int getCount() {
+		return types.length;
+	}
+
+	int getType(int index) {
+		return types[index];
+	}
+
+	long getOffset(int index) {
+		return offsets[index];
+	}
+
+	boolean isConstant(int index) {
+		return constants[index];
+	}
+
+	int getStringSlot(int index) {
+		return stringSlots[index];
+	}
+
+	int getStringCount() {
+		return stringCount;
+	}
+
+	/**
+	 * Returns the number of bytes of the part, including uncached bytes of groups.
+	 */
+	long getLength() {
+		return length;
+	}
+}
@@ -20,6 +20,7 @@
 package org.jrobin.core;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
@@ -33,6 +34,7 @@ public class RrdMemoryBackend extends RrdBackend {
 	private static final Lock m_writeLock = m_readWritelock.writeLock();
 
 	private byte[] buffer = new byte[0];
+	private ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
 
 	protected RrdMemoryBackend(String path) {
 		super(path);
@@ -41,10 +43,7 @@ public class RrdMemoryBackend extends RrdBackend {
 	protected void write(final long offset, final byte[] b) {
 		m_writeLock.lock();
 		try {
-		    int pos = (int) offset;
-			for (final byte singleByte : b) {
-				buffer[pos++] = singleByte;
-			}
+			System.arraycopy(b, 0, buffer, (int) offset, b.length);
 		} finally {
 			m_writeLock.unlock();
 		}
@@ -53,11 +52,9 @@ public class RrdMemoryBackend extends RrdBackend {
 	protected void read(final long offset, final byte[] b) throws IOException {
 		m_readLock.lock();
 		try {
-			int pos = (int) offset;
+			final int pos = (int) offset;
 			if (pos + b.length <= buffer.length) {
-				for (int i = 0; i < b.length; i++) {
-					b[i] = buffer[pos++];
-				}
+				System.arraycopy(buffer, pos, b, 0, b.length);
 			}
 			else {
 				throw new IOException("Not enough bytes available in memory " + getPath());
@@ -67,6 +64,102 @@ public class RrdMemoryBackend extends RrdBackend {
 		}
 	}
 
+	protected void putInt(final long offset, final int value) {
+		m_writeLock.lock();
+		try {
+			byteBuffer.putInt((int) offset, value);
+		} finally {
+			m_writeLock.unlock();
+		}
+	}
+
+	protected void putLong(final long offset, final long value) {
+		m_writeLock.lock();
+		try {
+			byteBuffer.putLong((int) offset, value);
+		} finally {
+			m_writeLock.unlock();
+		}
+	}
+
+	protected void putDouble(final long offset, final double value) {
+		m_writeLock.lock();
+		try {
+			byteBuffer.putLong((int) offset, Double.doubleToLongBits(value));
+		} finally {
+			m_writeLock.unlock();
+		}
+	}
+
+	protected void putDouble(final long offset, final double value, final int count) {
+		m_writeLock.lock();
+		try {
+			final long bits = Double.doubleToLongBits(value);
+			for (int i = 0, pos = (int) offset; i < count; i++, pos += 8) {
+				byteBuffer.putLong(pos, bits);
+			}
+		} finally {
+			m_writeLock.unlock();
+		}
+	}
+
+	protected void putDouble(final long offset, final double[] values) {
+		m_writeLock.lock();
+		try {
+			for (int i = 0, pos = (int) offset; i < values.length; i++, pos += 8) {
+				byteBuffer.putLong(pos, Double.doubleToLongBits(values[i]));
+			}
+		} finally {
+			m_writeLock.unlock();
+		}
+	}
+
+	protected int getInt(final long offset) throws IOException {
+		m_readLock.lock();
+		try {
+			return byteBuffer.getInt(checkIndex(offset, 4));
+		} finally {
+			m_readLock.unlock();
+		}
+	}
+
+	protected long getLong(final long offset) throws IOException {
+		m_readLock.lock();
+		try {
+			return byteBuffer.getLong(checkIndex(offset, 8));
+		} finally {
+			m_readLock.unlock();
+		}
+	}
+
+	protected double getDouble(final long offset) throws IOException {
+		m_readLock.lock();
+		try {
+			return byteBuffer.getDouble(checkIndex(offset, 8));
+		} finally {
+			m_readLock.unlock();
+		}
+	}
+
+	protected void getDouble(final long offset, final double[] values) throws IOException {
+		m_readLock.lock();
+		try {
+			int pos = checkIndex(offset, 8 * values.length);
+			for (int i = 0; i < values.length; i++, pos += 8) {
+				values[i] = byteBuffer.getDouble(pos);
+			}
+		} finally {
+			m_readLock.unlock();
+		}
+	}
+
+	private int checkIndex(final long offset, final int length) throws IOException {
+		if (offset + length > buffer.length) {
+			throw new IOException("Not enough bytes available in memory " + getPath());
+		}
+		return (int) offset;
+	}
+
 	/**
 	 * Returns the number of RRD bytes held in memory.
 	 *
@@ -94,6 +187,7 @@ public class RrdMemoryBackend extends RrdBackend {
 				throw new IOException("Cannot create this big memory backed RRD");
 			}
 			buffer = new byte[(int) newLength];
+			byteBuffer = ByteBuffer.wrap(buffer);
 		} finally {
 			m_writeLock.unlock();
 		}
@@ -116,4 +210,13 @@ public class RrdMemoryBackend extends RrdBackend {
 	protected boolean isCachingAllowed() {
 		return false;
 	}
+
+	/**
+	 * Reads only take the shared read lock, so several threads may read at once.
+	 *
+	 * @return Always returns <code>true</code>
+	 */
+	protected boolean isConcurrentReadAllowed() {
+		return true;
+	}
 }
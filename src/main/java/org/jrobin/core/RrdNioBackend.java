@@ -20,8 +20,14 @@
 package org.jrobin.core;
 
 import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 
 import sun.nio.ch.DirectBuffer;
@@ -33,9 +39,27 @@ import sun.nio.ch.DirectBuffer;
  */
 @SuppressWarnings("restriction")
 public class RrdNioBackend extends RrdFileBackend {
+    /**
+     * Granularity of dirty region tracking, in bytes.
+     */
+    static final int PAGE_SIZE = 4096;
+
+    // MappedByteBuffer.force(int, int) is only available on newer JVMs
+    private static final Method FORCE_RANGE = findForceRange();
+
     private final SyncManager m_syncManager;
     private MappedByteBuffer m_byteBuffer = null;
 
+    // readers and writers share the read lock and use absolute positions (or duplicated
+    // views) of the mapping; the write lock is only taken to map and unmap the file
+    private final ReadWriteLock m_mappingLock = new ReentrantReadWriteLock();
+
+    // pages written since the last sync, one bit per page
+    private volatile AtomicLongArray m_dirtyPages = new AtomicLongArray(0);
+    private long m_syncCount = 0;
+    private long m_lastSyncDuration = 0;
+    private long m_totalSyncDuration = 0;
+
     /**
      * Creates RrdFileBackend object for the given file path, backed by
      * java.nio.* classes.  This constructor will create a
@@ -98,6 +122,7 @@ public class RrdNioBackend extends RrdFileBackend {
             final FileChannel.MapMode mapMode = isReadOnly() ? FileChannel.MapMode.READ_ONLY : FileChannel.MapMode.READ_WRITE;
             m_byteBuffer = file.getChannel().map(mapMode, 0, length);
         }
+        m_dirtyPages = new AtomicLongArray((int) ((length + PAGE_SIZE - 1) / PAGE_SIZE + 63) / 64);
     }
 
     private void unmapFile() {
@@ -118,7 +143,7 @@ public class RrdNioBackend extends RrdFileBackend {
         }
     }
 
-    private synchronized void stopSchedule() {
+    private void stopSchedule() {
         if (m_syncManager != null) {
             m_syncManager.remove(this);
         }
@@ -140,10 +165,15 @@ public class RrdNioBackend extends RrdFileBackend {
      * @throws IOException
      *             Thrown in case of I/O error.
      */
-    protected synchronized void setLength(final long newLength) throws IOException {
-        unmapFile();
-        super.setLength(newLength);
-        mapFile();
+    protected void setLength(final long newLength) throws IOException {
+        m_mappingLock.writeLock().lock();
+        try {
+            unmapFile();
+            super.setLength(newLength);
+            mapFile();
+        } finally {
+            m_mappingLock.writeLock().unlock();
+        }
     }
 
     /**
@@ -154,12 +184,15 @@ public class RrdNioBackend extends RrdFileBackend {
      * @param b
      *            Bytes to be written.
      */
-    protected synchronized void write(final long offset, final byte[] b) throws IOException {
-        if (m_byteBuffer != null) {
-            m_byteBuffer.position((int) offset);
-            m_byteBuffer.put(b);
-        } else {
-            throw new IOException("Write failed, file " + getPath() + " not mapped for I/O");
+    protected void write(final long offset, final byte[] b) throws IOException {
+        m_mappingLock.readLock().lock();
+        try {
+            final ByteBuffer view = mappedBuffer("Write").duplicate();
+            view.position((int) offset);
+            view.put(b);
+            markDirty(offset, b.length);
+        } finally {
+            m_mappingLock.readLock().unlock();
         }
     }
 
@@ -171,37 +204,274 @@ public class RrdNioBackend extends RrdFileBackend {
      * @param b
      *            Buffer which receives bytes read from the file.
      */
-    protected synchronized void read(final long offset, final byte[] b) throws IOException {
-        if (m_byteBuffer != null) {
-            m_byteBuffer.position((int) offset);
-            m_byteBuffer.get(b);
-        } else {
-            throw new IOException("Read failed, file " + getPath() + " not mapped for I/O");
+    protected void read(final long offset, final byte[] b) throws IOException {
+        m_mappingLock.readLock().lock();
+        try {
+            final ByteBuffer view = mappedBuffer("Read").duplicate();
+            view.position((int) offset);
+            view.get(b);
+        } finally {
+            m_mappingLock.readLock().unlock();
+        }
+    }
+
+    protected void putInt(final long offset, final int value) throws IOException {
+        m_mappingLock.readLock().lock();
+        try {
+            mappedBuffer("Write").putInt((int) offset, value);
+            markDirty(offset, 4);
+        } finally {
+            m_mappingLock.readLock().unlock();
+        }
+    }
+
+    protected void putLong(final long offset, final long value) throws IOException {
+        m_mappingLock.readLock().lock();
+        try {
+            mappedBuffer("Write").putLong((int) offset, value);
+            markDirty(offset, 8);
+        } finally {
+            m_mappingLock.readLock().unlock();
+        }
+    }
+
+    protected void putDouble(final long offset, final double value) throws IOException {
+        m_mappingLock.readLock().lock();
+        try {
+            mappedBuffer("Write").putLong((int) offset, Double.doubleToLongBits(value));
+            markDirty(offset, 8);
+        } finally {
+            m_mappingLock.readLock().unlock();
+        }
+    }
+
+    protected void putDouble(final long offset, final double value, final int count) throws IOException {
+        m_mappingLock.readLock().lock();
+        try {
+            final MappedByteBuffer byteBuffer = mappedBuffer("Write");
+            final long bits = Double.doubleToLongBits(value);
+            for (int i = 0, pos = (int) offset; i < count; i++, pos += 8) {
+                byteBuffer.putLong(pos, bits);
+            }
+            markDirty(offset, 8 * count);
+        } finally {
+            m_mappingLock.readLock().unlock();
+        }
+    }
+
+    protected void putDouble(final long offset, final double[] values) throws IOException {
+        m_mappingLock.readLock().lock();
+        try {
+            final MappedByteBuffer byteBuffer = mappedBuffer("Write");
+            for (int i = 0, pos = (int) offset; i < values.length; i++, pos += 8) {
+                byteBuffer.putLong(pos, Double.doubleToLongBits(values[i]));
+            }
+            markDirty(offset, 8 * values.length);
+        } finally {
+            m_mappingLock.readLock().unlock();
+        }
+    }
+
+    protected int getInt(final long offset) throws IOException {
+        m_mappingLock.readLock().lock();
+        try {
+            return mappedBuffer("Read").getInt((int) offset);
+        } finally {
+            m_mappingLock.readLock().unlock();
+        }
+    }
+
+    protected long getLong(final long offset) throws IOException {
+        m_mappingLock.readLock().lock();
+        try {
+            return mappedBuffer("Read").getLong((int) offset);
+        } finally {
+            m_mappingLock.readLock().unlock();
+        }
+    }
+
+    protected double getDouble(final long offset) throws IOException {
+        m_mappingLock.readLock().lock();
+        try {
+            return mappedBuffer("Read").getDouble((int) offset);
+        } finally {
+            m_mappingLock.readLock().unlock();
+        }
+    }
+
+    protected void getDouble(final long offset, final double[] values) throws IOException {
+        m_mappingLock.readLock().lock();
+        try {
+            final MappedByteBuffer byteBuffer = mappedBuffer("Read");
+            for (int i = 0, pos = (int) offset; i < values.length; i++, pos += 8) {
+                values[i] = byteBuffer.getDouble(pos);
+            }
+        } finally {
+            m_mappingLock.readLock().unlock();
         }
     }
 
+    private MappedByteBuffer mappedBuffer(final String operation) throws IOException {
+        if (m_byteBuffer == null) {
+            throw new IOException(operation + " failed, file " + getPath() + " not mapped for I/O");
+        }
+        return m_byteBuffer;
+    }
+
     /**
      * Closes the underlying RRD file.
      * 
      * @throws IOException
      *             Thrown in case of I/O error
      */
-    public synchronized void close() throws IOException {
-        // cancel synchronization
+    public void close() throws IOException {
+        m_mappingLock.writeLock().lock();
         try {
-            unmapFile();
+            // cancel synchronization
+            try {
+                unmapFile();
+            } finally {
+                super.close();
+            }
         } finally {
-            super.close();
+            m_mappingLock.writeLock().unlock();
         }
     }
 
     /**
      * This method forces all data cached in memory but not yet stored in the
-     * file, to be stored in it.
+     * file, to be stored in it. Only pages written since the last sync are
+     * forced; nothing is done if no page was written. Reads and writes are
+     * not blocked while the data is forced.
      */
-    protected synchronized void sync() {
-        if (m_byteBuffer != null) {
-            m_byteBuffer.force();
+    protected void sync() {
+        m_mappingLock.readLock().lock();
+        try {
+            synchronized (this) {
+                if (m_byteBuffer == null) {
+                    return;
+                }
+                final BitSet dirtyPages = takeDirtyPages();
+                if (dirtyPages.isEmpty()) {
+                    return;
+                }
+                final long start = System.nanoTime();
+                if (FORCE_RANGE == null || !forceDirtyPages(dirtyPages)) {
+                    m_byteBuffer.force();
+                }
+                m_lastSyncDuration = System.nanoTime() - start;
+                m_totalSyncDuration += m_lastSyncDuration;
+                m_syncCount++;
+            }
+        } finally {
+            m_mappingLock.readLock().unlock();
+        }
+    }
+
+    // atomically moves the dirty page bits into a BitSet, pages written from now on are dirty again
+    private BitSet takeDirtyPages() {
+        final AtomicLongArray words = m_dirtyPages;
+        final BitSet dirtyPages = new BitSet();
+        for (int i = 0; i < words.length(); i++) {
+            if (words.get(i) != 0L) {
+                final long word = words.getAndSet(i, 0L);
+                for (int bit = 0; bit < 64; bit++) {
+                    if ((word & (1L << bit)) != 0L) {
+                        dirtyPages.set(i * 64 + bit);
+                    }
+                }
+            }
         }
+        return dirtyPages;
+    }
+
+    private boolean forceDirtyPages(final BitSet dirtyPages) {
+        final int capacity = m_byteBuffer.capacity();
+        try {
+            for (int page = dirtyPages.nextSetBit(0); page >= 0; ) {
+                final int endPage = dirtyPages.nextClearBit(page);
+                final int index = page * PAGE_SIZE;
+                final int length = Math.min(endPage * PAGE_SIZE, capacity) - index;
+                FORCE_RANGE.invoke(m_byteBuffer, index, length);
+                page = dirtyPages.nextSetBit(endPage);
+            }
+            return true;
+        } catch (final Exception e) {
+            return false;
+        }
+    }
+
+    private void markDirty(final long offset, final int length) {
+        if (length > 0) {
+            final AtomicLongArray words = m_dirtyPages;
+            final int lastPage = (int) ((offset + length - 1) / PAGE_SIZE);
+            for (int page = (int) (offset / PAGE_SIZE); page <= lastPage; page++) {
+                final int index = page >>> 6;
+                final long mask = 1L << (page & 63);
+                long word = words.get(index);
+                while ((word & mask) == 0L && !words.compareAndSet(index, word, word | mask)) {
+                    word = words.get(index);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the number of bytes in pages written since the last sync.
+     *
+     * @return Number of dirty bytes, rounded up to whole pages.
+     */
+    public long getDirtyByteCount() {
+        final AtomicLongArray words = m_dirtyPages;
+        long pages = 0;
+        for (int i = 0; i < words.length(); i++) {
+            pages += Long.bitCount(words.get(i));
+        }
+        return pages * PAGE_SIZE;
+    }
+
+    /**
+     * Returns the number of syncs which actually forced data to the disk.
+     *
+     * @return Number of syncs
+     */
+    public synchronized long getSyncCount() {
+        return m_syncCount;
+    }
+
+    /**
+     * Returns the duration of the last sync which forced data to the disk.
+     *
+     * @return Sync duration in nanoseconds
+     */
+    public synchronized long getLastSyncDuration() {
+        return m_lastSyncDuration;
+    }
+
+    /**
+     * Returns the total duration of all syncs which forced data to the disk.
+     *
+     * @return Total sync duration in nanoseconds
+     */
+    public synchronized long getTotalSyncDuration() {
+        return m_totalSyncDuration;
+    }
+
+    private static Method findForceRange() {
+        try {
+            return MappedByteBuffer.class.getMethod("force", int.class, int.class);
+        } catch (final Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * Reads use absolute positions or duplicated views of the mapped buffer, so several threads
+     * may read at once.
+     *
+     * @return Always returns <code>true</code>
+     */
+    protected boolean isConcurrentReadAllowed() {
+        return true;
     }
 }
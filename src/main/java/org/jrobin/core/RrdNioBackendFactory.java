@@ -65,6 +65,26 @@ public class RrdNioBackendFactory extends RrdFileBackendFactory {
         s_syncManager.setSyncPeriod(syncPeriod);
     }
 
+    /**
+     * Returns the number of threads performing background synchronizations.
+     *
+     * @return Number of sync threads.
+     */
+    public static int getSyncThreadCount() {
+        return s_syncManager.getThreadCount();
+    }
+
+    /**
+     * Sets the number of threads performing background synchronizations.
+     * Defaults to {@link SyncManager#DEFAULT_THREAD_COUNT}.
+     *
+     * @param threadCount
+     *            Number of sync threads.
+     */
+    public synchronized static void setSyncThreadCount(final int threadCount) {
+        s_syncManager.setThreadCount(threadCount);
+    }
+
     /**
      * Creates RrdNioBackend object for the given file path.
      * 
@@ -22,6 +22,7 @@ package org.jrobin.core;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.BitSet;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
@@ -29,6 +30,11 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
 /**
  * JRobin backend which is used to store RRD data to ordinary disk files
  * by using fast java.nio.* package. This is the default backend engine since JRobin 1.4.0.
+ * <p>
+ * The whole file is held in a heap buffer. Each backend has its own read/write lock, so
+ * readers of one RRD never wait for writers of another. Pages written since the last
+ * write-back are tracked and written to the file periodically by a {@link SyncManager},
+ * and on close.
  */
 public class RrdNioByteBufferBackend extends RrdFileBackend {
 
@@ -36,18 +42,41 @@ public class RrdNioByteBufferBackend extends RrdFileBackend {
 
 	private FileChannel m_ch;
 
-	private static final ReadWriteLock m_readWritelock = new ReentrantReadWriteLock();
-	private static final Lock m_readLock = m_readWritelock.readLock();
-	private static final Lock m_writeLock = m_readWritelock.writeLock();
+	private final SyncManager m_syncManager;
+
+	private final ReadWriteLock m_readWritelock = new ReentrantReadWriteLock();
+	private final Lock m_readLock = m_readWritelock.readLock();
+	private final Lock m_writeLock = m_readWritelock.writeLock();
+
+	// pages written since the last write-back, guarded by the write lock
+	// (or by the read lock and this object's monitor while being written back)
+	private final BitSet m_dirtyPages = new BitSet();
+	private boolean m_closed = false;
+	private long m_syncCount = 0;
 
 	/**
 	 * Creates RrdFileBackend object for the given file path, backed by java.nio.* classes.
+	 * Data is written back to the file only when the backend is closed.
 	 *
 	 * @param path	   Path to a file
 	 * @param readOnly   True, if file should be open in a read-only mode. False otherwise
 	 * @throws IOException Thrown in case of I/O error
 	 */
 	protected RrdNioByteBufferBackend(final String path, final boolean readOnly) throws IOException, IllegalStateException {
+		this(path, readOnly, null);
+	}
+
+	/**
+	 * Creates RrdFileBackend object for the given file path, backed by java.nio.* classes.
+	 *
+	 * @param path	   Path to a file
+	 * @param readOnly   True, if file should be open in a read-only mode. False otherwise
+	 * @param syncManager An object which periodically writes dirty data back to the file,
+	 *                    generally owned by the backend factory. If null, data is written
+	 *                    back only when the backend is closed.
+	 * @throws IOException Thrown in case of I/O error
+	 */
+	protected RrdNioByteBufferBackend(final String path, final boolean readOnly, final SyncManager syncManager) throws IOException, IllegalStateException {
 		super(path, readOnly);
 
 		if (file != null) {
@@ -57,6 +86,10 @@ public class RrdNioByteBufferBackend extends RrdFileBackend {
 		} else {
 			throw new IllegalStateException("File in base class is null.");
 		}
+		m_syncManager = readOnly ? null : syncManager;
+		if (m_syncManager != null) {
+			m_syncManager.add(this);
+		}
 	}
 
 	/**
@@ -75,6 +108,7 @@ public class RrdNioByteBufferBackend extends RrdFileBackend {
 			m_byteBuffer = ByteBuffer.allocate((int) newLength);
 			m_ch.read(m_byteBuffer, 0);
 			m_byteBuffer.position(0);
+			m_dirtyPages.clear();
 		} finally {
 		    m_writeLock.unlock();
 		}
@@ -92,6 +126,7 @@ public class RrdNioByteBufferBackend extends RrdFileBackend {
 	    try {
             m_byteBuffer.position((int) offset);
             m_byteBuffer.put(b);
+            markDirty(offset, b.length);
 	    } finally {
 	        m_writeLock.unlock();
 	    }
@@ -107,24 +142,132 @@ public class RrdNioByteBufferBackend extends RrdFileBackend {
 	protected void read(final long offset, final byte[] b) {
 	    m_readLock.lock();
 	    try {
-            m_byteBuffer.position((int) offset);
-            m_byteBuffer.get(b);
+	        // readers share the lock, so they must not touch the position of the shared buffer
+            final ByteBuffer view = m_byteBuffer.duplicate();
+            view.position((int) offset);
+            view.get(b);
+	    } finally {
+	        m_readLock.unlock();
+	    }
+	}
+
+	@Override
+	protected void putInt(final long offset, final int value) {
+	    m_writeLock.lock();
+	    try {
+            m_byteBuffer.putInt((int) offset, value);
+            markDirty(offset, 4);
+	    } finally {
+	        m_writeLock.unlock();
+	    }
+	}
+
+	@Override
+	protected void putLong(final long offset, final long value) {
+	    m_writeLock.lock();
+	    try {
+            m_byteBuffer.putLong((int) offset, value);
+            markDirty(offset, 8);
+	    } finally {
+	        m_writeLock.unlock();
+	    }
+	}
+
+	@Override
+	protected void putDouble(final long offset, final double value) {
+	    m_writeLock.lock();
+	    try {
+            m_byteBuffer.putLong((int) offset, Double.doubleToLongBits(value));
+            markDirty(offset, 8);
+	    } finally {
+	        m_writeLock.unlock();
+	    }
+	}
+
+	@Override
+	protected void putDouble(final long offset, final double value, final int count) {
+	    m_writeLock.lock();
+	    try {
+            final long bits = Double.doubleToLongBits(value);
+            for (int i = 0, pos = (int) offset; i < count; i++, pos += 8) {
+                m_byteBuffer.putLong(pos, bits);
+            }
+            markDirty(offset, 8 * count);
+	    } finally {
+	        m_writeLock.unlock();
+	    }
+	}
+
+	@Override
+	protected void putDouble(final long offset, final double[] values) {
+	    m_writeLock.lock();
+	    try {
+            for (int i = 0, pos = (int) offset; i < values.length; i++, pos += 8) {
+                m_byteBuffer.putLong(pos, Double.doubleToLongBits(values[i]));
+            }
+            markDirty(offset, 8 * values.length);
+	    } finally {
+	        m_writeLock.unlock();
+	    }
+	}
+
+	@Override
+	protected int getInt(final long offset) {
+	    m_readLock.lock();
+	    try {
+            return m_byteBuffer.getInt((int) offset);
+	    } finally {
+	        m_readLock.unlock();
+	    }
+	}
+
+	@Override
+	protected long getLong(final long offset) {
+	    m_readLock.lock();
+	    try {
+            return m_byteBuffer.getLong((int) offset);
+	    } finally {
+	        m_readLock.unlock();
+	    }
+	}
+
+	@Override
+	protected double getDouble(final long offset) {
+	    m_readLock.lock();
+	    try {
+            return m_byteBuffer.getDouble((int) offset);
+	    } finally {
+	        m_readLock.unlock();
+	    }
+	}
+
+	@Override
+	protected void getDouble(final long offset, final double[] values) {
+	    m_readLock.lock();
+	    try {
+            for (int i = 0, pos = (int) offset; i < values.length; i++, pos += 8) {
+                values[i] = m_byteBuffer.getDouble(pos);
+            }
 	    } finally {
 	        m_readLock.unlock();
 	    }
 	}
 
 	/**
-	 * Closes the underlying RRD file.
+	 * Closes the underlying RRD file. Dirty data is written back first.
 	 *
 	 * @throws IOException Thrown in case of I/O error
 	 */
 	public void close() throws IOException {
+	    if (m_syncManager != null) {
+	        m_syncManager.remove(this);
+	    }
 	    m_writeLock.lock();
 	    try {
-			m_byteBuffer.position(0);
-
-			if (!isReadOnly()) m_ch.write(m_byteBuffer, 0);
+			synchronized (this) {
+			    if (!isReadOnly()) writeDirtyPages();
+			    m_closed = true;
+			}
 			//just calling close here because the super calls close
 			//on the File object and Java calls close on the channel
 			super.close();
@@ -133,4 +276,85 @@ public class RrdNioByteBufferBackend extends RrdFileBackend {
 		}
 	}
 
+	/**
+	 * Writes pages changed since the last write-back to the file. Readers are not blocked
+	 * while the data is written, writers are.
+	 */
+	@Override
+	protected void sync() {
+	    m_readLock.lock();
+	    try {
+	        synchronized (this) {
+	            if (!m_closed) {
+	                writeDirtyPages();
+	            }
+	        }
+	    } catch (final IOException e) {
+	        // the pages stay dirty and are written again by the next sync or on close
+	    } finally {
+	        m_readLock.unlock();
+	    }
+	}
+
+	/**
+	 * Returns the number of bytes in pages written since the last write-back.
+	 *
+	 * @return Number of dirty bytes, rounded up to whole pages.
+	 */
+	public long getDirtyByteCount() {
+	    m_readLock.lock();
+	    try {
+	        synchronized (this) {
+	            return (long) m_dirtyPages.cardinality() * RrdNioBackend.PAGE_SIZE;
+	        }
+	    } finally {
+	        m_readLock.unlock();
+	    }
+	}
+
+	/**
+	 * Returns the number of write-backs which actually wrote data to the file.
+	 *
+	 * @return Number of write-backs
+	 */
+	public synchronized long getSyncCount() {
+	    return m_syncCount;
+	}
+
+	private void markDirty(final long offset, final int length) {
+	    if (length > 0) {
+	        m_dirtyPages.set((int) (offset / RrdNioBackend.PAGE_SIZE), (int) ((offset + length - 1) / RrdNioBackend.PAGE_SIZE) + 1);
+	    }
+	}
+
+	private void writeDirtyPages() throws IOException {
+	    if (m_dirtyPages.isEmpty()) {
+	        return;
+	    }
+	    final int capacity = m_byteBuffer.capacity();
+	    final ByteBuffer view = m_byteBuffer.duplicate();
+	    for (int page = m_dirtyPages.nextSetBit(0); page >= 0; ) {
+	        final int endPage = m_dirtyPages.nextClearBit(page);
+	        final int start = page * RrdNioBackend.PAGE_SIZE;
+	        view.limit(Math.min(endPage * RrdNioBackend.PAGE_SIZE, capacity));
+	        view.position(start);
+	        while (view.hasRemaining()) {
+	            m_ch.write(view, view.position());
+	        }
+	        m_dirtyPages.clear(page, endPage);
+	        page = m_dirtyPages.nextSetBit(endPage);
+	    }
+	    m_syncCount++;
+	}
+
+	/**
+	 * Reads use absolute positions or duplicated views of the buffer, so several threads may
+	 * read at once.
+	 *
+	 * @return Always returns <code>true</code>
+	 */
+	@Override
+	protected boolean isConcurrentReadAllowed() {
+		return true;
+	}
 }
@@ -28,6 +28,32 @@ public class RrdNioByteBufferBackendFactory extends RrdFileBackendFactory {
 
 	public static final String NAME = "MNIO";
 
+	/**
+	 * Period in seconds between consecutive write-backs of dirty data to the disk.
+	 * Default value can be changed via {@link #setSyncPeriod(int)} method.
+	 */
+	public static final int DEFAULT_SYNC_PERIOD = 300; // seconds
+
+	private static SyncManager s_syncManager = new SyncManager(DEFAULT_SYNC_PERIOD);
+
+	/**
+	 * Returns time between two consecutive write-backs of dirty data to the disk.
+	 *
+	 * @return Time in seconds between consecutive write-backs.
+	 */
+	public static int getSyncPeriod() {
+		return s_syncManager.getSyncPeriod();
+	}
+
+	/**
+	 * Sets time between two consecutive write-backs of dirty data to the disk.
+	 *
+	 * @param syncPeriod Time in seconds between consecutive write-backs.
+	 */
+	public synchronized static void setSyncPeriod(final int syncPeriod) {
+		s_syncManager.setSyncPeriod(syncPeriod);
+	}
+
 	/**
 	 * Creates RrdNioByteBufferBackend object for the given file path.
 	 *
@@ -39,7 +65,7 @@ public class RrdNioByteBufferBackendFactory extends RrdFileBackendFactory {
 	 */
 	@Override
 	protected RrdBackend open(String path, boolean readOnly) throws IOException {
-		return new RrdNioByteBufferBackend(path, readOnly);
+		return new RrdNioByteBufferBackend(path, readOnly, s_syncManager);
 	}
 
 	/**
@@ -51,4 +77,8 @@ public class RrdNioByteBufferBackendFactory extends RrdFileBackendFactory {
 	public String getFactoryName() {
 		return NAME;
 	}
+
+	public void shutdown() {
+		s_syncManager.shutdown();
+	}
 }
@@ -0,0 +1,241 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The OpenNMS Group, Inc.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *******************************************************************************/
+
+package org.jrobin.core;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * JRobin backend which stores RRD data in ordinary disk files, like {@link RrdFileBackend}, but
+ * buffers all writes in memory. Dirty regions of the file are kept sorted by offset and adjacent
+ * or overlapping writes are coalesced, so that a single RRD update, which touches the header,
+ * the state of every datasource and archive and a few archive rows, ends up as a handful of
+ * contiguous runs. Reads see the buffered data.
+ * <p>
+ * Buffered data is written to the file when:
+ * <ul>
+ * <li>the amount of buffered data reaches the flush threshold of the factory,
+ * <li>the periodic flush of the factory runs (all open files are flushed together),
+ * <li>{@link #flush()} or {@link RrdWriteBehindFileBackendFactory#flush()} is called,
+ * <li>the backend is closed.
+ * </ul>
+ * <p>
+ * Crash consistency: data which is not flushed yet is lost if the JVM dies, so at most one flush
+ * period worth of updates can be lost. A flush writes the dirty runs in increasing offset order,
+ * one write per run; if the JVM dies in the middle of a flush, the file keeps its layout but the
+ * header, datasource and archive states may come from different updates. Like the FILE backend,
+ * a flush hands the data to the operating system and does not force it to the disk.
+ */
+public class RrdWriteBehindFileBackend extends RrdFileBackend {
+	private final RrdWriteBehindFileBackendFactory m_factory;
+	private final TreeMap<Long, Region> m_dirty = new TreeMap<Long, Region>();
+	private int m_dirtyBytes = 0;
+
+	/**
+	 * Creates RrdWriteBehindFileBackend object for the given file path.
+	 *
+	 * @param path	 Path to a file
+	 * @param readOnly True, if file should be open in a read-only mode. False otherwise
+	 * @param factory  Factory which flushes this backend periodically
+	 * @throws IOException Thrown in case of I/O error
+	 */
+	protected RrdWriteBehindFileBackend(final String path, final boolean readOnly, final RrdWriteBehindFileBackendFactory factory) throws IOException {
+		super(path, readOnly);
+		m_factory = factory;
+		if (!readOnly) {
+			m_factory.add(this);
+		}
+	}
+
+	/**
+	 * Buffers bytes to be written to the underlying RRD file.
+	 *
+	 * @param offset Starting file offset
+	 * @param b	  Bytes to be written.
+	 * @throws IOException Thrown in case of I/O error
+	 */
+	protected synchronized void write(final long offset, final byte[] b) throws IOException {
+		final long end = offset + b.length;
+		// find the first region which overlaps or touches the new one
+		Map.Entry<Long, Region> entry = m_dirty.floorEntry(offset);
+		if (entry == null || entry.getValue().getEnd() < offset) {
+			entry = m_dirty.higherEntry(offset);
+			if (entry == null || entry.getKey() > end) {
+				m_dirty.put(offset, new Region(offset, b));
+				m_dirtyBytes += b.length;
+				flushIfNeeded();
+				return;
+			}
+		}
+		// the new bytes are merged into the first region, followed regions are absorbed
+		final Region region = entry.getValue();
+		m_dirtyBytes -= region.length;
+		if (offset < region.start) {
+			m_dirty.remove(region.start);
+			region.prepend(offset);
+			m_dirty.put(offset, region);
+		}
+		region.put(offset, b);
+		final Iterator<Region> following = m_dirty.tailMap(region.start, false).values().iterator();
+		while (following.hasNext()) {
+			final Region next = following.next();
+			if (next.start > region.getEnd()) {
+				break;
+			}
+			m_dirtyBytes -= next.length;
+			if (next.getEnd() > region.getEnd()) {
+				region.put(region.getEnd(), next.data, (int) (region.getEnd() - next.start), (int) (next.getEnd() - region.getEnd()));
+			}
+			following.remove();
+		}
+		m_dirtyBytes += region.length;
+		flushIfNeeded();
+	}
+
+	/**
+	 * Reads a number of bytes from the RRD file, including the bytes which are not flushed yet.
+	 *
+	 * @param offset Starting file offset
+	 * @param b	  Buffer which receives bytes read from the file.
+	 * @throws IOException Thrown in case of I/O error.
+	 */
+	protected synchronized void read(final long offset, final byte[] b) throws IOException {
+		final long end = offset + b.length;
+		final Map.Entry<Long, Region> entry = m_dirty.floorEntry(offset);
+		if (entry != null && entry.getValue().getEnd() >= end) {
+			// fully buffered, no I/O needed
+			entry.getValue().get(offset, b, 0, b.length);
+			return;
+		}
+		super.read(offset, b);
+		final Long fromKey = entry == null ? offset : entry.getKey();
+		for (final Region region : m_dirty.subMap(fromKey, true, end, false).values()) {
+			final long from = Math.max(offset, region.start);
+			final long to = Math.min(end, region.getEnd());
+			if (from < to) {
+				region.get(from, b, (int) (from - offset), (int) (to - from));
+			}
+		}
+	}
+
+	/**
+	 * Writes all buffered data to the underlying RRD file.
+	 *
+	 * @throws IOException Thrown in case of I/O error
+	 */
+	public synchronized void flush() throws IOException {
+		for (final Region region : m_dirty.values()) {
+			file.seek(region.start);
+			file.write(region.data, 0, region.length);
+		}
+		m_dirty.clear();
+		m_dirtyBytes = 0;
+	}
+
+	/**
+	 * Returns the number of bytes written to this backend but not flushed to the file yet.
+	 *
+	 * @return Number of buffered bytes
+	 */
+	public synchronized int getDirtyByteCount() {
+		return m_dirtyBytes;
+	}
+
+	/**
+	 * Returns RRD file length.
+	 *
+	 * @return File length.
+	 * @throws IOException Thrown in case of I/O error.
+	 */
+	public synchronized long getLength() throws IOException {
+		final long length = super.getLength();
+		return m_dirty.isEmpty() ? length : Math.max(length, m_dirty.lastEntry().getValue().getEnd());
+	}
+
+	/**
+	 * Flushes buffered data and closes the underlying RRD file.
+	 *
+	 * @throws IOException Thrown in case of I/O error
+	 */
+	public synchronized void close() throws IOException {
+		try {
+			flush();
+		} finally {
+			m_factory.remove(this);
+			super.close();
+		}
+	}
+
+	private void flushIfNeeded() throws IOException {
+		if (m_dirtyBytes >= m_factory.getFlushThreshold()) {
+			flush();
+		}
+	}
+
+	/**
+	 * Contiguous run of dirty bytes. The data array may have spare capacity at the end so that
+	 * runs growing cell by cell are not copied on every write.
+	 */
+	private static final class Region {
+		private long start;
+		private byte[] data;
+		private int length;
+
+		Region(final long start, final byte[] b) {
+			this.start = start;
+			this.data = b.clone();
+			this.length = b.length;
+		}
+
+		long getEnd() {
+			return start + length;
+		}
+
+		void prepend(final long newStart) {
+			final int shift = (int) (start - newStart);
+			final byte[] newData = new byte[length + shift];
+			System.arraycopy(data, 0, newData, shift, length);
+			data = newData;
+			length += shift;
+			start = newStart;
+		}
+
+		void put(final long offset, final byte[] b) {
+			put(offset, b, 0, b.length);
+		}
+
+		void put(final long offset, final byte[] b, final int from, final int count) {
+			final int pos = (int) (offset - start);
+			final int newLength = Math.max(length, pos + count);
+			if (newLength > data.length) {
+				final byte[] newData = new byte[Math.max(newLength, data.length * 2)];
+				System.arraycopy(data, 0, newData, 0, length);
+				data = newData;
+			}
+			System.arraycopy(b, from, data, pos, count);
+			length = newLength;
+		}
+
+		void get(final long offset, final byte[] b, final int to, final int count) {
+			System.arraycopy(data, (int) (offset - start), b, to, count);
+		}
+	}
+}
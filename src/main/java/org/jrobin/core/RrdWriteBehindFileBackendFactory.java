@@ -0,0 +1,198 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The OpenNMS Group, Inc.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *******************************************************************************/
+
+package org.jrobin.core;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Factory class which creates actual {@link RrdWriteBehindFileBackend} objects. Writes are
+ * buffered in memory and all open files are flushed together every
+ * {@link #getFlushPeriod() flush period}, or individually as soon as the amount of buffered
+ * data of a file reaches the {@link #getFlushThreshold() flush threshold}. See
+ * {@link RrdWriteBehindFileBackend} for the crash consistency semantics.
+ */
+public class RrdWriteBehindFileBackendFactory extends RrdFileBackendFactory {
+	/**
+	 * factory name, "WRITEBEHIND"
+	 */
+	public static final String NAME = "WRITEBEHIND";
+
+	/**
+	 * Default time in seconds between two consecutive flushes of all open files.
+	 */
+	public static final int DEFAULT_FLUSH_PERIOD = 5; // seconds
+
+	/**
+	 * Default number of buffered bytes per file which triggers an immediate flush of that file.
+	 */
+	public static final int DEFAULT_FLUSH_THRESHOLD = 64 * 1024;
+
+	private final Set<RrdWriteBehindFileBackend> m_backends =
+			Collections.newSetFromMap(new ConcurrentHashMap<RrdWriteBehindFileBackend, Boolean>());
+	private volatile int m_flushPeriod = DEFAULT_FLUSH_PERIOD;
+	private volatile int m_flushThreshold = DEFAULT_FLUSH_THRESHOLD;
+	private ScheduledExecutorService m_executor;
+	private ScheduledFuture<?> m_flushTask;
+
+	/**
+	 * Creates RrdWriteBehindFileBackend object for the given file path.
+	 *
+	 * @param path	 File path
+	 * @param readOnly True, if the file should be accessed in read/only mode.
+	 *                 False otherwise.
+	 * @return RrdWriteBehindFileBackend object which handles all I/O operations for the given file path
+	 * @throws IOException Thrown in case of I/O error.
+	 */
+	protected RrdBackend open(final String path, final boolean readOnly) throws IOException {
+		return new RrdWriteBehindFileBackend(path, readOnly, this);
+	}
+
+	/**
+	 * Returns the name of this factory.
+	 *
+	 * @return Factory name (equals to string "WRITEBEHIND")
+	 */
+	public String getFactoryName() {
+		return NAME;
+	}
+
+	/**
+	 * Returns time between two consecutive flushes of all open files.
+	 *
+	 * @return Time in seconds between two consecutive flushes.
+	 */
+	public int getFlushPeriod() {
+		return m_flushPeriod;
+	}
+
+	/**
+	 * Sets time between two consecutive flushes of all open files.
+	 *
+	 * @param flushPeriod Time in seconds between two consecutive flushes.
+	 * @throws IllegalArgumentException Thrown if the period is not positive
+	 */
+	public synchronized void setFlushPeriod(final int flushPeriod) {
+		if (flushPeriod <= 0) {
+			throw new IllegalArgumentException("Invalid flush period: " + flushPeriod + ", must be positive");
+		}
+		m_flushPeriod = flushPeriod;
+		if (m_flushTask != null) {
+			m_flushTask.cancel(false);
+			m_flushTask = null;
+			schedule();
+		}
+	}
+
+	/**
+	 * Returns the number of buffered bytes per file which triggers an immediate flush of that file.
+	 *
+	 * @return Flush threshold in bytes.
+	 */
+	public int getFlushThreshold() {
+		return m_flushThreshold;
+	}
+
+	/**
+	 * Sets the number of buffered bytes per file which triggers an immediate flush of that file.
+	 *
+	 * @param flushThreshold Flush threshold in bytes.
+	 */
+	public void setFlushThreshold(final int flushThreshold) {
+		m_flushThreshold = flushThreshold;
+	}
+
+	/**
+	 * Writes buffered data of all open files to the disk.
+	 *
+	 * @throws IOException Thrown in case of I/O error. All files are flushed even if one of
+	 *                     them fails, the first error is rethrown.
+	 */
+	public void flush() throws IOException {
+		IOException error = null;
+		for (final RrdWriteBehindFileBackend backend : m_backends) {
+			try {
+				backend.flush();
+			} catch (final IOException e) {
+				if (error == null) {
+					error = e;
+				}
+			}
+		}
+		if (error != null) {
+			throw error;
+		}
+	}
+
+	/**
+	 * Flushes all open files and stops the background flush thread.
+	 */
+	public synchronized void shutdown() {
+		try {
+			flush();
+		} catch (final IOException e) {
+			// files are flushed again when closed
+		}
+		if (m_executor != null) {
+			m_executor.shutdown();
+			m_executor = null;
+			m_flushTask = null;
+		}
+	}
+
+	synchronized void add(final RrdWriteBehindFileBackend backend) {
+		m_backends.add(backend);
+		if (m_flushTask == null) {
+			schedule();
+		}
+	}
+
+	void remove(final RrdWriteBehindFileBackend backend) {
+		m_backends.remove(backend);
+	}
+
+	private void schedule() {
+		if (m_executor == null) {
+			m_executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(final Runnable r) {
+					final Thread thread = new Thread(r, "JRobin write-behind flusher");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		final long period = m_flushPeriod * 1000L;
+		m_flushTask = m_executor.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					flush();
+				} catch (final IOException e) {
+					// data stays buffered and will be written by the next flush
+				}
+			}
+		}, period, period, TimeUnit.MILLISECONDS);
+	}
+}
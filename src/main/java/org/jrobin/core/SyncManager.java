@@ -1,82 +1,296 @@
 package org.jrobin.core;
 
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
-
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Periodically synchronizes RRD files which cache data in memory ({@link RrdNioBackend},
+ * {@link RrdNioByteBufferBackend}) with the disk, by calling {@link RrdFileBackend#sync()}.
+ * <p>
+ * Registered backends are distributed over a fixed number of sync waves. Each wave runs
+ * once per sync period on a shared {@link ScheduledExecutorService}, and the waves are spread
+ * over the period with a random offset, so that the disk sees a steady trickle of syncs
+ * instead of a burst of all files at once. The executor has a bounded number of threads;
+ * a slow sync delays only the backends of its own wave.
+ * <p>
+ * A wave which starts late, or which takes longer than its share of the period, is counted
+ * as an overrun; see {@link #getOverrunCount()}, {@link #getLastLag()} and {@link #getMaxLag()}.
+ */
 public final class SyncManager {
-    private int m_syncPeriod = RrdNioBackendFactory.DEFAULT_SYNC_PERIOD;
-    private Timer m_timer = null;
-    private Map<RrdNioBackend,TimerTask> m_tasks = new HashMap<RrdNioBackend,TimerTask>();
+    /**
+     * Default number of waves the registered backends are distributed over.
+     */
+    public static final int DEFAULT_WAVE_COUNT = 16;
+
+    /**
+     * Default number of threads performing the syncs.
+     */
+    public static final int DEFAULT_THREAD_COUNT = 2;
+
+    private static final AtomicInteger s_serialNumber = new AtomicInteger();
+
+    private final Random m_random = new Random();
+    private final Map<RrdFileBackend,Wave> m_backends = new ConcurrentHashMap<RrdFileBackend,Wave>();
+    private final Wave[] m_waves;
+    private volatile int m_syncPeriod = RrdNioBackendFactory.DEFAULT_SYNC_PERIOD;
+    private int m_threadCount = DEFAULT_THREAD_COUNT;
+    private ScheduledExecutorService m_executor = null;
+    private boolean m_ownsExecutor = true;
+    private boolean m_scheduled = false;
+
+    private final AtomicLong m_overrunCount = new AtomicLong();
+    private volatile long m_lastLag = 0;
+    private volatile long m_maxLag = 0;
 
     public SyncManager(final int syncPeriod) {
+        this(syncPeriod, DEFAULT_THREAD_COUNT);
+    }
+
+    /**
+     * Creates a sync manager which runs syncs on its own pool of daemon threads.
+     *
+     * @param syncPeriod  Time in seconds between two syncs of the same backend
+     * @param threadCount Number of threads performing the syncs
+     */
+    public SyncManager(final int syncPeriod, final int threadCount) {
         m_syncPeriod = syncPeriod;
+        m_threadCount = Math.max(1, threadCount);
+        m_waves = new Wave[DEFAULT_WAVE_COUNT];
+        for (int i = 0; i < m_waves.length; i++) {
+            m_waves[i] = new Wave(i);
+        }
+    }
+
+    /**
+     * Creates a sync manager which runs syncs on the given executor. The executor is not
+     * shut down by this manager.
+     *
+     * @param syncPeriod Time in seconds between two syncs of the same backend
+     * @param executor   Executor to run the syncs on
+     */
+    public SyncManager(final int syncPeriod, final ScheduledExecutorService executor) {
+        this(syncPeriod, DEFAULT_THREAD_COUNT);
+        m_executor = executor;
+        m_ownsExecutor = false;
     }
 
     public int getSyncPeriod() {
         return m_syncPeriod;
     }
 
-    public void setSyncPeriod(final int syncPeriod) {
+    public synchronized void setSyncPeriod(final int syncPeriod) {
         m_syncPeriod = syncPeriod;
-        synchronized(m_tasks) {
-            final Timer oldTimer = m_timer;
-            m_timer = new SyncTimer();
-            for (final RrdNioBackend backend : m_tasks.keySet()) {
-                m_tasks.get(backend).cancel();
-                scheduleTask(backend);
-            }
-            cancelTimer(oldTimer);
+        if (m_scheduled) {
+            cancelWaves();
+            scheduleWaves();
         }
     }
 
-    public void add(final RrdNioBackend rrdNioBackend) {
-        synchronized(m_tasks) {
-            if (m_tasks.size() == 0) {
-                m_timer = new SyncTimer();
-            }
-            scheduleTask(rrdNioBackend);
+    /**
+     * Returns the number of threads performing the syncs, if the executor is owned by
+     * this manager.
+     *
+     * @return Number of sync threads
+     */
+    public synchronized int getThreadCount() {
+        return m_threadCount;
+    }
+
+    /**
+     * Sets the number of threads performing the syncs. Has no effect if the executor was
+     * supplied by the caller.
+     *
+     * @param threadCount Number of sync threads
+     */
+    public synchronized void setThreadCount(final int threadCount) {
+        m_threadCount = Math.max(1, threadCount);
+        if (m_ownsExecutor && m_executor instanceof ScheduledThreadPoolExecutor) {
+            ((ScheduledThreadPoolExecutor) m_executor).setCorePoolSize(m_threadCount);
+        }
+    }
+
+    public synchronized void add(final RrdFileBackend backend) {
+        if (m_backends.containsKey(backend)) {
+            return;
+        }
+        final Wave wave = leastLoadedWave();
+        wave.m_backends.add(backend);
+        m_backends.put(backend, wave);
+        if (!m_scheduled) {
+            scheduleWaves();
         }
     }
 
-    public void remove(final RrdNioBackend rrdNioBackend) {
-        synchronized (m_tasks) {
-            final TimerTask oldTask = m_tasks.remove(rrdNioBackend);
-            if (oldTask != null) oldTask.cancel();
-            if (m_tasks.size() == 0) {
-                cancelTimer(m_timer);
-                m_timer = null;
+    public synchronized void remove(final RrdFileBackend backend) {
+        final Wave wave = m_backends.remove(backend);
+        if (wave != null) {
+            wave.m_backends.remove(backend);
+        }
+        if (m_backends.isEmpty()) {
+            cancelWaves();
+            if (m_ownsExecutor && m_executor != null) {
+                m_executor.shutdown();
+                m_executor = null;
             }
         }
     }
 
-    public void shutdown() {
-        synchronized(m_tasks) {
-            for (final Map.Entry<RrdNioBackend, TimerTask> entry : m_tasks.entrySet()) {
-                entry.getValue().cancel();
+    public synchronized void shutdown() {
+        cancelWaves();
+        if (m_ownsExecutor && m_executor != null) {
+            m_executor.shutdown();
+            m_executor = null;
+        }
+    }
+
+    /**
+     * Returns the number of backends currently scheduled for synchronization.
+     *
+     * @return Number of registered backends
+     */
+    public int getBackendCount() {
+        return m_backends.size();
+    }
+
+    /**
+     * Returns the number of wave runs which started late or took longer than their share
+     * of the sync period.
+     *
+     * @return Number of overruns
+     */
+    public long getOverrunCount() {
+        return m_overrunCount.get();
+    }
+
+    /**
+     * Returns the delay of the most recent wave run behind its schedule.
+     *
+     * @return Lag in milliseconds
+     */
+    public long getLastLag() {
+        return m_lastLag;
+    }
+
+    /**
+     * Returns the largest delay of a wave run behind its schedule.
+     *
+     * @return Lag in milliseconds
+     */
+    public long getMaxLag() {
+        return m_maxLag;
+    }
+
+    private Wave leastLoadedWave() {
+        Wave result = m_waves[0];
+        for (final Wave wave : m_waves) {
+            if (wave.m_backends.size() < result.m_backends.size()) {
+                result = wave;
             }
-            cancelTimer(m_timer);
         }
+        return result;
     }
 
-    private void cancelTimer(final Timer timer) {
-        if (timer == null) return;
-        timer.cancel();
-        timer.purge();
+    private void scheduleWaves() {
+        if (m_executor == null) {
+            m_executor = createExecutor(m_threadCount);
+        }
+        final long period = m_syncPeriod * 1000L;
+        final long slot = Math.max(1L, period / m_waves.length);
+        for (final Wave wave : m_waves) {
+            final long delay = wave.m_index * slot + (long) (m_random.nextDouble() * slot);
+            wave.schedule(m_executor, delay, period, slot);
+        }
+        m_scheduled = true;
     }
 
-    private void scheduleTask(final RrdNioBackend rrdNioBackend) {
-        final TimerTask task = new SyncTimerTask(rrdNioBackend);
-        if (m_tasks.containsKey(rrdNioBackend)) {
-            m_tasks.get(rrdNioBackend).cancel();
+    private void cancelWaves() {
+        for (final Wave wave : m_waves) {
+            wave.cancel();
         }
-        m_tasks.put(rrdNioBackend, task);
-        m_timer.schedule(task, getSyncPeriod() * 1000L, getSyncPeriod() * 1000L);
+        m_scheduled = false;
     }
 
-    Timer getTimer() {
-        return m_timer;
+    private static ScheduledExecutorService createExecutor(final int threadCount) {
+        final int serialNumber = s_serialNumber.getAndIncrement();
+        final AtomicInteger threadNumber = new AtomicInteger();
+        final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(threadCount, new ThreadFactory() {
+            public Thread newThread(final Runnable r) {
+                final Thread thread = new Thread(r, "SyncManager-" + serialNumber + "-" + threadNumber.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        return executor;
+    }
+
+    private void reportRun(final long lag, final long duration, final long slot) {
+        m_lastLag = lag;
+        if (lag > m_maxLag) {
+            m_maxLag = lag;
+        }
+        if (lag > slot || duration > slot) {
+            m_overrunCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Group of backends synchronized together, once per sync period.
+     */
+    private final class Wave implements Runnable {
+        private final int m_index;
+        private final Set<RrdFileBackend> m_backends =
+                Collections.newSetFromMap(new ConcurrentHashMap<RrdFileBackend,Boolean>());
+        private ScheduledFuture<?> m_future;
+        private long m_period;
+        private long m_slot;
+        private long m_nextRun;
+
+        Wave(final int index) {
+            m_index = index;
+        }
+
+        synchronized void schedule(final ScheduledExecutorService executor, final long delay, final long period, final long slot) {
+            m_period = period;
+            m_slot = slot;
+            m_nextRun = System.currentTimeMillis() + delay;
+            m_future = executor.scheduleAtFixedRate(this, delay, period, TimeUnit.MILLISECONDS);
+        }
+
+        synchronized void cancel() {
+            if (m_future != null) {
+                m_future.cancel(false);
+                m_future = null;
+            }
+        }
+
+        public void run() {
+            final long start = System.currentTimeMillis();
+            final long lag;
+            final long slot;
+            synchronized (this) {
+                lag = Math.max(0L, start - m_nextRun);
+                m_nextRun += m_period;
+                slot = m_slot;
+            }
+            for (final RrdFileBackend backend : m_backends) {
+                try {
+                    backend.sync();
+                } catch (final RuntimeException e) {
+                    // keep syncing the other backends, the next period retries this one
+                }
+            }
+            reportRun(lag, System.currentTimeMillis() - start, slot);
+        }
     }
-}
\ No newline at end of file
+}
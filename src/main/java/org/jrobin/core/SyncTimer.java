@@ -3,6 +3,11 @@ package org.jrobin.core;
 import java.util.Timer;
 import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * @deprecated {@link SyncManager} schedules syncs on a {@link java.util.concurrent.ScheduledExecutorService}
+ *             and no longer uses this class.
+ */
+@Deprecated
 public class SyncTimer extends Timer {
     private static AtomicInteger m_serialNumber = new AtomicInteger();
 
@@ -2,6 +2,11 @@ package org.jrobin.core;
 
 import java.util.TimerTask;
 
+/**
+ * @deprecated {@link SyncManager} schedules syncs on a {@link java.util.concurrent.ScheduledExecutorService}
+ *             and no longer uses this class.
+ */
+@Deprecated
 public final class SyncTimerTask extends TimerTask {
     private final RrdNioBackend m_rrdNioBackend;
 
@@ -683,14 +683,71 @@ public class Util {
 	}
 
 	/**
-	 * Returns canonical file path for the given file path
+	 * Default number of canonical file paths remembered by {@link #getCanonicalPath(String)}.
+	 */
+	public static final int DEFAULT_CANONICAL_PATH_CACHE_SIZE = 1000;
+
+	// first resolved paths are evicted first, lookups take no lock
+	private static final BoundedCache<String, String> canonicalPathCache =
+			new BoundedCache<String, String>(DEFAULT_CANONICAL_PATH_CACHE_SIZE);
+
+	/**
+	 * Returns canonical file path for the given file path. Resolving a canonical path requires
+	 * file system calls, so resolved paths are remembered in a bounded cache, which threads
+	 * read without locking. Use {@link #invalidateCanonicalPath(String)} or
+	 * {@link #clearCanonicalPathCache()} if the canonical form of a path changes (for example,
+	 * if a symbolic link is replaced).
 	 *
 	 * @param path Absolute or relative file path
 	 * @return Canonical file path
 	 * @throws IOException Thrown if canonical file path could not be resolved
 	 */
 	public static String getCanonicalPath(final String path) throws IOException {
-		return new File(path).getCanonicalPath();
+		String canonicalPath = canonicalPathCache.get(path);
+		if (canonicalPath == null) {
+			canonicalPath = new File(path).getCanonicalPath();
+			canonicalPathCache.put(path, canonicalPath);
+		}
+		return canonicalPath;
+	}
+
+	/**
+	 * Removes the given file path from the canonical path cache.
+	 *
+	 * @param path Absolute or relative file path, as passed to {@link #getCanonicalPath(String)}
+	 */
+	public static void invalidateCanonicalPath(final String path) {
+		canonicalPathCache.remove(path);
+	}
+
+	/**
+	 * Removes all file paths from the canonical path cache.
+	 */
+	public static void clearCanonicalPathCache() {
+		canonicalPathCache.clear();
+	}
+
+	static int getCanonicalPathCacheCount() {
+		return canonicalPathCache.size();
+	}
+
+	/**
+	 * Returns the maximum number of canonical file paths remembered by {@link #getCanonicalPath(String)}.
+	 *
+	 * @return Canonical path cache size
+	 */
+	public static int getCanonicalPathCacheSize() {
+		return canonicalPathCache.getMaxSize();
+	}
+
+	/**
+	 * Sets the maximum number of canonical file paths remembered by {@link #getCanonicalPath(String)}.
+	 * Defaults to {@link #DEFAULT_CANONICAL_PATH_CACHE_SIZE}, zero disables the cache.
+	 *
+	 * @param size Canonical path cache size
+	 */
+	public static void setCanonicalPathCacheSize(final int size) {
+		canonicalPathCache.setMaxSize(size);
 	}
 
 	/**
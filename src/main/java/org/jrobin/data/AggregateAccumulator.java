@@ -0,0 +1,170 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The OpenNMS Group, Inc.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *******************************************************************************/
+package org.jrobin.data;
+
+import org.jrobin.core.Util;
+
+/**
+ * Calculates {@link Aggregates} in a single pass over the values of consecutive time buckets.
+ * The standard deviation is updated with Welford's method, so values can be added while
+ * they arrive and the aggregates read at any time. Accumulators of consecutive chunks of
+ * the same series can be calculated separately and merged.
+ * <p>
+ * An accumulator is not thread safe; use one accumulator per thread and {@link #merge merge}
+ * them afterwards.
+ */
+public class AggregateAccumulator {
+	private final long step;
+
+	private int bucketCount = 0;
+	private int count = 0;
+	private double min = Double.NaN, max = Double.NaN;
+	private double first = Double.NaN;
+	private double lastFull = Double.NaN;
+	private boolean hasFull = false;
+
+	// running mean and sum of squared deviations (Welford)
+	private double mean = 0.0;
+	private double m2 = 0.0;
+
+	// sums for the least squares line, x being the bucket index
+	private double sumX = 0.0, sumXX = 0.0;
+	private double sumY = 0.0, sumXY = 0.0, sumYY = 0.0;
+
+	/**
+	 * Creates an empty accumulator.
+	 *
+	 * @param step Width of a time bucket in seconds, used to calculate the total
+	 */
+	public AggregateAccumulator(long step) {
+		this.step = step;
+	}
+
+	/**
+	 * Adds the value of the next time bucket.
+	 *
+	 * @param value Value of the bucket, NaN if unknown
+	 */
+	public void add(double value) {
+		add(value, true);
+	}
+
+	/**
+	 * Adds the value of the next time bucket. Only the first bucket and whole buckets
+	 * count as the last value.
+	 *
+	 * @param value      Value of the bucket, NaN if unknown
+	 * @param fullBucket true if the whole bucket lies in the aggregated time range
+	 */
+	void add(double value, boolean fullBucket) {
+		min = Util.min(min, value);
+		max = Util.max(max, value);
+		if (bucketCount == 0) {
+			first = value;
+		}
+		if (fullBucket) {
+			lastFull = value;
+			hasFull = true;
+		}
+		if (!Double.isNaN(value)) {
+			int x = bucketCount;
+			count++;
+			double delta = value - mean;
+			mean += delta / count;
+			m2 += delta * (value - mean);
+			sumX += x;
+			sumXX += x * x;
+			sumY = Util.sum(sumY, value);
+			sumXY = Util.sum(sumXY, x * value);
+			sumYY = Util.sum(sumYY, value * value);
+		}
+		bucketCount++;
+	}
+
+	/**
+	 * Appends the buckets of another accumulator, which must directly follow the buckets
+	 * of this one.
+	 *
+	 * @param other Accumulator of the following buckets
+	 */
+	public void merge(AggregateAccumulator other) {
+		if (other.bucketCount == 0) {
+			return;
+		}
+		if (bucketCount == 0) {
+			first = other.first;
+		}
+		if (other.hasFull) {
+			lastFull = other.lastFull;
+			hasFull = true;
+		}
+		min = Util.min(min, other.min);
+		max = Util.max(max, other.max);
+		if (other.count > 0) {
+			int n = count + other.count;
+			double delta = other.mean - mean;
+			m2 += other.m2 + delta * delta * ((double) count * other.count / n);
+			mean += delta * other.count / n;
+
+			// the other buckets are shifted by the number of buckets of this accumulator
+			double offset = bucketCount;
+			sumXX += other.sumXX + 2 * offset * other.sumX + other.count * offset * offset;
+			sumX += other.sumX + other.count * offset;
+			sumXY = Util.sum(sumXY, other.sumXY + offset * other.sumY);
+			sumY = Util.sum(sumY, other.sumY);
+			sumYY = Util.sum(sumYY, other.sumYY);
+			count = n;
+		}
+		bucketCount += other.bucketCount;
+	}
+
+	/**
+	 * Returns the number of buckets added so far.
+	 *
+	 * @return Number of buckets, including buckets with unknown values
+	 */
+	public int getBucketCount() {
+		return bucketCount;
+	}
+
+	/**
+	 * Returns the aggregates of the buckets added so far. More buckets can be added afterwards.
+	 *
+	 * @return Aggregated values
+	 */
+	public Aggregates getAggregates() {
+		Aggregates agg = new Aggregates();
+		agg.min = min;
+		agg.max = max;
+		agg.first = first;
+		agg.last = hasFull ? lastFull : first;
+		agg.average = count > 0 ? (sumY / count) : Double.NaN;
+		if (count > 0) {
+			agg.stdev = Math.sqrt(m2 / count);
+
+			/* Bestfit line by linear least squares method */
+			agg.lslslope = (sumX * sumY - count * sumXY) / (sumX * sumX - count * sumXX);
+			agg.lslint = (sumY - agg.lslslope * sumX) / count;
+			agg.lslcorrel =
+					(sumXY - (sumX * sumY) / count) /
+					Math.sqrt((sumXX - (sumX * sumX) / count) * (sumYY - (sumY * sumY) / count));
+		}
+		agg.total = sumY * step;
+		return agg;
+	}
+}
@@ -20,11 +20,8 @@
 package org.jrobin.data;
 
 import org.jrobin.core.ConsolFuns;
-import org.jrobin.core.Util;
 
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.List;
 
 class Aggregator implements ConsolFuns {
 	private long timestamps[], step;
@@ -39,87 +36,19 @@ class Aggregator implements ConsolFuns {
 	}
 
 	Aggregates getAggregates(long tStart, long tEnd) {
-		Aggregates agg = new Aggregates();
-                int cnt = 0;
-                int lslstep = 0;
-		boolean firstFound = false;
-                double SUMx, SUMy, SUMxy, SUMxx, SUMyy;
-                SUMx = 0.0;
-                SUMy = 0.0;
-                SUMxy = 0.0;
-                SUMxx = 0.0;
-                SUMyy = 0.0;
-
-                for (int i = 0; i < timestamps.length; i++) {
+		AggregateAccumulator accumulator = new AggregateAccumulator(step);
+		for (int i = 0; i < timestamps.length; i++) {
 			long left = Math.max(timestamps[i] - step, tStart);
 			long right = Math.min(timestamps[i], tEnd);
 			long delta = right - left;
 
 			// delta is only >= 0 when the timestamp for a given buck is within the range of tStart and tEnd
 			if (delta >= 0) {
-				double value = values[i];
-				agg.min = Util.min(agg.min, value);
-				agg.max = Util.max(agg.max, value);
-				if (!firstFound) {
-					agg.first = value;
-					firstFound = true;
-					agg.last = value;
-				} else if (delta >= step) {  // an entire bucket is included in this range
-					agg.last = value;
-
-					/*
-					 * Algorithmically, we're only updating last if it's either the first
-					 * bucket encountered, or it's a "full" bucket.
-
-					if ( !isInRange(tEnd, left, right) ||
-							 (isInRange(tEnd, left, right) && !Double.isNaN(value))
-							 ) {
-							agg.last = value;
-						}
-					*/
-
-				}
-				if (!Double.isNaN(value)) {
-                                        cnt++;
-                                        SUMx += lslstep;
-                                        SUMxx += lslstep * lslstep;
-                                        SUMy  = Util.sum(SUMy, value);
-                                        SUMxy = Util.sum(SUMxy, lslstep * value);
-                                        SUMyy = Util.sum(SUMyy, value * value);
-				}
-                                lslstep ++;
+				// last is only updated by the first bucket encountered, or by a "full" bucket
+				accumulator.add(values[i], delta >= step);
 			}
 		}
-		agg.average = cnt > 0 ? (SUMy / cnt) : Double.NaN;
-
-                // Work on STDEV
-                if (cnt > 0) {
-                    double stdevSum = 0.0;
-                    for (int i = 0; i < timestamps.length; i++) {
-                        long left = Math.max(timestamps[i] - step, tStart);
-			long right = Math.min(timestamps[i], tEnd);
-			long delta = right - left;
-
-			// delta is only >= 0 when the timestamp for a given buck is within the range of tStart and tEnd
-			if (delta >= 0) {
-				double value = values[i];
-				if (!Double.isNaN(value)) {
-                                        stdevSum = Util.sum(stdevSum, Math.pow((value - agg.average), 2.0));
-				}
-			}
-                    }
-                    agg.stdev = Math.pow(stdevSum / cnt, 0.5);
-
-                    /* Bestfit line by linear least squares method */
-                    agg.lslslope = (SUMx * SUMy - cnt * SUMxy) / (SUMx * SUMx - cnt * SUMxx);
-                    agg.lslint = (SUMy - agg.lslslope * SUMx) / cnt;
-                    agg.lslcorrel =
-                       (SUMxy - (SUMx * SUMy) / cnt) /
-                       Math.sqrt((SUMxx - (SUMx * SUMx) / cnt) * (SUMyy - (SUMy * SUMy) / cnt));
-                }
-                agg.total = SUMy * step;
-
-                return agg;
+		return accumulator.getAggregates();
 	}
 
         double getPercentile(long tStart, long tEnd, double percentile) {
@@ -127,33 +56,114 @@ class Aggregator implements ConsolFuns {
         }
 
 	double getPercentile(long tStart, long tEnd, double percentile, boolean includenan) {
-		List<Double> valueList = new ArrayList<Double>();
-		// create a list of included datasource values (different from NaN)
+		return getPercentiles(tStart, tEnd, new double[] {percentile}, includenan)[0];
+	}
+
+	/**
+	 * Calculates several percentiles of the values in a time range. Values are selected
+	 * in place instead of sorted, in the same order as {@link Arrays#sort(double[])} would
+	 * put them (NaN values last).
+	 *
+	 * @param tStart      Start of the time range
+	 * @param tEnd        End of the time range
+	 * @param percentiles Percentiles to calculate
+	 * @param includenan  true if NaN values count as the largest values, false to skip them
+	 * @return Values of the percentiles, in the same order, NaN where not enough data is available
+	 */
+	double[] getPercentiles(long tStart, long tEnd, double[] percentiles, boolean includenan) {
+		// copy the included datasource values (different from NaN)
+		double[] valuesCopy = new double[timestamps.length];
+		int count = 0;
 		for (int i = 0; i < timestamps.length; i++) {
 			long left = Math.max(timestamps[i] - step, tStart);
 			long right = Math.min(timestamps[i], tEnd);
 			if (right > left && (!Double.isNaN(values[i]) || includenan)) {
-				valueList.add(values[i]);
+				valuesCopy[count++] = values[i];
 			}
 		}
-		// create an array to work with
-		int count = valueList.size();
-		if (count > 1) {
-			double[] valuesCopy = new double[count];
-			for (int i = 0; i < count; i++) {
-				valuesCopy[i] = valueList.get(i);
-			}
-			// sort array
-			Arrays.sort(valuesCopy);
+		double[] result = new double[percentiles.length];
+		Arrays.fill(result, Double.NaN);
+		if (count <= 1) {
+			// not enough data available
+			return result;
+		}
+		// positions of the requested values, selected from the lowest to the highest
+		long[] ranks = new long[percentiles.length];
+		for (int i = 0; i < percentiles.length; i++) {
 			// skip top (100% - percentile) values
-			double topPercentile = (100.0 - percentile) / 100.0;
-			count -= (int) Math.ceil(count * topPercentile);
+			double topPercentile = (100.0 - percentiles[i]) / 100.0;
+			int rank = count - (int) Math.ceil(count * topPercentile) - 1;
+			ranks[i] = ((long) rank << 32) | i;
+		}
+		Arrays.sort(ranks);
+		int from = 0;
+		for (long rank : ranks) {
+			int k = (int) (rank >> 32);
 			// if we have anything left...
-			if (count > 0) {
-				return valuesCopy[count - 1];
+			if (k >= 0 && k < count) {
+				select(valuesCopy, from, count, k);
+				result[(int) rank] = valuesCopy[k];
+				from = k;
 			}
 		}
-		// not enough data available
-		return Double.NaN;
+		return result;
+	}
+
+	/**
+	 * Moves the k-th smallest value of a[from..to) to position k, smaller values before
+	 * and larger values after it.
+	 */
+	private static void select(double[] a, int from, int to, int k) {
+		int lo = from;
+		int hi = to - 1;
+		int maxPartitions = 64;
+		while (hi > lo) {
+			if (--maxPartitions < 0) {
+				// unlucky pivots, avoid quadratic time
+				Arrays.sort(a, lo, hi + 1);
+				return;
+			}
+			int mid = (lo + hi) >>> 1;
+			if (Double.compare(a[mid], a[lo]) < 0) {
+				swap(a, lo, mid);
+			}
+			if (Double.compare(a[hi], a[lo]) < 0) {
+				swap(a, lo, hi);
+			}
+			if (Double.compare(a[hi], a[mid]) < 0) {
+				swap(a, mid, hi);
+			}
+			double pivot = a[mid];
+			int i = lo;
+			int j = hi;
+			while (i <= j) {
+				while (Double.compare(a[i], pivot) < 0) {
+					i++;
+				}
+				while (Double.compare(a[j], pivot) > 0) {
+					j--;
+				}
+				if (i <= j) {
+					swap(a, i, j);
+					i++;
+					j--;
+				}
+			}
+			if (k <= j) {
+				hi = j;
+			}
+			else if (k >= i) {
+				lo = i;
+			}
+			else {
+				return;
+			}
+		}
+	}
+
+	private static void swap(double[] a, int i, int j) {
+		double x = a[i];
+		a[i] = a[j];
+		a[j] = x;
 	}
 }
@@ -22,7 +22,17 @@ package org.jrobin.data;
 import org.jrobin.core.*;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Class which should be used for all calculations based on the data fetched from RRD files. This class
@@ -64,8 +74,18 @@ public class DataProcessor implements ConsolFuns {
 	 */
 	public static final boolean DEFAULT_POOL_USAGE_POLICY = false;
 	private boolean poolUsed = DEFAULT_POOL_USAGE_POLICY;
+	private RrdDbPool pool;
 
-	private final long tStart;
+	/**
+	 * Number of threads of the executor used for parallel fetching unless another
+	 * executor is set with {@link #setFetchExecutor(Executor)}.
+	 */
+	public static final int DEFAULT_FETCH_THREAD_COUNT = Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+	private static Executor defaultFetchExecutor;
+	private boolean parallelFetch = false;
+	private Executor fetchExecutor;
+
+	private long tStart;
 	private long tEnd, timestamps[];
 	private long lastRrdArchiveUpdateTime = 0;
 	// this will be adjusted later
@@ -141,6 +161,69 @@ public class DataProcessor implements ConsolFuns {
 		this.poolUsed = poolUsed;
 	}
 
+	/**
+	 * Returns the {@link org.jrobin.core.RrdDbPool RrdDbPool} used to fetch data from RRD files
+	 * when the pool usage is enabled.
+	 *
+	 * @return Pool used by this object, the {@link RrdDbPool#getInstance() default pool} unless set otherwise
+	 * @throws RrdException Thrown in case of JRobin specific error
+	 */
+	public RrdDbPool getPool() throws RrdException {
+		return (pool != null) ? pool : RrdDbPool.getInstance();
+	}
+
+	/**
+	 * Sets the {@link org.jrobin.core.RrdDbPool RrdDbPool} used to fetch data from RRD files
+	 * when the pool usage is enabled. RRD files backed by non-default backends are fetched through
+	 * the pool as well.
+	 *
+	 * @param pool Pool to be used, or null to use the {@link RrdDbPool#getInstance() default pool}
+	 */
+	public void setPool(RrdDbPool pool) {
+		this.pool = pool;
+	}
+
+	/**
+	 * Returns true if RRD files are fetched in parallel. See {@link #setParallelFetch(boolean)}.
+	 *
+	 * @return true, if RRD files are fetched in parallel, false otherwise.
+	 */
+	public boolean isParallelFetch() {
+		return parallelFetch;
+	}
+
+	/**
+	 * Enables parallel fetching of RRD files. DEF datasources are grouped by RRD file and
+	 * consolidation function as usual, and each group is fetched as a separate task on the
+	 * {@link #getFetchExecutor() fetch executor}. The results are identical to the sequential
+	 * fetch; if several groups fail, the error of the first one (in the order of definition) is thrown.
+	 *
+	 * @param parallelFetch true, if RRD files should be fetched in parallel, false otherwise (default).
+	 */
+	public void setParallelFetch(boolean parallelFetch) {
+		this.parallelFetch = parallelFetch;
+	}
+
+	/**
+	 * Returns the executor used to fetch RRD files in parallel.
+	 *
+	 * @return Executor set with {@link #setFetchExecutor(Executor)}, or a shared executor with
+	 *         {@link #DEFAULT_FETCH_THREAD_COUNT} daemon threads.
+	 */
+	public Executor getFetchExecutor() {
+		return (fetchExecutor != null) ? fetchExecutor : getDefaultFetchExecutor();
+	}
+
+	/**
+	 * Sets the executor used to fetch RRD files in parallel. Has no effect unless
+	 * parallel fetching is enabled with {@link #setParallelFetch(boolean)}.
+	 *
+	 * @param fetchExecutor Executor to be used, or null to use the shared default executor
+	 */
+	public void setFetchExecutor(Executor fetchExecutor) {
+		this.fetchExecutor = fetchExecutor;
+	}
+
 	/**
 	 * Sets the number of pixels (target graph width). This number is used only to calculate pixel coordinates
 	 * for JRobin graphs (methods {@link #getValuesPerPixel(String)} and {@link #getTimestampsPerPixel()}),
@@ -361,6 +444,25 @@ public class DataProcessor implements ConsolFuns {
 		return source.getPercentile(tStart, tEnd, percentile);
 	}
 
+	/**
+	 * The same as {@link #getPercentile(String, double)}, but calculates several percentiles of the
+	 * same source at once, for example 50, 95 and 99.
+	 *
+	 * @param sourceName  Datasource name.
+	 * @param percentiles Boundary percentiles, each between zero and 100.
+	 * @return Requested percentiles of fetched source values, in the same order
+	 * @throws RrdException Thrown if invalid sourcename is supplied, or if a percentile value makes no sense.
+	 */
+	public double[] getPercentiles(String sourceName, double... percentiles) throws RrdException {
+		for (double percentile : percentiles) {
+			if (percentile <= 0.0 || percentile > 100.0) {
+				throw new RrdException("Invalid percentile [" + percentile + "], should be between 0 and 100");
+			}
+		}
+		Source source = getSource(sourceName);
+		return source.getPercentiles(tStart, tEnd, percentiles);
+	}
+
 	/**
 	 * Returns array of datasource names defined in this DataProcessor.
 	 *
@@ -554,7 +656,9 @@ public class DataProcessor implements ConsolFuns {
 
 	/**
 	 * Method that should be called once all datasources are defined. Data will be fetched from
-	 * RRD files, RPN expressions will be calculated, etc.
+	 * RRD files, RPN expressions will be calculated, etc. When called again, RRD data already fetched
+	 * is processed again and arrays of normalized values are reused, so values previously returned
+	 * from {@link #getValues(String)} may be overwritten.
 	 *
 	 * @throws IOException  Thrown in case of I/O error (while fetching data from RRD files)
 	 * @throws RrdException Thrown in case of JRobin specific error
@@ -570,6 +674,36 @@ public class DataProcessor implements ConsolFuns {
 		calculateNonRrdSources();
 	}
 
+	/**
+	 * Moves the time span of already processed data forward to a new ending timestamp, keeping
+	 * its length, and processes the data again. Rows fetched earlier from RRD files are kept, and
+	 * only rows archived since the previous fetch are read, so refreshing a live graph reads a few
+	 * rows instead of the whole time span. Kept rows are not read again, even if a full fetch for
+	 * the new time span would use another archive. RPN expressions, static and percentile
+	 * datasources are calculated again for the new time span.
+	 *
+	 * @param newEnd New ending timestamp in seconds, not before the current ending timestamp
+	 * @throws IOException  Thrown in case of I/O error (while fetching data from RRD files)
+	 * @throws RrdException Thrown if data was not processed yet (method {@link #processData()}
+	 *                      was not called), or if the new ending timestamp is invalid
+	 */
+	public void refresh(long newEnd) throws IOException, RrdException {
+		if (timestamps == null) {
+			throw new RrdException("Data not processed yet, call processData() first");
+		}
+		if (newEnd < tEnd) {
+			throw new RrdException("Invalid ending timestamp specified: " + newEnd);
+		}
+		tStart += newEnd - tEnd;
+		tEnd = newEnd;
+		fetchNewerRrdData();
+		chooseOptimalStep();
+		createTimestamps();
+		assignTimestampsToSources();
+		normalizeRrdValues();
+		calculateNonRrdSources();
+	}
+
 	/**
 	 * Method used to calculate datasource values which should be presented on the graph
 	 * based on the desired graph width. Each value returned represents a single pixel on the graph.
@@ -600,29 +734,41 @@ public class DataProcessor implements ConsolFuns {
 	 */
 	public double[] getValuesPerPixel(String sourceName) throws RrdException {
 		double[] values = getValues(sourceName);
-		double[] pixelValues = new double[pixelCount];
-		Arrays.fill(pixelValues, Double.NaN);
-		long span = tEnd - tStart;
-		// this is the ugliest nested loop I have ever made
-		for (int pix = 0, ref = 0; pix < pixelCount; pix++) {
-			double t = tStart + (double) (span * pix) / (double) (pixelCount - 1);
-			while (ref < timestamps.length) {
-				if (t <= timestamps[ref] - step) {
-					// too left, nothing to do, already NaN
-					break;
-				}
-				else if (t <= timestamps[ref]) {
-					// in brackets, get this value
-					pixelValues[pix] = values[ref];
-					break;
-				}
-				else {
-					// too right
-					ref++;
-				}
-			}
+		return getPixelDownsampler().sample(values);
+	}
+
+	/**
+	 * Method used to calculate datasource values which should be presented on the graph, one value
+	 * per pixel of the width set with a {@link #setPixelCount(int)} method call. Unlike
+	 * {@link #getValuesPerPixel(String)}, which picks a single value for each pixel, this method
+	 * consolidates all values represented by a pixel, so that no spike is lost when there are
+	 * more values than pixels.
+	 *
+	 * @param sourceName Datasource name
+	 * @param consolFun  Consolidation function: AVERAGE, MIN or MAX
+	 * @return Per-pixel datasource values
+	 * @throws RrdException Thrown if datasource values are not yet calculated (method {@link #processData()}
+	 *                      was not called), or if an unsupported consolidation function is given
+	 */
+	public double[] getValuesPerPixel(String sourceName, String consolFun) throws RrdException {
+		double[] values = getValues(sourceName);
+		return getPixelDownsampler().downsample(values, consolFun);
+	}
+
+	/**
+	 * Returns an object which reduces values of this DataProcessor to one value per pixel of
+	 * the width set with a {@link #setPixelCount(int)} method call. The same object can be
+	 * used for all datasources, or for values derived from them.
+	 *
+	 * @return Downsampler for the current timestamps and pixel count
+	 * @throws RrdException Thrown if datasource values are not yet calculated (method {@link #processData()}
+	 *                      was not called)
+	 */
+	public PixelDownsampler getPixelDownsampler() throws RrdException {
+		if (timestamps == null) {
+			throw new RrdException("Timestamps not calculated yet");
 		}
-		return pixelValues;
+		return new PixelDownsampler(timestamps, step, tStart, tEnd, pixelCount);
 	}
 
 	/**
@@ -699,41 +845,133 @@ public class DataProcessor implements ConsolFuns {
 	}
 
 	private void fetchRrdData() throws IOException, RrdException {
-		long tEndFixed = (tEnd == 0) ? Util.getTime() : tEnd;
+		final long tEndFixed = (tEnd == 0) ? Util.getTime() : tEnd;
+		// resolve each path once, grouping compares every pair of definitions
+		for (Def def : defSources) {
+			def.resolveCanonicalPath();
+		}
+		final List<FetchGroup> groups = new ArrayList<FetchGroup>();
+		final boolean[] grouped = new boolean[defSources.length];
 		for (int i = 0; i < defSources.length; i++) {
-			if (!defSources[i].isLoaded()) {
+			if (!defSources[i].isLoaded() && !grouped[i]) {
 				// not fetched yet
-				Set<String> dsNames = new HashSet<String>();
-				dsNames.add(defSources[i].getDsName());
+				FetchGroup group = new FetchGroup(defSources[i]);
 				// look for all other datasources with the same path and the same consolidation function
 				for (int j = i + 1; j < defSources.length; j++) {
 					if (defSources[i].isCompatibleWith(defSources[j])) {
-						dsNames.add(defSources[j].getDsName());
+						group.add(defSources[j]);
+						grouped[j] = true;
 					}
 				}
-				// now we have everything
-				RrdDb rrd = null;
+				groups.add(group);
+			}
+		}
+		// now we have everything
+		fetchGroups(groups, tEndFixed);
+	}
+
+	private void fetchNewerRrdData() throws IOException, RrdException {
+		// definitions fetched together share their data, data supplied by the caller is kept
+		final Map<FetchData, FetchGroup> groups = new IdentityHashMap<FetchData, FetchGroup>();
+		for (Def def : defSources) {
+			if (def.getPath() != null) {
+				FetchGroup group = groups.get(def.getFetchData());
+				if (group == null) {
+					groups.put(def.getFetchData(), new FetchGroup(def, def.getFetchData()));
+				}
+				else {
+					group.add(def);
+				}
+			}
+		}
+		fetchGroups(new ArrayList<FetchGroup>(groups.values()), tEnd);
+	}
+
+	private void fetchGroups(final List<FetchGroup> groups, final long tEndFixed) throws IOException, RrdException {
+		if (parallelFetch && groups.size() > 1) {
+			fetchInParallel(groups, tEndFixed);
+		}
+		else {
+			for (FetchGroup group : groups) {
+				group.fetch(tEndFixed);
+			}
+		}
+		for (FetchGroup group : groups) {
+			lastRrdArchiveUpdateTime = Math.max(lastRrdArchiveUpdateTime, group.lastArchiveUpdateTime);
+			for (Def def : group.defs) {
+				def.setFetchData(group.data);
+			}
+		}
+	}
+
+	private void fetchInParallel(final List<FetchGroup> groups, final long tEndFixed) throws IOException, RrdException {
+		final Executor executor = getFetchExecutor();
+		final List<FutureTask<Void>> tasks = new ArrayList<FutureTask<Void>>(groups.size());
+		for (final FetchGroup group : groups) {
+			FutureTask<Void> task = new FutureTask<Void>(new Callable<Void>() {
+				public Void call() throws IOException, RrdException {
+					group.fetch(tEndFixed);
+					return null;
+				}
+			});
+			tasks.add(task);
+			executor.execute(task);
+		}
+		// wait for all tasks, so that no RRD file is left in use, then report the first error
+		Throwable error = null;
+		boolean interrupted = false;
+		for (FutureTask<Void> task : tasks) {
+			while (true) {
 				try {
-					rrd = getRrd(defSources[i]);
-					lastRrdArchiveUpdateTime = Math.max(lastRrdArchiveUpdateTime, rrd.getLastArchiveUpdateTime());
-					FetchRequest req = rrd.createFetchRequest(defSources[i].getConsolFun(),
-							tStart, tEndFixed, fetchRequestResolution);
-					req.setFilter(dsNames);
-					FetchData data = req.fetchData();
-					defSources[i].setFetchData(data);
-					for (int j = i + 1; j < defSources.length; j++) {
-						if (defSources[i].isCompatibleWith(defSources[j])) {
-							defSources[j].setFetchData(data);
-						}
-					}
+					task.get();
+					break;
+				}
+				catch (InterruptedException e) {
+					interrupted = true;
 				}
-				finally {
-					if (rrd != null) {
-						releaseRrd(rrd, defSources[i]);
+				catch (ExecutionException e) {
+					if (error == null) {
+						error = e.getCause();
 					}
+					break;
 				}
 			}
 		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+			if (error == null) {
+				throw new InterruptedIOException("Interrupted while fetching RRD data");
+			}
+		}
+		if (error instanceof IOException) {
+			throw (IOException) error;
+		}
+		else if (error instanceof RrdException) {
+			throw (RrdException) error;
+		}
+		else if (error instanceof RuntimeException) {
+			throw (RuntimeException) error;
+		}
+		else if (error instanceof Error) {
+			throw (Error) error;
+		}
+	}
+
+	private static synchronized Executor getDefaultFetchExecutor() {
+		if (defaultFetchExecutor == null) {
+			final AtomicInteger threadNumber = new AtomicInteger();
+			ThreadPoolExecutor executor = new ThreadPoolExecutor(DEFAULT_FETCH_THREAD_COUNT, DEFAULT_FETCH_THREAD_COUNT,
+					60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "DataProcessor-fetch-" + threadNumber.getAndIncrement());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			executor.allowCoreThreadTimeOut(true);
+			defaultFetchExecutor = executor;
+		}
+		return defaultFetchExecutor;
 	}
 
 	private void fixZeroEndingTimestamp() throws RrdException {
@@ -796,7 +1034,10 @@ public class DataProcessor implements ConsolFuns {
 		for (Def def : defSources) {
 			long[] rrdTimestamps = def.getRrdTimestamps();
 			double[] rrdValues = def.getRrdValues();
-			double[] values = normalizer.normalize(rrdTimestamps, rrdValues);
+			double[] values = normalizer.normalize(rrdTimestamps, rrdValues, def.getNormalizedValues());
+			if (values != rrdValues) {
+				def.setNormalizedValues(values);
+			}
 			def.setValues(values);
 		}
 	}
@@ -847,21 +1088,19 @@ public class DataProcessor implements ConsolFuns {
 
 	private RrdDb getRrd(Def def) throws IOException, RrdException {
 		String path = def.getPath(), backend = def.getBackend();
-		if (poolUsed && backend == null) {
-			return RrdDbPool.getInstance().requestRrdDb(path);
-		}
-		else if (backend != null) {
-			return new RrdDb(path, true, RrdBackendFactory.getFactory(backend));
+		RrdBackendFactory factory = (backend != null) ?
+				RrdBackendFactory.getFactory(backend) : RrdBackendFactory.getDefaultFactory();
+		if (poolUsed) {
+			return getPool().requestRrdDb(path, factory);
 		}
 		else {
-			return new RrdDb(path, true);
+			return new RrdDb(path, true, factory);
 		}
 	}
 
 	private void releaseRrd(RrdDb rrd, Def def) throws IOException, RrdException {
-		String backend = def.getBackend();
-		if (poolUsed && backend == null) {
-			RrdDbPool.getInstance().release(rrd);
+		if (poolUsed) {
+			getPool().release(rrd);
 		}
 		else {
 			rrd.close();
@@ -933,4 +1172,58 @@ public class DataProcessor implements ConsolFuns {
 		// lastArchiveUpdateTime
 		System.out.println("\nLast archive update time was: " + dp.getLastRrdArchiveUpdateTime());
 	}
+
+	/**
+	 * DEF datasources fetched together, with a single fetch request, from the same RRD file.
+	 */
+	private class FetchGroup {
+		private final List<Def> defs = new ArrayList<Def>();
+		private final Set<String> dsNames = new HashSet<String>();
+		private FetchData data;
+		private long lastArchiveUpdateTime;
+		// data fetched before, only newer rows are fetched if set
+		private final FetchData previous;
+
+		FetchGroup(Def def) {
+			this(def, null);
+		}
+
+		FetchGroup(Def def, FetchData previous) {
+			this.previous = previous;
+			add(def);
+		}
+
+		void add(Def def) {
+			defs.add(def);
+			dsNames.add(def.getDsName());
+		}
+
+		void fetch(long tEndFixed) throws IOException, RrdException {
+			Def def = defs.get(0);
+			RrdDb rrd = null;
+			try {
+				rrd = getRrd(def);
+				lastArchiveUpdateTime = rrd.getLastArchiveUpdateTime();
+				if (previous != null) {
+					// rows archived before the previous fetch have not changed since
+					long newerStart = Math.max(tStart, Math.min(previous.getArcEndTime(), previous.getLastTimestamp()));
+					FetchRequest req = rrd.createFetchRequest(def.getConsolFun(), newerStart, tEndFixed, previous.getArcStep());
+					req.setFilter(previous.getDsNames());
+					FetchData newer = req.fetchData();
+					if (newer.getArcStep() == previous.getArcStep()) {
+						data = previous.merge(tStart, newer);
+						return;
+					}
+				}
+				FetchRequest req = rrd.createFetchRequest(def.getConsolFun(), tStart, tEndFixed, fetchRequestResolution);
+				req.setFilter(dsNames);
+				data = req.fetchData();
+			}
+			finally {
+				if (rrd != null) {
+					releaseRrd(rrd, def);
+				}
+			}
+		}
+	}
 }
@@ -27,7 +27,10 @@ import java.io.IOException;
 
 class Def extends Source {
 	private String path, dsName, consolFun, backend;
+	private String canonicalPath;
 	private FetchData fetchData;
+	// normalized values, reused when data is processed again
+	private double[] normalizedValues;
 
 	Def(String name, FetchData fetchData) {
 		this(name, null, name, null, null);
@@ -51,7 +54,14 @@ class Def extends Source {
 	}
 
 	String getCanonicalPath() throws IOException {
-		return Util.getCanonicalPath(path);
+		if (canonicalPath == null && path != null) {
+			resolveCanonicalPath();
+		}
+		return canonicalPath;
+	}
+
+	void resolveCanonicalPath() throws IOException {
+		canonicalPath = (path != null) ? Util.getCanonicalPath(path) : null;
 	}
 
 	String getDsName() {
@@ -67,7 +77,8 @@ class Def extends Source {
 	}
 
 	boolean isCompatibleWith(Def def) throws IOException {
-		return getCanonicalPath().equals(def.getCanonicalPath()) &&
+		String canonicalPath = getCanonicalPath();
+		return canonicalPath != null && canonicalPath.equals(def.getCanonicalPath()) &&
 				getConsolFun().equals(def.consolFun) &&
 				((backend == null && def.backend == null) ||
 						(backend != null && def.backend != null && backend.equals(def.backend)));
@@ -77,6 +88,10 @@ class Def extends Source {
 		this.fetchData = fetchData;
 	}
 
+	FetchData getFetchData() {
+		return fetchData;
+	}
+
 	long[] getRrdTimestamps() {
 		return fetchData.getTimestamps();
 	}
@@ -85,6 +100,14 @@ class Def extends Source {
 		return fetchData.getValues(dsName);
 	}
 
+	double[] getNormalizedValues() {
+		return normalizedValues;
+	}
+
+	void setNormalizedValues(double[] normalizedValues) {
+		this.normalizedValues = normalizedValues;
+	}
+
 	long getArchiveEndTime() {
 		return fetchData.getArcEndTime();
 	}
@@ -107,6 +130,13 @@ class Def extends Source {
 		return agg.getPercentile(tStart, tEnd, percentile);
 	}
 
+	double[] getPercentiles(long tStart, long tEnd, double[] percentiles) throws RrdException {
+		long[] t = getRrdTimestamps();
+		double[] v = getRrdValues();
+		Aggregator agg = new Aggregator(t, v);
+		return agg.getPercentiles(tStart, tEnd, percentiles, false);
+	}
+
 	boolean isLoaded() {
 		return fetchData != null;
 	}
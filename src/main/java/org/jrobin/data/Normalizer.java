@@ -35,15 +35,67 @@ class Normalizer {
 	}
 
 	double[] normalize(long[] rawTimestamps, double[] rawValues) {
+		return normalize(rawTimestamps, rawValues, null);
+	}
+
+	/**
+	 * Normalizes fetched values to the timestamps of this normalizer. If the fetched values
+	 * already match the timestamps, they are returned as they are; fetched values are never
+	 * modified. Otherwise the result is stored in the given buffer, if it has the right length,
+	 * or in a new array.
+	 *
+	 * @param rawTimestamps Fetched timestamps
+	 * @param rawValues     Fetched values
+	 * @param buffer        Array to reuse, may be null
+	 * @return Normalized values
+	 */
+	double[] normalize(long[] rawTimestamps, double[] rawValues, double[] buffer) {
 		int rawCount = rawTimestamps.length;
 		long rawStep = rawTimestamps[1] - rawTimestamps[0];
 		// check if we have a simple match
 		if (rawCount == count && rawStep == step && rawTimestamps[0] == timestamps[0]) {
-			return getCopyOf(rawValues);
+			return rawValues;
 		}
 		// reset all normalized values to NaN
-		double[] values = new double[count];
+		double[] values = (buffer != null && buffer.length == count) ? buffer : new double[count];
 		Arrays.fill(values, Double.NaN);
+		if (step % rawStep == 0 && (timestamps[0] - rawTimestamps[0]) % rawStep == 0) {
+			normalizeAligned(rawTimestamps, rawValues, rawStep, values);
+		}
+		else {
+			normalizeOverlapping(rawTimestamps, rawValues, rawStep, values);
+		}
+		for (int seg = 0; seg < count; seg++) {
+			values[seg] /= step;
+		}
+		return values;
+	}
+
+	/**
+	 * Every raw segment lies within a single segment, as the step is a multiple of the raw step
+	 * and the segments start on raw segment boundaries. Sums are added in the same order as in
+	 * {@link #normalizeOverlapping}, so both give the same results.
+	 */
+	private void normalizeAligned(long[] rawTimestamps, double[] rawValues, long rawStep, double[] values) {
+		long first = timestamps[0];
+		for (int rawSeg = 0; rawSeg < rawTimestamps.length; rawSeg++) {
+			long offset = rawTimestamps[rawSeg] - first;
+			if (offset <= -step) {
+				continue;
+			}
+			int seg = (int) ((offset + step - 1) / step);
+			if (seg >= count) {
+				break;
+			}
+			double rawValue = rawValues[rawSeg];
+			if (!Double.isNaN(rawValue)) {
+				values[seg] = Util.sum(values[seg], rawStep * rawValue);
+			}
+		}
+	}
+
+	private void normalizeOverlapping(long[] rawTimestamps, double[] rawValues, long rawStep, double[] values) {
+		int rawCount = rawTimestamps.length;
 		for (int rawSeg = 0, seg = 0; rawSeg < rawCount && seg < count; rawSeg++) {
 			double rawValue = rawValues[rawSeg];
 			if (!Double.isNaN(rawValue)) {
@@ -65,16 +117,5 @@ class Normalizer {
 				}
 			}
 		}
-		for (int seg = 0; seg < count; seg++) {
-			values[seg] /= step;
-		}
-		return values;
-	}
-
-	private static double[] getCopyOf(double[] rawValues) {
-		int n = rawValues.length;
-		double[] values = new double[n];
-		System.arraycopy(rawValues, 0, values, 0, n);
-		return values;
 	}
 }
@@ -19,6 +19,8 @@ package org.jrobin.data;
 
 import org.jrobin.core.RrdException;
 
+import java.util.Arrays;
+
 public class PercentileDef extends Source {
 
     private Source m_source;
@@ -111,4 +113,12 @@ public class PercentileDef extends Source {
         return m_value;
     }
 
+    @Override
+    double[] getPercentiles(long tStart, long tEnd, double[] percentiles)
+            throws RrdException {
+        double[] result = new double[percentiles.length];
+        Arrays.fill(result, m_value);
+        return result;
+    }
+
 }
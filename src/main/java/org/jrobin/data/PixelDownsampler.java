@@ -0,0 +1,226 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The OpenNMS Group, Inc.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *******************************************************************************/
+package org.jrobin.data;
+
+import org.jrobin.core.ConsolFuns;
+import org.jrobin.core.RrdException;
+import org.jrobin.core.Util;
+
+/**
+ * Reduces processed datasource values to one value per pixel of a graph. Each pixel
+ * represents the time buckets which end between the previous pixel and the pixel itself,
+ * plus the bucket the pixel lies in, so every value is counted in at least one pixel, and the
+ * values of the pixel can be aggregated (average, minimum, maximum or both) instead of sampled.
+ * Pixels which no bucket ends in, because the data is coarser than the pixels, take the value
+ * of the bucket they lie in, as before.
+ * <p>
+ * Objects of this class are returned from {@link DataProcessor#getPixelDownsampler()}. All
+ * methods run in time proportional to the number of values plus the number of pixels.
+ */
+public class PixelDownsampler implements ConsolFuns {
+	private final long[] pixelTimestamps;
+	// per pixel: range of buckets represented by the pixel, and the bucket containing the pixel
+	private final int[] from, to, sample;
+
+	PixelDownsampler(long[] timestamps, long step, long tStart, long tEnd, int pixelCount) {
+		from = new int[pixelCount];
+		to = new int[pixelCount];
+		sample = new int[pixelCount];
+		pixelTimestamps = new long[pixelCount];
+		long span = tEnd - tStart;
+		double width = (double) span / (double) Math.max(pixelCount - 1, 1);
+		for (int pix = 0, first = 0, last = 0, ref = 0; pix < pixelCount; pix++) {
+			double t = tStart + (double) (span * pix) / (double) (pixelCount - 1);
+			pixelTimestamps[pix] = Math.round(t);
+			while (first < timestamps.length && timestamps[first] <= t - width) {
+				first++;
+			}
+			while (last < timestamps.length && timestamps[last] <= t) {
+				last++;
+			}
+			while (ref < timestamps.length && t > timestamps[ref]) {
+				ref++;
+			}
+			sample[pix] = ref < timestamps.length && t > timestamps[ref] - step ? ref : -1;
+			from[pix] = sample[pix] >= 0 ? Math.min(first, sample[pix]) : first;
+			to[pix] = sample[pix] >= 0 ? Math.max(last, sample[pix] + 1) : Math.max(first, last);
+		}
+	}
+
+	/**
+	 * Returns timestamps of individual pixels, the same as {@link DataProcessor#getTimestampsPerPixel()}.
+	 *
+	 * @return Pixel timestamps
+	 */
+	public long[] getPixelTimestamps() {
+		return pixelTimestamps;
+	}
+
+	/**
+	 * Returns the number of pixels.
+	 *
+	 * @return Number of pixels
+	 */
+	public int getPixelCount() {
+		return pixelTimestamps.length;
+	}
+
+	/**
+	 * Picks the value of the bucket each pixel lies in, as {@link DataProcessor#getValuesPerPixel(String)} does.
+	 *
+	 * @param values Values of all time buckets
+	 * @return Per-pixel values
+	 */
+	public double[] sample(double[] values) {
+		double[] pixelValues = new double[sample.length];
+		for (int pix = 0; pix < sample.length; pix++) {
+			pixelValues[pix] = sample[pix] >= 0 ? values[sample[pix]] : Double.NaN;
+		}
+		return pixelValues;
+	}
+
+	/**
+	 * Aggregates the values of each pixel.
+	 *
+	 * @param values    Values of all time buckets
+	 * @param consolFun Consolidation function: AVERAGE, MIN or MAX
+	 * @return Per-pixel values, NaN for pixels without known values
+	 * @throws RrdException Thrown if an unsupported consolidation function is given
+	 */
+	public double[] downsample(double[] values, String consolFun) throws RrdException {
+		boolean average = consolFun.equals(CF_AVERAGE);
+		boolean min = consolFun.equals(CF_MIN);
+		if (!average && !min && !consolFun.equals(CF_MAX)) {
+			throw new RrdException("Unsupported consolidation function for downsampling: " + consolFun);
+		}
+		double[] pixelValues = new double[sample.length];
+		for (int pix = 0; pix < sample.length; pix++) {
+			double value = Double.NaN;
+			double sum = 0;
+			int count = 0;
+			for (int i = from[pix]; i < to[pix]; i++) {
+				if (average) {
+					if (!Double.isNaN(values[i])) {
+						sum += values[i];
+						count++;
+					}
+				}
+				else if (min) {
+					value = Util.min(value, values[i]);
+				}
+				else {
+					value = Util.max(value, values[i]);
+				}
+			}
+			pixelValues[pix] = average ? (count > 0 ? sum / count : Double.NaN) : value;
+		}
+		return pixelValues;
+	}
+
+	/**
+	 * Calculates the minimum and the maximum of each pixel in one pass. Drawing a vertical line from
+	 * the minimum to the maximum of each pixel shows every spike of the data.
+	 *
+	 * @param values Values of all time buckets
+	 * @return Two arrays: per-pixel minimums and per-pixel maximums
+	 */
+	public double[][] envelope(double[] values) {
+		double[] minValues = new double[sample.length];
+		double[] maxValues = new double[sample.length];
+		for (int pix = 0; pix < sample.length; pix++) {
+			double min = Double.NaN, max = Double.NaN;
+			for (int i = from[pix]; i < to[pix]; i++) {
+				min = Util.min(min, values[i]);
+				max = Util.max(max, values[i]);
+			}
+			minValues[pix] = min;
+			maxValues[pix] = max;
+		}
+		return new double[][] {minValues, maxValues};
+	}
+
+	/**
+	 * Selects the points which best preserve the shape of a series with the
+	 * Largest-Triangle-Three-Buckets algorithm. The first and the last point are always selected;
+	 * from each bucket in between, the point forming the largest triangle with the point selected
+	 * from the previous bucket and the average of the next bucket. Unknown values are not selected,
+	 * unless a bucket has no known values, in which case the gap is kept.
+	 *
+	 * @param timestamps Timestamps of the points
+	 * @param values     Values of the points
+	 * @param pointCount Maximum number of points to select
+	 * @return Indexes of the selected points, in ascending order
+	 */
+	public static int[] selectLargestTriangles(long[] timestamps, double[] values, int pointCount) {
+		int n = values.length;
+		if (pointCount >= n || pointCount < 3) {
+			int[] all = new int[Math.min(n, Math.max(pointCount, 0))];
+			if (pointCount >= n) {
+				for (int i = 0; i < n; i++) {
+					all[i] = i;
+				}
+			}
+			else if (all.length > 0) {
+				all[all.length - 1] = n - 1;
+			}
+			return all;
+		}
+		int[] selected = new int[pointCount];
+		double bucketSize = (double) (n - 2) / (pointCount - 2);
+		int a = 0;
+		for (int bucket = 0; bucket < pointCount - 2; bucket++) {
+			int start = (int) (bucket * bucketSize) + 1;
+			int end = Math.min((int) ((bucket + 1) * bucketSize) + 1, n - 1);
+			// average of the next bucket, the last point for the last bucket
+			int nextEnd = Math.min((int) ((bucket + 2) * bucketSize) + 1, n);
+			double avgX = 0, avgY = 0;
+			int count = 0;
+			for (int i = end; i < nextEnd; i++) {
+				if (!Double.isNaN(values[i])) {
+					avgX += timestamps[i];
+					avgY += values[i];
+					count++;
+				}
+			}
+			avgX = count > 0 ? avgX / count : timestamps[nextEnd - 1];
+			avgY = count > 0 ? avgY / count : values[nextEnd - 1];
+
+			int best = start;
+			double bestArea = -1;
+			for (int i = start; i < end; i++) {
+				if (Double.isNaN(values[i])) {
+					continue;
+				}
+				double area = Math.abs((timestamps[a] - avgX) * (values[i] - values[a]) -
+						(timestamps[a] - timestamps[i]) * (avgY - values[a]));
+				if (Double.isNaN(area)) {
+					// no known reference point, take the first known value
+					area = 0;
+				}
+				if (area > bestArea) {
+					bestArea = area;
+					best = i;
+				}
+			}
+			selected[bucket + 1] = best;
+			a = best;
+		}
+		selected[pointCount - 1] = n - 1;
+		return selected;
+	}
+}
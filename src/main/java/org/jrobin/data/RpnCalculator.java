@@ -19,7 +19,13 @@
 
 package org.jrobin.data;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import org.jrobin.core.RrdException;
 import org.jrobin.core.Util;
 
@@ -97,15 +103,95 @@ class RpnCalculator {
         private static final byte TKN_PREDICT = 66;
         private static final byte TKN_PREDICTSIGMA = 67;
 
+	private static final Map<String, Byte> TOKEN_IDS = new HashMap<String, Byte>();
+
+	static {
+		TOKEN_IDS.put("+", TKN_PLUS);
+		TOKEN_IDS.put("-", TKN_MINUS);
+		TOKEN_IDS.put("*", TKN_MULT);
+		TOKEN_IDS.put("/", TKN_DIV);
+		TOKEN_IDS.put("%", TKN_MOD);
+		TOKEN_IDS.put("SIN", TKN_SIN);
+		TOKEN_IDS.put("COS", TKN_COS);
+		TOKEN_IDS.put("LOG", TKN_LOG);
+		TOKEN_IDS.put("EXP", TKN_EXP);
+		TOKEN_IDS.put("FLOOR", TKN_FLOOR);
+		TOKEN_IDS.put("CEIL", TKN_CEIL);
+		TOKEN_IDS.put("ROUND", TKN_ROUND);
+		TOKEN_IDS.put("POW", TKN_POW);
+		TOKEN_IDS.put("ABS", TKN_ABS);
+		TOKEN_IDS.put("SQRT", TKN_SQRT);
+		TOKEN_IDS.put("RANDOM", TKN_RANDOM);
+		TOKEN_IDS.put("LT", TKN_LT);
+		TOKEN_IDS.put("LE", TKN_LE);
+		TOKEN_IDS.put("GT", TKN_GT);
+		TOKEN_IDS.put("GE", TKN_GE);
+		TOKEN_IDS.put("EQ", TKN_EQ);
+		TOKEN_IDS.put("IF", TKN_IF);
+		TOKEN_IDS.put("MIN", TKN_MIN);
+		TOKEN_IDS.put("MAX", TKN_MAX);
+		TOKEN_IDS.put("LIMIT", TKN_LIMIT);
+		TOKEN_IDS.put("DUP", TKN_DUP);
+		TOKEN_IDS.put("EXC", TKN_EXC);
+		TOKEN_IDS.put("POP", TKN_POP);
+		TOKEN_IDS.put("UN", TKN_UN);
+		TOKEN_IDS.put("UNKN", TKN_UNKN);
+		TOKEN_IDS.put("NOW", TKN_NOW);
+		TOKEN_IDS.put("TIME", TKN_TIME);
+		TOKEN_IDS.put("LTIME", TKN_LTIME);
+		TOKEN_IDS.put("PI", TKN_PI);
+		TOKEN_IDS.put("E", TKN_E);
+		TOKEN_IDS.put("AND", TKN_AND);
+		TOKEN_IDS.put("OR", TKN_OR);
+		TOKEN_IDS.put("XOR", TKN_XOR);
+		TOKEN_IDS.put("INF", TKN_INF);
+		TOKEN_IDS.put("NEGINF", TKN_NEGINF);
+		TOKEN_IDS.put("STEP", TKN_STEP);
+		TOKEN_IDS.put("YEAR", TKN_YEAR);
+		TOKEN_IDS.put("MONTH", TKN_MONTH);
+		TOKEN_IDS.put("DATE", TKN_DATE);
+		TOKEN_IDS.put("HOUR", TKN_HOUR);
+		TOKEN_IDS.put("MINUTE", TKN_MINUTE);
+		TOKEN_IDS.put("SECOND", TKN_SECOND);
+		TOKEN_IDS.put("WEEK", TKN_WEEK);
+		TOKEN_IDS.put("SIGN", TKN_SIGN);
+		TOKEN_IDS.put("RND", TKN_RND);
+		TOKEN_IDS.put("ADDNAN", TKN_ADDNAN);
+		TOKEN_IDS.put("NE", TKN_NE);
+		TOKEN_IDS.put("ISINF", TKN_ISINF);
+		TOKEN_IDS.put("ATAN", TKN_ATAN);
+		TOKEN_IDS.put("ATAN2", TKN_ATAN2);
+		TOKEN_IDS.put("DEG2RAD", TKN_DEG2RAD);
+		TOKEN_IDS.put("RAD2DEG", TKN_RAD2DEG);
+		TOKEN_IDS.put("COUNT", TKN_COUNT);
+		TOKEN_IDS.put("SORT", TKN_SORT);
+		TOKEN_IDS.put("REV", TKN_REV);
+		TOKEN_IDS.put("AVG", TKN_AVG);
+		TOKEN_IDS.put("TREND", TKN_TREND);
+		TOKEN_IDS.put("TRENDNAN", TKN_TRENDNAN);
+		TOKEN_IDS.put("PREDICT", TKN_PREDICT);
+		TOKEN_IDS.put("PREDICTSIGMA", TKN_PREDICTSIGMA);
+	}
+
+	/**
+	 * Parsed expressions are cached by their text. The cache is emptied when it reaches this size.
+	 */
+	private static final int MAX_PARSED_EXPRESSIONS = 1000;
+	private static final ConcurrentMap<String, ParsedExpression> parsedExpressions =
+			new ConcurrentHashMap<String, ParsedExpression>();
+
 	private String rpnExpression;
 	private String sourceName;
 	private DataProcessor dataProcessor;
 
 	private Token[] tokens;
+	private CompiledExpression compiledExpression;
 	private RpnStack stack = new RpnStack();
 	private double[] calculatedValues;
 	private long[] timestamps;
 	private double timeStep;
+	private int[][] windowKeys;
+	private double[][] windowValues;
 
 	RpnCalculator(String rpnExpression, String sourceName, DataProcessor dataProcessor) throws RrdException {
 		this.rpnExpression = rpnExpression;
@@ -114,233 +200,121 @@ class RpnCalculator {
 		this.timestamps = dataProcessor.getTimestamps();
 		this.timeStep = this.timestamps[1] - this.timestamps[0];
 		this.calculatedValues = new double[this.timestamps.length];
-		StringTokenizer st = new StringTokenizer(rpnExpression, ", ");
-		tokens = new Token[st.countTokens()];
-		for (int i = 0; st.hasMoreTokens(); i++) {
-			tokens[i] = createToken(st.nextToken());
+		ParsedExpression parsedExpression = parse(rpnExpression);
+		tokens = new Token[parsedExpression.tokens.length];
+		for (int i = 0; i < tokens.length; i++) {
+			tokens[i] = bindToken(parsedExpression.tokens[i]);
 		}
+		compiledExpression = parsedExpression.compiledExpression;
 	}
 
-	private Token createToken(String parsedText) throws RrdException {
+	/**
+	 * Returns the parsed and compiled form of an expression, from the cache if the same
+	 * expression was parsed before.
+	 */
+	private static ParsedExpression parse(String rpnExpression) {
+		ParsedExpression parsedExpression = parsedExpressions.get(rpnExpression);
+		if (parsedExpression == null) {
+			StringTokenizer st = new StringTokenizer(rpnExpression, ", ");
+			Token[] tokens = new Token[st.countTokens()];
+			for (int i = 0; st.hasMoreTokens(); i++) {
+				tokens[i] = createToken(st.nextToken());
+			}
+			parsedExpression = new ParsedExpression(tokens, CompiledExpression.compile(tokens));
+			if (parsedExpressions.size() >= MAX_PARSED_EXPRESSIONS) {
+				parsedExpressions.clear();
+			}
+			parsedExpressions.put(rpnExpression, parsedExpression);
+		}
+		return parsedExpression;
+	}
+
+	/**
+	 * Removes all parsed expressions from the cache.
+	 */
+	static void clearParsedExpressions() {
+		parsedExpressions.clear();
+	}
+
+	static int getParsedExpressionCount() {
+		return parsedExpressions.size();
+	}
+
+	private static Token createToken(String parsedText) {
 		Token token = new Token();
-		if (Util.isDouble(parsedText)) {
+		Byte id = TOKEN_IDS.get(parsedText);
+		if (id != null) {
+			token.id = id;
+		}
+		else if (Util.isDouble(parsedText)) {
 			token.id = TKN_NUM;
 			token.number = Util.parseDouble(parsedText);
 		}
-		else if (parsedText.equals("+")) {
-			token.id = TKN_PLUS;
-		}
-		else if (parsedText.equals("-")) {
-			token.id = TKN_MINUS;
-		}
-		else if (parsedText.equals("*")) {
-			token.id = TKN_MULT;
-		}
-		else if (parsedText.equals("/")) {
-			token.id = TKN_DIV;
-		}
-		else if (parsedText.equals("%")) {
-			token.id = TKN_MOD;
-		}
-		else if (parsedText.equals("SIN")) {
-			token.id = TKN_SIN;
-		}
-		else if (parsedText.equals("COS")) {
-			token.id = TKN_COS;
-		}
-		else if (parsedText.equals("LOG")) {
-			token.id = TKN_LOG;
-		}
-		else if (parsedText.equals("EXP")) {
-			token.id = TKN_EXP;
-		}
-		else if (parsedText.equals("FLOOR")) {
-			token.id = TKN_FLOOR;
-		}
-		else if (parsedText.equals("CEIL")) {
-			token.id = TKN_CEIL;
-		}
-		else if (parsedText.equals("ROUND")) {
-			token.id = TKN_ROUND;
-		}
-		else if (parsedText.equals("POW")) {
-			token.id = TKN_POW;
-		}
-		else if (parsedText.equals("ABS")) {
-			token.id = TKN_ABS;
-		}
-		else if (parsedText.equals("SQRT")) {
-			token.id = TKN_SQRT;
-		}
-		else if (parsedText.equals("RANDOM")) {
-			token.id = TKN_RANDOM;
-		}
-		else if (parsedText.equals("LT")) {
-			token.id = TKN_LT;
-		}
-		else if (parsedText.equals("LE")) {
-			token.id = TKN_LE;
-		}
-		else if (parsedText.equals("GT")) {
-			token.id = TKN_GT;
-		}
-		else if (parsedText.equals("GE")) {
-			token.id = TKN_GE;
-		}
-		else if (parsedText.equals("EQ")) {
-			token.id = TKN_EQ;
-		}
-		else if (parsedText.equals("IF")) {
-			token.id = TKN_IF;
-		}
-		else if (parsedText.equals("MIN")) {
-			token.id = TKN_MIN;
-		}
-		else if (parsedText.equals("MAX")) {
-			token.id = TKN_MAX;
-		}
-		else if (parsedText.equals("LIMIT")) {
-			token.id = TKN_LIMIT;
-		}
-		else if (parsedText.equals("DUP")) {
-			token.id = TKN_DUP;
-		}
-		else if (parsedText.equals("EXC")) {
-			token.id = TKN_EXC;
-		}
-		else if (parsedText.equals("POP")) {
-			token.id = TKN_POP;
-		}
-		else if (parsedText.equals("UN")) {
-			token.id = TKN_UN;
-		}
-		else if (parsedText.equals("UNKN")) {
-			token.id = TKN_UNKN;
-		}
-		else if (parsedText.equals("NOW")) {
-			token.id = TKN_NOW;
-		}
-		else if (parsedText.equals("TIME")) {
-			token.id = TKN_TIME;
-		}
-		else if (parsedText.equals("LTIME")) {
-			token.id = TKN_LTIME;
-		}
-		else if (parsedText.equals("PI")) {
-			token.id = TKN_PI;
-		}
-		else if (parsedText.equals("E")) {
-			token.id = TKN_E;
-		}
-		else if (parsedText.equals("AND")) {
-			token.id = TKN_AND;
-		}
-		else if (parsedText.equals("OR")) {
-			token.id = TKN_OR;
-		}
-		else if (parsedText.equals("XOR")) {
-			token.id = TKN_XOR;
-		}
 		else if (parsedText.equals("PREV")) {
+			// refers to the source being calculated, bound later
 			token.id = TKN_PREV;
-			token.variable = sourceName;
-			token.values = calculatedValues;
 		}
 		else if (parsedText.startsWith("PREV(") && parsedText.endsWith(")")) {
 			token.id = TKN_PREV;
 			token.variable = parsedText.substring(5, parsedText.length() - 1);
-			token.values = dataProcessor.getValues(token.variable);
-		}
-		else if (parsedText.equals("INF")) {
-			token.id = TKN_INF;
-		}
-		else if (parsedText.equals("NEGINF")) {
-			token.id = TKN_NEGINF;
-		}
-		else if (parsedText.equals("STEP")) {
-			token.id = TKN_STEP;
-		}
-		else if (parsedText.equals("YEAR")) {
-			token.id = TKN_YEAR;
-		}
-		else if (parsedText.equals("MONTH")) {
-			token.id = TKN_MONTH;
-		}
-		else if (parsedText.equals("DATE")) {
-			token.id = TKN_DATE;
-		}
-		else if (parsedText.equals("HOUR")) {
-			token.id = TKN_HOUR;
-		}
-		else if (parsedText.equals("MINUTE")) {
-			token.id = TKN_MINUTE;
-		}
-		else if (parsedText.equals("SECOND")) {
-			token.id = TKN_SECOND;
-		}
-		else if (parsedText.equals("WEEK")) {
-			token.id = TKN_WEEK;
-		}
-		else if (parsedText.equals("SIGN")) {
-			token.id = TKN_SIGN;
-		}
-		else if (parsedText.equals("RND")) {
-			token.id = TKN_RND;
-		}
-		else if (parsedText.equals("ADDNAN")) {
-			token.id = TKN_ADDNAN;
-		}
-		else if (parsedText.equals("NE")) {
-			token.id = TKN_NE;
-		}
-		else if (parsedText.equals("ISINF")) {
-			token.id = TKN_ISINF;
-		}
-		else if (parsedText.equals("ATAN")) {
-			token.id = TKN_ATAN;
-		}
-		else if (parsedText.equals("ATAN2")) {
-			token.id = TKN_ATAN2;
-		}
-		else if (parsedText.equals("DEG2RAD")) {
-			token.id = TKN_DEG2RAD;
-		}
-		else if (parsedText.equals("RAD2DEG")) {
-			token.id = TKN_RAD2DEG;
-		}
-		else if (parsedText.equals("COUNT")) {
-			token.id = TKN_COUNT;
-		}
-		else if (parsedText.equals("SORT")) {
-			token.id = TKN_SORT;
-		}
-		else if (parsedText.equals("REV")) {
-			token.id = TKN_REV;
-		}
-		else if (parsedText.equals("AVG")) {
-			token.id = TKN_AVG;
-		}
-		else if (parsedText.equals("TREND")) {
-			token.id = TKN_TREND;
-		}
-		else if (parsedText.equals("TRENDNAN")) {
-			token.id = TKN_TRENDNAN;
-		}
-		else if (parsedText.equals("PREDICT")) {
-			token.id = TKN_PREDICT;
-		}
-		else if (parsedText.equals("PREDICTSIGMA")) {
-			token.id = TKN_PREDICTSIGMA;
 		}
 		else {
 			token.id = TKN_VAR;
 			token.variable = parsedText;
+		}
+		return token;
+	}
+
+	/**
+	 * Copies a parsed token and attaches the values it refers to.
+	 */
+	private Token bindToken(Token parsedToken) throws RrdException {
+		Token token = new Token();
+		token.id = parsedToken.id;
+		token.number = parsedToken.number;
+		token.variable = parsedToken.variable;
+		if (token.id == TKN_PREV && token.variable == null) {
+			token.variable = sourceName;
+			token.values = calculatedValues;
+		}
+		else if (token.id == TKN_PREV || token.id == TKN_VAR) {
 			token.values = dataProcessor.getValues(token.variable);
 		}
 		return token;
 	}
 
+	/**
+	 * Calculates the values of the expression for all timestamps. Expressions which do not
+	 * depend on values calculated for earlier timestamps are evaluated by a compiled form,
+	 * one operation over all timestamps at a time, the rest is interpreted slot by slot.
+	 *
+	 * @return Calculated values
+	 * @throws RrdException Thrown if the expression is invalid
+	 */
 	double[] calculateValues() throws RrdException {
+		if (compiledExpression != null) {
+			calculatedValues = compiledExpression.evaluate(dataProcessor, timestamps, timeStep);
+			return calculatedValues;
+		}
+		return interpretValues();
+	}
+
+	/**
+	 * Returns true if the expression is evaluated by its compiled form.
+	 *
+	 * @return true if compiled, false if interpreted
+	 */
+	boolean isCompiled() {
+		return compiledExpression != null;
+	}
+
+	/**
+	 * Calculates the values of the expression slot by slot, without the compiled form.
+	 *
+	 * @return Calculated values
+	 * @throws RrdException Thrown if the expression is invalid
+	 */
+	double[] interpretValues() throws RrdException {
                 TimeZone tz = TimeZone.getDefault();
 		for (int slot = 0; slot < timestamps.length; slot++) {
 			resetStack();
@@ -632,36 +606,14 @@ class RpnCalculator {
                                         {
                                                 int dur = (int) pop();
                                                 pop();
-                                                /*
-                                                 * OK, so to match the output from rrdtool, we have to go *forward* 2 timeperiods.
-                                                 * So at t[59] we use the average of t[1]..t[61]
-                                                 *
-                                                 */
-
-                                                if ((slot+1) < Math.ceil(dur / timeStep)) {
-                                                    push(Double.NaN);
-                                                } else {
+                                                int window = (int) Math.ceil(dur / timeStep);
+                                                double[] trend = getWindowValues(rpi, new int[] {window});
+                                                if (trend == null) {
                                                     double[] vals = dataProcessor.getValues(tokens[token_rpi].variable);
-                                                    boolean ignorenan = token.id == TKN_TRENDNAN;
-                                                    double accum = 0.0;
-                                                    int count = 0;
-
-                                                    int start = (int) (Math.ceil(dur / timeStep));
-                                                    int row = 2;
-                                                    while ((slot + row) > vals.length) {
-                                                        row --;
-                                                    }
-
-                                                    for(; start > 0; start--) {
-                                                        double val = vals[slot + row - start];
-                                                        if (ignorenan || !Double.isNaN(val)) {
-                                                            accum = Util.sum(accum, val);
-                                                            ++count;
-                                                        }
-                                                    }
-                                                    //System.err.printf("t[%d]: %1.10e / %d\n", slot, (count == 0) ? Double.NaN : (accum / count), count);
-                                                    push((count == 0) ? Double.NaN : (accum / count));
+                                                    trend = calculateTrend(vals, window, token.id == TKN_TRENDNAN);
+                                                    setWindowValues(rpi, new int[] {window}, trend);
                                                 }
+                                                push(trend[slot]);
                                         }
                                                 break;
                                         case TKN_PREDICT:
@@ -686,21 +638,10 @@ class RpnCalculator {
                                                 }
                                             }
 
-                                            /* the real calculation */
-                                            double val = Double.NaN;
-
-                                            /* the info on the datasource */
-                                            double[] vals = dataProcessor.getValues(tokens[rpi-1].variable);
-
-                                            int locstep = (int) Math.ceil((float) locstepsize / (float) timeStep);
-
-                                            /* the sums */
-                                            double sum = 0;
-                                            double sum2 = 0;
-                                            int count = 0;
-
-                                            /* now loop for each position */
+                                            /* key: the local window in steps, followed by the shifts in steps */
                                             int doshifts = Math.abs(num_shifts);
+                                            int[] key = new int[doshifts + 1];
+                                            key[0] = (int) Math.ceil((float) locstepsize / (float) timeStep);
                                             for (int loop = 0; loop < doshifts; loop++) {
                                                 /* calculate shift step */
                                                 int shiftstep = 1;
@@ -712,41 +653,15 @@ class RpnCalculator {
                                                 if (shiftstep < 0) {
                                                     throw new RrdException("negative shift step not allowed: " + shiftstep);
                                                 }
-                                                shiftstep = (int) Math.ceil((float) shiftstep / (float) timeStep);
-                                                /* loop all local shifts */
-                                                for (int i = 0; i <= locstep; i++) {
-
-                                                    int offset = shiftstep + i;
-                                                    if ((offset >= 0) && (offset < slot)) {
-                                                        /* get the value */
-                                                        val = vals[slot - offset];
-
-                                                        /* and handle the non NAN case only*/
-                                                        if (!Double.isNaN(val)) {
-                                                            sum = Util.sum(sum, val);
-                                                            sum2 = Util.sum(sum2, val * val);
-                                                            count++;
-                                                        }
-                                                    }
-                                                }
+                                                key[loop + 1] = (int) Math.ceil((float) shiftstep / (float) timeStep);
                                             }
-                                            /* do the final calculations */
-                                            val = Double.NaN;
-                                            if (token.id == TKN_PREDICT) {  /* the average */
-                                                if (count > 0) {
-                                                    val = sum / (double) count;
-                                                }
-                                            } else {
-                                                if (count > 1) { /* the sigma case */
-                                                    val = count * sum2 - sum * sum;
-                                                    if (val < 0) {
-                                                        val = Double.NaN;
-                                                    } else {
-                                                        val = Math.sqrt(val / ((float) count * ((float) count - 1.0)));
-                                                    }
-                                                }
+                                            double[] prediction = getWindowValues(rpi, key);
+                                            if (prediction == null) {
+                                                double[] vals = dataProcessor.getValues(tokens[rpi-1].variable);
+                                                prediction = calculatePrediction(vals, key, token.id == TKN_PREDICTSIGMA);
+                                                setWindowValues(rpi, key, prediction);
                                             }
-                                            push(val);
+                                            push(prediction[slot]);
                                         }
                                                 break;
 					default:
@@ -763,7 +678,129 @@ class RpnCalculator {
 		return calculatedValues;
 	}
 
-	private double getCalendarField(double timestamp, int field) {
+	/**
+	 * Returns the values calculated for a TREND or PREDICT token, if they were calculated
+	 * with the same window parameters.
+	 */
+	private double[] getWindowValues(int rpi, int[] key) {
+		if (windowKeys != null && Arrays.equals(windowKeys[rpi], key)) {
+			return windowValues[rpi];
+		}
+		return null;
+	}
+
+	private void setWindowValues(int rpi, int[] key, double[] values) {
+		if (windowKeys == null) {
+			windowKeys = new int[tokens.length][];
+			windowValues = new double[tokens.length][];
+		}
+		windowKeys[rpi] = key;
+		windowValues[rpi] = values;
+	}
+
+	/**
+	 * Calculates TREND or TRENDNAN for all slots, sliding the window along the values.
+	 *
+	 * @param vals      Values of the datasource
+	 * @param window    Window width in steps
+	 * @param ignorenan true for TRENDNAN, which divides by the window width instead of the
+	 *                  number of known values
+	 * @return Trend values
+	 */
+	static double[] calculateTrend(double[] vals, int window, boolean ignorenan) {
+		double[] trend = new double[vals.length];
+		WindowSum sum = new WindowSum(vals);
+		for (int slot = 0; slot < vals.length; slot++) {
+			if ((slot + 1) < window || window <= 0) {
+				trend[slot] = Double.NaN;
+				continue;
+			}
+			/*
+			 * OK, so to match the output from rrdtool, we have to go *forward* 2 timeperiods.
+			 * So at t[59] we use the average of t[1]..t[61]
+			 */
+			int last = Math.min(slot + 1, vals.length - 1);
+			sum.moveTo(last - window + 1, last);
+			int count = ignorenan ? window : sum.count;
+			trend[slot] = (count == 0) ? Double.NaN : (sum.sum / count);
+		}
+		return trend;
+	}
+
+	/**
+	 * Calculates PREDICT or PREDICTSIGMA for all slots. Each shift has its own window sliding
+	 * along the values; short windows, and slots with infinite values or sums in a window, are
+	 * calculated one value at a time.
+	 *
+	 * @param vals  Values of the datasource
+	 * @param key   Local window in steps, followed by the shifts in steps
+	 * @param sigma true for PREDICTSIGMA
+	 * @return Predicted values
+	 */
+	static double[] calculatePrediction(double[] vals, int[] key, boolean sigma) {
+		int locstep = key[0];
+		double[] prediction = new double[vals.length];
+		// short windows are cheaper to sum one value at a time
+		boolean sliding = locstep + 1 >= WindowSum.MIN_SLIDING_WIDTH;
+		WindowSum[] sums = new WindowSum[sliding ? key.length - 1 : 0];
+		for (int i = 0; i < sums.length; i++) {
+			sums[i] = new WindowSum(vals);
+		}
+		for (int slot = 0; slot < vals.length; slot++) {
+			double sum = 0;
+			double sum2 = 0;
+			int count = 0;
+			boolean oneByOne = !sliding;
+			for (int i = 0; i < sums.length; i++) {
+				/* offsets shiftstep..shiftstep+locstep, only those pointing after the first value */
+				int last = slot - key[i + 1];
+				int first = Math.max(1, last - locstep);
+				sums[i].moveTo(first, locstep < 0 ? first - 1 : last);
+				sum += sums[i].sum;
+				sum2 += sums[i].sum2;
+				count += sums[i].count;
+				oneByOne |= sums[i].infinite > 0 || !WindowSum.isFinite(sums[i].sum) || !WindowSum.isFinite(sums[i].sum2);
+			}
+			if (oneByOne) {
+				sum = 0;
+				sum2 = 0;
+				count = 0;
+				for (int loop = 1; loop < key.length; loop++) {
+					for (int i = 0; i <= locstep; i++) {
+						int offset = key[loop] + i;
+						if ((offset >= 0) && (offset < slot)) {
+							double val = vals[slot - offset];
+							if (!Double.isNaN(val)) {
+								sum = Util.sum(sum, val);
+								sum2 = Util.sum(sum2, val * val);
+								count++;
+							}
+						}
+					}
+				}
+			}
+			/* do the final calculations */
+			double val = Double.NaN;
+			if (!sigma) {  /* the average */
+				if (count > 0) {
+					val = sum / (double) count;
+				}
+			} else {
+				if (count > 1) { /* the sigma case */
+					val = count * sum2 - sum * sum;
+					if (val < 0) {
+						val = Double.NaN;
+					} else {
+						val = Math.sqrt(val / ((float) count * ((float) count - 1.0)));
+					}
+				}
+			}
+			prediction[slot] = val;
+		}
+		return prediction;
+	}
+
+	private static double getCalendarField(double timestamp, int field) {
 		Calendar calendar = Util.getCalendar((long) timestamp);
 		return calendar.get(field);
 	}
@@ -788,6 +825,110 @@ class RpnCalculator {
 		return stack.isEmpty();
 	}
 
+	/**
+	 * Sum, sum of squares and count of the known values in a range of values. The range is
+	 * updated incrementally while it moves forward, with compensated (Neumaier) sums, so that
+	 * values leaving the range are subtracted without losing the smaller values next to them.
+	 * The range is summed again from scratch once it has moved by its own width, and whenever
+	 * a sum is not finite. Short ranges are always summed from scratch. Ranges with infinite
+	 * values or sums are summed in the same order as the values are summed one by one, as
+	 * infinities and overflows do not cancel out.
+	 */
+	private static final class WindowSum {
+		private static final int MIN_SLIDING_WIDTH = 16;
+
+		private final double[] values;
+		private int first = 0;
+		private int last = -1;
+		private int moves = 0;
+		// running sums and the low-order parts lost when they were rounded
+		private double runningSum = 0, sumError = 0;
+		private double runningSum2 = 0, sum2Error = 0;
+		double sum = 0;
+		double sum2 = 0;
+		int count = 0;
+		int infinite = 0;
+
+		WindowSum(double[] values) {
+			this.values = values;
+		}
+
+		void moveTo(int newFirst, int newLast) {
+			if (last < first || newLast < newFirst || newFirst < first || newLast < last || newFirst > last + 1 ||
+					moves >= newLast - newFirst + 1 || newLast - newFirst + 1 < MIN_SLIDING_WIDTH) {
+				first = newFirst;
+				last = newLast;
+				recalculate();
+				return;
+			}
+			for (int i = last + 1; i <= newLast; i++) {
+				add(values[i], 1);
+			}
+			for (int i = first; i < newFirst; i++) {
+				add(values[i], -1);
+			}
+			first = newFirst;
+			last = newLast;
+			moves++;
+			sum = runningSum + sumError;
+			sum2 = runningSum2 + sum2Error;
+			if (!isFinite(sum) || !isFinite(sum2)) {
+				// infinite values or squares
+				recalculate();
+			}
+		}
+
+		static boolean isFinite(double val) {
+			return !Double.isNaN(val) && !Double.isInfinite(val);
+		}
+
+		private void add(double val, int sign) {
+			if (Double.isNaN(val)) {
+				return;
+			}
+			double x = sign * val;
+			double t = runningSum + x;
+			sumError += Math.abs(runningSum) >= Math.abs(x) ? (runningSum - t) + x : (x - t) + runningSum;
+			runningSum = t;
+			double x2 = sign * (val * val);
+			t = runningSum2 + x2;
+			sum2Error += Math.abs(runningSum2) >= Math.abs(x2) ? (runningSum2 - t) + x2 : (x2 - t) + runningSum2;
+			runningSum2 = t;
+			count += sign;
+		}
+
+		private void recalculate() {
+			runningSum = 0;
+			runningSum2 = 0;
+			sumError = 0;
+			sum2Error = 0;
+			count = 0;
+			infinite = 0;
+			moves = 0;
+			for (int i = first; i <= last; i++) {
+				double val = values[i];
+				add(val, 1);
+				if (Double.isInfinite(val)) {
+					infinite++;
+				}
+			}
+			sum = runningSum + sumError;
+			sum2 = runningSum2 + sum2Error;
+			if (infinite > 0 || !isFinite(sum) || !isFinite(sum2)) {
+				// infinities do not cancel out, sum the way the values are summed one by one
+				sum = 0;
+				sum2 = 0;
+				for (int i = first; i <= last; i++) {
+					double val = values[i];
+					if (!Double.isNaN(val)) {
+						sum = Util.sum(sum, val);
+						sum2 = Util.sum(sum2, val * val);
+					}
+				}
+			}
+		}
+	}
+
 	private static final class RpnStack {
 		private static final int MAX_STACK_SIZE = 1000;
 		private double[] stack = new double[MAX_STACK_SIZE];
@@ -823,10 +964,540 @@ class RpnCalculator {
 		}
 	}
 
+	/**
+	 * Tokens of an expression, independent of the source and the data they are evaluated for.
+	 */
+	private static final class ParsedExpression {
+		final Token[] tokens;
+		final CompiledExpression compiledExpression;
+
+		ParsedExpression(Token[] tokens, CompiledExpression compiledExpression) {
+			this.tokens = tokens;
+			this.compiledExpression = compiledExpression;
+		}
+	}
+
 	private static final class Token {
 		byte id = -1;
 		double number = Double.NaN;
 		String variable = null;
 		double[] values = null;
 	}
+
+	/**
+	 * Expression compiled to a sequence of column operations. Each operation is applied to the
+	 * values of all timestamps before the next one starts. Stack positions are resolved at compile
+	 * time, constant subexpressions are folded and datasource values are read in place.
+	 */
+	private static final class CompiledExpression {
+		private static final int CONSTANT = 0;
+		private static final int VARIABLE = 1;
+		private static final int REGISTER = 2;
+
+		private final Instruction[] instructions;
+		private final Operand result;
+		private final int registerCount;
+
+		private CompiledExpression(Instruction[] instructions, Operand result, int registerCount) {
+			this.instructions = instructions;
+			this.result = result;
+			this.registerCount = registerCount;
+		}
+
+		/**
+		 * Compiles the tokens of an expression. Returns null if the expression has to be
+		 * interpreted: it uses PREV, TREND or PREDICT, which look at other timestamps, SORT,
+		 * REV or AVG, which take a variable number of arguments, or it is invalid, in which
+		 * case the interpreter reports the error.
+		 *
+		 * @param tokens Parsed expression
+		 * @return Compiled expression, or null
+		 */
+		static CompiledExpression compile(Token[] tokens) {
+			List<Instruction> instructions = new ArrayList<Instruction>();
+			Operand[] stack = new Operand[RpnStack.MAX_STACK_SIZE];
+			int pos = 0;
+			int registerCount = 0;
+			for (Token token : tokens) {
+				int arity = getArity(token.id);
+				if (arity < 0 || pos < arity) {
+					return null;
+				}
+				switch (token.id) {
+					case TKN_NUM:
+						stack[pos++] = Operand.constant(token.number);
+						break;
+					case TKN_VAR:
+						stack[pos++] = Operand.variable(token.variable);
+						break;
+					case TKN_UNKN:
+						stack[pos++] = Operand.constant(Double.NaN);
+						break;
+					case TKN_PI:
+						stack[pos++] = Operand.constant(Math.PI);
+						break;
+					case TKN_E:
+						stack[pos++] = Operand.constant(Math.E);
+						break;
+					case TKN_INF:
+						stack[pos++] = Operand.constant(Double.POSITIVE_INFINITY);
+						break;
+					case TKN_NEGINF:
+						stack[pos++] = Operand.constant(Double.NEGATIVE_INFINITY);
+						break;
+					case TKN_DUP:
+						stack[pos] = stack[pos - 1];
+						pos++;
+						break;
+					case TKN_EXC:
+						Operand x2 = stack[pos - 1];
+						stack[pos - 1] = stack[pos - 2];
+						stack[pos - 2] = x2;
+						break;
+					case TKN_POP:
+						pos--;
+						break;
+					default:
+						pos -= arity;
+						Operand a = arity > 0 ? stack[pos] : null;
+						Operand b = arity > 1 ? stack[pos + 1] : null;
+						Operand c = arity > 2 ? stack[pos + 2] : null;
+						if (arity > 0 && token.id != TKN_RND && isConstant(a) && isConstant(b) && isConstant(c)) {
+							stack[pos++] = Operand.constant(calculate(token.id, a.value,
+									b != null ? b.value : Double.NaN, c != null ? c.value : Double.NaN));
+						}
+						else {
+							int register = allocateRegister(stack, pos, a, b, c);
+							registerCount = Math.max(registerCount, register + 1);
+							instructions.add(new Instruction(token.id, register, a, b, c));
+							stack[pos++] = Operand.register(register);
+						}
+						break;
+				}
+				if (pos >= RpnStack.MAX_STACK_SIZE) {
+					return null;
+				}
+			}
+			if (pos != 1) {
+				return null;
+			}
+			return new CompiledExpression(instructions.toArray(new Instruction[instructions.size()]),
+					stack[0], registerCount);
+		}
+
+		double[] evaluate(DataProcessor dataProcessor, long[] timestamps, double timeStep) throws RrdException {
+			double[][] registers = new double[registerCount][];
+			for (Instruction instruction : instructions) {
+				double[] out = registers[instruction.register];
+				if (out == null) {
+					out = new double[timestamps.length];
+					registers[instruction.register] = out;
+				}
+				instruction.execute(out, registers, dataProcessor, timestamps, timeStep);
+			}
+			switch (result.kind) {
+				case REGISTER:
+					return registers[result.register];
+				case VARIABLE:
+					return dataProcessor.getValues(result.variable).clone();
+				default:
+					double[] values = new double[timestamps.length];
+					Arrays.fill(values, result.value);
+					return values;
+			}
+		}
+
+		/**
+		 * Returns the number of stack entries a token consumes, or -1 if it cannot be compiled.
+		 */
+		private static int getArity(byte id) {
+			switch (id) {
+				case TKN_NUM:
+				case TKN_VAR:
+				case TKN_UNKN:
+				case TKN_PI:
+				case TKN_E:
+				case TKN_INF:
+				case TKN_NEGINF:
+				case TKN_TIME:
+				case TKN_LTIME:
+				case TKN_NOW:
+				case TKN_STEP:
+				case TKN_COUNT:
+				case TKN_RANDOM:
+					return 0;
+				case TKN_DUP:
+				case TKN_POP:
+				case TKN_SIN:
+				case TKN_COS:
+				case TKN_ATAN:
+				case TKN_LOG:
+				case TKN_EXP:
+				case TKN_FLOOR:
+				case TKN_CEIL:
+				case TKN_ROUND:
+				case TKN_ABS:
+				case TKN_SQRT:
+				case TKN_UN:
+				case TKN_ISINF:
+				case TKN_YEAR:
+				case TKN_MONTH:
+				case TKN_DATE:
+				case TKN_HOUR:
+				case TKN_MINUTE:
+				case TKN_SECOND:
+				case TKN_WEEK:
+				case TKN_SIGN:
+				case TKN_RND:
+				case TKN_DEG2RAD:
+				case TKN_RAD2DEG:
+					return 1;
+				case TKN_EXC:
+				case TKN_PLUS:
+				case TKN_MINUS:
+				case TKN_MULT:
+				case TKN_DIV:
+				case TKN_MOD:
+				case TKN_ATAN2:
+				case TKN_POW:
+				case TKN_LT:
+				case TKN_LE:
+				case TKN_GT:
+				case TKN_GE:
+				case TKN_EQ:
+				case TKN_NE:
+				case TKN_MIN:
+				case TKN_MAX:
+				case TKN_AND:
+				case TKN_OR:
+				case TKN_XOR:
+				case TKN_ADDNAN:
+					return 2;
+				case TKN_IF:
+				case TKN_LIMIT:
+					return 3;
+				default:
+					return -1;
+			}
+		}
+
+		private static boolean isConstant(Operand operand) {
+			return operand == null || operand.kind == CONSTANT;
+		}
+
+		/**
+		 * Picks the register for the result of an operation: the register of one of its
+		 * arguments if no other stack entry refers to it, otherwise the lowest free register.
+		 */
+		private static int allocateRegister(Operand[] stack, int depth, Operand a, Operand b, Operand c) {
+			Operand[] arguments = {a, b, c};
+			for (Operand argument : arguments) {
+				if (argument != null && argument.kind == REGISTER && !isReferenced(stack, depth, argument.register)) {
+					return argument.register;
+				}
+			}
+			for (int register = 0; ; register++) {
+				if (!isReferenced(stack, depth, register)) {
+					return register;
+				}
+			}
+		}
+
+		private static boolean isReferenced(Operand[] stack, int depth, int register) {
+			for (int i = 0; i < depth; i++) {
+				if (stack[i].kind == REGISTER && stack[i].register == register) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		/**
+		 * Applies a single operation to scalar arguments, x1 being the deepest stack entry.
+		 */
+		private static double calculate(byte id, double x1, double x2, double x3) {
+			switch (id) {
+				case TKN_PLUS:
+					return x2 + x1;
+				case TKN_MINUS:
+					return x1 - x2;
+				case TKN_MULT:
+					return x2 * x1;
+				case TKN_DIV:
+					return x1 / x2;
+				case TKN_MOD:
+					return x1 % x2;
+				case TKN_SIN:
+					return Math.sin(x1);
+				case TKN_COS:
+					return Math.cos(x1);
+				case TKN_ATAN:
+					return Math.atan(x1);
+				case TKN_ATAN2:
+					return Math.atan2(x1, x2);
+				case TKN_LOG:
+					return Math.log(x1);
+				case TKN_EXP:
+					return Math.exp(x1);
+				case TKN_FLOOR:
+					return Math.floor(x1);
+				case TKN_CEIL:
+					return Math.ceil(x1);
+				case TKN_ROUND:
+					return Math.round(x1);
+				case TKN_POW:
+					return Math.pow(x1, x2);
+				case TKN_ABS:
+					return Math.abs(x1);
+				case TKN_SQRT:
+					return Math.sqrt(x1);
+				case TKN_LT:
+					return x1 < x2 ? 1 : 0;
+				case TKN_LE:
+					return x1 <= x2 ? 1 : 0;
+				case TKN_GT:
+					return x1 > x2 ? 1 : 0;
+				case TKN_GE:
+					return x1 >= x2 ? 1 : 0;
+				case TKN_EQ:
+					return x1 == x2 ? 1 : 0;
+				case TKN_NE:
+					return x1 != x2 ? 1 : 0;
+				case TKN_IF:
+					return x1 != 0 ? x2 : x3;
+				case TKN_MIN:
+					return Math.min(x2, x1);
+				case TKN_MAX:
+					return Math.max(x2, x1);
+				case TKN_LIMIT:
+					return x1 < x2 || x1 > x3 ? Double.NaN : x1;
+				case TKN_UN:
+					return Double.isNaN(x1) ? 1 : 0;
+				case TKN_ISINF:
+					return Double.isInfinite(x1) ? 1 : 0;
+				case TKN_AND:
+					return (x1 != 0 && x2 != 0) ? 1 : 0;
+				case TKN_OR:
+					return (x1 != 0 || x2 != 0) ? 1 : 0;
+				case TKN_XOR:
+					return ((x1 != 0 && x2 == 0) || (x1 == 0 && x2 != 0)) ? 1 : 0;
+				case TKN_YEAR:
+					return getCalendarField(x1, Calendar.YEAR);
+				case TKN_MONTH:
+					return getCalendarField(x1, Calendar.MONTH);
+				case TKN_DATE:
+					return getCalendarField(x1, Calendar.DAY_OF_MONTH);
+				case TKN_HOUR:
+					return getCalendarField(x1, Calendar.HOUR_OF_DAY);
+				case TKN_MINUTE:
+					return getCalendarField(x1, Calendar.MINUTE);
+				case TKN_SECOND:
+					return getCalendarField(x1, Calendar.SECOND);
+				case TKN_WEEK:
+					return getCalendarField(x1, Calendar.WEEK_OF_YEAR);
+				case TKN_SIGN:
+					return Double.isNaN(x1) ? Double.NaN : x1 > 0 ? +1 : x1 < 0 ? -1 : 0;
+				case TKN_RND:
+					return Math.floor(x1 * Math.random());
+				case TKN_ADDNAN:
+					return Double.isNaN(x1) ? x2 : Double.isNaN(x2) ? x1 : x1 + x2;
+				case TKN_DEG2RAD:
+					return Math.toRadians(x1);
+				case TKN_RAD2DEG:
+					return Math.toDegrees(x1);
+				default:
+					throw new IllegalArgumentException("Unexpected RPN token encountered, token.id=" + id);
+			}
+		}
+	}
+
+	private static final class Operand {
+		int kind;
+		double value = Double.NaN;
+		String variable = null;
+		int register = -1;
+
+		static Operand constant(double value) {
+			Operand operand = new Operand();
+			operand.kind = CompiledExpression.CONSTANT;
+			operand.value = value;
+			return operand;
+		}
+
+		static Operand variable(String variable) {
+			Operand operand = new Operand();
+			operand.kind = CompiledExpression.VARIABLE;
+			operand.variable = variable;
+			return operand;
+		}
+
+		static Operand register(int register) {
+			Operand operand = new Operand();
+			operand.kind = CompiledExpression.REGISTER;
+			operand.register = register;
+			return operand;
+		}
+	}
+
+	/**
+	 * Single operation of a compiled expression, applied to all timestamps.
+	 */
+	private static final class Instruction {
+		final byte id;
+		final int register;
+		final Operand a, b, c;
+
+		Instruction(byte id, int register, Operand a, Operand b, Operand c) {
+			this.id = id;
+			this.register = register;
+			this.a = a;
+			this.b = b;
+			this.c = c;
+		}
+
+		void execute(double[] out, double[][] registers, DataProcessor dataProcessor, long[] timestamps,
+					 double timeStep) throws RrdException {
+			int n = out.length;
+			switch (id) {
+				case TKN_TIME:
+					for (int i = 0; i < n; i++) {
+						out[i] = timestamps[i];
+					}
+					return;
+				case TKN_LTIME:
+					TimeZone tz = TimeZone.getDefault();
+					for (int i = 0; i < n; i++) {
+						out[i] = timestamps[i] + (tz.getOffset(timestamps[i]) / 1000L);
+					}
+					return;
+				case TKN_COUNT:
+					for (int i = 0; i < n; i++) {
+						out[i] = i + 1;
+					}
+					return;
+				case TKN_STEP:
+					Arrays.fill(out, timeStep);
+					return;
+				case TKN_NOW:
+					Arrays.fill(out, Util.getTime());
+					return;
+				case TKN_RANDOM:
+					for (int i = 0; i < n; i++) {
+						out[i] = Math.random();
+					}
+					return;
+			}
+			if (c == null && b != null && b.kind == CompiledExpression.CONSTANT &&
+					executeWithConstant(out, column(a, registers, dataProcessor, n), b.value)) {
+				return;
+			}
+			double[] x1 = column(a, registers, dataProcessor, n);
+			double[] x2 = b != null ? column(b, registers, dataProcessor, n) : null;
+			double[] x3 = c != null ? column(c, registers, dataProcessor, n) : null;
+			switch (id) {
+				case TKN_PLUS:
+					for (int i = 0; i < n; i++) {
+						out[i] = x2[i] + x1[i];
+					}
+					break;
+				case TKN_MINUS:
+					for (int i = 0; i < n; i++) {
+						out[i] = x1[i] - x2[i];
+					}
+					break;
+				case TKN_MULT:
+					for (int i = 0; i < n; i++) {
+						out[i] = x2[i] * x1[i];
+					}
+					break;
+				case TKN_DIV:
+					for (int i = 0; i < n; i++) {
+						out[i] = x1[i] / x2[i];
+					}
+					break;
+				case TKN_LT:
+					for (int i = 0; i < n; i++) {
+						out[i] = x1[i] < x2[i] ? 1 : 0;
+					}
+					break;
+				case TKN_GT:
+					for (int i = 0; i < n; i++) {
+						out[i] = x1[i] > x2[i] ? 1 : 0;
+					}
+					break;
+				case TKN_IF:
+					for (int i = 0; i < n; i++) {
+						out[i] = x1[i] != 0 ? x2[i] : x3[i];
+					}
+					break;
+				case TKN_UN:
+					for (int i = 0; i < n; i++) {
+						out[i] = Double.isNaN(x1[i]) ? 1 : 0;
+					}
+					break;
+				default:
+					if (x3 != null) {
+						for (int i = 0; i < n; i++) {
+							out[i] = CompiledExpression.calculate(id, x1[i], x2[i], x3[i]);
+						}
+					}
+					else if (x2 != null) {
+						for (int i = 0; i < n; i++) {
+							out[i] = CompiledExpression.calculate(id, x1[i], x2[i], Double.NaN);
+						}
+					}
+					else {
+						for (int i = 0; i < n; i++) {
+							out[i] = CompiledExpression.calculate(id, x1[i], Double.NaN, Double.NaN);
+						}
+					}
+					break;
+			}
+		}
+
+		/**
+		 * Arithmetic with a constant second argument, the usual way to scale a datasource.
+		 */
+		private boolean executeWithConstant(double[] out, double[] x1, double x2) {
+			int n = out.length;
+			switch (id) {
+				case TKN_PLUS:
+					for (int i = 0; i < n; i++) {
+						out[i] = x2 + x1[i];
+					}
+					return true;
+				case TKN_MINUS:
+					for (int i = 0; i < n; i++) {
+						out[i] = x1[i] - x2;
+					}
+					return true;
+				case TKN_MULT:
+					for (int i = 0; i < n; i++) {
+						out[i] = x2 * x1[i];
+					}
+					return true;
+				case TKN_DIV:
+					for (int i = 0; i < n; i++) {
+						out[i] = x1[i] / x2;
+					}
+					return true;
+				default:
+					return false;
+			}
+		}
+
+		private static double[] column(Operand operand, double[][] registers, DataProcessor dataProcessor, int n)
+				throws RrdException {
+			switch (operand.kind) {
+				case CompiledExpression.REGISTER:
+					return registers[operand.register];
+				case CompiledExpression.VARIABLE:
+					return dataProcessor.getValues(operand.variable);
+				default:
+					double[] values = new double[n];
+					Arrays.fill(values, operand.value);
+					return values;
+			}
+		}
+	}
 }
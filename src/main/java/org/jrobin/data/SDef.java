@@ -21,6 +21,8 @@ package org.jrobin.data;
 
 import org.jrobin.core.RrdException;
 
+import java.util.Arrays;
+
 class SDef extends Source {
 	private String defName;
 	private String consolFun;
@@ -60,4 +62,10 @@ class SDef extends Source {
 	double getPercentile(long tStart, long tEnd, double percentile) throws RrdException {
 		return value;
 	}
+
+	double[] getPercentiles(long tStart, long tEnd, double[] percentiles) throws RrdException {
+		double[] result = new double[percentiles.length];
+		Arrays.fill(result, value);
+		return result;
+	}
 }
@@ -65,4 +65,9 @@ abstract class Source implements ConsolFuns {
 		Aggregator agg = new Aggregator(timestamps, values);
 		return agg.getPercentile(tStart, tEnd, percentile, includenan);
 	}
+
+	double[] getPercentiles(long tStart, long tEnd, double[] percentiles) throws RrdException {
+		Aggregator agg = new Aggregator(timestamps, values);
+		return agg.getPercentiles(tStart, tEnd, percentiles, false);
+	}
 }
@@ -18,9 +18,11 @@
  *******************************************************************************/
 package org.jrobin.graph;
 
+import org.jrobin.core.ConsolFuns;
 import org.jrobin.core.RrdException;
 import org.jrobin.core.Util;
 import org.jrobin.data.DataProcessor;
+import org.jrobin.data.PixelDownsampler;
 
 import javax.swing.*;
 import java.awt.*;
@@ -220,14 +222,35 @@ public class RrdGraph implements RrdGraphConstants {
 		worker.setAntiAliasing(gdef.antiAliasing);
 		worker.clip(im.xorigin + 1, im.yorigin - gdef.height - 1, gdef.width - 1, gdef.height + 2);
 		double areazero = mapper.ytr((im.minval > 0.0) ? im.minval : (im.maxval < 0.0) ? im.maxval : 0.0);
-		double[] x = xtr(dproc.getTimestamps()), lastY = null;
+		long[] timestamps = dproc.getTimestamps();
+		// with more than two values per pixel, draw per-pixel maximums and min/max envelopes instead
+		PixelDownsampler downsampler = null;
+		double[] envelopeX = null;
+		if (timestamps.length > 2 * gdef.width) {
+			dproc.setPixelCount(gdef.width);
+			downsampler = dproc.getPixelDownsampler();
+			timestamps = downsampler.getPixelTimestamps();
+			envelopeX = new double[2 * timestamps.length];
+			for (int i = 0; i < timestamps.length; i++) {
+				envelopeX[2 * i] = envelopeX[2 * i + 1] = mapper.xtr(timestamps[i]);
+			}
+		}
+		double[] x = xtr(timestamps), lastY = null;
 		// draw line, area and stack
 		for (PlotElement plotElement : gdef.plotElements) {
 			if (plotElement instanceof SourcedPlotElement) {
 				SourcedPlotElement source = (SourcedPlotElement) plotElement;
-				double[] y = ytr(source.getValues());
+				double[] values = source.getValues();
+				double[] y = ytr(downsampler != null ? downsampler.downsample(values, ConsolFuns.CF_MAX) : values);
+				double[] lineX = x, lineY = y;
+				if (downsampler != null &&
+						(source instanceof Line || (source instanceof Stack && ((Stack) source).getParentLineWidth() >= 0F))) {
+					// lines go through the minimum and the maximum of each pixel
+					lineX = envelopeX;
+					lineY = ytrEnvelope(downsampler.envelope(values));
+				}
 				if (source instanceof Line) {
-					worker.drawPolyline(x, y, source.color, new BasicStroke(((Line) source).width));
+					worker.drawPolyline(lineX, lineY, source.color, new BasicStroke(((Line) source).width));
 				}
 				else if (source instanceof Area) {
 					worker.fillPolygon(x, areazero, y, source.color);
@@ -237,7 +260,7 @@ public class RrdGraph implements RrdGraphConstants {
 					float width = stack.getParentLineWidth();
 					if (width >= 0F) {
 						// line
-						worker.drawPolyline(x, y, stack.color, new BasicStroke(width));
+						worker.drawPolyline(lineX, lineY, stack.color, new BasicStroke(width));
 					}
 					else {
 						// area
@@ -664,6 +687,20 @@ public class RrdGraph implements RrdGraphConstants {
 		return valuesDev;
 	}
 
+	/**
+	 * Translates per-pixel minimums and maximums to a polyline which visits the minimum and the
+	 * maximum of every pixel.
+	 */
+	double[] ytrEnvelope(double[][] envelope) {
+		double[] min = envelope[0], max = envelope[1];
+		double[] valuesDev = new double[2 * min.length];
+		for (int i = 0; i < min.length; i++) {
+			valuesDev[2 * i] = Double.isNaN(min[i]) ? Double.NaN : mapper.ytr(min[i]);
+			valuesDev[2 * i + 1] = Double.isNaN(max[i]) ? Double.NaN : mapper.ytr(max[i]);
+		}
+		return valuesDev;
+	}
+
 	/**
 	 * Renders this graph onto graphing device
 	 *
@@ -0,0 +1,159 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The OpenNMS Group, Inc.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *******************************************************************************/
+package org.jrobin.core;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Test;
+
+public class RrdBackendTest {
+	private static final int INT_VALUE = -123456789;
+	private static final long LONG_VALUE = Long.MIN_VALUE + 0x0123456789ABCDEFL;
+	private static final double DOUBLE_VALUE = -Math.PI;
+	private static final int RUN_COUNT = 3;
+	private static final double[] VALUES = {
+			1.5, -0.0, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.MIN_VALUE,
+			Double.MAX_VALUE, Double.NaN, Double.longBitsToDouble(0x7ff8000000000123L)
+	};
+	// positions of the int, the long, the double, the run of NaNs and the array
+	private static final long INT_OFFSET = 0, LONG_OFFSET = 4, DOUBLE_OFFSET = 12, RUN_OFFSET = 20;
+	private static final long ARRAY_OFFSET = RUN_OFFSET + 8 * RUN_COUNT;
+	private static final int LENGTH = (int) ARRAY_OFFSET + 8 * VALUES.length;
+
+	/**
+	 * Backend which only implements the abstract methods, so that all primitives go through
+	 * the byte array fallbacks of the base class.
+	 */
+	private static class ByteArrayBackend extends RrdBackend {
+		private byte[] buffer = new byte[0];
+
+		ByteArrayBackend() {
+			super("byte-array");
+		}
+
+		protected void write(final long offset, final byte[] b) {
+			System.arraycopy(b, 0, buffer, (int) offset, b.length);
+		}
+
+		protected void read(final long offset, final byte[] b) {
+			System.arraycopy(buffer, (int) offset, b, 0, b.length);
+		}
+
+		public long getLength() {
+			return buffer.length;
+		}
+
+		protected void setLength(final long length) {
+			final byte[] b = new byte[(int) length];
+			System.arraycopy(buffer, 0, b, 0, Math.min(buffer.length, b.length));
+			buffer = b;
+		}
+	}
+
+	/**
+	 * Encodes the primitives the way RRD files always stored them: big endian, with
+	 * canonical NaNs.
+	 */
+	private static byte[] encode() throws IOException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(INT_VALUE);
+		out.writeLong(LONG_VALUE);
+		out.writeDouble(DOUBLE_VALUE);
+		for (int i = 0; i < RUN_COUNT; i++) {
+			out.writeDouble(Double.NaN);
+		}
+		for (final double value : VALUES) {
+			out.writeDouble(value);
+		}
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	private static void assertDoubleBits(final double expected, final double actual) {
+		assertEquals(Double.doubleToRawLongBits(expected), Double.doubleToRawLongBits(actual));
+	}
+
+	private static void checkBackend(final RrdBackend backend) throws IOException {
+		final String name = backend.getClass().getSimpleName();
+		backend.setLength(LENGTH);
+
+		// primitives written one by one match the encoded image
+		backend.writeInt(INT_OFFSET, INT_VALUE);
+		backend.writeLong(LONG_OFFSET, LONG_VALUE);
+		backend.writeDouble(DOUBLE_OFFSET, DOUBLE_VALUE);
+		backend.writeDouble(RUN_OFFSET, Double.NaN, RUN_COUNT);
+		backend.writeDouble(ARRAY_OFFSET, VALUES);
+		final byte[] expected = encode();
+		assertArrayEquals(name, expected, backend.readAll());
+
+		// raw bits, including a non-canonical NaN, are read back as encoded
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(~INT_VALUE);
+		out.writeLong(~LONG_VALUE);
+		out.writeLong(0x7ff0000000000001L);
+		for (int i = 0; i < RUN_COUNT + VALUES.length; i++) {
+			out.writeLong(Double.doubleToRawLongBits(VALUES[i % VALUES.length]) ^ i);
+		}
+		out.close();
+		final byte[] image = bytes.toByteArray();
+		backend.write(0, image);
+
+		final DataInputStream in = new DataInputStream(new ByteArrayInputStream(image));
+		assertEquals(name, in.readInt(), backend.readInt(INT_OFFSET));
+		assertEquals(name, in.readLong(), backend.readLong(LONG_OFFSET));
+		assertDoubleBits(Double.longBitsToDouble(in.readLong()), backend.readDouble(DOUBLE_OFFSET));
+		final double[] values = backend.readDouble(RUN_OFFSET, RUN_COUNT + VALUES.length);
+		for (int i = 0; i < values.length; i++) {
+			final double value = Double.longBitsToDouble(in.readLong());
+			assertDoubleBits(value, values[i]);
+			assertDoubleBits(value, backend.readDouble(RUN_OFFSET + 8 * i));
+		}
+	}
+
+	@Test
+	public void testByteArrayFallbacks() throws IOException {
+		checkBackend(new ByteArrayBackend());
+	}
+
+	@Test
+	public void testBackends() throws IOException, RrdException {
+		for (final String factoryName : new String[] { "FILE", "14FILE", "SAFE", "WRITEBEHIND", "NIO", "MNIO", "MEMORY" }) {
+			final RrdBackendFactory factory = RrdBackendFactory.getFactory(factoryName);
+			final String path = "target/test-backend-" + factoryName + ".rrd";
+			new File(path).delete();
+			final RrdBackend backend = factory.open(path, false);
+			try {
+				checkBackend(backend);
+			} finally {
+				backend.close();
+			}
+			if (factory instanceof RrdMemoryBackendFactory) {
+				((RrdMemoryBackendFactory) factory).delete(path);
+			}
+		}
+	}
+}
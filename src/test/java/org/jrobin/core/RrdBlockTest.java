@@ -0,0 +1,243 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The OpenNMS Group, Inc.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *******************************************************************************/
+package org.jrobin.core;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class RrdBlockTest {
+	private static final long START = 1000000000L;
+	// more than 64 primitives in each archive: 4 definitions + 3 per datasource
+	private static final int DS_COUNT = 24;
+
+	private static final int STRING = RrdLayout.RRD_STRING, INT = RrdLayout.RRD_INT;
+	private static final int LONG = RrdLayout.RRD_LONG, DOUBLE = RrdLayout.RRD_DOUBLE;
+
+	/**
+	 * Allocates primitives one by one, the way they were allocated before RRDs were stored as
+	 * blocks, and returns their pointers.
+	 */
+	private static long[] allocate(final RrdAllocator allocator, final int... types) throws IOException {
+		final long[] pointers = new long[types.length];
+		for (int i = 0; i < types.length; i++) {
+			pointers[i] = allocator.allocate(RrdLayout.RRD_PRIM_SIZES[types[i]]);
+		}
+		return pointers;
+	}
+
+	private static RrdDef createRrdDef(final String path) throws RrdException {
+		final RrdDef rrdDef = new RrdDef(path, START, 60);
+		for (int i = 0; i < DS_COUNT; i++) {
+			rrdDef.addDatasource("ds" + i, i % 2 == 0 ? "GAUGE" : "ABSOLUTE", 120 + i, -1000 - i, 1000 + i);
+		}
+		rrdDef.addArchive("AVERAGE", 0.5, 1, 30);
+		rrdDef.addArchive("MAX", 0.3, 4, 10);
+		rrdDef.addArchive("LAST", 0.5, 1, 2);
+		return rrdDef;
+	}
+
+	private static void update(final RrdDb rrdDb, final int first, final int count) throws IOException, RrdException {
+		final double[] values = new double[DS_COUNT];
+		for (int t = first; t < first + count; t++) {
+			for (int i = 0; i < DS_COUNT; i++) {
+				values[i] = i % 5 == 0 && t % 3 == 0 ? Double.NaN : i * 10 + t % 7;
+			}
+			rrdDb.createSample(START + t * 60 + 13).setValues(values).update();
+		}
+	}
+
+	/**
+	 * Checks that each value of an RRD is stored where the allocator used to put it.
+	 */
+	private static void checkImage(final RrdDb rrdDb) throws IOException, RrdException {
+		final ByteBuffer image = ByteBuffer.wrap(rrdDb.getBytes());
+		final RrdAllocator allocator = new RrdAllocator();
+		final Header header = rrdDb.getHeader();
+		final long[] h = allocate(allocator, STRING, LONG, INT, INT, LONG);
+		assertEquals(header.getSignature(), getString(image, h[0]));
+		assertEquals(header.getStep(), image.getLong((int) h[1]));
+		assertEquals(header.getDsCount(), image.getInt((int) h[2]));
+		assertEquals(header.getArcCount(), image.getInt((int) h[3]));
+		assertEquals(header.getLastUpdateTime(), image.getLong((int) h[4]));
+		for (int i = 0; i < header.getDsCount(); i++) {
+			final Datasource ds = rrdDb.getDatasource(i);
+			final long[] d = allocate(allocator, STRING, STRING, LONG, DOUBLE, DOUBLE, DOUBLE, DOUBLE, LONG);
+			assertEquals(ds.getDsName(), getString(image, d[0]));
+			assertEquals(ds.getDsType(), getString(image, d[1]));
+			assertEquals(ds.getHeartbeat(), image.getLong((int) d[2]));
+			assertEquals(ds.getMinValue(), image.getDouble((int) d[3]), 0);
+			assertEquals(ds.getMaxValue(), image.getDouble((int) d[4]), 0);
+			assertEquals(ds.getLastValue(), image.getDouble((int) d[5]), 0);
+			assertEquals(ds.getAccumValue(), image.getDouble((int) d[6]), 0);
+			assertEquals(ds.getNanSeconds(), image.getLong((int) d[7]));
+		}
+		for (int a = 0; a < header.getArcCount(); a++) {
+			final Archive archive = rrdDb.getArchive(a);
+			final long[] def = allocate(allocator, STRING, DOUBLE, INT, INT);
+			assertEquals(archive.getConsolFun(), getString(image, def[0]));
+			assertEquals(archive.getXff(), image.getDouble((int) def[1]), 0);
+			assertEquals(archive.getSteps(), image.getInt((int) def[2]));
+			final int rows = archive.getRows();
+			assertEquals(rows, image.getInt((int) def[3]));
+			for (int i = 0; i < header.getDsCount(); i++) {
+				final ArcState state = archive.getArcState(i);
+				final long[] s = allocate(allocator, DOUBLE, LONG);
+				assertEquals(state.getAccumValue(), image.getDouble((int) s[0]), 0);
+				assertEquals(state.getNanSteps(), image.getLong((int) s[1]));
+				final Robin robin = archive.getRobin(i);
+				final long pointer = allocate(allocator, INT)[0];
+				final long values = allocator.allocate(rows * RrdLayout.RRD_PRIM_SIZES[DOUBLE]);
+				assertEquals(robin.getPointer(), image.getInt((int) pointer));
+				for (int row = 0; row < rows; row++) {
+					final int position = (robin.getPointer() + row) % rows;
+					assertEquals(robin.getValue(row), image.getDouble((int) (values + position * 8L)), 0);
+				}
+			}
+		}
+		assertEquals(image.capacity(), allocator.getPointer());
+	}
+
+	private static String getString(final ByteBuffer image, final long pointer) {
+		final byte[] b = new byte[RrdLayout.RRD_PRIM_SIZES[STRING]];
+		image.position((int) pointer);
+		image.get(b);
+		return RrdBackend.decodeString(b);
+	}
+
+	private static RrdDb createRrd(final String factoryName) throws IOException, RrdException {
+		final String path = "target/test-block-" + factoryName + ".rrd";
+		new File(path).delete();
+		((RrdMemoryBackendFactory) RrdBackendFactory.getFactory("MEMORY")).delete(path);
+		return new RrdDb(createRrdDef(path), RrdBackendFactory.getFactory(factoryName));
+	}
+
+	@Test
+	public void testArchiveLayoutMatchesAllocator() throws IOException {
+		for (final int dsCount : new int[] { 1, 3, 21, 40 }) {
+			for (final int rows : new int[] { 1, 7, 600 }) {
+				final RrdLayout layout = RrdLayout.getArchiveLayout(dsCount, rows);
+				final RrdAllocator allocator = new RrdAllocator();
+				final long[] pointers = new long[layout.getCount()];
+				System.arraycopy(allocate(allocator, STRING, DOUBLE, INT, INT), 0, pointers, 0, 4);
+				for (int i = 0; i < dsCount; i++) {
+					System.arraycopy(allocate(allocator, DOUBLE, LONG, INT), 0, pointers, 4 + 3 * i, 3);
+					allocator.allocate(rows * RrdLayout.RRD_PRIM_SIZES[DOUBLE]);
+				}
+				assertEquals(4 + 3 * dsCount, layout.getCount());
+				for (int i = 0; i < pointers.length; i++) {
+					assertEquals(dsCount + "/" + rows + " primitive " + i, pointers[i], layout.getOffset(i));
+				}
+				assertEquals(allocator.getPointer(), layout.getLength());
+				assertSame(layout, RrdLayout.getArchiveLayout(dsCount, rows));
+			}
+		}
+	}
+
+	@Test
+	public void testWideRrdMatchesAllocator() throws IOException, RrdException {
+		// cached and deferred values of the last datasources live past the first bitset word
+		byte[] expected = null;
+		for (final String factoryName : new String[] { "MEMORY", "FILE", "SAFE", "NIO", "FILE-DEFERRED" }) {
+			final boolean deferred = factoryName.endsWith("-DEFERRED");
+			final RrdDb rrdDb = createRrd(deferred ? "FILE" : factoryName);
+			if (deferred) {
+				rrdDb.setDeferredState(true);
+			}
+			update(rrdDb, 1, 50);
+			checkImage(rrdDb);
+			final byte[] bytes = rrdDb.getBytes();
+			if (expected == null) {
+				expected = bytes;
+			}
+			assertTrue(factoryName, Arrays.equals(expected, bytes));
+			final Datasource last = rrdDb.getDatasource(DS_COUNT - 1);
+			assertEquals("ds" + (DS_COUNT - 1), last.getDsName());
+			assertEquals((DS_COUNT - 1) * 10 + 50 % 7, last.getLastValue(), 0);
+			assertEquals(120 + DS_COUNT - 1, last.getHeartbeat());
+			rrdDb.close();
+		}
+	}
+
+	@Test
+	public void testConstantsFromOpenImage() throws IOException, RrdException {
+		final RrdDb created = createRrd("MEMORY");
+		final String path = created.getPath();
+		created.close();
+		final RrdDb rrdDb = new RrdDb(path, RrdBackendFactory.getFactory("MEMORY"));
+		final RrdBackend backend = rrdDb.getRrdBackend();
+		final RrdAllocator allocator = new RrdAllocator();
+		final long[] h = allocate(allocator, STRING, LONG, INT, INT, LONG);
+		for (int i = 0; i < DS_COUNT; i++) {
+			allocate(allocator, STRING, STRING, LONG, DOUBLE, DOUBLE, DOUBLE, DOUBLE, LONG);
+		}
+		final long[] def = allocate(allocator, STRING, DOUBLE, INT, INT);
+		// constants were taken while the RRD was opened, other values are read again
+		backend.writeLong(h[1], 300);
+		backend.writeInt(def[2], 99);
+		backend.writeInt(def[3], 999);
+		backend.writeString(def[0], "MIN");
+		backend.writeDouble(def[1], 0.25);
+		backend.writeLong(h[4], START + 12345);
+		assertEquals(60, rrdDb.getHeader().getStep());
+		assertEquals(DS_COUNT, rrdDb.getHeader().getDsCount());
+		final Archive archive = rrdDb.getArchive(0);
+		assertEquals("AVERAGE", archive.getConsolFun());
+		assertEquals(1, archive.getSteps());
+		assertEquals(30, archive.getRows());
+		assertEquals(0.25, archive.getXff(), 0);
+		assertEquals(START + 12345, rrdDb.getLastUpdateTime());
+		rrdDb.close();
+	}
+
+	@Test
+	public void testUncachedBackendsReadThrough() throws IOException, RrdException {
+		for (final String factoryName : new String[] { "MEMORY", "SAFE", "FILE" }) {
+			final RrdDb rrdDb = createRrd(factoryName);
+			update(rrdDb, 1, 10);
+			final RrdBackend backend = rrdDb.getRrdBackend();
+			final boolean cached = backend.isCachingAllowed();
+			assertEquals(factoryName, "FILE".equals(factoryName), cached);
+			final RrdAllocator allocator = new RrdAllocator();
+			final long lastUpdateTime = allocate(allocator, STRING, LONG, INT, INT, LONG)[4];
+			long lastValue = 0;
+			for (int i = 0; i < DS_COUNT; i++) {
+				lastValue = allocate(allocator, STRING, STRING, LONG, DOUBLE, DOUBLE, DOUBLE, DOUBLE, LONG)[5];
+			}
+			// offsets of archive layouts include the archive definition
+			final RrdLayout layout = RrdLayout.getArchiveLayout(DS_COUNT, 30);
+			final long nanSteps = allocator.getPointer() + layout.getOffset(layout.getCount() - 2);
+
+			final long oldTime = rrdDb.getLastUpdateTime();
+			final double oldValue = rrdDb.getDatasource(DS_COUNT - 1).getLastValue();
+			final long oldSteps = rrdDb.getArchive(0).getArcState(DS_COUNT - 1).getNanSteps();
+			backend.writeLong(lastUpdateTime, START + 12345);
+			backend.writeDouble(lastValue, 42);
+			backend.writeLong(nanSteps, 17);
+			assertEquals(factoryName, cached ? oldTime : START + 12345, rrdDb.getLastUpdateTime());
+			assertEquals(factoryName, cached ? oldValue : 42, rrdDb.getDatasource(DS_COUNT - 1).getLastValue(), 0);
+			assertEquals(factoryName, cached ? oldSteps : 17, rrdDb.getArchive(0).getArcState(DS_COUNT - 1).getNanSteps());
+			rrdDb.close();
+		}
+	}
+}
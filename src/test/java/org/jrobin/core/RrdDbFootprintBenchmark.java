@@ -0,0 +1,65 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The OpenNMS Group, Inc.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *******************************************************************************/
+package org.jrobin.core;
+
+/**
+ * Measures the heap used by open RRDs, not counting their data: all RRDs share a single
+ * memory backend. Not a unit test, run it with:
+ * <pre>
+ * java -cp target/classes:target/test-classes org.jrobin.core.RrdDbFootprintBenchmark [count]
+ * </pre>
+ */
+public class RrdDbFootprintBenchmark {
+	public static void main(final String[] args) throws Exception {
+		final int count = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+		final RrdBackendFactory factory = RrdBackendFactory.getFactory("MEMORY");
+		final RrdDef rrdDef = new RrdDef("footprint-benchmark", 1000000000L, 300);
+		for (int i = 0; i < 4; i++) {
+			rrdDef.addDatasource("ds" + i, "GAUGE", 600, Double.NaN, Double.NaN);
+		}
+		for (final String consolFun : new String[] { "AVERAGE", "MIN", "MAX" }) {
+			rrdDef.addArchive(consolFun, 0.5, 1, 600);
+			rrdDef.addArchive(consolFun, 0.5, 12, 600);
+		}
+		new RrdDb(rrdDef, factory).close();
+
+		final RrdDb[] rrdDbs = new RrdDb[count];
+		final long before = usedMemory();
+		for (int i = 0; i < count; i++) {
+			rrdDbs[i] = new RrdDb("footprint-benchmark", true, factory);
+			// definitions and state, as read by fetches and updates
+			rrdDbs[i].getRrdDef();
+			rrdDbs[i].getLastUpdateTime();
+		}
+		final long after = usedMemory();
+		System.out.println(count + " open RRDs (" + rrdDef.getDsCount() + " datasources, " + rrdDef.getArcCount() +
+				" archives): " + (after - before) / count + " bytes each");
+		for (final RrdDb rrdDb : rrdDbs) {
+			rrdDb.close();
+		}
+	}
+
+	private static long usedMemory() throws InterruptedException {
+		final Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 4; i++) {
+			System.gc();
+			Thread.sleep(100);
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
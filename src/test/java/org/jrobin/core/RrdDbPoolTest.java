@@ -0,0 +1,371 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The OpenNMS Group, Inc.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *******************************************************************************/
+package org.jrobin.core;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class RrdDbPoolTest {
+	private static final long START = 1000000000L;
+
+	@After
+	public void tearDown() throws IOException, RrdException {
+		final RrdDbPool pool = RrdDbPool.getInstance();
+		pool.setCapacity(RrdDbPool.INITIAL_CAPACITY);
+		pool.setMaxIdleCount(RrdDbPool.DEFAULT_MAX_IDLE_COUNT);
+		pool.setIdleTimeout(RrdDbPool.DEFAULT_IDLE_TIMEOUT);
+		pool.closeIdle();
+	}
+
+	private static String createRrd(final String name) throws IOException, RrdException {
+		final String path = "target/" + name;
+		new File(path).delete();
+		final RrdDef rrdDef = new RrdDef(path, START, 300);
+		rrdDef.addDatasource("x", "GAUGE", 600, Double.NaN, Double.NaN);
+		rrdDef.addArchive("AVERAGE", 0.5, 1, 100);
+		new RrdDb(rrdDef).close();
+		return path;
+	}
+
+	/**
+	 * Starts a thread requesting a file from the pool, the result is the RrdDb or the error.
+	 */
+	private static Thread request(final String path, final AtomicReference<Object> result) {
+		final Thread thread = new Thread() {
+			public void run() {
+				try {
+					result.set(RrdDbPool.getInstance().requestRrdDb(path));
+				} catch (final Throwable t) {
+					result.set(t);
+				}
+			}
+		};
+		thread.start();
+		return thread;
+	}
+
+	private static void awaitBlocked(final Thread thread) throws InterruptedException {
+		for (int i = 0; i < 1000 && thread.getState() != Thread.State.WAITING; i++) {
+			Thread.sleep(10);
+		}
+		assertEquals(Thread.State.WAITING, thread.getState());
+	}
+
+	@Test(timeout = 60000)
+	public void testConcurrentRequestAndRelease() throws Exception {
+		final RrdDbPool pool = RrdDbPool.getInstance();
+		final String path = createRrd("test-pool-concurrent.rrd");
+		final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+		final Thread[] threads = new Thread[8];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread() {
+				public void run() {
+					try {
+						for (int j = 0; j < 200; j++) {
+							final RrdDb rrdDb = pool.requestRrdDb(path);
+							// a reference handed out is never closed while in use
+							assertFalse(rrdDb.isClosed());
+							assertEquals(START, rrdDb.getLastUpdateTime());
+							pool.release(rrdDb);
+						}
+					} catch (final Throwable t) {
+						error.set(t);
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for (final Thread thread : threads) {
+			thread.join();
+		}
+		assertNull(error.get());
+		assertEquals(1, pool.getIdleFileCount());
+		pool.closeIdle();
+		assertEquals(0, pool.getOpenFileCount());
+	}
+
+	@Test(timeout = 60000)
+	public void testPendingOpenDoesNotBlockOtherFiles() throws Exception {
+		final RrdDbPool pool = RrdDbPool.getInstance();
+		final String path1 = createRrd("test-pool-pending1.rrd");
+		final String path2 = createRrd("test-pool-pending2.rrd");
+		pool.setCapacity(1);
+		final RrdDb rrdDb1 = pool.requestRrdDb(path1);
+
+		// the open of the second file waits for a free slot
+		final AtomicReference<Object> result = new AtomicReference<Object>();
+		final Thread thread = request(path2, result);
+		awaitBlocked(thread);
+
+		// while the first file is still served and released
+		assertSame(rrdDb1, pool.requestRrdDb(path1));
+		pool.release(rrdDb1);
+		assertTrue(thread.isAlive());
+
+		pool.setCapacity(2);
+		thread.join();
+		assertTrue(result.get() instanceof RrdDb);
+		assertEquals(2, pool.getOpenFileCount());
+		pool.release((RrdDb) result.get());
+		pool.release(rrdDb1);
+		pool.closeIdle();
+		assertEquals(0, pool.getOpenFileCount());
+	}
+
+	@Test(timeout = 60000)
+	public void testFairCapacityWaiting() throws Exception {
+		final RrdDbPool pool = RrdDbPool.getInstance();
+		final String path1 = createRrd("test-pool-fair1.rrd");
+		final String path2 = createRrd("test-pool-fair2.rrd");
+		final String path3 = createRrd("test-pool-fair3.rrd");
+		pool.setCapacity(1);
+		final RrdDb rrdDb1 = pool.requestRrdDb(path1);
+
+		final AtomicReference<Object> result2 = new AtomicReference<Object>();
+		final Thread thread2 = request(path2, result2);
+		awaitBlocked(thread2);
+		final AtomicReference<Object> result3 = new AtomicReference<Object>();
+		final Thread thread3 = request(path3, result3);
+		awaitBlocked(thread3);
+
+		// slots are handed out in the order they were requested
+		pool.release(rrdDb1);
+		thread2.join();
+		assertTrue(result2.get() instanceof RrdDb);
+		awaitBlocked(thread3);
+		assertNull(result3.get());
+
+		pool.release((RrdDb) result2.get());
+		thread3.join();
+		assertTrue(result3.get() instanceof RrdDb);
+		pool.release((RrdDb) result3.get());
+		pool.closeIdle();
+		assertEquals(0, pool.getOpenFileCount());
+	}
+
+	@Test(timeout = 60000)
+	public void testOpenFailure() throws Exception {
+		final RrdDbPool pool = RrdDbPool.getInstance();
+		final String missing = "target/test-pool-missing.rrd";
+		new File(missing).delete();
+		pool.setCapacity(1);
+
+		// all threads requesting the file see the failure
+		final AtomicReference<?>[] results = new AtomicReference<?>[4];
+		final Thread[] threads = new Thread[results.length];
+		for (int i = 0; i < threads.length; i++) {
+			final AtomicReference<Object> result = new AtomicReference<Object>();
+			results[i] = result;
+			threads[i] = request(missing, result);
+		}
+		for (int i = 0; i < threads.length; i++) {
+			threads[i].join();
+			assertTrue(String.valueOf(results[i].get()), results[i].get() instanceof Exception);
+		}
+		assertEquals(0, pool.getOpenFileCount());
+
+		// the slot taken by the failed open is free again
+		final RrdDb rrdDb = pool.requestRrdDb(createRrd("test-pool-after-failure.rrd"));
+		pool.release(rrdDb);
+		pool.closeIdle();
+		assertEquals(0, pool.getOpenFileCount());
+	}
+
+	@Test
+	public void testSharedReference() throws IOException, RrdException {
+		final RrdDbPool pool = RrdDbPool.getInstance();
+		final String path = createRrd("test-pool-shared.rrd");
+		final long hits = pool.getHitCount(), misses = pool.getMissCount();
+
+		final RrdDb rrdDb1 = pool.requestRrdDb(path);
+		final RrdDb rrdDb2 = pool.requestRrdDb(path);
+		assertSame(rrdDb1, rrdDb2);
+		assertEquals(1, pool.getOpenFileCount());
+		assertEquals(misses + 1, pool.getMissCount());
+		assertEquals(hits + 1, pool.getHitCount());
+		pool.release(rrdDb1);
+		pool.release(rrdDb2);
+
+		// an idle file is a hit too
+		assertSame(rrdDb1, pool.requestRrdDb(path));
+		assertEquals(hits + 2, pool.getHitCount());
+		pool.release(rrdDb1);
+
+		try {
+			pool.release(rrdDb2);
+			fail("Expected an RrdException");
+		} catch (final RrdException e) {
+			// released too many times
+		}
+	}
+
+	@Test
+	public void testIdleRetention() throws IOException, RrdException {
+		final RrdDbPool pool = RrdDbPool.getInstance();
+		final String path = createRrd("test-pool-idle.rrd");
+
+		final RrdDb rrdDb = pool.requestRrdDb(path);
+		pool.release(rrdDb);
+		assertFalse(rrdDb.isClosed());
+		assertEquals(1, pool.getIdleFileCount());
+
+		assertSame(rrdDb, pool.requestRrdDb(path));
+		assertEquals(0, pool.getIdleFileCount());
+		pool.release(rrdDb);
+
+		pool.setMaxIdleCount(0);
+		assertTrue(rrdDb.isClosed());
+		assertEquals(0, pool.getOpenFileCount());
+
+		final RrdDb other = pool.requestRrdDb(path);
+		assertNotSame(rrdDb, other);
+		pool.release(other);
+		assertTrue(other.isClosed());
+	}
+
+	@Test
+	public void testEvictionWhenFull() throws IOException, RrdException {
+		final RrdDbPool pool = RrdDbPool.getInstance();
+		pool.setCapacity(2);
+		final String path1 = createRrd("test-pool-full1.rrd");
+		final String path2 = createRrd("test-pool-full2.rrd");
+		final String path3 = createRrd("test-pool-full3.rrd");
+		final long evictions = pool.getEvictionCount();
+
+		final RrdDb rrdDb1 = pool.requestRrdDb(path1);
+		pool.release(rrdDb1);
+		final RrdDb rrdDb2 = pool.requestRrdDb(path2);
+		pool.release(rrdDb2);
+		final RrdDb rrdDb3 = pool.requestRrdDb(path3);
+
+		// the least recently released file makes room for the new one
+		assertTrue(rrdDb1.isClosed());
+		assertFalse(rrdDb2.isClosed());
+		assertEquals(2, pool.getOpenFileCount());
+		assertEquals(evictions + 1, pool.getEvictionCount());
+		pool.release(rrdDb3);
+	}
+
+	@Test
+	public void testIdleTimeout() throws IOException, RrdException, InterruptedException {
+		final RrdDbPool pool = RrdDbPool.getInstance();
+		final String path1 = createRrd("test-pool-timeout1.rrd");
+		final String path2 = createRrd("test-pool-timeout2.rrd");
+		final long evictions = pool.getEvictionCount();
+		pool.setIdleTimeout(100);
+
+		final RrdDb rrdDb1 = pool.requestRrdDb(path1);
+		pool.release(rrdDb1);
+		assertFalse(rrdDb1.isClosed());
+		Thread.sleep(300);
+
+		// expired files are closed on the next request
+		final RrdDb rrdDb2 = pool.requestRrdDb(path2);
+		assertTrue(rrdDb1.isClosed());
+		assertEquals(evictions + 1, pool.getEvictionCount());
+		assertEquals(1, pool.getOpenFileCount());
+		pool.release(rrdDb2);
+		assertFalse(rrdDb2.isClosed());
+	}
+
+	@Test(timeout = 60000)
+	public void testRecreateAfterRelease() throws Exception {
+		final RrdDbPool pool = RrdDbPool.getInstance();
+		final String path = createRrd("test-pool-recreate.rrd");
+		final RrdDb rrdDb = pool.requestRrdDb(path);
+
+		// the file is in use, so it is recreated once released
+		final RrdDef rrdDef = new RrdDef(path, START, 60);
+		rrdDef.addDatasource("y", "GAUGE", 120, Double.NaN, Double.NaN);
+		rrdDef.addArchive("AVERAGE", 0.5, 1, 100);
+		final AtomicReference<Object> result = new AtomicReference<Object>();
+		final Thread creator = new Thread() {
+			public void run() {
+				try {
+					result.set(pool.requestRrdDb(rrdDef));
+				} catch (final Throwable t) {
+					result.set(t);
+				}
+			}
+		};
+		creator.start();
+		awaitBlocked(creator);
+
+		pool.release(rrdDb);
+		creator.join();
+		assertTrue(rrdDb.isClosed());
+		assertTrue(result.get() instanceof RrdDb);
+		final RrdDb created = (RrdDb) result.get();
+		assertEquals(60, created.getRrdDef().getStep());
+		pool.release(created);
+	}
+
+	@Test
+	public void testBackendFactories() throws IOException, RrdException {
+		final RrdDbPool pool = RrdDbPool.getInstance("test-factories");
+		assertNotSame(RrdDbPool.getInstance(), pool);
+		final RrdMemoryBackendFactory memoryFactory = (RrdMemoryBackendFactory) RrdBackendFactory.getFactory("MEMORY");
+		final String id = "test-pool-memory";
+		final RrdDef rrdDef = new RrdDef(id, START, 300);
+		rrdDef.addDatasource("x", "GAUGE", 600, Double.NaN, Double.NaN);
+		rrdDef.addArchive("AVERAGE", 0.5, 1, 100);
+		new RrdDb(rrdDef, memoryFactory).close();
+
+		final RrdDb rrdDb1 = pool.requestRrdDb(id, memoryFactory);
+		final RrdDb rrdDb2 = pool.requestRrdDb(id, memoryFactory);
+		assertSame(rrdDb1, rrdDb2);
+		assertTrue(rrdDb1.getRrdBackend() instanceof RrdMemoryBackend);
+		pool.release(rrdDb1);
+		pool.release(rrdDb2);
+
+		final String path = createRrd("test-pool-factories.rrd");
+		final RrdDb fileDb = pool.requestRrdDb(path, RrdBackendFactory.getFactory("FILE"));
+		final RrdDb nioDb = pool.requestRrdDb(path, RrdBackendFactory.getFactory("NIO"));
+		assertNotSame(fileDb, nioDb);
+		assertTrue(nioDb.getRrdBackend() instanceof RrdNioBackend);
+		pool.release(fileDb);
+		pool.release(nioDb);
+
+		pool.closeIdle();
+		assertEquals(0, pool.getOpenFileCount());
+		memoryFactory.delete(id);
+	}
+
+	@Test
+	public void testEquivalentPaths() throws IOException, RrdException {
+		final RrdDbPool pool = RrdDbPool.getInstance();
+		final String path = createRrd("test-pool-paths.rrd");
+		final RrdDb rrdDb = pool.requestRrdDb(path);
+
+		// different spellings of the same file share the open file
+		assertSame(rrdDb, pool.requestRrdDb("target/../" + path));
+		assertSame(rrdDb, pool.requestRrdDb(new File(path).getAbsolutePath()));
+		pool.clearCanonicalPathCache();
+		assertSame(rrdDb, pool.requestRrdDb(path));
+		for (int i = 0; i < 4; i++) {
+			pool.release(rrdDb);
+		}
+		assertEquals(1, pool.getIdleFileCount());
+	}
+}
@@ -0,0 +1,340 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The OpenNMS Group, Inc.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *******************************************************************************/
+package org.jrobin.core;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+public class RrdDbTest {
+	private static final long START = 1000000000L;
+
+	/**
+	 * Memory backends counting the reads issued by RRDs
+	 */
+	private static class CountingBackendFactory extends RrdMemoryBackendFactory {
+		private final Map<String, RrdBackend> backends = new HashMap<String, RrdBackend>();
+		private int readCount = 0;
+
+		protected synchronized RrdBackend open(final String id, final boolean readOnly) {
+			if (!backends.containsKey(id)) {
+				backends.put(id, new RrdMemoryBackend(id) {
+					protected void read(final long offset, final byte[] b) throws IOException {
+						readCount++;
+						super.read(offset, b);
+					}
+
+					protected int getInt(final long offset) throws IOException {
+						readCount++;
+						return super.getInt(offset);
+					}
+
+					protected long getLong(final long offset) throws IOException {
+						readCount++;
+						return super.getLong(offset);
+					}
+
+					protected double getDouble(final long offset) throws IOException {
+						readCount++;
+						return super.getDouble(offset);
+					}
+
+					protected void getDouble(final long offset, final double[] values) throws IOException {
+						readCount++;
+						super.getDouble(offset, values);
+					}
+				});
+			}
+			return backends.get(id);
+		}
+
+		protected synchronized boolean exists(final String id) {
+			return backends.containsKey(id);
+		}
+
+		public String getFactoryName() {
+			return "COUNTING";
+		}
+	}
+
+	private static RrdDef createRrdDef(final String path) throws RrdException {
+		final RrdDef rrdDef = new RrdDef(path, START, 60);
+		rrdDef.addDatasource("gauge", "GAUGE", 150, Double.NaN, 1000);
+		rrdDef.addDatasource("counter", "COUNTER", 150, 0, Double.NaN);
+		rrdDef.addDatasource("zero!", "GAUGE", 90, Double.NaN, Double.NaN);
+		rrdDef.addArchive("AVERAGE", 0.5, 1, 37);
+		rrdDef.addArchive("AVERAGE", 0.3, 5, 11);
+		rrdDef.addArchive("MIN", 0.5, 3, 50);
+		rrdDef.addArchive("MAX", 0.9, 7, 13);
+		rrdDef.addArchive("LAST", 0.5, 1, 2000);
+		return rrdDef;
+	}
+
+	private static RrdDb createRrd(final String path) throws IOException, RrdException {
+		return new RrdDb(createRrdDef(path), RrdBackendFactory.getFactory("MEMORY"));
+	}
+
+	private static void delete(final String id) throws RrdException {
+		((RrdMemoryBackendFactory) RrdBackendFactory.getFactory("MEMORY")).delete(id);
+	}
+
+	@Test
+	public void testBatchStoreMatchesSamples() throws IOException, RrdException {
+		final RrdDb single = createRrd("test-batch-single");
+		final RrdDb batch = createRrd("test-batch-batch");
+
+		final Random random = new Random(42);
+		final int count = 2000;
+		final long[] timestamps = new long[count];
+		final double[][] values = new double[count][];
+		long time = START;
+		double counter = 0;
+		for (int i = 0; i < count; i++) {
+			time += random.nextInt(10) == 0 ? 1 + random.nextInt(1000) : 1 + random.nextInt(70);
+			counter += random.nextInt(1000);
+			timestamps[i] = time;
+			values[i] = new double[] { random.nextInt(10) == 0 ? Double.NaN : random.nextDouble() * 1200, counter, random.nextDouble() };
+		}
+
+		for (int i = 0; i < count; i++) {
+			final Sample sample = single.createSample(timestamps[i]);
+			sample.setValues(values[i]);
+			sample.update();
+		}
+		for (int i = 0; i < count; i += 300) {
+			final int end = Math.min(count, i + 300);
+			batch.store(Arrays.copyOfRange(timestamps, i, end), Arrays.copyOfRange(values, i, end));
+		}
+
+		assertEquals(single.getLastUpdateTime(), batch.getLastUpdateTime());
+		assertArrayEquals(single.getBytes(), batch.getBytes());
+		single.close();
+		batch.close();
+		delete("test-batch-single");
+		delete("test-batch-batch");
+	}
+
+	@Test
+	public void testBatchStoreRejectsBadTimestamps() throws IOException, RrdException {
+		final RrdDb rrdDb = createRrd("test-batch-reject");
+		final double[][] values = new double[][] { { 1, 1, 1 }, { 2, 2, 2 } };
+		try {
+			rrdDb.store(new long[] { START + 60, START + 60 }, values);
+			fail("Expected an RrdException");
+		} catch (final RrdException e) {
+			// timestamps must be increasing
+		}
+		// nothing stored
+		assertEquals(START, rrdDb.getLastUpdateTime());
+		rrdDb.close();
+		delete("test-batch-reject");
+	}
+
+	@Test
+	public void testOpenReadsDefinitionsAtOnce() throws IOException, RrdException {
+		final CountingBackendFactory factory = new CountingBackendFactory();
+		final RrdDef rrdDef = createRrdDef("test-open");
+		// the last archive starts after the first block read
+		rrdDef.addArchive("MAX", 0.5, 1, 2000);
+		new RrdDb(rrdDef, factory).close();
+
+		factory.readCount = 0;
+		final RrdDb rrdDb = new RrdDb("test-open", true, factory);
+		// the first block, the signature and the definition of the last archive
+		assertEquals(3, factory.readCount);
+		assertEquals(rrdDef.dump(), rrdDb.getRrdDef().dump());
+
+		// constants are not read again, although memory backends do not cache values
+		factory.readCount = 0;
+		for (int i = 0; i < rrdDb.getArcCount(); i++) {
+			final Archive archive = rrdDb.getArchive(i);
+			archive.getConsolFun();
+			archive.getArcStep();
+			archive.getRows();
+			archive.getSteps();
+		}
+		rrdDb.getHeader().getStep();
+		assertEquals(0, factory.readCount);
+		rrdDb.close();
+	}
+
+	@Test
+	public void testFetchesRunInParallel() throws Exception {
+		// each fetch of archive values waits until the other one is reading too
+		final CyclicBarrier barrier = new CyclicBarrier(2);
+		final RrdMemoryBackendFactory factory = new RrdMemoryBackendFactory() {
+			private RrdBackend backend;
+
+			protected synchronized RrdBackend open(final String id, final boolean readOnly) {
+				if (backend == null) {
+					backend = new RrdMemoryBackend(id) {
+						protected void getDouble(final long offset, final double[] values) throws IOException {
+							try {
+								barrier.await(10, TimeUnit.SECONDS);
+							} catch (final Exception e) {
+								throw new IOException("Fetches did not run in parallel: " + e);
+							}
+							super.getDouble(offset, values);
+						}
+					};
+				}
+				return backend;
+			}
+
+			protected synchronized boolean exists(final String id) {
+				return backend != null;
+			}
+
+			public String getFactoryName() {
+				return "BARRIER";
+			}
+		};
+		final RrdDb rrdDb = new RrdDb(createRrdDef("test-parallel-fetch"), factory);
+		final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+		final Thread other = new Thread() {
+			public void run() {
+				try {
+					rrdDb.createFetchRequest("AVERAGE", START, START + 600).fetchData();
+				} catch (final Throwable t) {
+					error.set(t);
+				}
+			}
+		};
+		other.start();
+		rrdDb.createFetchRequest("AVERAGE", START, START + 600).fetchData();
+		other.join();
+		assertNull(error.get());
+		rrdDb.close();
+	}
+
+	@Test
+	public void testFetchesDuringUpdates() throws Exception {
+		final String path = "target/test-fetch-during-updates.rrd";
+		new File(path).delete();
+		// samples at step boundaries, so every row holds exactly one sample
+		final long start = Util.normalize(START, 60);
+		final RrdDef rrdDef = new RrdDef(path, start, 60);
+		rrdDef.addDatasource("gauge", "GAUGE", 150, Double.NaN, Double.NaN);
+		rrdDef.addArchive("AVERAGE", 0.5, 1, 100);
+		rrdDef.addArchive("LAST", 0.5, 1, 100);
+		final RrdDb rrdDb = new RrdDb(rrdDef, RrdBackendFactory.getFactory("FILE"));
+		final long end = start + 60 * 2000;
+		final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+		final Thread[] readers = new Thread[3];
+		for (int r = 0; r < readers.length; r++) {
+			readers[r] = new Thread() {
+				public void run() {
+					try {
+						for (long last = start; last < end; last = rrdDb.getLastUpdateTime()) {
+							final String consolFun = last % 120 == 0 ? "AVERAGE" : "LAST";
+							final FetchData fetchData = rrdDb.createFetchRequest(consolFun, last - 60 * 50, last).fetchData();
+							final long[] timestamps = fetchData.getTimestamps();
+							final double[] values = fetchData.getValues(0);
+							for (int i = 0; i < timestamps.length; i++) {
+								if (!Double.isNaN(values[i]) && values[i] != timestamps[i] % 1000) {
+									throw new AssertionError("Unexpected value " + values[i] + " at " + timestamps[i]);
+								}
+							}
+						}
+					} catch (final Throwable t) {
+						error.set(t);
+					}
+				}
+			};
+			readers[r].start();
+		}
+		for (long t = start + 60; t <= end; t += 60) {
+			final Sample sample = rrdDb.createSample(t);
+			sample.setValue(0, t % 1000);
+			sample.update();
+		}
+		for (final Thread reader : readers) {
+			reader.join();
+		}
+		assertNull(error.get());
+		rrdDb.close();
+	}
+
+	private static void assertSameState(final RrdDb expected, final RrdDb actual) throws IOException, RrdException {
+		assertEquals(expected.getLastUpdateTime(), actual.getLastUpdateTime());
+		final Datasource e = expected.getDatasource(0), a = actual.getDatasource(0);
+		assertEquals(e.getLastValue(), a.getLastValue(), 0.0);
+		assertEquals(e.getAccumValue(), a.getAccumValue(), 1e-9);
+		assertEquals(e.getNanSeconds(), a.getNanSeconds());
+		final long end = expected.getLastArchiveUpdateTime();
+		assertArrayEquals(expected.createFetchRequest("AVERAGE", end - 3000, end).fetchData().getValues(0),
+				actual.createFetchRequest("AVERAGE", end - 3000, end).fetchData().getValues(0), 1e-9);
+	}
+
+	@Test
+	public void testDeferredState() throws IOException, RrdException {
+		final RrdBackendFactory factory = RrdBackendFactory.getFactory("FILE");
+		final String path = "target/test-deferred-state.rrd";
+		new File(path).delete();
+		final long start = Util.normalize(START, 300);
+		final RrdDef rrdDef = new RrdDef(path, start, 300);
+		rrdDef.addDatasource("counter", "COUNTER", 600, Double.NaN, Double.NaN);
+		rrdDef.addArchive("AVERAGE", 0.5, 1, 100);
+		final RrdDb rrdDb = new RrdDb(rrdDef, factory);
+		rrdDb.setDeferredState(true);
+		assertTrue(rrdDb.isDeferredState());
+		rrdDef.setPath("test-deferred-expected");
+		final RrdDb expected = new RrdDb(rrdDef, new RrdMemoryBackendFactory());
+
+		// updates every 10 seconds, the state on disk only changes at step boundaries
+		long onDiskTime = start;
+		for (long t = start + 10; t <= start + 3000; t += 10) {
+			for (final RrdDb db : new RrdDb[] { rrdDb, expected }) {
+				final Sample sample = db.createSample(t);
+				sample.setValue(0, t * 3 + (t % 70));
+				sample.update();
+			}
+			assertSameState(expected, rrdDb);
+			if (t % 300 == 0) {
+				onDiskTime = t;
+			}
+			final RrdDb onDisk = new RrdDb(path, true, factory);
+			assertEquals(onDiskTime, onDisk.getLastUpdateTime());
+			onDisk.close();
+			if (t == start + 2000) {
+				rrdDb.checkpoint();
+				onDiskTime = t;
+				final RrdDb checkpoint = new RrdDb(path, true, factory);
+				assertSameState(expected, checkpoint);
+				checkpoint.close();
+			}
+		}
+
+		// nothing is lost on close
+		rrdDb.close();
+		final RrdDb reopened = new RrdDb(path, true, factory);
+		assertSameState(expected, reopened);
+		reopened.close();
+		expected.close();
+	}
+}
@@ -0,0 +1,96 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The OpenNMS Group, Inc.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *******************************************************************************/
+package org.jrobin.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures how reads from a memory mapped backend scale with the number of reader threads
+ * while one thread keeps writing. Not a unit test, run it with:
+ * <pre>
+ * java -cp target/classes:target/test-classes org.jrobin.core.RrdNioBackendBenchmark [seconds]
+ * </pre>
+ */
+public class RrdNioBackendBenchmark {
+	private static final int ROWS = 4096;
+
+	public static void main(final String[] args) throws Exception {
+		final long seconds = args.length > 0 ? Long.parseLong(args[0]) : 2;
+		final String path = "target/nio-benchmark.rrd";
+		new File(path).delete();
+		final RrdNioBackend backend = (RrdNioBackend) RrdBackendFactory.getFactory("NIO").open(path, false);
+		backend.setLength(ROWS * 8L);
+
+		for (int readers = 1; readers <= Math.max(4, 2 * Runtime.getRuntime().availableProcessors()); readers *= 2) {
+			final long reads = run(backend, readers, seconds * 1000L);
+			System.out.println(readers + " reader(s): " + (reads / seconds) + " row reads/s");
+		}
+		backend.close();
+	}
+
+	private static long run(final RrdNioBackend backend, final int readerCount, final long millis) throws InterruptedException {
+		final AtomicBoolean running = new AtomicBoolean(true);
+		final AtomicLong reads = new AtomicLong();
+		final CountDownLatch done = new CountDownLatch(readerCount + 1);
+
+		final Thread writer = new Thread() {
+			public void run() {
+				try {
+					for (int i = 0; running.get(); i++) {
+						backend.writeDouble((i % ROWS) * 8L, i);
+					}
+				} catch (final IOException e) {
+					e.printStackTrace();
+				} finally {
+					done.countDown();
+				}
+			}
+		};
+		writer.start();
+		for (int r = 0; r < readerCount; r++) {
+			new Thread() {
+				public void run() {
+					long count = 0;
+					try {
+						while (running.get()) {
+							// a fetch of a whole archive followed by a few single values
+							backend.readDouble(0, ROWS);
+							for (int i = 0; i < 64; i++) {
+								backend.readDouble(i * 64L * 8L);
+							}
+							count += ROWS + 64;
+						}
+					} catch (final IOException e) {
+						e.printStackTrace();
+					} finally {
+						reads.addAndGet(count);
+						done.countDown();
+					}
+				}
+			}.start();
+		}
+		Thread.sleep(millis);
+		running.set(false);
+		done.await();
+		return reads.get();
+	}
+}
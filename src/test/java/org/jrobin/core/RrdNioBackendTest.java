@@ -0,0 +1,85 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The OpenNMS Group, Inc.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *******************************************************************************/
+package org.jrobin.core;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.junit.Test;
+
+public class RrdNioBackendTest {
+	private static final long START = 1000000000L;
+
+	@Test
+	public void testDirtyPageTracking() throws IOException, RrdException {
+		final String path = "target/test-nio-dirty.rrd";
+		new File(path).delete();
+		final RrdDef rrdDef = new RrdDef(path, START, 300);
+		rrdDef.addDatasource("x", "GAUGE", 600, Double.NaN, Double.NaN);
+		rrdDef.addArchive("AVERAGE", 0.5, 1, 10000);
+		final RrdDb rrdDb = new RrdDb(rrdDef, RrdBackendFactory.getFactory("NIO"));
+		final RrdNioBackend backend = (RrdNioBackend) rrdDb.getRrdBackend();
+
+		// a new file is written completely
+		assertTrue(backend.getDirtyByteCount() >= backend.getLength());
+		backend.sync();
+		assertEquals(0, backend.getDirtyByteCount());
+		final long syncCount = backend.getSyncCount();
+
+		// nothing written, nothing forced
+		backend.sync();
+		assertEquals(syncCount, backend.getSyncCount());
+
+		// a single update touches the header page and one archive page
+		rrdDb.createSample(START + 300).setValue("x", 1).update();
+		assertTrue(backend.getDirtyByteCount() > 0);
+		assertTrue(backend.getDirtyByteCount() <= 3 * RrdNioBackend.PAGE_SIZE);
+		backend.sync();
+		assertEquals(0, backend.getDirtyByteCount());
+		assertEquals(syncCount + 1, backend.getSyncCount());
+		rrdDb.close();
+	}
+
+	@Test
+	public void testBackgroundSync() throws IOException, RrdException, InterruptedException {
+		final SyncManager syncManager = new SyncManager(1, 1);
+		final RrdNioBackend[] backends = new RrdNioBackend[3];
+		for (int i = 0; i < backends.length; i++) {
+			final String path = "target/test-nio-sync" + i + ".rrd";
+			new File(path).delete();
+			final RandomAccessFile file = new RandomAccessFile(path, "rw");
+			file.setLength(8192);
+			file.close();
+			backends[i] = new RrdNioBackend(path, false, syncManager);
+			backends[i].writeDouble(i * 8, i);
+		}
+		assertEquals(backends.length, syncManager.getBackendCount());
+
+		// every wave runs once per period
+		Thread.sleep(2500);
+		for (final RrdNioBackend backend : backends) {
+			assertEquals(0, backend.getDirtyByteCount());
+			assertTrue(backend.getSyncCount() > 0);
+			backend.close();
+		}
+		assertEquals(0, syncManager.getBackendCount());
+	}
+}
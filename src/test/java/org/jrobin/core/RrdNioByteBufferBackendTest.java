@@ -0,0 +1,65 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The OpenNMS Group, Inc.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *******************************************************************************/
+package org.jrobin.core;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.junit.Test;
+
+public class RrdNioByteBufferBackendTest {
+
+	private static double readFromFile(final String path, final long offset) throws IOException {
+		final RandomAccessFile file = new RandomAccessFile(path, "r");
+		try {
+			file.seek(offset);
+			return file.readDouble();
+		} finally {
+			file.close();
+		}
+	}
+
+	@Test
+	public void testPeriodicWriteBack() throws IOException, InterruptedException {
+		final String path = "target/test-mnio-writeback.rrd";
+		new File(path).delete();
+		final RandomAccessFile file = new RandomAccessFile(path, "rw");
+		file.setLength(3 * RrdNioBackend.PAGE_SIZE);
+		file.close();
+
+		final SyncManager syncManager = new SyncManager(1, 1);
+		final RrdNioByteBufferBackend backend = new RrdNioByteBufferBackend(path, false, syncManager);
+		backend.writeDouble(RrdNioBackend.PAGE_SIZE + 8, 42.0);
+		assertEquals(RrdNioBackend.PAGE_SIZE, backend.getDirtyByteCount());
+		assertEquals(0.0, readFromFile(path, RrdNioBackend.PAGE_SIZE + 8), 0.0);
+
+		// written back without closing the backend
+		Thread.sleep(2500);
+		assertEquals(0, backend.getDirtyByteCount());
+		assertEquals(1, backend.getSyncCount());
+		assertEquals(42.0, readFromFile(path, RrdNioBackend.PAGE_SIZE + 8), 0.0);
+
+		backend.writeDouble(16, 7.0);
+		backend.close();
+		assertEquals(7.0, readFromFile(path, 16), 0.0);
+		assertEquals(0, syncManager.getBackendCount());
+	}
+}
@@ -0,0 +1,79 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The OpenNMS Group, Inc.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *******************************************************************************/
+package org.jrobin.core;
+
+/**
+ * Measures single-threaded updates per second through {@link Sample#update()} for each
+ * datasource type, with a memory backend so that only the update path itself is measured.
+ * Not a unit test, run it with:
+ * <pre>
+ * java -cp target/classes:target/test-classes org.jrobin.core.RrdUpdateBenchmark [seconds]
+ * </pre>
+ */
+public class RrdUpdateBenchmark {
+	private static final int DS_COUNT = 4;
+	private static final int ROUNDS = 5;
+	private static final long START = 1000000000L;
+
+	public static void main(final String[] args) throws Exception {
+		final long seconds = args.length > 0 ? Long.parseLong(args[0]) : 1;
+		final RrdBackendFactory factory = RrdBackendFactory.getFactory("MEMORY");
+		for (final String dsType : new String[] { "GAUGE", "COUNTER", "DERIVE", "ABSOLUTE" }) {
+			final String path = "update-benchmark-" + dsType;
+			final RrdDef rrdDef = new RrdDef(path, START, 60);
+			for (int i = 0; i < DS_COUNT; i++) {
+				rrdDef.addDatasource("ds" + i, dsType, 120, Double.NaN, Double.NaN);
+			}
+			for (final String consolFun : new String[] { "AVERAGE", "MIN", "MAX", "LAST" }) {
+				rrdDef.addArchive(consolFun, 0.5, 1, 1440);
+				rrdDef.addArchive(consolFun, 0.5, 5, 2016);
+				rrdDef.addArchive(consolFun, 0.5, 60, 744);
+			}
+			final RrdDb rrdDb = new RrdDb(rrdDef, factory);
+			try {
+				// the first round warms up, the best of the others is reported
+				long best = 0;
+				for (int round = 0; round <= ROUNDS; round++) {
+					final long updates = run(rrdDb, seconds * 1000L);
+					best = round > 0 ? Math.max(best, updates) : 0;
+				}
+				System.out.println(dsType + ": " + (best / seconds) + " updates/s");
+			} finally {
+				rrdDb.close();
+				((RrdMemoryBackendFactory) factory).delete(path);
+			}
+		}
+	}
+
+	private static long run(final RrdDb rrdDb, final long millis) throws Exception {
+		final Sample sample = rrdDb.createSample();
+		final long deadline = System.currentTimeMillis() + millis;
+		long updates = 0;
+		for (long t = rrdDb.getLastUpdateTime() + 60; System.currentTimeMillis() < deadline; ) {
+			for (int k = 0; k < 1000; k++, t += 60) {
+				sample.setTime(t);
+				for (int i = 0; i < DS_COUNT; i++) {
+					sample.setValue(i, t * (i + 1));
+				}
+				sample.update();
+			}
+			updates += 1000;
+		}
+		return updates;
+	}
+}
@@ -0,0 +1,110 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The OpenNMS Group, Inc.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *******************************************************************************/
+package org.jrobin.core;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Test;
+
+public class RrdWriteBehindFileBackendTest {
+	private static final long START = 1000000000L;
+
+	private static RrdDb createRrd(final String path, final RrdBackendFactory factory) throws IOException, RrdException {
+		new File(path).delete();
+		final RrdDef rrdDef = new RrdDef(path, START, 300);
+		rrdDef.addDatasource("x", "GAUGE", 600, Double.NaN, Double.NaN);
+		rrdDef.addArchive("AVERAGE", 0.5, 1, 100);
+		rrdDef.addArchive("MAX", 0.5, 6, 10);
+		return new RrdDb(rrdDef, factory);
+	}
+
+	@Test
+	public void testBufferedUpdates() throws IOException, RrdException {
+		final RrdWriteBehindFileBackendFactory factory = new RrdWriteBehindFileBackendFactory();
+		final RrdDb rrdDb = createRrd("target/test-writebehind.rrd", factory);
+		final RrdWriteBehindFileBackend backend = (RrdWriteBehindFileBackend) rrdDb.getRrdBackend();
+		backend.flush();
+
+		for (int i = 1; i <= 20; i++) {
+			final Sample sample = rrdDb.createSample(START + i * 300);
+			sample.setValue("x", i);
+			sample.update();
+		}
+		assertTrue(backend.getDirtyByteCount() > 0);
+		assertEquals(START + 20 * 300, rrdDb.getLastUpdateTime());
+
+		// nothing reached the file yet
+		final RrdDb reader = new RrdDb("target/test-writebehind.rrd", true);
+		assertEquals(START, reader.getLastUpdateTime());
+		reader.close();
+
+		factory.flush();
+		assertEquals(0, backend.getDirtyByteCount());
+		final RrdDb flushed = new RrdDb("target/test-writebehind.rrd", true);
+		assertEquals(rrdDb.getXml(), flushed.getXml());
+		flushed.close();
+		rrdDb.close();
+		factory.shutdown();
+	}
+
+	@Test
+	public void testSameContentAsFileBackend() throws IOException, RrdException {
+		final RrdWriteBehindFileBackendFactory factory = new RrdWriteBehindFileBackendFactory();
+		factory.setFlushThreshold(100);
+		final RrdDb buffered = createRrd("target/test-writebehind-buffered.rrd", factory);
+		final RrdDb plain = createRrd("target/test-writebehind-plain.rrd", RrdBackendFactory.getFactory("FILE"));
+		for (int i = 1; i <= 500; i++) {
+			final double value = i % 7 == 0 ? Double.NaN : Math.sin(i);
+			buffered.createSample(START + i * 300).setValue(0, value).update();
+			plain.createSample(START + i * 300).setValue(0, value).update();
+		}
+		final String xml = plain.getXml();
+		assertEquals(xml, buffered.getXml());
+		buffered.close();
+		plain.close();
+		factory.shutdown();
+
+		final RrdDb reopened = new RrdDb("target/test-writebehind-buffered.rrd", true);
+		assertEquals(xml, reopened.getXml());
+		reopened.close();
+	}
+
+	@Test
+	public void testInvalidFlushPeriod() throws IOException, RrdException {
+		final RrdWriteBehindFileBackendFactory factory = new RrdWriteBehindFileBackendFactory();
+		final RrdDb rrdDb = createRrd("target/test-writebehind-period.rrd", factory);
+		final int flushPeriod = factory.getFlushPeriod();
+		for (final int invalid : new int[] { 0, -1 }) {
+			try {
+				factory.setFlushPeriod(invalid);
+				fail("Expected an IllegalArgumentException");
+			} catch (final IllegalArgumentException e) {
+				// the running flush task is kept
+			}
+		}
+		assertEquals(flushPeriod, factory.getFlushPeriod());
+
+		// more files can still be opened
+		final RrdDb other = createRrd("target/test-writebehind-period2.rrd", factory);
+		other.close();
+		rrdDb.close();
+	}
+}
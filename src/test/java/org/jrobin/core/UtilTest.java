@@ -0,0 +1,98 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The OpenNMS Group, Inc.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *******************************************************************************/
+package org.jrobin.core;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class UtilTest {
+
+	@After
+	public void tearDown() {
+		Util.setCanonicalPathCacheSize(Util.DEFAULT_CANONICAL_PATH_CACHE_SIZE);
+		Util.clearCanonicalPathCache();
+	}
+
+	@Test
+	public void testCanonicalPathCache() throws IOException {
+		Util.clearCanonicalPathCache();
+		final String path = "target/../target/test-util.rrd";
+		final String canonicalPath = Util.getCanonicalPath(path);
+		assertEquals(new File(path).getCanonicalPath(), canonicalPath);
+		assertEquals(1, Util.getCanonicalPathCacheCount());
+		assertEquals(canonicalPath, Util.getCanonicalPath(path));
+		assertEquals(1, Util.getCanonicalPathCacheCount());
+
+		Util.invalidateCanonicalPath(path);
+		assertEquals(0, Util.getCanonicalPathCacheCount());
+		assertEquals(canonicalPath, Util.getCanonicalPath(path));
+	}
+
+	@Test
+	public void testCanonicalPathCacheBounds() throws IOException {
+		Util.clearCanonicalPathCache();
+		Util.setCanonicalPathCacheSize(2);
+		Util.getCanonicalPath("target/a.rrd");
+		Util.getCanonicalPath("target/b.rrd");
+		Util.getCanonicalPath("target/c.rrd");
+		assertEquals(2, Util.getCanonicalPathCacheCount());
+
+		Util.setCanonicalPathCacheSize(0);
+		assertEquals(0, Util.getCanonicalPathCacheCount());
+		Util.getCanonicalPath("target/d.rrd");
+		assertEquals(0, Util.getCanonicalPathCacheCount());
+	}
+
+	@Test
+	public void testCanonicalPathCacheConcurrency() throws Exception {
+		Util.clearCanonicalPathCache();
+		Util.setCanonicalPathCacheSize(50);
+		final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+		final Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			final int seed = t;
+			threads[t] = new Thread() {
+				public void run() {
+					try {
+						for (int i = 0; i < 2000; i++) {
+							final String path = "target/concurrent" + ((i * 7 + seed) % 80) + ".rrd";
+							assertEquals(new File(path).getCanonicalPath(), Util.getCanonicalPath(path));
+							if (i % 100 == seed) {
+								Util.invalidateCanonicalPath(path);
+							}
+						}
+					} catch (final Throwable e) {
+						error.set(e);
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (final Thread thread : threads) {
+			thread.join();
+		}
+		assertNull(error.get());
+		assertTrue(Util.getCanonicalPathCacheCount() <= 50);
+	}
+}
@@ -0,0 +1,166 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The OpenNMS Group, Inc.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *******************************************************************************/
+package org.jrobin.data;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class AggregatorTest {
+	private static final double[] PERCENTILES = { 0.1, 1, 5, 25, 50, 50, 75, 95, 99, 99.9, 100 };
+
+	/**
+	 * Percentile as calculated by sorting all values
+	 */
+	private static double sortedPercentile(final long[] timestamps, final double[] values, final long tStart,
+			final long tEnd, final double percentile, final boolean includenan) {
+		final long step = timestamps[1] - timestamps[0];
+		double[] copy = new double[values.length];
+		int count = 0;
+		for (int i = 0; i < timestamps.length; i++) {
+			if (Math.min(timestamps[i], tEnd) > Math.max(timestamps[i] - step, tStart) &&
+					(!Double.isNaN(values[i]) || includenan)) {
+				copy[count++] = values[i];
+			}
+		}
+		if (count > 1) {
+			copy = Arrays.copyOf(copy, count);
+			Arrays.sort(copy);
+			count -= (int) Math.ceil(count * (100.0 - percentile) / 100.0);
+			if (count > 0) {
+				return copy[count - 1];
+			}
+		}
+		return Double.NaN;
+	}
+
+	@Test
+	public void testPercentilesMatchSorting() {
+		final Random random = new Random(95);
+		for (int run = 0; run < 200; run++) {
+			final int count = 2 + random.nextInt(run < 100 ? 20 : 5000);
+			final long[] timestamps = new long[count];
+			final double[] values = new double[count];
+			for (int i = 0; i < count; i++) {
+				timestamps[i] = 1000 + 300L * i;
+				final int kind = random.nextInt(10);
+				// few distinct values, signed zeros, NaN and infinities
+				values[i] = kind == 0 ? Double.NaN : kind == 1 ? -0.0 : kind == 2 ? 0.0 :
+						kind == 3 ? Double.POSITIVE_INFINITY : kind < 6 ? random.nextInt(5) : random.nextGaussian();
+			}
+			final long tStart = timestamps[0] + 300L * random.nextInt(3);
+			final long tEnd = timestamps[count - 1] - 300L * random.nextInt(3);
+			for (final boolean includenan : new boolean[] { false, true }) {
+				final Aggregator aggregator = new Aggregator(timestamps, values);
+				final double[] percentiles = aggregator.getPercentiles(tStart, tEnd, PERCENTILES, includenan);
+				for (int i = 0; i < PERCENTILES.length; i++) {
+					final double expected = sortedPercentile(timestamps, values, tStart, tEnd, PERCENTILES[i], includenan);
+					final String message = "run " + run + ", percentile " + PERCENTILES[i];
+					assertEquals(message, Double.doubleToLongBits(expected), Double.doubleToLongBits(percentiles[i]));
+					assertEquals(message, Double.doubleToLongBits(expected),
+							Double.doubleToLongBits(aggregator.getPercentile(tStart, tEnd, PERCENTILES[i], includenan)));
+				}
+			}
+		}
+	}
+
+	private static double[] createValues(final Random random, final int count) {
+		final double[] values = new double[count];
+		for (int i = 0; i < count; i++) {
+			values[i] = random.nextInt(8) == 0 ? Double.NaN : 1000 + random.nextGaussian() * 100;
+		}
+		return values;
+	}
+
+	private static void assertAggregates(final String message, final Aggregates expected, final Aggregates actual) {
+		assertEquals(message, expected.getMin(), actual.getMin(), 0.0);
+		assertEquals(message, expected.getMax(), actual.getMax(), 0.0);
+		assertEquals(message, expected.getFirst(), actual.getFirst(), 0.0);
+		assertEquals(message, expected.getLast(), actual.getLast(), 0.0);
+		assertEquals(message, expected.getAverage(), actual.getAverage(), Math.abs(expected.getAverage()) * 1e-12);
+		assertEquals(message, expected.getTotal(), actual.getTotal(), Math.abs(expected.getTotal()) * 1e-12);
+		assertEquals(message, expected.getStdev(), actual.getStdev(), Math.abs(expected.getStdev()) * 1e-9);
+		assertEquals(message, expected.lslslope, actual.lslslope, Math.abs(expected.lslslope) * 1e-9 + 1e-12);
+		assertEquals(message, expected.getLSLInt(), actual.getLSLInt(), Math.abs(expected.getLSLInt()) * 1e-9);
+		assertEquals(message, expected.getLSLCorrel(), actual.getLSLCorrel(), 1e-9);
+	}
+
+	@Test
+	public void testSinglePassAggregates() {
+		final Random random = new Random(17);
+		for (int run = 0; run < 50; run++) {
+			final int count = 2 + random.nextInt(2000);
+			final long[] timestamps = new long[count];
+			for (int i = 0; i < count; i++) {
+				timestamps[i] = 1000 + 300L * i;
+			}
+			final double[] values = createValues(random, count);
+			// a range starting and ending in the middle of a bucket
+			final long tStart = timestamps[0] + random.nextInt(600);
+			final long tEnd = timestamps[count - 1] - random.nextInt(600);
+
+			double sum = 0;
+			int known = 0;
+			for (int i = 0; i < count; i++) {
+				if (timestamps[i] >= tStart && timestamps[i] - 300 <= tEnd && !Double.isNaN(values[i])) {
+					sum += values[i];
+					known++;
+				}
+			}
+			double deviations = 0;
+			for (int i = 0; i < count; i++) {
+				if (timestamps[i] >= tStart && timestamps[i] - 300 <= tEnd && !Double.isNaN(values[i])) {
+					deviations += (values[i] - sum / known) * (values[i] - sum / known);
+				}
+			}
+			final Aggregates aggregates = new Aggregator(timestamps, values).getAggregates(tStart, tEnd);
+			assertEquals(sum / known, aggregates.getAverage(), Math.abs(sum / known) * 1e-12);
+			assertEquals(Math.sqrt(deviations / known), aggregates.getStdev(), Math.sqrt(deviations / known) * 1e-9);
+		}
+	}
+
+	@Test
+	public void testMergedAggregates() {
+		final Random random = new Random(23);
+		for (int run = 0; run < 50; run++) {
+			final double[] values = createValues(random, 1 + random.nextInt(1000));
+			final AggregateAccumulator whole = new AggregateAccumulator(300);
+			for (final double value : values) {
+				whole.add(value);
+			}
+			// the same values in up to four chunks, merged in order
+			final AggregateAccumulator merged = new AggregateAccumulator(300);
+			int from = 0;
+			while (from < values.length) {
+				final int to = Math.min(values.length, from + random.nextInt(values.length / 2 + 1) + 1);
+				final AggregateAccumulator chunk = new AggregateAccumulator(300);
+				for (int i = from; i < to; i++) {
+					chunk.add(values[i]);
+				}
+				merged.merge(chunk);
+				from = to;
+			}
+			merged.merge(new AggregateAccumulator(300));
+			assertEquals(values.length, merged.getBucketCount());
+			assertAggregates("run " + run, whole.getAggregates(), merged.getAggregates());
+		}
+	}
+}
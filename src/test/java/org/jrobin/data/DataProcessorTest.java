@@ -0,0 +1,190 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The OpenNMS Group, Inc.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *******************************************************************************/
+package org.jrobin.data;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.jrobin.core.RrdDb;
+import org.jrobin.core.RrdDef;
+import org.jrobin.core.RrdException;
+import org.jrobin.core.Sample;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class DataProcessorTest {
+	private static final long START = 1000000000L;
+	private static final long END = START + 300 * 288;
+	private static final int FILE_COUNT = 6;
+
+	private static String getPath(final int index) {
+		return "target/test-dataprocessor" + index + ".rrd";
+	}
+
+	@BeforeClass
+	public static void createRrds() throws IOException, RrdException {
+		for (int i = 0; i < FILE_COUNT; i++) {
+			new File(getPath(i)).delete();
+			final RrdDef rrdDef = new RrdDef(getPath(i), START - 1, 300);
+			rrdDef.addDatasource("a", "GAUGE", 600, Double.NaN, Double.NaN);
+			rrdDef.addDatasource("b", "GAUGE", 600, Double.NaN, Double.NaN);
+			rrdDef.addArchive("AVERAGE", 0.5, 1, 300);
+			rrdDef.addArchive("MAX", 0.5, 6, 100);
+			final RrdDb rrdDb = new RrdDb(rrdDef);
+			for (long t = START; t <= END; t += 300) {
+				final Sample sample = rrdDb.createSample(t);
+				sample.setValues(new double[] { Math.sin(t / 1000.0 + i), i * 10 + (t % 7) });
+				sample.update();
+			}
+			rrdDb.close();
+		}
+	}
+
+	private static DataProcessor createDataProcessor(final boolean parallel) throws RrdException {
+		final DataProcessor dp = new DataProcessor(START + 3600, END);
+		dp.setParallelFetch(parallel);
+		final StringBuilder sum = new StringBuilder();
+		for (int i = 0; i < FILE_COUNT; i++) {
+			dp.addDatasource("a" + i, getPath(i), "a", "AVERAGE");
+			dp.addDatasource("b" + i, getPath(i), "b", "AVERAGE");
+			dp.addDatasource("m" + i, getPath(i), "a", "MAX");
+			sum.append(i == 0 ? "a0" : ",a" + i + ",+");
+		}
+		dp.addDatasource("sum", sum.toString());
+		return dp;
+	}
+
+	@Test
+	public void testParallelFetchMatchesSequential() throws IOException, RrdException {
+		final DataProcessor sequential = createDataProcessor(false);
+		sequential.processData();
+		final DataProcessor parallel = createDataProcessor(true);
+		parallel.processData();
+
+		assertEquals(sequential.getStep(), parallel.getStep());
+		assertEquals(sequential.getLastRrdArchiveUpdateTime(), parallel.getLastRrdArchiveUpdateTime());
+		assertArrayEquals(sequential.getTimestamps(), parallel.getTimestamps());
+		final String[] names = sequential.getSourceNames();
+		assertArrayEquals(names, parallel.getSourceNames());
+		for (final String name : names) {
+			assertArrayEquals(name, sequential.getValues(name), parallel.getValues(name), 0.0);
+		}
+	}
+
+	@Test
+	public void testParallelFetchError() throws RrdException {
+		final DataProcessor dp = createDataProcessor(true);
+		dp.addDatasource("missing", "target/test-dataprocessor-missing.rrd", "a", "AVERAGE");
+		try {
+			dp.processData();
+			fail("Expected an IOException");
+		} catch (final IOException e) {
+			// the missing file is reported
+		}
+	}
+
+	@Test
+	public void testGetPercentiles() throws IOException, RrdException {
+		final DataProcessor dp = createDataProcessor(false);
+		dp.processData();
+		final double[] percentiles = dp.getPercentiles("b2", 50, 95, 99);
+		assertEquals(3, percentiles.length);
+		assertEquals(dp.getPercentile("b2", 50), percentiles[0], 0.0);
+		assertEquals(dp.get95Percentile("b2"), percentiles[1], 0.0);
+		assertEquals(dp.getPercentile("b2", 99), percentiles[2], 0.0);
+		assertTrue(percentiles[0] <= percentiles[1] && percentiles[1] <= percentiles[2]);
+		try {
+			dp.getPercentiles("b2", 50, 101);
+			fail("Expected an RrdException");
+		} catch (final RrdException e) {
+			// percentiles above 100 make no sense
+		}
+	}
+
+	@Test
+	public void testProcessDataAgainReusesColumns() throws IOException, RrdException {
+		final DataProcessor dp = createDataProcessor(false);
+		dp.setStep(900);
+		dp.processData();
+		final double[] m0 = dp.getValues("m0");
+		final double[] expected = m0.clone();
+		final double[] sum = dp.getValues("sum").clone();
+		dp.processData();
+		assertSame(m0, dp.getValues("m0"));
+		assertArrayEquals(expected, dp.getValues("m0"), 0.0);
+		assertArrayEquals(sum, dp.getValues("sum"), 0.0);
+	}
+
+	private static void update(final RrdDb rrdDb, final long t1, final long t2) throws IOException, RrdException {
+		for (long t = t1; t <= t2; t += 300) {
+			final Sample sample = rrdDb.createSample(t);
+			sample.setValues(new double[] { Math.cos(t / 3000.0), t % 11 });
+			sample.update();
+		}
+	}
+
+	private static DataProcessor createRefreshedProcessor(final String path, final long t1, final long t2) throws RrdException {
+		final DataProcessor dp = new DataProcessor(t1, t2);
+		dp.addDatasource("a", path, "a", "AVERAGE");
+		dp.addDatasource("b", path, "b", "AVERAGE");
+		dp.addDatasource("m", path, "a", "MAX");
+		dp.addDatasource("c", "a,b,+,PREV,ADDNAN");
+		dp.addDatasource("avg", "b", "AVERAGE");
+		dp.addDatasource("p", "a", 95);
+		return dp;
+	}
+
+	@Test
+	public void testRefreshMatchesNewProcessor() throws IOException, RrdException {
+		final String path = "target/test-dataprocessor-refresh.rrd";
+		new File(path).delete();
+		final RrdDef rrdDef = new RrdDef(path, START - 1, 300);
+		rrdDef.addDatasource("a", "GAUGE", 600, Double.NaN, Double.NaN);
+		rrdDef.addDatasource("b", "GAUGE", 600, Double.NaN, Double.NaN);
+		rrdDef.addArchive("AVERAGE", 0.5, 1, 400);
+		rrdDef.addArchive("MAX", 0.5, 6, 100);
+		final RrdDb rrdDb = new RrdDb(rrdDef);
+		update(rrdDb, START, END);
+
+		final DataProcessor refreshed = createRefreshedProcessor(path, START + 3600, END);
+		try {
+			refreshed.refresh(END + 300);
+			fail("Expected an RrdException");
+		} catch (final RrdException e) {
+			// nothing to refresh before data is processed
+		}
+		refreshed.processData();
+		for (long end = END + 300; end <= END + 7200; end += 1500) {
+			update(rrdDb, end - 1200 > END ? end - 1200 : END + 300, end);
+			refreshed.refresh(end);
+
+			final DataProcessor expected = createRefreshedProcessor(path, START + 3600 + end - END, end);
+			expected.processData();
+			assertEquals(expected.getEndingTimestamp(), refreshed.getEndingTimestamp());
+			assertEquals(expected.getLastRrdArchiveUpdateTime(), refreshed.getLastRrdArchiveUpdateTime());
+			assertArrayEquals(expected.getTimestamps(), refreshed.getTimestamps());
+			for (final String name : expected.getSourceNames()) {
+				assertArrayEquals(name, expected.getValues(name), refreshed.getValues(name), 0.0);
+			}
+			assertEquals(expected.getAggregate("a", "MAX"), refreshed.getAggregate("a", "MAX"), 0.0);
+		}
+		rrdDb.close();
+	}
+}
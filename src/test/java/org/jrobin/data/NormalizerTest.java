@@ -0,0 +1,103 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The OpenNMS Group, Inc.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *******************************************************************************/
+package org.jrobin.data;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.jrobin.core.Util;
+import org.junit.Test;
+
+public class NormalizerTest {
+
+	private static long[] timestamps(final long start, final long step, final int count) {
+		final long[] timestamps = new long[count];
+		for (int i = 0; i < count; i++) {
+			timestamps[i] = start + i * step;
+		}
+		return timestamps;
+	}
+
+	/**
+	 * Normalization as done before the aligned fast path, overlapping every pair of segments
+	 */
+	private static double[] normalizeByOverlap(final long[] timestamps, final long[] rawTimestamps, final double[] rawValues) {
+		final long step = timestamps[1] - timestamps[0], rawStep = rawTimestamps[1] - rawTimestamps[0];
+		final double[] values = new double[timestamps.length];
+		Arrays.fill(values, Double.NaN);
+		for (int seg = 0; seg < timestamps.length; seg++) {
+			for (int rawSeg = 0; rawSeg < rawTimestamps.length; rawSeg++) {
+				final long t1 = Math.max(rawTimestamps[rawSeg] - rawStep, timestamps[seg] - step);
+				final long t2 = Math.min(rawTimestamps[rawSeg], timestamps[seg]);
+				if (t1 < t2 && !Double.isNaN(rawValues[rawSeg])) {
+					values[seg] = Util.sum(values[seg], (t2 - t1) * rawValues[rawSeg]);
+				}
+			}
+			values[seg] /= step;
+		}
+		return values;
+	}
+
+	@Test
+	public void testFastPathsMatchOverlap() {
+		final Random random = new Random(19);
+		final long[][] cases = {
+				// raw start, raw step, start, step
+				{ 300, 300, 300, 300 },
+				{ 300, 300, 1200, 300 },
+				{ 300, 300, 0, 1800 },
+				{ 300, 300, 600, 900 },
+				{ 300, 300, 700, 600 },
+				{ 300, 300, 450, 100 },
+				{ 60, 60, 30000, 7 },
+		};
+		for (final long[] c : cases) {
+			final long[] rawTimestamps = timestamps(c[0], c[1], 500);
+			final double[] rawValues = new double[rawTimestamps.length];
+			for (int i = 0; i < rawValues.length; i++) {
+				rawValues[i] = random.nextInt(10) == 0 ? Double.NaN : random.nextDouble() * 1000;
+			}
+			final long[] timestamps = timestamps(c[2], c[3], 200);
+			final double[] expected = normalizeByOverlap(timestamps, rawTimestamps, rawValues);
+			final double[] values = new Normalizer(timestamps).normalize(rawTimestamps, rawValues);
+			assertArrayEquals(Arrays.toString(c), expected, values, 0.0);
+		}
+	}
+
+	@Test
+	public void testExactMatchIsNotCopied() {
+		final long[] timestamps = timestamps(300, 300, 10);
+		final double[] rawValues = new double[10];
+		assertSame(rawValues, new Normalizer(timestamps).normalize(timestamps, rawValues));
+	}
+
+	@Test
+	public void testBufferIsReused() {
+		final long[] rawTimestamps = timestamps(300, 300, 100);
+		final double[] rawValues = new double[100];
+		Arrays.fill(rawValues, 5.0);
+		final Normalizer normalizer = new Normalizer(timestamps(600, 600, 10));
+		final double[] buffer = new double[10];
+		assertSame(buffer, normalizer.normalize(rawTimestamps, rawValues, buffer));
+		assertEquals(5.0, buffer[3], 0.0);
+		// a buffer of the wrong length is not used
+		assertNotSame(buffer, normalizer.normalize(rawTimestamps, rawValues, new double[9]));
+	}
+}
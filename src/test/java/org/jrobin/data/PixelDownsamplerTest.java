@@ -0,0 +1,174 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The OpenNMS Group, Inc.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *******************************************************************************/
+package org.jrobin.data;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.jrobin.core.RrdDb;
+import org.jrobin.core.RrdDef;
+import org.jrobin.core.RrdException;
+import org.jrobin.core.Sample;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class PixelDownsamplerTest {
+	private static final long START = 1000000020L;
+	private static final long STEP = 60;
+	private static final int ROWS = 20000;
+	private static final int SPIKE = 12345;
+	private static final String PATH = "target/test-pixeldownsampler.rrd";
+
+	@BeforeClass
+	public static void createRrd() throws IOException, RrdException {
+		new File(PATH).delete();
+		final RrdDef rrdDef = new RrdDef(PATH, START - 1, STEP);
+		rrdDef.addDatasource("x", "GAUGE", 2 * STEP, Double.NaN, Double.NaN);
+		rrdDef.addArchive("AVERAGE", 0.5, 1, ROWS);
+		final RrdDb rrdDb = new RrdDb(rrdDef);
+		for (int i = 0; i < ROWS; i++) {
+			if (i % 97 == 0) {
+				// leave some unknown values
+				continue;
+			}
+			final Sample sample = rrdDb.createSample(START + i * STEP);
+			// a single spike in otherwise smooth data
+			sample.setValue("x", i == SPIKE ? 1000 : Math.sin(i / 100.0));
+			sample.update();
+		}
+		rrdDb.close();
+	}
+
+	private static DataProcessor createDataProcessor(final long tStart, final int points, final int pixels)
+			throws IOException, RrdException {
+		final DataProcessor dp = new DataProcessor(tStart, tStart + STEP * points);
+		dp.setPixelCount(pixels);
+		dp.addDatasource("x", PATH, "x", "AVERAGE");
+		dp.processData();
+		return dp;
+	}
+
+	/**
+	 * Per-pixel values as picked before the downsampler
+	 */
+	private static double[] sampledValues(final DataProcessor dp, final long tStart, final double[] values)
+			throws RrdException {
+		final long[] timestamps = dp.getTimestamps();
+		final int pixelCount = dp.getPixelCount();
+		final long step = dp.getStep(), span = dp.getEndingTimestamp() - tStart;
+		final double[] pixelValues = new double[pixelCount];
+		Arrays.fill(pixelValues, Double.NaN);
+		for (int pix = 0, ref = 0; pix < pixelCount; pix++) {
+			final double t = tStart + (double) (span * pix) / (double) (pixelCount - 1);
+			while (ref < timestamps.length) {
+				if (t <= timestamps[ref] - step) {
+					break;
+				}
+				else if (t <= timestamps[ref]) {
+					pixelValues[pix] = values[ref];
+					break;
+				}
+				ref++;
+			}
+		}
+		return pixelValues;
+	}
+
+	@Test
+	public void testSampleMatchesPreviousValues() throws IOException, RrdException {
+		for (final int points : new int[] { 50, 600, 5000 }) {
+			final long tStart = START + 7777;
+			final DataProcessor dp = createDataProcessor(tStart, points, 400);
+			assertArrayEquals(sampledValues(dp, tStart, dp.getValues("x")), dp.getValuesPerPixel("x"), 0.0);
+		}
+	}
+
+	@Test
+	public void testDownsampleKeepsSpikes() throws IOException, RrdException {
+		final DataProcessor dp = createDataProcessor(START, ROWS - 1, 400);
+		final double[] values = dp.getValues("x");
+		final double[] max = dp.getValuesPerPixel("x", "MAX");
+		final double[] min = dp.getValuesPerPixel("x", "MIN");
+		final double[] average = dp.getValuesPerPixel("x", "AVERAGE");
+		assertEquals(400, max.length);
+		assertEquals(1000, max(max), 0.0);
+		// sampling one value per pixel misses the spike
+		assertTrue(max(dp.getValuesPerPixel("x")) < 1000);
+
+		final double[][] envelope = dp.getPixelDownsampler().envelope(values);
+		assertArrayEquals(min, envelope[0], 0.0);
+		assertArrayEquals(max, envelope[1], 0.0);
+		for (int i = 0; i < max.length; i++) {
+			assertTrue(min[i] <= average[i] && average[i] <= max[i]);
+		}
+		try {
+			dp.getValuesPerPixel("x", "LAST");
+			fail("Expected an RrdException");
+		} catch (final RrdException e) {
+			// only AVERAGE, MIN and MAX consolidate pixels
+		}
+	}
+
+	@Test
+	public void testCoarseDataIsSampled() throws IOException, RrdException {
+		final DataProcessor dp = createDataProcessor(START, 100, 400);
+		final double[] sampled = dp.getValuesPerPixel("x");
+		final double[] min = dp.getValuesPerPixel("x", "MIN");
+		final double[] max = dp.getValuesPerPixel("x", "MAX");
+		int same = 0;
+		for (int i = 0; i < sampled.length; i++) {
+			assertTrue(Double.isNaN(sampled[i]) || (min[i] <= sampled[i] && sampled[i] <= max[i]));
+			if (Double.compare(sampled[i], max[i]) == 0 && Double.compare(sampled[i], min[i]) == 0) {
+				same++;
+			}
+		}
+		// only pixels at bucket boundaries represent more than one value
+		assertTrue(same >= sampled.length - 100);
+	}
+
+	@Test
+	public void testLargestTriangles() throws IOException, RrdException {
+		final DataProcessor dp = createDataProcessor(START, ROWS - 1, 400);
+		final long[] timestamps = dp.getTimestamps();
+		final double[] values = dp.getValues("x");
+		final int[] selected = PixelDownsampler.selectLargestTriangles(timestamps, values, 300);
+		assertEquals(300, selected.length);
+		assertEquals(0, selected[0]);
+		assertEquals(values.length - 1, selected[selected.length - 1]);
+		boolean spike = false;
+		for (int i = 1; i < selected.length; i++) {
+			assertTrue(selected[i] > selected[i - 1]);
+			spike |= values[selected[i]] == 1000;
+		}
+		assertTrue(spike);
+		assertEquals(10, PixelDownsampler.selectLargestTriangles(timestamps, Arrays.copyOf(values, 10), 300).length);
+	}
+
+	private static double max(final double[] values) {
+		double max = Double.NEGATIVE_INFINITY;
+		for (final double value : values) {
+			if (!Double.isNaN(value)) {
+				max = Math.max(max, value);
+			}
+		}
+		return max;
+	}
+}
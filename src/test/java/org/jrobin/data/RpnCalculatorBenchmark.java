@@ -0,0 +1,79 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The OpenNMS Group, Inc.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *******************************************************************************/
+package org.jrobin.data;
+
+/**
+ * Compares compiled CDEF evaluation with the slot by slot interpreter. Not a unit test,
+ * run it with:
+ * <pre>
+ * java -cp target/classes:target/test-classes org.jrobin.data.RpnCalculatorBenchmark [seconds]
+ * </pre>
+ */
+public class RpnCalculatorBenchmark {
+	private static final long START = 1000000000L;
+	private static final int POINTS = 100000;
+
+	private static final String[] EXPRESSIONS = {
+		"x,8,*",
+		"x,y,+,2,/",
+		"x,UN,0,x,IF,y,UN,0,y,IF,+",
+		"x,y,GT,x,y,IF,1024,/,100,*",
+		"x,y,-,ABS,x,y,+,/,x,0,1,LIMIT,*"
+	};
+
+	public static void main(final String[] args) throws Exception {
+		final long seconds = args.length > 0 ? Long.parseLong(args[0]) : 2;
+		final DataProcessor dp = new DataProcessor(START, START + 60L * (POINTS - 1));
+		dp.setStep(60);
+		dp.addDatasource("x", new Plottable() {
+			public double getValue(final long timestamp) {
+				return timestamp % 7 == 0 ? Double.NaN : Math.sin(timestamp / 3600.0) * 1000;
+			}
+		});
+		dp.addDatasource("y", new Plottable() {
+			public double getValue(final long timestamp) {
+				return timestamp % 11 == 0 ? Double.NaN : Math.cos(timestamp / 3600.0) * 1000;
+			}
+		});
+		dp.processData();
+
+		for (final String expression : EXPRESSIONS) {
+			final long interpreted = run(dp, expression, false, seconds * 500L);
+			final long compiled = run(dp, expression, true, seconds * 500L);
+			System.out.println(expression + ": interpreted " + interpreted + " values/ms, compiled " +
+					compiled + " values/ms");
+		}
+	}
+
+	private static long run(final DataProcessor dp, final String expression, final boolean compiled, final long millis)
+			throws Exception {
+		final RpnCalculator calculator = new RpnCalculator(expression, "z", dp);
+		// warm up, then measure
+		for (int pass = 0; pass < 2; pass++) {
+			final long start = System.currentTimeMillis();
+			long values = 0;
+			while (System.currentTimeMillis() - start < millis) {
+				values += (compiled ? calculator.calculateValues() : calculator.interpretValues()).length;
+			}
+			if (pass == 1) {
+				return values / Math.max(1, System.currentTimeMillis() - start);
+			}
+		}
+		return 0;
+	}
+}
@@ -0,0 +1,277 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The OpenNMS Group, Inc.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *******************************************************************************/
+package org.jrobin.data;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.Random;
+
+import org.jrobin.core.RrdException;
+import org.jrobin.core.Util;
+import org.junit.Test;
+
+public class RpnCalculatorTest {
+	private static final long START = 1000000000L;
+	private static final long END = START + 300 * 500;
+
+	private static final String[] COMPILED = {
+		"x,y,+", "x,y,-", "x,y,*", "x,y,/", "x,y,%", "x,8,*", "x,1024,/", "x,1,+", "x,1,-", "2,x,-",
+		"x,y,LT", "x,y,LE", "x,y,GT", "x,y,GE", "x,y,EQ", "x,y,NE", "x,y,AND", "x,y,OR", "x,y,XOR",
+		"x,y,MIN", "x,y,MAX", "x,y,ADDNAN", "x,y,ATAN2", "x,2,POW", "x,UN,0,x,IF", "x,0,0.5,LIMIT",
+		"x,SIN", "x,COS", "x,ATAN", "x,LOG", "x,EXP", "x,FLOOR", "x,CEIL", "x,ROUND", "x,ABS", "x,SQRT",
+		"x,ISINF", "x,SIGN", "x,DEG2RAD", "x,RAD2DEG", "TIME", "LTIME", "COUNT", "STEP", "TIME,YEAR",
+		"TIME,MONTH", "TIME,DATE", "TIME,HOUR", "TIME,MINUTE", "TIME,SECOND", "TIME,WEEK",
+		"x,DUP,*", "x,y,EXC,-", "x,y,POP", "x,y,+,DUP,x,EXC,-,*", "x,y,EXC,DUP,3,+,EXC,POP,-",
+		"1,2,+,3,*", "UNKN", "PI,E,+", "INF,NEGINF,+", "x,UNKN,+", "y", "42",
+		"x,y,+,x,y,-,*,x,y,*,x,y,/,+,-"
+	};
+
+	private static final String[] INTERPRETED = {
+		"x,PREV,ADDNAN", "PREV(y),x,+", "x,y,2,SORT,-", "x,y,2,REV,-", "x,y,2,AVG",
+		"x,1200,TREND", "x,1200,TRENDNAN", "600,1,300,x,PREDICT"
+	};
+
+	private static DataProcessor createDataProcessor() throws IOException, RrdException {
+		final DataProcessor dp = new DataProcessor(START, END);
+		dp.setStep(300);
+		dp.addDatasource("x", new Plottable() {
+			public double getValue(final long timestamp) {
+				return timestamp % 3900 == 0 ? Double.NaN : Math.sin(timestamp / 3000.0);
+			}
+		});
+		dp.addDatasource("y", new Plottable() {
+			public double getValue(final long timestamp) {
+				return timestamp % 5100 == 0 ? Double.NaN : (timestamp % 7) - 3;
+			}
+		});
+		dp.processData();
+		return dp;
+	}
+
+	@Test
+	public void testCompiledMatchesInterpreted() throws IOException, RrdException {
+		final DataProcessor dp = createDataProcessor();
+		for (final String expression : COMPILED) {
+			final RpnCalculator compiled = new RpnCalculator(expression, "z", dp);
+			assertTrue(expression, compiled.isCompiled());
+			final double[] expected = new RpnCalculator(expression, "z", dp).interpretValues();
+			assertArrayEquals(expression, expected, compiled.calculateValues(), 0.0);
+		}
+		// the source values are read, not modified
+		assertArrayEquals(createDataProcessor().getValues("x"), dp.getValues("x"), 0.0);
+	}
+
+	@Test
+	public void testInterpretedFallback() throws IOException, RrdException {
+		final DataProcessor dp = createDataProcessor();
+		for (final String expression : INTERPRETED) {
+			final RpnCalculator calculator = new RpnCalculator(expression, "z", dp);
+			assertFalse(expression, calculator.isCompiled());
+			final double[] expected = new RpnCalculator(expression, "z", dp).interpretValues();
+			assertArrayEquals(expression, expected, calculator.calculateValues(), 0.0);
+		}
+	}
+
+	@Test
+	public void testInvalidExpressions() throws IOException, RrdException {
+		final DataProcessor dp = createDataProcessor();
+		final String[] invalid = { "x,+", "x,y", "DUP", "+" };
+		for (final String expression : invalid) {
+			final RpnCalculator calculator = new RpnCalculator(expression, "z", dp);
+			assertFalse(expression, calculator.isCompiled());
+			try {
+				calculator.calculateValues();
+				fail("Expected an RrdException for " + expression);
+			} catch (final RrdException e) {
+				// reported by the interpreter
+			}
+		}
+	}
+
+	@Test
+	public void testParsedExpressionCache() throws IOException, RrdException {
+		final DataProcessor dp = createDataProcessor();
+		RpnCalculator.clearParsedExpressions();
+		final double[] first = new RpnCalculator("x,y,+", "a", dp).calculateValues();
+		final double[] second = new RpnCalculator("x,y,+", "b", dp).calculateValues();
+		assertEquals(1, RpnCalculator.getParsedExpressionCount());
+		assertArrayEquals(first, second, 0.0);
+
+		// PREV refers to the source being calculated, not to the one it was first parsed for
+		new RpnCalculator("COUNT,PREV,ADDNAN", "c", dp);
+		assertEquals(6.0, new RpnCalculator("COUNT,PREV,ADDNAN", "d", dp).calculateValues()[2], 0.0);
+		assertEquals(2, RpnCalculator.getParsedExpressionCount());
+
+		try {
+			new RpnCalculator("x,missing,+", "e", dp);
+			fail("Expected an RrdException");
+		} catch (final RrdException e) {
+			// unknown sources are still reported when the calculator is created
+		}
+	}
+
+	private static double[] createValues(final Random random, final int count, final boolean infinities) {
+		final double[] values = new double[count];
+		for (int i = 0; i < count; i++) {
+			final int kind = random.nextInt(20);
+			values[i] = kind == 0 ? Double.NaN : infinities && kind == 1 ? Double.POSITIVE_INFINITY :
+					infinities && kind == 2 ? Double.NEGATIVE_INFINITY : random.nextGaussian() * 1000 + 500;
+		}
+		return values;
+	}
+
+	private static void assertClose(final String message, final double[] expected, final double[] actual) {
+		assertEquals(message, expected.length, actual.length);
+		for (int i = 0; i < expected.length; i++) {
+			if (Double.isNaN(expected[i]) || Double.isInfinite(expected[i])) {
+				assertEquals(message + " at " + i, expected[i], actual[i], 0.0);
+			}
+			else {
+				assertEquals(message + " at " + i, expected[i], actual[i], Math.abs(expected[i]) * 1e-9 + 1e-9);
+			}
+		}
+	}
+
+	/**
+	 * TREND as calculated slot by slot before the sliding window
+	 */
+	private static double[] referenceTrend(final double[] vals, final int window, final boolean ignorenan) {
+		final double[] trend = new double[vals.length];
+		for (int slot = 0; slot < vals.length; slot++) {
+			if ((slot + 1) < window) {
+				trend[slot] = Double.NaN;
+				continue;
+			}
+			double accum = 0.0;
+			int count = 0;
+			final int row = Math.min(2, vals.length - slot);
+			for (int start = window; start > 0; start--) {
+				final double val = vals[slot + row - start];
+				if (ignorenan || !Double.isNaN(val)) {
+					accum = Util.sum(accum, val);
+					++count;
+				}
+			}
+			trend[slot] = (count == 0) ? Double.NaN : (accum / count);
+		}
+		return trend;
+	}
+
+	/**
+	 * PREDICT as calculated slot by slot before the sliding windows
+	 */
+	private static double[] referencePrediction(final double[] vals, final int[] key, final boolean sigma) {
+		final double[] prediction = new double[vals.length];
+		for (int slot = 0; slot < vals.length; slot++) {
+			double sum = 0;
+			double sum2 = 0;
+			int count = 0;
+			for (int loop = 1; loop < key.length; loop++) {
+				for (int i = 0; i <= key[0]; i++) {
+					final int offset = key[loop] + i;
+					if ((offset >= 0) && (offset < slot)) {
+						final double val = vals[slot - offset];
+						if (!Double.isNaN(val)) {
+							sum = Util.sum(sum, val);
+							sum2 = Util.sum(sum2, val * val);
+							count++;
+						}
+					}
+				}
+			}
+			double val = Double.NaN;
+			if (!sigma) {
+				if (count > 0) {
+					val = sum / (double) count;
+				}
+			} else if (count > 1) {
+				val = count * sum2 - sum * sum;
+				val = val < 0 ? Double.NaN : Math.sqrt(val / ((float) count * ((float) count - 1.0)));
+			}
+			prediction[slot] = val;
+		}
+		return prediction;
+	}
+
+	@Test
+	public void testSlidingTrend() {
+		final Random random = new Random(42);
+		for (int run = 0; run < 40; run++) {
+			final double[] vals = createValues(random, 1 + random.nextInt(3000), run % 4 == 3);
+			final int window = random.nextInt(400) + 1;
+			for (final boolean ignorenan : new boolean[] { false, true }) {
+				assertClose("run " + run, referenceTrend(vals, window, ignorenan),
+						RpnCalculator.calculateTrend(vals, window, ignorenan));
+			}
+		}
+	}
+
+	@Test
+	public void testSlidingPrediction() {
+		final Random random = new Random(42);
+		for (int run = 0; run < 40; run++) {
+			final double[] vals = createValues(random, 1 + random.nextInt(3000), run % 4 == 3);
+			final int[] key = new int[1 + random.nextInt(4)];
+			key[0] = random.nextInt(50) - 1;
+			for (int i = 1; i < key.length; i++) {
+				key[i] = random.nextInt(600);
+			}
+			for (final boolean sigma : new boolean[] { false, true }) {
+				assertClose("run " + run, referencePrediction(vals, key, sigma),
+						RpnCalculator.calculatePrediction(vals, key, sigma));
+			}
+		}
+	}
+
+	private static double[] createOutlierValues(final double outlier) {
+		final Random random = new Random(7);
+		final double[] vals = new double[200];
+		for (int i = 0; i < vals.length; i++) {
+			vals[i] = random.nextDouble() * 4;
+		}
+		vals[10] = outlier;
+		return vals;
+	}
+
+	@Test
+	public void testSlidingWindowsWithOutliers() {
+		// a huge value must not wipe out the small values summed next to it, and a square
+		// overflowing to infinity must not leave the sums unknown once it left the window
+		for (final double outlier : new double[] { 1e17, -1e17, 1e200, Double.MAX_VALUE }) {
+			final double[] vals = createOutlierValues(outlier);
+			for (final boolean ignorenan : new boolean[] { false, true }) {
+				assertClose("trend " + outlier, referenceTrend(vals, 20, ignorenan),
+						RpnCalculator.calculateTrend(vals, 20, ignorenan));
+			}
+			for (final boolean sigma : new boolean[] { false, true }) {
+				assertClose("prediction " + outlier, referencePrediction(vals, new int[] { 20, 0 }, sigma),
+						RpnCalculator.calculatePrediction(vals, new int[] { 20, 0 }, sigma));
+				assertClose("prediction " + outlier, referencePrediction(vals, new int[] { 17, 3, 30 }, sigma),
+						RpnCalculator.calculatePrediction(vals, new int[] { 17, 3, 30 }, sigma));
+			}
+		}
+		final double[] vals = createOutlierValues(1e17);
+		assertEquals(referenceTrend(vals, 20, false)[30], RpnCalculator.calculateTrend(vals, 20, false)[30], 1e-12);
+		final double[] overflow = createOutlierValues(1e200);
+		final double[] sigma = RpnCalculator.calculatePrediction(overflow, new int[] { 17, 3, 30 }, true);
+		for (int i = 80; i < overflow.length; i++) {
+			assertFalse(Double.isNaN(sigma[i]));
+		}
+	}
+}